@@ -0,0 +1,123 @@
+package org.redwater.fwsim.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+
+/**
+ * Throughput of RuleList.checkRules for packets that hit the first rule,
+ * hit the last rule, or match nothing, plus a mix of random traffic.
+ * Each case is measured on pcap4j packets and on flyweight header views.
+ * @author ghelmer
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClassificationBenchmark {
+	/** Number of packets in the mixed traffic, a power of two. */
+	private static final int MIXED_PACKETS = 1024;
+
+	@Param({ "10", "100", "1000", "10000", "100000" })
+	public int ruleCount;
+
+	@Param({ "LINEAR", "DECISION_TREE", "PREFIX_TRIE", "GENERATED", "COMPACT_TABLE", "BIT_VECTOR", "TUPLE_SPACE" })
+	public ClassifierType classifierType;
+
+	/** Per-rule hit counters; run with -p statistics=false,true to see their cost. */
+	@Param({ "false" })
+	public boolean statistics;
+
+	private RuleList rules;
+	private Packet firstHit;
+	private Packet lastHit;
+	private Packet noMatch;
+	private IP firstHitView;
+	private IP lastHitView;
+	private IP noMatchView;
+	private IP[] mixedViews;
+	private int next;
+
+	@Setup
+	public void setUp() throws Exception {
+		SyntheticRuleSet generator = new SyntheticRuleSet(ruleCount);
+		rules = new RuleList();
+		rules.setClassifierType(classifierType);
+		rules.parse(generator.generate(ruleCount));
+		rules.compile();
+		rules.setStatisticsEnabled(statistics);
+		firstHit = SyntheticRuleSet.firstHitPacket();
+		lastHit = SyntheticRuleSet.lastHitPacket();
+		noMatch = SyntheticRuleSet.noMatchPacket();
+		firstHitView = view(firstHit);
+		lastHitView = view(lastHit);
+		noMatchView = view(noMatch);
+		mixedViews = new IP[MIXED_PACKETS];
+		for (int i = 0; i < MIXED_PACKETS; i++) {
+			mixedViews[i] = view(generator.randomPacket());
+		}
+		if (rules.checkRules(firstHit) != rules.getRules().get(0)
+				|| rules.checkRules(lastHit) != rules.getRules().get(ruleCount - 1)
+				|| rules.checkRules(noMatch) != null) {
+			throw new IllegalStateException("Synthetic packets do not hit the expected rules");
+		}
+	}
+
+	private static IP view(Packet packet) {
+		byte[] raw = packet.getRawData();
+		return new IP().wrap(ByteBuffer.wrap(raw), 0, raw.length);
+	}
+
+	@Benchmark
+	public IRule firstHit() {
+		return rules.checkRules(firstHit);
+	}
+
+	@Benchmark
+	public IRule lastHit() {
+		return rules.checkRules(lastHit);
+	}
+
+	@Benchmark
+	public IRule noMatch() {
+		return rules.checkRules(noMatch);
+	}
+
+	@Benchmark
+	public IRule firstHitView() {
+		return rules.checkRules(firstHitView);
+	}
+
+	@Benchmark
+	public IRule lastHitView() {
+		return rules.checkRules(lastHitView);
+	}
+
+	@Benchmark
+	public IRule noMatchView() {
+		return rules.checkRules(noMatchView);
+	}
+
+	@Benchmark
+	public IRule mixedView() {
+		return rules.checkRules(mixedViews[next++ & (MIXED_PACKETS - 1)]);
+	}
+}
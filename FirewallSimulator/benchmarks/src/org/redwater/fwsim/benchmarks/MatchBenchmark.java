@@ -0,0 +1,70 @@
+package org.redwater.fwsim.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.services.TextRuleParser;
+
+/**
+ * Throughput of a single rule's matchesRule, for a matching packet and
+ * for packets rejected on the address and on the protocol.
+ * @author ghelmer
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MatchBenchmark {
+	private IRule ipRule;
+	private IRule tcpRule;
+	private Packet tcpPacket;
+	private Packet udpPacket;
+	private Packet otherPacket;
+
+	@Setup
+	public void setUp() throws Exception {
+		ipRule = TextRuleParser.parse("ip srcAddress 198.51.100.0/24 action accept");
+		tcpRule = TextRuleParser.parse(SyntheticRuleSet.FIRST_RULE);
+		tcpPacket = SyntheticRuleSet.firstHitPacket();
+		udpPacket = SyntheticRuleSet.lastHitPacket();
+		otherPacket = SyntheticRuleSet.noMatchPacket();
+	}
+
+	@Benchmark
+	public boolean ipRuleMatch() {
+		return ipRule.matchesRule(tcpPacket);
+	}
+
+	@Benchmark
+	public boolean ipRuleAddressMiss() {
+		return ipRule.matchesRule(otherPacket);
+	}
+
+	@Benchmark
+	public boolean tcpRuleMatch() {
+		return tcpRule.matchesRule(tcpPacket);
+	}
+
+	@Benchmark
+	public boolean tcpRuleAddressMiss() {
+		return tcpRule.matchesRule(otherPacket);
+	}
+
+	@Benchmark
+	public boolean tcpRuleProtocolMiss() {
+		return tcpRule.matchesRule(udpPacket);
+	}
+}
@@ -0,0 +1,71 @@
+package org.redwater.fwsim.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.BulkRuleLoader;
+import org.redwater.fwsim.services.TextRuleParser;
+
+/**
+ * Throughput of TextRuleParser.parse on single rules, and of loading a
+ * whole ruleset into a RuleList line by line or with a BulkRuleLoader.
+ * @author ghelmer
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ParseBenchmark {
+	@Param({ "100", "10000", "500000" })
+	public int ruleCount;
+
+	private List<String> ruleText;
+	private ByteBuffer ruleFile;
+	private BulkRuleLoader loader;
+
+	@Setup
+	public void setUp() {
+		ruleText = new SyntheticRuleSet(ruleCount).generate(ruleCount);
+		ruleFile = ByteBuffer.wrap(String.join("\n", ruleText).getBytes(StandardCharsets.US_ASCII));
+		loader = new BulkRuleLoader();
+	}
+
+	@Benchmark
+	public IRule parseTcpRule() throws Exception {
+		return TextRuleParser.parse(SyntheticRuleSet.FIRST_RULE);
+	}
+
+	@Benchmark
+	public IRule parseIpRule() throws Exception {
+		return TextRuleParser.parse("ip srcAddress 10.1.0.0/16 dstAddress 192.168.4.0/24 action deny");
+	}
+
+	@Benchmark
+	public RuleList parseRuleList() throws Exception {
+		RuleList rules = new RuleList();
+		rules.parse(ruleText);
+		return rules;
+	}
+
+	@Benchmark
+	public List<IRule> bulkLoad() throws Exception {
+		return loader.parse(ruleFile);
+	}
+}
@@ -0,0 +1,238 @@
+package org.redwater.fwsim.benchmarks;
+
+import java.net.Inet4Address;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.IpV4Rfc1349Tos;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.TcpPacket;
+import org.pcap4j.packet.UdpPacket;
+import org.pcap4j.packet.UnknownPacket;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.pcap4j.packet.namednumber.IpVersion;
+import org.pcap4j.packet.namednumber.TcpPort;
+import org.pcap4j.packet.namednumber.UdpPort;
+
+/**
+ * Generator of synthetic rulesets and packets for the benchmarks.
+ * <p>
+ * The rules look like an enterprise policy: mostly TCP, every rule
+ * restricted to a private source or destination network, prefix lengths
+ * weighted towards /24 and host routes, and destination ports drawn from
+ * common services. The first and last rules of every ruleset match only
+ * documentation addresses (RFC 5737) that the other rules never cover,
+ * so a packet can be built that hits exactly the first rule, exactly
+ * the last rule, or nothing at all, whatever the size of the ruleset.
+ * @author ghelmer
+ */
+public class SyntheticRuleSet {
+	/** Rule placed first in every ruleset. */
+	public static final String FIRST_RULE = "tcp srcAddress 198.51.100.0/24 dstAddress 203.0.113.10/32 dstPort 443 action accept";
+	/** Rule placed last in every ruleset. */
+	public static final String LAST_RULE = "udp srcAddress 198.51.100.0/24 dstAddress 203.0.113.20/32 dstPort 514 action deny";
+
+	private static final String[] PRIVATE_NETWORKS = { "10.0.0.0", "172.16.0.0", "192.168.0.0" };
+	private static final int[] PRIVATE_NETWORK_BITS = { 8, 12, 16 };
+	/** Prefix lengths and their weights in percent. */
+	private static final int[] PREFIX_LENGTHS = { 8, 16, 20, 24, 28, 32 };
+	private static final int[] PREFIX_WEIGHTS = { 2, 8, 5, 45, 10, 30 };
+	private static final int[] SERVICE_PORTS = {
+			22, 25, 53, 80, 110, 123, 143, 389, 443, 445, 514, 636, 993, 1433, 3306, 3389, 5432, 8080, 8443
+	};
+
+	private final Random random;
+
+	/**
+	 * Construct a generator with a fixed seed, so runs can be compared.
+	 * @param seed - random seed
+	 */
+	public SyntheticRuleSet(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Generate a ruleset in the text rule format.
+	 * @param count - number of rules, at least 2
+	 * @return rules in priority order
+	 */
+	public List<String> generate(int count) {
+		List<String> rules = new ArrayList<>(count);
+		rules.add(FIRST_RULE);
+		for (int i = 2; i < count; i++) {
+			rules.add(randomRule());
+		}
+		rules.add(LAST_RULE);
+		return rules;
+	}
+
+	/**
+	 * Build a random rule that matches only packets from or to a private network.
+	 * @return rule text
+	 */
+	public String randomRule() {
+		StringBuilder s = new StringBuilder();
+		int type = random.nextInt(100);
+		s.append(type < 60 ? "tcp" : type < 85 ? "udp" : "ip");
+		boolean src = random.nextInt(100) < 60;
+		boolean dst = !src || random.nextInt(100) < 90;
+		if (src) {
+			s.append(" srcAddress ").append(randomPrivateCidr());
+		}
+		if (dst) {
+			s.append(" dstAddress ").append(randomPrivateCidr());
+		}
+		if (type < 85) {
+			if (random.nextInt(100) < 15) {
+				s.append(" srcPort 1024-65535");
+			}
+			int port = random.nextInt(100);
+			if (port < 70) {
+				s.append(" dstPort ").append(SERVICE_PORTS[random.nextInt(SERVICE_PORTS.length)]);
+			} else if (port < 85) {
+				int start = 1024 + random.nextInt(60000);
+				s.append(" dstPort ").append(start).append('-').append(start + random.nextInt(100));
+			}
+		}
+		int action = random.nextInt(100);
+		s.append(" action ").append(action < 70 ? "accept" : action < 90 ? "deny" : "reject");
+		return s.toString();
+	}
+
+	private String randomPrivateCidr() {
+		int n = random.nextInt(PRIVATE_NETWORKS.length);
+		int weight = random.nextInt(100);
+		int i = 0;
+		while (weight >= PREFIX_WEIGHTS[i]) {
+			weight -= PREFIX_WEIGHTS[i];
+			i++;
+		}
+		int length = Math.max(PREFIX_LENGTHS[i], PRIVATE_NETWORK_BITS[n]);
+		int hostBits = 32 - PRIVATE_NETWORK_BITS[n];
+		int address = ipV4(PRIVATE_NETWORKS[n]) | (random.nextInt() & (int)((1L << hostBits) - 1));
+		address &= (int)(0xFFFFFFFFL << (32 - length));
+		return String.format("%d.%d.%d.%d/%d", (address >>> 24) & 0xFF, (address >>> 16) & 0xFF,
+				(address >>> 8) & 0xFF, address & 0xFF, length);
+	}
+
+	/**
+	 * Build a packet that matches FIRST_RULE and no other rule.
+	 * @return packet
+	 */
+	public static Packet firstHitPacket() {
+		return buildPacket(IpNumber.TCP, ipV4("198.51.100.7"), ipV4("203.0.113.10"), 40000, 443);
+	}
+
+	/**
+	 * Build a packet that matches LAST_RULE and no other rule.
+	 * @return packet
+	 */
+	public static Packet lastHitPacket() {
+		return buildPacket(IpNumber.UDP, ipV4("198.51.100.7"), ipV4("203.0.113.20"), 40000, 514);
+	}
+
+	/**
+	 * Build a packet that matches no rule.
+	 * @return packet
+	 */
+	public static Packet noMatchPacket() {
+		return buildPacket(IpNumber.TCP, ipV4("192.0.2.1"), ipV4("198.18.0.1"), 40000, 9);
+	}
+
+	/**
+	 * Build a random packet between private and public addresses, to a
+	 * common service port.
+	 * @return packet
+	 */
+	public Packet randomPacket() {
+		int n = random.nextInt(PRIVATE_NETWORKS.length);
+		int hostBits = 32 - PRIVATE_NETWORK_BITS[n];
+		int inside = ipV4(PRIVATE_NETWORKS[n]) | (random.nextInt() & (int)((1L << hostBits) - 1));
+		int outside = random.nextInt();
+		int service = SERVICE_PORTS[random.nextInt(SERVICE_PORTS.length)];
+		int client = 1024 + random.nextInt(64512);
+		IpNumber protocol = random.nextInt(100) < 70 ? IpNumber.TCP : IpNumber.UDP;
+		if (random.nextBoolean()) {
+			return buildPacket(protocol, inside, outside, client, service);
+		}
+		return buildPacket(protocol, outside, inside, client, service);
+	}
+
+	/**
+	 * Convert a dotted quad address to an int.
+	 * @param address - dotted quad
+	 * @return address as an int
+	 */
+	public static int ipV4(String address) {
+		String[] parts = address.split("\\.");
+		int result = 0;
+		for (String p : parts) {
+			result = (result << 8) | Integer.parseInt(p);
+		}
+		return result;
+	}
+
+	private static Inet4Address toInet4Address(int address) {
+		try {
+			return (Inet4Address) Inet4Address.getByAddress(new byte[] {
+					(byte)(address >>> 24), (byte)(address >>> 16), (byte)(address >>> 8), (byte)address });
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Build an IPv4 packet carrying a TCP segment or UDP datagram.
+	 * @param protocol - IpNumber.TCP or IpNumber.UDP
+	 * @param src - source address
+	 * @param dst - destination address
+	 * @param srcPort - source port
+	 * @param dstPort - destination port
+	 * @return packet
+	 */
+	public static Packet buildPacket(IpNumber protocol, int src, int dst, int srcPort, int dstPort) {
+		Inet4Address srcAddr = toInet4Address(src);
+		Inet4Address dstAddr = toInet4Address(dst);
+		UnknownPacket.Builder unknownb = new UnknownPacket.Builder();
+		unknownb.rawData(new byte[] { (byte)0, (byte)1, (byte)2, (byte)3 });
+		Packet.Builder payload;
+		if (protocol.equals(IpNumber.TCP)) {
+			payload = new TcpPacket.Builder()
+					.srcPort(TcpPort.getInstance((short)srcPort))
+					.dstPort(TcpPort.getInstance((short)dstPort))
+					.srcAddr(srcAddr)
+					.dstAddr(dstAddr)
+					.window((short)9999)
+					.ack(true)
+					.correctChecksumAtBuild(true)
+					.correctLengthAtBuild(true)
+					.paddingAtBuild(true)
+					.payloadBuilder(unknownb);
+		} else {
+			payload = new UdpPacket.Builder()
+					.srcPort(UdpPort.getInstance((short)srcPort))
+					.dstPort(UdpPort.getInstance((short)dstPort))
+					.srcAddr(srcAddr)
+					.dstAddr(dstAddr)
+					.correctChecksumAtBuild(true)
+					.correctLengthAtBuild(true)
+					.payloadBuilder(unknownb);
+		}
+		IpV4Packet.Builder b = new IpV4Packet.Builder();
+		b.version(IpVersion.IPV4)
+			.tos(IpV4Rfc1349Tos.newInstance((byte)0))
+			.ttl((byte)64)
+			.protocol(protocol)
+			.srcAddr(srcAddr)
+			.dstAddr(dstAddr)
+			.correctChecksumAtBuild(true)
+			.correctLengthAtBuild(true)
+			.dontFragmentFlag(true)
+			.paddingAtBuild(true)
+			.payloadBuilder(payload);
+		return b.build();
+	}
+}
@@ -0,0 +1,65 @@
+package org.redwater.fwsim.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.TextRuleParser;
+
+/**
+ * Cost of a single rule change followed by a packet check: one rule is
+ * added at the end, a packet is checked against the changed rules, and
+ * the rule is removed again.
+ * @author ghelmer
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UpdateBenchmark {
+	@Param({ "1000", "10000" })
+	public int ruleCount;
+
+	@Param({ "DECISION_TREE", "BIT_VECTOR", "TUPLE_SPACE" })
+	public ClassifierType classifierType;
+
+	private RuleList rules;
+	private IRule extra;
+	private IP lastHitView;
+
+	@Setup
+	public void setUp() throws Exception {
+		SyntheticRuleSet generator = new SyntheticRuleSet(ruleCount);
+		rules = new RuleList();
+		rules.setClassifierType(classifierType);
+		rules.parse(generator.generate(ruleCount));
+		rules.compile();
+		extra = TextRuleParser.parse("tcp dstAddress 192.0.2.0/24 dstPort 8080 action deny");
+		byte[] raw = SyntheticRuleSet.lastHitPacket().getRawData();
+		lastHitView = new IP().wrap(ByteBuffer.wrap(raw), 0, raw.length);
+	}
+
+	@Benchmark
+	public IRule addCheckRemove() {
+		rules.addRule(extra);
+		IRule r = rules.checkRules(lastHitView);
+		rules.removeRule(extra);
+		return r;
+	}
+}
@@ -0,0 +1,137 @@
+package org.redwater.fwsim.cache;
+
+/**
+ * Hit and miss counts of a VerdictCache.
+ * @author ghelmer
+ */
+public class CacheStatistics {
+	private long microflowHits;
+	private long megaflowHits;
+	private long misses;
+	private long bypasses;
+	private long evictions;
+	private long invalidations;
+	private int megaflowMasks;
+
+	/**
+	 * Construct empty statistics.
+	 */
+	public CacheStatistics() {
+		microflowHits = 0;
+		megaflowHits = 0;
+		misses = 0;
+		bypasses = 0;
+		evictions = 0;
+		invalidations = 0;
+		megaflowMasks = 0;
+	}
+
+	/**
+	 * Construct a copy of cache counts.
+	 */
+	CacheStatistics(long microflowHits, long megaflowHits, long misses, long bypasses,
+			long evictions, long invalidations, int megaflowMasks) {
+		this.microflowHits = microflowHits;
+		this.megaflowHits = megaflowHits;
+		this.misses = misses;
+		this.bypasses = bypasses;
+		this.evictions = evictions;
+		this.invalidations = invalidations;
+		this.megaflowMasks = megaflowMasks;
+	}
+
+	/**
+	 * Add the counts of other statistics to these.
+	 * @param other - statistics to add
+	 */
+	public void merge(CacheStatistics other) {
+		microflowHits += other.microflowHits;
+		megaflowHits += other.megaflowHits;
+		misses += other.misses;
+		bypasses += other.bypasses;
+		evictions += other.evictions;
+		invalidations += other.invalidations;
+		megaflowMasks = Math.max(megaflowMasks, other.megaflowMasks);
+	}
+
+	/**
+	 * Get the number of lookups answered by the exact 5-tuple cache.
+	 * @return number of lookups
+	 */
+	public long getMicroflowHits() {
+		return microflowHits;
+	}
+
+	/**
+	 * Get the number of lookups answered by the wildcard cache.
+	 * @return number of lookups
+	 */
+	public long getMegaflowHits() {
+		return megaflowHits;
+	}
+
+	/**
+	 * Get the number of lookups that had to check the rules.
+	 * @return number of lookups
+	 */
+	public long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Get the number of lookups that could not use the cache at all,
+	 * such as non-IPv4 packets.
+	 * @return number of lookups
+	 */
+	public long getBypasses() {
+		return bypasses;
+	}
+
+	/**
+	 * Get the number of entries evicted from either tier.
+	 * @return number of evictions
+	 */
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * Get the number of times the cache was flushed because the rules changed.
+	 * @return number of flushes
+	 */
+	public long getInvalidations() {
+		return invalidations;
+	}
+
+	/**
+	 * Get the number of distinct wildcard masks in the megaflow tier.
+	 * @return number of masks
+	 */
+	public int getMegaflowMasks() {
+		return megaflowMasks;
+	}
+
+	/**
+	 * Get the fraction of lookups answered from either tier.
+	 * @return hit rate from 0 to 1
+	 */
+	public double getHitRate() {
+		long lookups = microflowHits + megaflowHits + misses + bypasses;
+		return lookups == 0 ? 0 : (double)(microflowHits + megaflowHits) / lookups;
+	}
+
+	/**
+	 * Return a text report of the statistics.
+	 * @return text
+	 */
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("Microflow hits: %d%n", microflowHits));
+		s.append(String.format("Megaflow hits: %d (%d masks)%n", megaflowHits, megaflowMasks));
+		s.append(String.format("Misses: %d%n", misses));
+		s.append(String.format("Bypasses: %d%n", bypasses));
+		s.append(String.format("Evictions: %d%n", evictions));
+		s.append(String.format("Hit rate: %.1f%%%n", getHitRate() * 100));
+		return s.toString();
+	}
+}
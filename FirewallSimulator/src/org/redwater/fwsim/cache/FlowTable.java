@@ -0,0 +1,126 @@
+package org.redwater.fwsim.cache;
+
+import java.util.Arrays;
+
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Fixed size set associative table from a packed 5-tuple to a rule.
+ * Each key hashes to a set of WAYS slots; when a set is full, a CLOCK
+ * hand sweeps its slots, giving recently used entries a second chance,
+ * and evicts the first entry not used since the last sweep.
+ * @author ghelmer
+ */
+final class FlowTable {
+	/** Number of slots in each set. */
+	static final int WAYS = 4;
+	/** Marks a used slot in the second key word, which also keeps it non-zero. */
+	static final long USED = 1L << 63;
+
+	private final long[] addressKeys;
+	private final long[] portKeys;
+	private final IRule[] values;
+	private final boolean[] referenced;
+	private final byte[] hands;
+	private final int setMask;
+	private long evictions;
+
+	/**
+	 * Construct a FlowTable.
+	 * @param entries - number of entries, rounded up to a power of two
+	 */
+	FlowTable(int entries) {
+		int sets = Integer.highestOneBit(Math.max(1, (entries + WAYS - 1) / WAYS) - 1) << 1;
+		sets = Math.max(1, sets);
+		addressKeys = new long[sets * WAYS];
+		portKeys = new long[sets * WAYS];
+		values = new IRule[sets * WAYS];
+		referenced = new boolean[sets * WAYS];
+		hands = new byte[sets];
+		setMask = sets - 1;
+	}
+
+	/**
+	 * Find a key and mark its entry as recently used.
+	 * @param addressKey - packed addresses
+	 * @param portKey - packed ports and protocol, with USED set
+	 * @return slot of the entry, or -1 if absent
+	 */
+	int find(long addressKey, long portKey) {
+		int base = (int)hash(addressKey, portKey) & setMask;
+		base *= WAYS;
+		for (int i = base; i < base + WAYS; i++) {
+			if (portKeys[i] == portKey && addressKeys[i] == addressKey) {
+				referenced[i] = true;
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the rule stored in a slot.
+	 * @param slot - slot returned by find
+	 * @return rule, or null for a cached "no match"
+	 */
+	IRule get(int slot) {
+		return values[slot];
+	}
+
+	/**
+	 * Add an entry, evicting one from its set if the set is full.
+	 * @param addressKey - packed addresses
+	 * @param portKey - packed ports and protocol, with USED set
+	 * @param rule - rule to store, or null for "no match"
+	 */
+	void put(long addressKey, long portKey, IRule rule) {
+		int set = (int)hash(addressKey, portKey) & setMask;
+		int base = set * WAYS;
+		int slot = -1;
+		for (int i = base; i < base + WAYS; i++) {
+			if (portKeys[i] == 0 || (portKeys[i] == portKey && addressKeys[i] == addressKey)) {
+				slot = i;
+				break;
+			}
+		}
+		if (slot < 0) {
+			int hand = hands[set];
+			while (referenced[base + hand]) {
+				referenced[base + hand] = false;
+				hand = (hand + 1) % WAYS;
+			}
+			slot = base + hand;
+			hands[set] = (byte)((hand + 1) % WAYS);
+			evictions++;
+		}
+		addressKeys[slot] = addressKey;
+		portKeys[slot] = portKey;
+		values[slot] = rule;
+		referenced[slot] = false;
+	}
+
+	/**
+	 * Remove every entry.
+	 */
+	void clear() {
+		Arrays.fill(portKeys, 0);
+		Arrays.fill(values, null);
+		Arrays.fill(referenced, false);
+	}
+
+	/**
+	 * Get the number of entries evicted to make room for others.
+	 * @return number of evictions
+	 */
+	long getEvictions() {
+		return evictions;
+	}
+
+	private static long hash(long addressKey, long portKey) {
+		long h = addressKey * 0x9E3779B97F4A7C15L + portKey;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,302 @@
+package org.redwater.fwsim.cache;
+
+import java.util.List;
+
+import org.redwater.fwsim.classifiers.CompiledRule;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+
+/**
+ * Two tier cache of verdicts in front of a RuleList, in the manner of
+ * the Open vSwitch datapath. The first tier maps an exact 5-tuple to
+ * its rule. The second tier holds megaflows: 5-tuples with every bit
+ * the rule walk did not need wildcarded, so one entry answers for all
+ * the flows that would take the same path through the rules. Megaflows
+ * are grouped by their wildcard mask, and each group is a table of
+ * masked keys.
+ * <p>
+ * On a miss the rules are walked in order. Each rule that does not
+ * match unwildcards just enough prefix bits of one field to keep every
+ * packet of the megaflow from matching it, and the matching rule
+ * unwildcards enough bits to make every packet of the megaflow match.
+ * <p>
+ * The cache is flushed whenever the RuleList changes. It is not safe
+ * for concurrent use; give each thread its own cache over a shared
+ * RuleList.
+ * @author ghelmer
+ */
+public class VerdictCache {
+	/** Default number of exact 5-tuple entries. */
+	public static final int DEFAULT_MICROFLOW_ENTRIES = 8192;
+	/** Default number of entries for each megaflow mask. */
+	public static final int DEFAULT_MEGAFLOW_ENTRIES = 4096;
+	/** Maximum number of distinct megaflow masks. */
+	public static final int MAX_MEGAFLOW_MASKS = 64;
+
+	/** Width in bits of each dimension. */
+	private static final int[] WIDTHS = { 32, 32, 16, 16, 8 };
+
+	/**
+	 * Megaflows sharing one wildcard mask.
+	 */
+	private static final class Subtable {
+		private final long addressMask;
+		private final long portMask;
+		private final FlowTable table;
+		private long hits;
+
+		private Subtable(long addressMask, long portMask, int entries) {
+			this.addressMask = addressMask;
+			this.portMask = portMask;
+			table = new FlowTable(entries);
+		}
+	}
+
+	private final RuleList rules;
+	private final int megaflowEntries;
+	private final FlowTable microflows;
+	private final Subtable[] subtables;
+	private final int[] prefix;
+	private final long[] values;
+	private int subtableCount;
+	private CompiledRule[] compiledRules;
+	private boolean cacheable;
+	private long generation;
+	private long microflowHits;
+	private long megaflowHits;
+	private long misses;
+	private long bypasses;
+	private long invalidations;
+	private long megaflowEvictions;
+
+	/**
+	 * Construct a VerdictCache with the default sizes.
+	 * @param rules - rules to cache the verdicts of
+	 */
+	public VerdictCache(RuleList rules) {
+		this(rules, DEFAULT_MICROFLOW_ENTRIES, DEFAULT_MEGAFLOW_ENTRIES);
+	}
+
+	/**
+	 * Construct a VerdictCache.
+	 * @param rules - rules to cache the verdicts of
+	 * @param microflowEntries - number of exact 5-tuple entries
+	 * @param megaflowEntries - number of entries for each megaflow mask
+	 */
+	public VerdictCache(RuleList rules, int microflowEntries, int megaflowEntries) {
+		this.rules = rules;
+		this.megaflowEntries = megaflowEntries;
+		microflows = new FlowTable(microflowEntries);
+		subtables = new Subtable[MAX_MEGAFLOW_MASKS];
+		prefix = new int[CompiledRule.DIMENSIONS];
+		values = new long[CompiledRule.DIMENSIONS];
+		generation = -1;
+	}
+
+	/**
+	 * Find the first rule that matches the packet header view, from the
+	 * cache if possible.
+	 * @param packet - packet header view to check
+	 * @return IRule object that matched the packet, or null
+	 */
+	public IRule checkRules(IPacket packet) {
+		return checkRules(packet, 0);
+	}
+
+	/**
+	 * Find the first rule that matches the packet header view, from the
+	 * cache if possible. While the RuleList's statistics are enabled the
+	 * matching rule is counted, as checkRules of the RuleList would.
+	 * @param packet - packet header view to check
+	 * @param length - length of the packet for the byte counters, or 0
+	 * @return IRule object that matched the packet, or null
+	 */
+	public IRule checkRules(IPacket packet, int length) {
+		if (generation != rules.getGeneration()) {
+			rebuild();
+		}
+		if (!cacheable || !packet.isIpV4()) {
+			bypasses++;
+			return rules.checkRules(packet, length);
+		}
+		IRule r = lookup(packet);
+		if (r != null && rules.isStatisticsEnabled()) {
+			r.getCounters().recordMatch(length);
+		}
+		return r;
+	}
+
+	/**
+	 * Find the first rule that matches an IPv4 packet in the cache, or
+	 * walk the rules and cache the result.
+	 * @param packet - IPv4 packet header view
+	 * @return first matching rule, or null
+	 */
+	private IRule lookup(IPacket packet) {
+		long addressKey = ((packet.getSrcAddr() & 0xFFFFFFFFL) << 32) | (packet.getDstAddr() & 0xFFFFFFFFL);
+		long portKey = FlowTable.USED | ((long)packet.getProtocol() << 32)
+				| ((long)packet.getSrcPort() << 16) | packet.getDstPort();
+
+		int slot = microflows.find(addressKey, portKey);
+		if (slot >= 0) {
+			microflowHits++;
+			return microflows.get(slot);
+		}
+		for (int i = 0; i < subtableCount; i++) {
+			Subtable t = subtables[i];
+			slot = t.table.find(addressKey & t.addressMask, portKey & t.portMask);
+			if (slot >= 0) {
+				megaflowHits++;
+				IRule r = t.table.get(slot);
+				t.hits++;
+				// Keep the busiest masks first.
+				if (i > 0 && t.hits > subtables[i - 1].hits) {
+					subtables[i] = subtables[i - 1];
+					subtables[i - 1] = t;
+				}
+				microflows.put(addressKey, portKey, r);
+				return r;
+			}
+		}
+
+		misses++;
+		IRule r = walk(packet);
+		microflows.put(addressKey, portKey, r);
+		long addressMask = (prefixMask(prefix[CompiledRule.DIM_SRC_ADDR], 32) << 32)
+				| prefixMask(prefix[CompiledRule.DIM_DST_ADDR], 32);
+		long portMask = FlowTable.USED | (prefixMask(prefix[CompiledRule.DIM_PROTOCOL], 8) << 32)
+				| (prefixMask(prefix[CompiledRule.DIM_SRC_PORT], 16) << 16)
+				| prefixMask(prefix[CompiledRule.DIM_DST_PORT], 16);
+		Subtable t = findSubtable(addressMask, portMask);
+		if (t != null) {
+			t.table.put(addressKey & addressMask, portKey & portMask, r);
+		}
+		return r;
+	}
+
+	/**
+	 * Walk the rules in order, unwildcarding the prefix bits each rule
+	 * needs to see.
+	 * @param packet - IPv4 packet header view
+	 * @return first matching rule, or null
+	 */
+	private IRule walk(IPacket packet) {
+		for (int d = 0; d < CompiledRule.DIMENSIONS; d++) {
+			prefix[d] = 0;
+			values[d] = CompiledRule.field(packet, d);
+		}
+		for (CompiledRule r : compiledRules) {
+			if (r.matches(packet)) {
+				for (int d = 0; d < CompiledRule.DIMENSIONS; d++) {
+					int p = prefix[d];
+					while (!r.covers(d, blockLow(values[d], p, WIDTHS[d]), blockHigh(values[d], p, WIDTHS[d]))) {
+						p++;
+					}
+					prefix[d] = p;
+				}
+				return r.getRule();
+			}
+			// Separate the megaflow from this rule along the cheapest field.
+			int bestDimension = -1;
+			int bestPrefix = 0;
+			for (int d = 0; d < CompiledRule.DIMENSIONS; d++) {
+				if (r.matchesField(d, values[d])) {
+					continue;
+				}
+				int p = prefix[d];
+				while (r.overlaps(d, blockLow(values[d], p, WIDTHS[d]), blockHigh(values[d], p, WIDTHS[d]))) {
+					p++;
+				}
+				if (bestDimension < 0 || p - prefix[d] < bestPrefix - prefix[bestDimension]) {
+					bestDimension = d;
+					bestPrefix = p;
+					if (p == prefix[d]) {
+						break;
+					}
+				}
+			}
+			prefix[bestDimension] = bestPrefix;
+		}
+		return null;
+	}
+
+	private static long blockLow(long value, int prefixLength, int width) {
+		return value & ~((1L << (width - prefixLength)) - 1);
+	}
+
+	private static long blockHigh(long value, int prefixLength, int width) {
+		return value | ((1L << (width - prefixLength)) - 1);
+	}
+
+	private static long prefixMask(int prefixLength, int width) {
+		return ((1L << width) - 1) & ~((1L << (width - prefixLength)) - 1);
+	}
+
+	/**
+	 * Find the megaflow group for a mask, adding one if there is room.
+	 * @param addressMask - mask of the address key word
+	 * @param portMask - mask of the port key word
+	 * @return group, or null if there are already too many masks
+	 */
+	private Subtable findSubtable(long addressMask, long portMask) {
+		for (int i = 0; i < subtableCount; i++) {
+			if (subtables[i].addressMask == addressMask && subtables[i].portMask == portMask) {
+				return subtables[i];
+			}
+		}
+		if (subtableCount == subtables.length) {
+			return null;
+		}
+		Subtable t = new Subtable(addressMask, portMask, megaflowEntries);
+		subtables[subtableCount++] = t;
+		return t;
+	}
+
+	/**
+	 * Flush both tiers and recompile the rules.
+	 */
+	private void rebuild() {
+		if (generation >= 0) {
+			invalidations++;
+		}
+		generation = rules.getGeneration();
+		List<IRule> list = rules.getRules();
+		compiledRules = new CompiledRule[list.size()];
+		cacheable = true;
+		for (int i = 0; i < compiledRules.length; i++) {
+			compiledRules[i] = CompiledRule.compile(list.get(i), i);
+			if (compiledRules[i] == null) {
+				// Rule types that are not understood may look at anything in the packet.
+				cacheable = false;
+			}
+		}
+		microflows.clear();
+		for (int i = 0; i < subtableCount; i++) {
+			megaflowEvictions += subtables[i].table.getEvictions();
+			subtables[i] = null;
+		}
+		subtableCount = 0;
+	}
+
+	/**
+	 * Flush both tiers.
+	 */
+	public void invalidate() {
+		generation = -1;
+		invalidations++;
+	}
+
+	/**
+	 * Get the hit and miss counts.
+	 * @return copy of the counts
+	 */
+	public CacheStatistics getStatistics() {
+		long evictions = microflows.getEvictions() + megaflowEvictions;
+		for (int i = 0; i < subtableCount; i++) {
+			evictions += subtables[i].table.getEvictions();
+		}
+		return new CacheStatistics(microflowHits, megaflowHits, misses, bypasses,
+				evictions, invalidations, subtableCount);
+	}
+}
@@ -0,0 +1,105 @@
+package org.redwater.fwsim.cache.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.cache.CacheStatistics;
+import org.redwater.fwsim.cache.VerdictCache;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+
+public class VerdictCacheTest {
+	private RuleList rules;
+	private List<Packet> packets;
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(9);
+		rules = new RuleList();
+		for (int i = 0; i < 200; i++) {
+			rules.addRule(traffic.randomRule());
+		}
+		packets = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			packets.add(traffic.randomPacket());
+		}
+	}
+
+	private static IP view(IP view, Packet p) {
+		byte[] raw = p.getRawData();
+		return view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+	}
+
+	@Test
+	public void test() {
+		// Small tables so that both tiers evict.
+		VerdictCache cache = new VerdictCache(rules, 64, 32);
+		IP view = new IP();
+		for (int pass = 0; pass < 2; pass++) {
+			for (Packet p : packets) {
+				IRule expected = rules.checkRules(p);
+				assertSame(String.format("Cache disagrees with linear scan on %s", p),
+						expected, cache.checkRules(view(view, p)));
+			}
+		}
+		CacheStatistics stats = cache.getStatistics();
+		assertEquals(2 * packets.size(), stats.getMicroflowHits() + stats.getMegaflowHits() + stats.getMisses());
+		assertTrue(stats.getMicroflowHits() > 0);
+		assertTrue(stats.getMegaflowHits() > 0);
+		assertTrue(stats.getEvictions() > 0);
+	}
+
+	@Test
+	public void testStatistics() {
+		rules.setStatisticsEnabled(true);
+		VerdictCache cache = new VerdictCache(rules);
+		IP view = new IP();
+		long matches = 0;
+		long bytes = 0;
+		for (int pass = 0; pass < 2; pass++) {
+			for (Packet p : packets) {
+				if (cache.checkRules(view(view, p), p.length()) != null) {
+					matches++;
+					bytes += p.length();
+				}
+			}
+		}
+		assertTrue(cache.getStatistics().getMicroflowHits() > 0);
+		long counted = 0;
+		long countedBytes = 0;
+		for (IRule r : rules.getRules()) {
+			counted += r.getCounters().getMatches();
+			countedBytes += r.getCounters().getBytes();
+		}
+		assertEquals(matches, counted);
+		assertEquals(bytes, countedBytes);
+	}
+
+	@Test
+	public void testInvalidate() throws Exception {
+		RuleList rules = new RuleList();
+		rules.addRule("tcp dstPort 80 action accept");
+		VerdictCache cache = new VerdictCache(rules);
+		IP view = new IP();
+		Packet web = TestTraffic.buildIpV4Packet(IpNumber.TCP, TestTraffic.ipV4("10.0.0.1"),
+				TestTraffic.ipV4("10.0.0.2"), 40000, 80);
+		Packet ssh = TestTraffic.buildIpV4Packet(IpNumber.TCP, TestTraffic.ipV4("10.0.0.1"),
+				TestTraffic.ipV4("10.0.0.2"), 40000, 22);
+		assertSame(rules.getRules().get(0), cache.checkRules(view(view, web)));
+		assertNull(cache.checkRules(view(view, ssh)));
+		assertNull(cache.checkRules(view(view, ssh)));
+		IRule deny = rules.addRule("ip srcAddress 10.0.0.0/8 action deny");
+		assertSame(deny, cache.checkRules(view(view, ssh)));
+		assertSame(rules.getRules().get(0), cache.checkRules(view(view, web)));
+		assertEquals(1, cache.getStatistics().getInvalidations());
+	}
+}
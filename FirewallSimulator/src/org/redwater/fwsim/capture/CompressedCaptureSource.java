@@ -0,0 +1,155 @@
+package org.redwater.fwsim.capture;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+/**
+ * A gzip or zstd compressed pcap or pcapng capture, decompressed as it
+ * is read. A ReadAheadChannel decompresses on its own thread, ahead of
+ * the reader, so frame parsing and rule checks never run the inflater.
+ * @author ghelmer
+ */
+public class CompressedCaptureSource implements ICaptureSource {
+	/** First two bytes of a gzip stream. */
+	public static final int GZIP_MAGIC = 0x1F8B;
+	/** First four bytes of a zstd frame. */
+	public static final int ZSTD_MAGIC = 0x28B52FFD;
+	private static final int COMPRESSED_BUFFER_SIZE = 1 << 16;
+
+	private final ReadAheadChannel channel;
+	private final ICaptureSource source;
+	/** True if the reader consumes the channel on the caller's thread. */
+	private final boolean streamReader;
+	/** Time spent waiting for the magic number, before the first next(). */
+	private final long openWaitNanos;
+
+	/**
+	 * Open a compressed capture file with the default read-ahead ring.
+	 * @param path - gzip or zstd compressed pcap or pcapng file
+	 * @throws IOException if the file cannot be read or is not a compressed capture
+	 */
+	public CompressedCaptureSource(Path path) throws IOException {
+		this(path, ReadAheadChannel.DEFAULT_BUFFER_COUNT, ReadAheadChannel.DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Open a compressed capture file.
+	 * @param path - gzip or zstd compressed pcap or pcapng file
+	 * @param bufferCount - number of buffers of decompressed bytes to read ahead
+	 * @param bufferSize - size of one buffer
+	 * @throws IOException if the file cannot be read or is not a compressed capture
+	 */
+	public CompressedCaptureSource(Path path, int bufferCount, int bufferSize) throws IOException {
+		int magic = readMagic(path);
+		InputStream file = Files.newInputStream(path);
+		InputStream in;
+		try {
+			if (magic >>> 16 == GZIP_MAGIC) {
+				in = new GZIPInputStream(file, COMPRESSED_BUFFER_SIZE);
+			} else if (magic == ZSTD_MAGIC) {
+				in = new ZstdInputStream(new BufferedInputStream(file, COMPRESSED_BUFFER_SIZE));
+			} else {
+				throw new IOException(String.format("Not a gzip or zstd file: magic number %08x", magic));
+			}
+		} catch (IOException | RuntimeException e) {
+			file.close();
+			throw e;
+		}
+		channel = new ReadAheadChannel(in, bufferCount, bufferSize);
+		try {
+			if (channel.peekInt() == PcapNgReader.SECTION_HEADER_BLOCK) {
+				source = new PcapNgReader(channel, Runtime.getRuntime().availableProcessors(),
+						PcapNgReader.DEFAULT_CHUNK_SIZE);
+				streamReader = false;
+			} else {
+				source = new PcapStreamReader(channel);
+				streamReader = true;
+			}
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+		openWaitNanos = channel.getEmptyWaitNanos();
+	}
+
+	/**
+	 * Read the first four bytes of a file.
+	 * @param path - file to read
+	 * @return first four bytes, big endian, or 0 if the file is shorter
+	 * @throws IOException if the file cannot be read
+	 */
+	private static int readMagic(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer b = ByteBuffer.allocate(4);
+			while (b.hasRemaining() && channel.read(b) >= 0) {
+				// Keep reading.
+			}
+			return b.hasRemaining() ? 0 : b.getInt(0);
+		}
+	}
+
+	/**
+	 * Determine if a file starts with a gzip or zstd magic number.
+	 * @param path - file to check
+	 * @return true if the file looks compressed
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isCompressed(Path path) throws IOException {
+		int magic = readMagic(path);
+		return magic >>> 16 == GZIP_MAGIC || magic == ZSTD_MAGIC;
+	}
+
+	public boolean next() throws IOException {
+		return source.next();
+	}
+
+	public ByteBuffer getBuffer() {
+		return source.getBuffer();
+	}
+
+	public int getFrameOffset() {
+		return source.getFrameOffset();
+	}
+
+	public int getCapturedLength() {
+		return source.getCapturedLength();
+	}
+
+	public int getOriginalLength() {
+		return source.getOriginalLength();
+	}
+
+	public long getTimestampNanos() {
+		return source.getTimestampNanos();
+	}
+
+	public int getLinkType() {
+		return source.getLinkType();
+	}
+
+	public long getInputWaitNanos() {
+		return streamReader ? channel.getEmptyWaitNanos() - openWaitNanos : source.getInputWaitNanos();
+	}
+
+	/**
+	 * Get the decompression throughput and the time each side of the
+	 * read-ahead ring waited for the other.
+	 * @return statistics
+	 */
+	public ReadAheadStatistics getStatistics() {
+		return channel.getStatistics();
+	}
+
+	public void close() throws IOException {
+		source.close();
+	}
+}
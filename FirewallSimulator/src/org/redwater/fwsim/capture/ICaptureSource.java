@@ -0,0 +1,65 @@
+package org.redwater.fwsim.capture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A source of captured frames. The source hands out one frame at a time
+ * as a region of a buffer it owns; the region is only valid until the
+ * next call to next().
+ * @author ghelmer
+ */
+public interface ICaptureSource extends Closeable {
+	/**
+	 * Advance to the next frame.
+	 * @return true if there is a frame, or false at the end of the capture
+	 * @throws IOException on read errors or a corrupt capture
+	 */
+	public boolean next() throws IOException;
+
+	/**
+	 * Get the buffer holding the current frame.
+	 * @return buffer; do not change its position or limit
+	 */
+	public ByteBuffer getBuffer();
+
+	/**
+	 * Get the absolute offset of the current frame in the buffer.
+	 * @return offset
+	 */
+	public int getFrameOffset();
+
+	/**
+	 * Get the number of bytes of the current frame that were captured.
+	 * @return captured length
+	 */
+	public int getCapturedLength();
+
+	/**
+	 * Get the length of the current frame on the wire.
+	 * @return original length
+	 */
+	public int getOriginalLength();
+
+	/**
+	 * Get the capture time of the current frame.
+	 * @return nanoseconds since the epoch
+	 */
+	public long getTimestampNanos();
+
+	/**
+	 * Get the pcap link type of the current frame.
+	 * @return link type, such as IP.LINKTYPE_ETHERNET
+	 */
+	public int getLinkType();
+
+	/**
+	 * Get the time next() has spent waiting for input that other threads,
+	 * such as a decompression thread, had not produced yet.
+	 * @return nanoseconds
+	 */
+	public default long getInputWaitNanos() {
+		return 0;
+	}
+}
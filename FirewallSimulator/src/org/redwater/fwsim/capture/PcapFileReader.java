@@ -0,0 +1,227 @@
+package org.redwater.fwsim.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reader for classic pcap capture files. The file is memory mapped in
+ * windows, record headers are read directly from the mapped region, and
+ * frames are handed out in place without copying. A window is remapped
+ * when the next record does not fit in it, so files much larger than
+ * the address space a single mapping allows can be read.
+ * @author ghelmer
+ */
+public class PcapFileReader implements ICaptureSource {
+	public static final int MAGIC_MICROSECONDS = 0xA1B2C3D4;
+	public static final int MAGIC_NANOSECONDS = 0xA1B23C4D;
+	public static final int GLOBAL_HEADER_LENGTH = 24;
+	public static final int RECORD_HEADER_LENGTH = 16;
+	/** Default size of one mapped window. */
+	public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+	/** Largest record accepted before the file is considered corrupt. */
+	private static final int MAX_RECORD_LENGTH = 256 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final long fileSize;
+	private final int windowSize;
+	private ByteOrder order;
+	private boolean nanosecondTimestamps;
+	private int linkType;
+	private int snapLength;
+
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long windowEnd;
+
+	private long position;
+	private long endOffset;
+	private long recordOffset;
+	private int frameOffset;
+	private int capturedLength;
+	private int originalLength;
+	private long timestampNanos;
+
+	/**
+	 * Open a pcap file with the default window size.
+	 * @param path - file to read
+	 * @throws IOException if the file cannot be read or is not a pcap file
+	 */
+	public PcapFileReader(Path path) throws IOException {
+		this(path, DEFAULT_WINDOW_SIZE);
+	}
+
+	/**
+	 * Open a pcap file.
+	 * @param path - file to read
+	 * @param windowSize - number of bytes to map at a time
+	 * @throws IOException if the file cannot be read or is not a pcap file
+	 */
+	public PcapFileReader(Path path, int windowSize) throws IOException {
+		this.windowSize = Math.max(windowSize, GLOBAL_HEADER_LENGTH + RECORD_HEADER_LENGTH);
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			fileSize = channel.size();
+			endOffset = fileSize;
+			readGlobalHeader();
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Read the global header and determine the byte order and timestamp resolution.
+	 * @throws IOException if the file is not a pcap file
+	 */
+	private void readGlobalHeader() throws IOException {
+		if (fileSize < GLOBAL_HEADER_LENGTH) {
+			throw new IOException("File too short for a pcap global header");
+		}
+		ensureMapped(0, GLOBAL_HEADER_LENGTH);
+		window.order(ByteOrder.BIG_ENDIAN);
+		int magic = window.getInt(0);
+		if (magic == MAGIC_MICROSECONDS || magic == MAGIC_NANOSECONDS) {
+			order = ByteOrder.BIG_ENDIAN;
+		} else if (Integer.reverseBytes(magic) == MAGIC_MICROSECONDS || Integer.reverseBytes(magic) == MAGIC_NANOSECONDS) {
+			order = ByteOrder.LITTLE_ENDIAN;
+			magic = Integer.reverseBytes(magic);
+		} else {
+			throw new IOException(String.format("Not a pcap file: magic number %08x", magic));
+		}
+		nanosecondTimestamps = magic == MAGIC_NANOSECONDS;
+		window.order(order);
+		snapLength = window.getInt(16);
+		linkType = window.getInt(20) & 0x0FFFFFFF;
+		position = GLOBAL_HEADER_LENGTH;
+	}
+
+	/**
+	 * Make sure a region of the file is inside the mapped window,
+	 * mapping a new window starting at the region if it is not.
+	 * @param offset - file offset of the region
+	 * @param length - length of the region
+	 * @throws IOException on mapping errors
+	 */
+	private void ensureMapped(long offset, int length) throws IOException {
+		if (window != null && offset >= windowStart && offset + length <= windowEnd) {
+			return;
+		}
+		long size = Math.min(Math.max(windowSize, length), fileSize - offset);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		window.order(order == null ? ByteOrder.BIG_ENDIAN : order);
+		windowStart = offset;
+		windowEnd = offset + size;
+	}
+
+	/**
+	 * Advance to the next record. A record cut short by the end of the
+	 * file, as left by an interrupted capture, ends the capture.
+	 * @return true if there is a frame, or false at the end of the file
+	 * @throws IOException on a corrupt record header
+	 */
+	public boolean next() throws IOException {
+		if (position + RECORD_HEADER_LENGTH > fileSize || position >= endOffset) {
+			return false;
+		}
+		ensureMapped(position, RECORD_HEADER_LENGTH);
+		int header = (int)(position - windowStart);
+		long seconds = window.getInt(header) & 0xFFFFFFFFL;
+		long fraction = window.getInt(header + 4) & 0xFFFFFFFFL;
+		int captured = window.getInt(header + 8);
+		int original = window.getInt(header + 12);
+		if (captured < 0 || captured > MAX_RECORD_LENGTH) {
+			throw new IOException(String.format("Corrupt pcap record at offset %d: captured length %d",
+					position, captured));
+		}
+		if (position + RECORD_HEADER_LENGTH + captured > fileSize) {
+			return false;
+		}
+		ensureMapped(position, RECORD_HEADER_LENGTH + captured);
+		recordOffset = position;
+		frameOffset = (int)(position - windowStart) + RECORD_HEADER_LENGTH;
+		capturedLength = captured;
+		originalLength = original;
+		timestampNanos = seconds * 1000000000L + (nanosecondTimestamps ? fraction : fraction * 1000L);
+		position += RECORD_HEADER_LENGTH + captured;
+		return true;
+	}
+
+	/**
+	 * Continue reading at a record boundary, such as one saved from
+	 * getRecordOffset().
+	 * @param offset - file offset of a record header
+	 */
+	public void seek(long offset) {
+		if (offset < GLOBAL_HEADER_LENGTH) {
+			throw new IllegalArgumentException(String.format("Offset %d is inside the pcap global header", offset));
+		}
+		position = offset;
+	}
+
+	/**
+	 * Stop reading at a record boundary, so a file can be read in pieces
+	 * along boundaries saved from getRecordOffset().
+	 * @param offset - file offset of the first record not to read
+	 */
+	public void setEndOffset(long offset) {
+		endOffset = offset;
+	}
+
+	public ByteBuffer getBuffer() {
+		return window;
+	}
+
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+
+	public int getCapturedLength() {
+		return capturedLength;
+	}
+
+	public int getOriginalLength() {
+		return originalLength;
+	}
+
+	public long getTimestampNanos() {
+		return timestampNanos;
+	}
+
+	public int getLinkType() {
+		return linkType;
+	}
+
+	/**
+	 * Get the maximum number of bytes captured per frame.
+	 * @return snapshot length from the global header
+	 */
+	public int getSnapLength() {
+		return snapLength;
+	}
+
+	/**
+	 * Get the file offset of the current record's header.
+	 * @return file offset
+	 */
+	public long getRecordOffset() {
+		return recordOffset;
+	}
+
+	/**
+	 * Get the size of the file.
+	 * @return size in bytes
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+}
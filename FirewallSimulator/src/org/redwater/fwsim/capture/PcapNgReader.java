@@ -0,0 +1,565 @@
+package org.redwater.fwsim.capture;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streaming reader for pcapng capture files. A read thread reads the
+ * channel in chunks that end at block boundaries, following the byte
+ * order of each section and the interfaces it describes, and a pool of
+ * decode threads finds the packets in each chunk. Chunks come back in
+ * file order, and a fixed set of chunk buffers is recycled, so memory
+ * use does not grow with the file. Each packet gets the link type and
+ * timestamp resolution of its interface. Enhanced, simple and obsolete
+ * packet blocks are read; other blocks are skipped.
+ * @author ghelmer
+ */
+public class PcapNgReader implements ICaptureSource {
+	public static final int SECTION_HEADER_BLOCK = 0x0A0D0D0A;
+	public static final int INTERFACE_DESCRIPTION_BLOCK = 1;
+	public static final int OBSOLETE_PACKET_BLOCK = 2;
+	public static final int SIMPLE_PACKET_BLOCK = 3;
+	public static final int ENHANCED_PACKET_BLOCK = 6;
+	public static final int BYTE_ORDER_MAGIC = 0x1A2B3C4D;
+	/** Default number of bytes read into one chunk. */
+	public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+	/** Largest block accepted before the file is considered corrupt. */
+	private static final int MAX_BLOCK_LENGTH = 256 * 1024 * 1024;
+	private static final int OPTION_END = 0;
+	private static final int OPTION_IF_TSRESOL = 9;
+	private static final int OPTION_IF_TSOFFSET = 14;
+	private static final long[] POWERS_OF_10 = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+
+	/**
+	 * An interface described by an interface description block.
+	 */
+	private static final class Interface {
+		private final int linkType;
+		private final int snapLength;
+		/** Timestamp units are 2^-shift seconds if binary, else 10^-shift. */
+		private final boolean binary;
+		private final int shift;
+		private final long offsetNanos;
+
+		private Interface(int linkType, int snapLength, boolean binary, int shift, long offsetNanos) {
+			this.linkType = linkType;
+			this.snapLength = snapLength;
+			this.binary = binary;
+			this.shift = shift;
+			this.offsetNanos = offsetNanos;
+		}
+
+		/**
+		 * Convert a timestamp in this interface's units.
+		 * @param units - timestamp from a packet block
+		 * @return nanoseconds since the epoch
+		 */
+		private long toNanos(long units) {
+			long nanos;
+			if (binary) {
+				// Below 2^-32 seconds the bits are finer than a nanosecond.
+				int s = shift;
+				if (s > 32) {
+					units >>>= s - 32;
+					s = 32;
+				}
+				nanos = (units >>> s) * 1000000000L + (((units & ((1L << s) - 1)) * 1000000000L) >>> s);
+			} else if (shift <= 9) {
+				nanos = units * POWERS_OF_10[9 - shift];
+			} else if (shift <= 18) {
+				// Timestamps are unsigned; finer units pass 2^63 in this epoch.
+				nanos = Long.divideUnsigned(units, POWERS_OF_10[shift - 9]);
+			} else {
+				nanos = 0;
+			}
+			return nanos + offsetNanos;
+		}
+	}
+
+	/**
+	 * Whole blocks read from the file, and the packets decoded from them.
+	 * Every block of a chunk is in the same section.
+	 */
+	private static final class Chunk {
+		private ByteBuffer buffer;
+		private int length;
+		private long fileOffset;
+		private ByteOrder order;
+		private Interface[] interfaces;
+		private int count;
+		private int[] blockStarts;
+		private int[] frameOffsets;
+		private int[] capturedLengths;
+		private int[] originalLengths;
+		private int[] linkTypes;
+		private long[] timestamps;
+
+		private Chunk(int size) {
+			buffer = ByteBuffer.allocate(size);
+			int packets = Math.max(16, size / 64);
+			blockStarts = new int[packets];
+			frameOffsets = new int[packets];
+			capturedLengths = new int[packets];
+			originalLengths = new int[packets];
+			linkTypes = new int[packets];
+			timestamps = new long[packets];
+		}
+
+		private void add(int blockStart, int frameOffset, int captured, int original, int linkType, long timestamp) {
+			if (count == frameOffsets.length) {
+				int n = count * 2;
+				blockStarts = Arrays.copyOf(blockStarts, n);
+				frameOffsets = Arrays.copyOf(frameOffsets, n);
+				capturedLengths = Arrays.copyOf(capturedLengths, n);
+				originalLengths = Arrays.copyOf(originalLengths, n);
+				linkTypes = Arrays.copyOf(linkTypes, n);
+				timestamps = Arrays.copyOf(timestamps, n);
+			}
+			blockStarts[count] = blockStart;
+			frameOffsets[count] = frameOffset;
+			capturedLengths[count] = captured;
+			originalLengths[count] = original;
+			linkTypes[count] = linkType;
+			timestamps[count] = timestamp;
+			count++;
+		}
+	}
+
+	/** Handed to the consumer after the last chunk. */
+	private static final Chunk END = new Chunk(0);
+
+	private final ReadableByteChannel channel;
+	private final int chunkSize;
+	private final BlockingQueue<Chunk> free;
+	private final BlockingQueue<Future<Chunk>> decoded;
+	private final ExecutorService decoders;
+	private final Thread readThread;
+	private volatile boolean closed;
+
+	// Read thread state.
+	private ByteOrder order;
+	private List<Interface> interfaces;
+	private byte[] carry;
+	private int carryLength;
+	private long readOffset;
+
+	// Consumer state.
+	private Chunk current;
+	private int index;
+	private boolean ended;
+	private volatile long waitNanos;
+
+	/**
+	 * Open a pcapng file, decoding on one thread per processor.
+	 * @param path - file to read
+	 * @throws IOException if the file cannot be opened
+	 */
+	public PcapNgReader(Path path) throws IOException {
+		this(FileChannel.open(path, StandardOpenOption.READ), Runtime.getRuntime().availableProcessors(),
+				DEFAULT_CHUNK_SIZE);
+	}
+
+	/**
+	 * Read a pcapng stream. Reading starts at once; a stream that is not
+	 * pcapng fails on the first call to next().
+	 * @param channel - stream to read; closed by close()
+	 * @param decodeThreads - number of threads decoding chunks
+	 * @param chunkSize - number of bytes to read into one chunk; a block
+	 * larger than this gets a chunk of its own
+	 */
+	public PcapNgReader(ReadableByteChannel channel, int decodeThreads, int chunkSize) {
+		if (decodeThreads < 1) {
+			throw new IllegalArgumentException(String.format("Invalid decode thread count %d", decodeThreads));
+		}
+		this.channel = channel;
+		this.chunkSize = Math.max(chunkSize, 64);
+		// Enough chunks for every decoder, one being read and one being consumed.
+		int chunks = decodeThreads * 2 + 2;
+		free = new ArrayBlockingQueue<>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			free.add(new Chunk(this.chunkSize));
+		}
+		decoded = new LinkedBlockingQueue<>();
+		AtomicInteger threadNumber = new AtomicInteger();
+		decoders = Executors.newFixedThreadPool(decodeThreads, r -> {
+			Thread t = new Thread(r, "pcapng-decode-" + threadNumber.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+		carry = new byte[this.chunkSize];
+		readThread = new Thread(this::readChunks, "pcapng-read");
+		readThread.setDaemon(true);
+		readThread.start();
+	}
+
+	/**
+	 * Determine if a file starts with a pcapng section header block.
+	 * @param path - file to check
+	 * @return true if the file looks like a pcapng file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isPcapNg(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer b = ByteBuffer.allocate(4);
+			while (b.hasRemaining() && channel.read(b) >= 0) {
+				// Keep reading.
+			}
+			return !b.hasRemaining() && b.getInt(0) == SECTION_HEADER_BLOCK;
+		}
+	}
+
+	/**
+	 * Read the channel into chunks and queue each for decoding, until the
+	 * end of the stream or an error, which is queued in place of a chunk.
+	 */
+	private void readChunks() {
+		try {
+			Chunk chunk;
+			do {
+				chunk = free.take();
+				readChunk(chunk);
+				if (chunk.length == 0) {
+					free.put(chunk);
+					break;
+				}
+				Chunk c = chunk;
+				decoded.put(decoders.submit(() -> decode(c)));
+			} while (true);
+			decoded.put(CompletableFuture.completedFuture(END));
+		} catch (InterruptedException e) {
+			// Closed.
+		} catch (IOException | RuntimeException e) {
+			if (!closed) {
+				CompletableFuture<Chunk> failed = new CompletableFuture<>();
+				failed.completeExceptionally(e);
+				decoded.add(failed);
+			}
+		}
+	}
+
+	/**
+	 * Fill a chunk with whole blocks, starting with the bytes carried over
+	 * from the last chunk. Section header and interface description blocks
+	 * are interpreted here, since every later block depends on them, and a
+	 * chunk ends before a new section so it has one byte order.
+	 * @param chunk - chunk to fill
+	 * @throws IOException on read errors or a corrupt block header
+	 */
+	private void readChunk(Chunk chunk) throws IOException {
+		if (chunk.buffer.capacity() != chunkSize) {
+			// Shrink a chunk that was grown for one large block.
+			chunk.buffer = ByteBuffer.allocate(chunkSize);
+		}
+		byte[] a = chunk.buffer.array();
+		System.arraycopy(carry, 0, a, 0, carryLength);
+		ByteBuffer b = chunk.buffer;
+		b.clear();
+		b.position(carryLength);
+		chunk.fileOffset = readOffset;
+		chunk.length = 0;
+		int position = 0;
+		boolean eof = false;
+		while (true) {
+			while (!eof && b.hasRemaining()) {
+				eof = channel.read(b) < 0;
+			}
+			int filled = b.position();
+			ByteBuffer scan = ByteBuffer.wrap(b.array(), 0, filled).order(order == null ? ByteOrder.BIG_ENDIAN : order);
+			int needed = 0;
+			while (needed == 0 && filled - position >= 8) {
+				int type = scan.getInt(position);
+				if (type == SECTION_HEADER_BLOCK) {
+					if (position > 0) {
+						break;
+					}
+					if (filled < 12) {
+						needed = 12;
+						break;
+					}
+					readSectionOrder(scan);
+				} else if (order == null) {
+					throw new IOException(String.format("Not a pcapng file: first block type %08x", type));
+				}
+				long fileOffset = readOffset + position;
+				int length = scan.getInt(position + 4);
+				if (length < 12 || length > MAX_BLOCK_LENGTH || (length & 3) != 0) {
+					throw new IOException(String.format("Corrupt pcapng block at offset %d: length %d",
+							fileOffset, length));
+				}
+				if (filled - position < length) {
+					needed = length;
+					break;
+				}
+				if (scan.getInt(position + length - 4) != length) {
+					throw new IOException(String.format("Corrupt pcapng block at offset %d: trailing length %d, not %d",
+							fileOffset, scan.getInt(position + length - 4), length));
+				}
+				if (type == SECTION_HEADER_BLOCK) {
+					readSectionHeader(scan, position, fileOffset);
+				} else if (type == INTERFACE_DESCRIPTION_BLOCK) {
+					interfaces.add(readInterface(scan, position, length, fileOffset));
+				}
+				position += length;
+			}
+			if (position > 0 || eof) {
+				break;
+			}
+			// The buffer is full and its first block does not fit; grow
+			// the chunk to hold it.
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, b.capacity() + 1));
+			larger.put(b.array(), 0, filled);
+			chunk.buffer = larger;
+			b = larger;
+		}
+		// At the end of the stream a block cut short, as left by an
+		// interrupted capture, comes back alone and is dropped.
+		carryLength = b.position() - position;
+		if (carryLength > carry.length) {
+			carry = new byte[carryLength];
+		}
+		System.arraycopy(b.array(), position, carry, 0, carryLength);
+		readOffset += position;
+		chunk.length = position;
+		chunk.order = order;
+		chunk.interfaces = interfaces == null ? new Interface[0] : interfaces.toArray(new Interface[0]);
+	}
+
+	/**
+	 * Set the byte order from the section header block at the start of a scan buffer.
+	 * @param scan - buffer starting with a section header block
+	 * @throws IOException if the byte order magic is wrong
+	 */
+	private void readSectionOrder(ByteBuffer scan) throws IOException {
+		int magic = scan.order(ByteOrder.BIG_ENDIAN).getInt(8);
+		if (magic == BYTE_ORDER_MAGIC) {
+			order = ByteOrder.BIG_ENDIAN;
+		} else if (Integer.reverseBytes(magic) == BYTE_ORDER_MAGIC) {
+			order = ByteOrder.LITTLE_ENDIAN;
+		} else {
+			throw new IOException(String.format("Corrupt pcapng section header at offset %d: byte order magic %08x",
+					readOffset, magic));
+		}
+		scan.order(order);
+	}
+
+	/**
+	 * Start a new section.
+	 * @param scan - buffer holding the block, in the section's byte order
+	 * @param position - offset of the block in the buffer
+	 * @param fileOffset - offset of the block in the file
+	 * @throws IOException on an unsupported version
+	 */
+	private void readSectionHeader(ByteBuffer scan, int position, long fileOffset) throws IOException {
+		int major = scan.getShort(position + 12) & 0xFFFF;
+		if (major != 1) {
+			throw new IOException(String.format("Unsupported pcapng version %d at offset %d", major, fileOffset));
+		}
+		interfaces = new ArrayList<>();
+	}
+
+	/**
+	 * Read an interface description block.
+	 * @param scan - buffer holding the block, in the section's byte order
+	 * @param position - offset of the block in the buffer
+	 * @param length - length of the block
+	 * @param fileOffset - offset of the block in the file
+	 * @return interface
+	 * @throws IOException on a corrupt block
+	 */
+	private static Interface readInterface(ByteBuffer scan, int position, int length, long fileOffset) throws IOException {
+		if (length < 20) {
+			throw new IOException(String.format("Corrupt pcapng interface description at offset %d", fileOffset));
+		}
+		int linkType = scan.getShort(position + 8) & 0xFFFF;
+		int snapLength = scan.getInt(position + 12);
+		boolean binary = false;
+		int shift = 6;
+		long offsetNanos = 0;
+		int option = position + 16;
+		int end = position + length - 4;
+		while (option + 4 <= end) {
+			int code = scan.getShort(option) & 0xFFFF;
+			int optionLength = scan.getShort(option + 2) & 0xFFFF;
+			if (code == OPTION_END || option + 4 + optionLength > end) {
+				break;
+			}
+			if (code == OPTION_IF_TSRESOL && optionLength == 1) {
+				int resolution = scan.get(option + 4);
+				binary = (resolution & 0x80) != 0;
+				shift = resolution & 0x7F;
+			} else if (code == OPTION_IF_TSOFFSET && optionLength == 8) {
+				offsetNanos = scan.getLong(option + 4) * 1000000000L;
+			}
+			option += 4 + ((optionLength + 3) & ~3);
+		}
+		return new Interface(linkType, snapLength, binary, shift, offsetNanos);
+	}
+
+	/**
+	 * Find the packets in a chunk.
+	 * @param chunk - chunk of whole blocks
+	 * @return the chunk
+	 * @throws IOException on a corrupt packet block
+	 */
+	private static Chunk decode(Chunk chunk) throws IOException {
+		ByteBuffer scan = ByteBuffer.wrap(chunk.buffer.array(), 0, chunk.length).order(chunk.order);
+		chunk.count = 0;
+		int position = 0;
+		while (position < chunk.length) {
+			int type = scan.getInt(position);
+			int length = scan.getInt(position + 4);
+			if (type == ENHANCED_PACKET_BLOCK || type == OBSOLETE_PACKET_BLOCK) {
+				if (length < 32) {
+					throw corrupt(chunk, position, "packet block too short");
+				}
+				int interfaceId = type == ENHANCED_PACKET_BLOCK ? scan.getInt(position + 8)
+						: scan.getShort(position + 8) & 0xFFFF;
+				Interface i = getInterface(chunk, position, interfaceId);
+				long units = (scan.getInt(position + 12) & 0xFFFFFFFFL) << 32 | (scan.getInt(position + 16) & 0xFFFFFFFFL);
+				int captured = scan.getInt(position + 20);
+				if (captured < 0 || captured > length - 32) {
+					throw corrupt(chunk, position, String.format("captured length %d", captured));
+				}
+				chunk.add(position, position + 28, captured, scan.getInt(position + 24), i.linkType, i.toNanos(units));
+			} else if (type == SIMPLE_PACKET_BLOCK) {
+				if (length < 16) {
+					throw corrupt(chunk, position, "packet block too short");
+				}
+				Interface i = getInterface(chunk, position, 0);
+				int original = scan.getInt(position + 8);
+				int captured = Math.min(length - 16, original < 0 ? Integer.MAX_VALUE : original);
+				if (i.snapLength > 0) {
+					captured = Math.min(captured, i.snapLength);
+				}
+				chunk.add(position, position + 12, captured, original, i.linkType, 0);
+			}
+			position += length;
+		}
+		return chunk;
+	}
+
+	private static Interface getInterface(Chunk chunk, int position, int interfaceId) throws IOException {
+		if (interfaceId < 0 || interfaceId >= chunk.interfaces.length) {
+			throw corrupt(chunk, position, String.format("undefined interface %d", interfaceId & 0xFFFFFFFFL));
+		}
+		return chunk.interfaces[interfaceId];
+	}
+
+	private static IOException corrupt(Chunk chunk, int position, String problem) {
+		return new IOException(String.format("Corrupt pcapng packet block at offset %d: %s",
+				chunk.fileOffset + position, problem));
+	}
+
+	/**
+	 * Advance to the next packet.
+	 * @return true if there is a packet, or false at the end of the stream
+	 * @throws IOException on read errors or a corrupt capture
+	 */
+	public boolean next() throws IOException {
+		while (current == null || index + 1 >= current.count) {
+			if (current != null) {
+				free.add(current);
+				current = null;
+			}
+			if (ended || closed) {
+				return false;
+			}
+			Chunk c;
+			try {
+				Future<Chunk> f = decoded.poll();
+				if (f == null || !f.isDone()) {
+					long start = System.nanoTime();
+					c = (f == null ? decoded.take() : f).get();
+					waitNanos += System.nanoTime() - start;
+				} else {
+					c = f.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading pcapng");
+			} catch (ExecutionException e) {
+				ended = true;
+				if (e.getCause() instanceof IOException) {
+					throw (IOException)e.getCause();
+				} else if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException)e.getCause();
+				} else if (e.getCause() instanceof Error) {
+					throw (Error)e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+			if (c == END) {
+				ended = true;
+				return false;
+			}
+			current = c;
+			index = -1;
+		}
+		index++;
+		return true;
+	}
+
+	public ByteBuffer getBuffer() {
+		return current.buffer;
+	}
+
+	public int getFrameOffset() {
+		return current.frameOffsets[index];
+	}
+
+	public int getCapturedLength() {
+		return current.capturedLengths[index];
+	}
+
+	public int getOriginalLength() {
+		return current.originalLengths[index];
+	}
+
+	public long getTimestampNanos() {
+		return current.timestamps[index];
+	}
+
+	public int getLinkType() {
+		return current.linkTypes[index];
+	}
+
+	public long getInputWaitNanos() {
+		return waitNanos;
+	}
+
+	/**
+	 * Get the file offset of the current packet's block.
+	 * @return file offset
+	 */
+	public long getRecordOffset() {
+		return current.fileOffset + current.blockStarts[index];
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		readThread.interrupt();
+		decoders.shutdownNow();
+		current = null;
+		channel.close();
+	}
+}
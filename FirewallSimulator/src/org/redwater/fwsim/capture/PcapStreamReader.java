@@ -0,0 +1,175 @@
+package org.redwater.fwsim.capture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reader for classic pcap captures from a stream, such as a
+ * decompressing ReadAheadChannel, that cannot be memory mapped. Records
+ * are read into one buffer and handed out in place; the buffer only
+ * grows for a record larger than it.
+ * @author ghelmer
+ */
+public class PcapStreamReader implements ICaptureSource {
+	/** Default size of the record buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	/** Largest record accepted before the stream is considered corrupt. */
+	private static final int MAX_RECORD_LENGTH = 256 * 1024 * 1024;
+
+	private final ReadableByteChannel channel;
+	private ByteBuffer buffer;
+	private boolean eof;
+	private boolean nanosecondTimestamps;
+	private int linkType;
+	private int snapLength;
+
+	private long position;
+	private int frameOffset;
+	private int capturedLength;
+	private int originalLength;
+	private long timestampNanos;
+
+	/**
+	 * Read a pcap stream with the default buffer size.
+	 * @param channel - stream to read; closed by close()
+	 * @throws IOException if the stream cannot be read or is not pcap
+	 */
+	public PcapStreamReader(ReadableByteChannel channel) throws IOException {
+		this(channel, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Read a pcap stream.
+	 * @param channel - stream to read; closed by close()
+	 * @param bufferSize - size of the record buffer
+	 * @throws IOException if the stream cannot be read or is not pcap
+	 */
+	public PcapStreamReader(ReadableByteChannel channel, int bufferSize) throws IOException {
+		this.channel = channel;
+		buffer = ByteBuffer.allocate(Math.max(bufferSize, PcapFileReader.GLOBAL_HEADER_LENGTH));
+		buffer.limit(0);
+		eof = false;
+		readGlobalHeader();
+	}
+
+	/**
+	 * Read the global header and determine the byte order and timestamp resolution.
+	 * @throws IOException if the stream is not pcap
+	 */
+	private void readGlobalHeader() throws IOException {
+		if (!ensure(PcapFileReader.GLOBAL_HEADER_LENGTH)) {
+			throw new IOException("Stream too short for a pcap global header");
+		}
+		int magic = buffer.order(ByteOrder.BIG_ENDIAN).getInt(0);
+		ByteOrder order;
+		if (magic == PcapFileReader.MAGIC_MICROSECONDS || magic == PcapFileReader.MAGIC_NANOSECONDS) {
+			order = ByteOrder.BIG_ENDIAN;
+		} else if (Integer.reverseBytes(magic) == PcapFileReader.MAGIC_MICROSECONDS
+				|| Integer.reverseBytes(magic) == PcapFileReader.MAGIC_NANOSECONDS) {
+			order = ByteOrder.LITTLE_ENDIAN;
+			magic = Integer.reverseBytes(magic);
+		} else {
+			throw new IOException(String.format("Not a pcap file: magic number %08x", magic));
+		}
+		nanosecondTimestamps = magic == PcapFileReader.MAGIC_NANOSECONDS;
+		buffer.order(order);
+		snapLength = buffer.getInt(16);
+		linkType = buffer.getInt(20) & 0x0FFFFFFF;
+		buffer.position(PcapFileReader.GLOBAL_HEADER_LENGTH);
+		position = PcapFileReader.GLOBAL_HEADER_LENGTH;
+	}
+
+	/**
+	 * Make sure a number of bytes is in the buffer from its position,
+	 * moving the remaining bytes to the front and reading more if not.
+	 * @param length - number of bytes needed
+	 * @return false if the stream ends first
+	 * @throws IOException on read errors
+	 */
+	private boolean ensure(int length) throws IOException {
+		if (buffer.remaining() >= length) {
+			return true;
+		}
+		if (buffer.capacity() < length) {
+			ByteBuffer larger = ByteBuffer.allocate(length).order(buffer.order());
+			larger.put(buffer);
+			buffer = larger;
+		} else {
+			buffer.compact();
+		}
+		while (buffer.position() < length && !eof) {
+			eof = channel.read(buffer) < 0;
+		}
+		buffer.flip();
+		return buffer.remaining() >= length;
+	}
+
+	/**
+	 * Advance to the next record. A record cut short by the end of the
+	 * stream, as left by an interrupted capture, ends the capture.
+	 * @return true if there is a frame, or false at the end of the stream
+	 * @throws IOException on read errors or a corrupt record header
+	 */
+	public boolean next() throws IOException {
+		if (!ensure(PcapFileReader.RECORD_HEADER_LENGTH)) {
+			return false;
+		}
+		int header = buffer.position();
+		long seconds = buffer.getInt(header) & 0xFFFFFFFFL;
+		long fraction = buffer.getInt(header + 4) & 0xFFFFFFFFL;
+		int captured = buffer.getInt(header + 8);
+		int original = buffer.getInt(header + 12);
+		if (captured < 0 || captured > MAX_RECORD_LENGTH) {
+			throw new IOException(String.format("Corrupt pcap record at offset %d: captured length %d",
+					position, captured));
+		}
+		if (!ensure(PcapFileReader.RECORD_HEADER_LENGTH + captured)) {
+			return false;
+		}
+		frameOffset = buffer.position() + PcapFileReader.RECORD_HEADER_LENGTH;
+		capturedLength = captured;
+		originalLength = original;
+		timestampNanos = seconds * 1000000000L + (nanosecondTimestamps ? fraction : fraction * 1000L);
+		buffer.position(frameOffset + captured);
+		position += PcapFileReader.RECORD_HEADER_LENGTH + captured;
+		return true;
+	}
+
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	public int getFrameOffset() {
+		return frameOffset;
+	}
+
+	public int getCapturedLength() {
+		return capturedLength;
+	}
+
+	public int getOriginalLength() {
+		return originalLength;
+	}
+
+	public long getTimestampNanos() {
+		return timestampNanos;
+	}
+
+	public int getLinkType() {
+		return linkType;
+	}
+
+	/**
+	 * Get the maximum number of bytes captured per frame.
+	 * @return snapshot length from the global header
+	 */
+	public int getSnapLength() {
+		return snapLength;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,207 @@
+package org.redwater.fwsim.capture;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A channel over an input stream that a dedicated thread reads ahead of
+ * the consumer, into a ring of reusable buffers. When every buffer is
+ * full the thread waits for the consumer to drain one, so it never gets
+ * more than the ring ahead. A decompressing stream is inflated on this
+ * thread, and the threads parsing and classifying frames only copy out
+ * bytes that are ready.
+ * @author ghelmer
+ */
+public class ReadAheadChannel implements ReadableByteChannel {
+	/** Default number of buffers in the ring. */
+	public static final int DEFAULT_BUFFER_COUNT = 8;
+	/** Default size of one buffer. */
+	public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+	/** Put in place of a buffer after the last one. */
+	private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+	private final InputStream in;
+	private final BlockingQueue<ByteBuffer> free;
+	private final BlockingQueue<ByteBuffer> filled;
+	private final Thread thread;
+	private volatile IOException failure;
+	private volatile boolean closed;
+	private volatile long bytes;
+	private volatile long readNanos;
+	private volatile long fullWaitNanos;
+
+	// Consumer state.
+	private ByteBuffer current;
+	private boolean ended;
+	private volatile long emptyWaitNanos;
+
+	/**
+	 * Start reading a stream ahead with the default ring.
+	 * @param in - stream to read; closed by close()
+	 */
+	public ReadAheadChannel(InputStream in) {
+		this(in, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Start reading a stream ahead.
+	 * @param in - stream to read; closed by close()
+	 * @param bufferCount - number of buffers in the ring, at least 2
+	 * @param bufferSize - size of one buffer
+	 */
+	public ReadAheadChannel(InputStream in, int bufferCount, int bufferSize) {
+		if (bufferCount < 2 || bufferSize < 1) {
+			throw new IllegalArgumentException(String.format("Invalid ring of %d buffers of %d bytes",
+					bufferCount, bufferSize));
+		}
+		this.in = in;
+		free = new ArrayBlockingQueue<>(bufferCount);
+		for (int i = 0; i < bufferCount; i++) {
+			free.add(ByteBuffer.allocate(bufferSize));
+		}
+		filled = new ArrayBlockingQueue<>(bufferCount + 1);
+		thread = new Thread(this::readAhead, "read-ahead");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Fill free buffers from the stream until its end or an error.
+	 */
+	private void readAhead() {
+		try {
+			while (true) {
+				ByteBuffer b = free.poll();
+				if (b == null) {
+					long start = System.nanoTime();
+					b = free.take();
+					fullWaitNanos += System.nanoTime() - start;
+				}
+				byte[] a = b.array();
+				int n = 0;
+				int r = 0;
+				long start = System.nanoTime();
+				while (n < a.length && (r = in.read(a, n, a.length - n)) >= 0) {
+					n += r;
+				}
+				readNanos += System.nanoTime() - start;
+				bytes += n;
+				b.clear();
+				b.limit(n);
+				if (n > 0) {
+					filled.put(b);
+				} else {
+					free.put(b);
+				}
+				if (r < 0) {
+					break;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Closed.
+			return;
+		} catch (IOException e) {
+			failure = e;
+		} catch (RuntimeException e) {
+			failure = new IOException(e.getMessage(), e);
+		}
+		filled.add(END);
+	}
+
+	/**
+	 * Make a buffer with bytes remaining current, waiting for one if need be.
+	 * @return false at the end of the stream
+	 * @throws IOException if reading the stream failed
+	 */
+	private boolean fill() throws IOException {
+		if (closed) {
+			throw new ClosedChannelException();
+		}
+		while (!ended && (current == null || !current.hasRemaining())) {
+			if (current != null) {
+				free.add(current);
+				current = null;
+			}
+			ByteBuffer b = filled.poll();
+			if (b == null) {
+				long start = System.nanoTime();
+				try {
+					b = filled.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for input");
+				}
+				emptyWaitNanos += System.nanoTime() - start;
+			}
+			if (b == END) {
+				ended = true;
+				if (failure != null) {
+					throw failure;
+				}
+			} else {
+				current = b;
+			}
+		}
+		return !ended;
+	}
+
+	public int read(ByteBuffer dst) throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(dst.remaining(), current.remaining());
+		int limit = current.limit();
+		current.limit(current.position() + n);
+		dst.put(current);
+		current.limit(limit);
+		return n;
+	}
+
+	/**
+	 * Get the next four bytes, big endian, without consuming them. Only
+	 * meant for a magic number at the start of the stream.
+	 * @return next four bytes
+	 * @throws IOException if fewer than four bytes are ready in one buffer
+	 */
+	public int peekInt() throws IOException {
+		if (!fill() || current.remaining() < 4) {
+			throw new EOFException("Stream too short");
+		}
+		return current.getInt(current.position());
+	}
+
+	/**
+	 * Get the time and throughput of the read-ahead thread and the
+	 * time the consumer waited for it.
+	 * @return statistics
+	 */
+	public ReadAheadStatistics getStatistics() {
+		return new ReadAheadStatistics(bytes, readNanos, fullWaitNanos, emptyWaitNanos);
+	}
+
+	/**
+	 * Get the time the consumer has waited for the read-ahead thread.
+	 * @return nanoseconds
+	 */
+	public long getEmptyWaitNanos() {
+		return emptyWaitNanos;
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	public void close() throws IOException {
+		closed = true;
+		thread.interrupt();
+		current = null;
+		in.close();
+	}
+}
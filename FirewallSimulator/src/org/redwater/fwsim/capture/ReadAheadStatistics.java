@@ -0,0 +1,71 @@
+package org.redwater.fwsim.capture;
+
+/**
+ * Times of a ReadAheadChannel, to tell whether reading the input or
+ * consuming it is the bottleneck.
+ * @author ghelmer
+ */
+public class ReadAheadStatistics {
+	private final long bytes;
+	private final long readNanos;
+	private final long fullWaitNanos;
+	private final long emptyWaitNanos;
+
+	/**
+	 * Construct a copy of read-ahead times.
+	 */
+	ReadAheadStatistics(long bytes, long readNanos, long fullWaitNanos, long emptyWaitNanos) {
+		this.bytes = bytes;
+		this.readNanos = readNanos;
+		this.fullWaitNanos = fullWaitNanos;
+		this.emptyWaitNanos = emptyWaitNanos;
+	}
+
+	/**
+	 * Get the number of bytes read from the stream, after decompression.
+	 * @return number of bytes
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the time spent reading the stream, including decompression.
+	 * @return nanoseconds
+	 */
+	public long getReadNanos() {
+		return readNanos;
+	}
+
+	/**
+	 * Get the time the read-ahead thread waited because every buffer
+	 * was full. Long waits mean the consumer is the bottleneck.
+	 * @return nanoseconds
+	 */
+	public long getFullWaitNanos() {
+		return fullWaitNanos;
+	}
+
+	/**
+	 * Get the time the consumer waited because no buffer was ready.
+	 * Long waits mean reading the stream is the bottleneck.
+	 * @return nanoseconds
+	 */
+	public long getEmptyWaitNanos() {
+		return emptyWaitNanos;
+	}
+
+	/**
+	 * Return a text report of the statistics.
+	 * @return text
+	 */
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		double seconds = readNanos / 1e9;
+		s.append(String.format("Decompressed: %d bytes in %.3f s (%.1f MB/s)%n", bytes, seconds,
+				seconds > 0 ? bytes / seconds / 1e6 : 0.0));
+		s.append(String.format("Decompression waited for the reader: %.3f s%n", fullWaitNanos / 1e9));
+		s.append(String.format("Reader waited for decompression: %.3f s%n", emptyWaitNanos / 1e9));
+		return s.toString();
+	}
+}
@@ -0,0 +1,149 @@
+package org.redwater.fwsim.capture.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.capture.CompressedCaptureSource;
+import org.redwater.fwsim.capture.ICaptureSource;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.capture.ReadAheadStatistics;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.CaptureReplay;
+import org.redwater.fwsim.services.ReplayStatistics;
+
+import com.github.luben.zstd.ZstdOutputStream;
+
+public class CompressedCaptureSourceTest {
+	private List<Packet> packets;
+	private byte[] pcap;
+	private byte[] pcapNg;
+	private List<File> files;
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(31);
+		packets = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			packets.add(traffic.randomPacket());
+		}
+		files = new ArrayList<>();
+		File f = temporary(".pcap");
+		PcapFileReaderTest.writePcap(f, packets);
+		pcap = Files.readAllBytes(f.toPath());
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PcapNgReaderTest.writePcapNg(out, packets, null);
+		pcapNg = out.toByteArray();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		for (File f : files) {
+			f.delete();
+		}
+	}
+
+	private File temporary(String suffix) throws IOException {
+		File f = File.createTempFile("fwsim", suffix);
+		files.add(f);
+		return f;
+	}
+
+	private File compress(byte[] data, boolean zstd) throws IOException {
+		File f = temporary(zstd ? ".zst" : ".gz");
+		try (OutputStream out = zstd ? new ZstdOutputStream(Files.newOutputStream(f.toPath()))
+				: new GZIPOutputStream(Files.newOutputStream(f.toPath()))) {
+			out.write(data);
+		}
+		return f;
+	}
+
+	@Test
+	public void test() throws Exception {
+		for (boolean zstd : new boolean[] { false, true }) {
+			File compressed = compress(pcap, zstd);
+			assertTrue(CompressedCaptureSource.isCompressed(compressed.toPath()));
+			// A ring of two small buffers keeps the decompressor waiting on the reader.
+			try (CompressedCaptureSource source = new CompressedCaptureSource(compressed.toPath(), 2, 100);
+					PcapFileReader expected = new PcapFileReader(files.get(0).toPath())) {
+				assertFalse(CompressedCaptureSource.isCompressed(files.get(0).toPath()));
+				while (expected.next()) {
+					assertTrue(source.next());
+					assertEquals(expected.getLinkType(), source.getLinkType());
+					assertEquals(expected.getTimestampNanos(), source.getTimestampNanos());
+					assertEquals(expected.getOriginalLength(), source.getOriginalLength());
+					assertEquals(expected.getCapturedLength(), source.getCapturedLength());
+					for (int i = 0; i < expected.getCapturedLength(); i++) {
+						assertEquals(expected.getBuffer().get(expected.getFrameOffset() + i),
+								source.getBuffer().get(source.getFrameOffset() + i));
+					}
+				}
+				assertFalse(source.next());
+				ReadAheadStatistics stats = source.getStatistics();
+				assertEquals(pcap.length, stats.getBytes());
+				assertTrue(stats.toString().startsWith(String.format("Decompressed: %d bytes", pcap.length)));
+			}
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		RuleList rules = new RuleList();
+		rules.addRule("tcp dstPort 0-1023 action accept");
+		rules.addRule("udp action deny");
+		ReplayStatistics expected;
+		try (ICaptureSource source = CaptureReplay.openCapture(files.get(0).toPath())) {
+			expected = new CaptureReplay(rules).replay(source, null);
+		}
+		for (byte[] data : new byte[][] { pcap, pcapNg }) {
+			for (boolean zstd : new boolean[] { false, true }) {
+				try (ICaptureSource source = CaptureReplay.openCapture(compress(data, zstd).toPath())) {
+					assertTrue(source instanceof CompressedCaptureSource);
+					ReplayStatistics stats = new CaptureReplay(rules).replay(source, null);
+					assertEquals(packets.size(), stats.getPackets());
+					for (RuleActions a : RuleActions.values()) {
+						assertEquals(expected.getActionCount(a), stats.getActionCount(a));
+					}
+					assertEquals(expected.getUnmatched(), stats.getUnmatched());
+					assertTrue(stats.getInputWaitNanos() <= stats.getElapsedNanos());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCorrupt() throws Exception {
+		File compressed = compress(pcap, false);
+		byte[] b = Files.readAllBytes(compressed.toPath());
+		Files.write(compressed.toPath(), Arrays.copyOf(b, b.length / 2));
+		try (CompressedCaptureSource source = new CompressedCaptureSource(compressed.toPath(), 2, 1000)) {
+			while (source.next()) {
+				// Read up to the damage.
+			}
+			fail("Read a truncated gzip stream to the end");
+		} catch (IOException e) {
+			// Expected.
+		}
+
+		try {
+			new CompressedCaptureSource(compress(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }, true).toPath()).close();
+			fail("Read a stream that is not a capture");
+		} catch (IOException e) {
+			assertEquals("Stream too short for a pcap global header", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,149 @@
+package org.redwater.fwsim.capture.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.CaptureReplay;
+import org.redwater.fwsim.services.ReplayStatistics;
+
+public class PcapFileReaderTest {
+	private File file;
+	private List<Packet> packets;
+
+	/**
+	 * Write packets to a big endian, raw IP, microsecond pcap file.
+	 * @param file - file to write
+	 * @param packets - packets to write
+	 * @throws IOException on write errors
+	 */
+	public static void writePcap(File file, List<Packet> packets) throws IOException {
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+			out.writeInt(PcapFileReader.MAGIC_MICROSECONDS);
+			out.writeShort(2);
+			out.writeShort(4);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(65535);
+			out.writeInt(IP.LINKTYPE_RAW);
+			int n = 0;
+			for (Packet p : packets) {
+				byte[] raw = p.getRawData();
+				out.writeInt(1500000000 + n);
+				out.writeInt(n);
+				out.writeInt(raw.length);
+				out.writeInt(raw.length);
+				out.write(raw);
+				n++;
+			}
+		}
+	}
+
+	/**
+	 * Write random IPv4 and IPv6 traffic to a temporary pcap file.
+	 * @param packets - receives the packets written
+	 * @param seed - seed of the random traffic
+	 * @param count - number of packets
+	 * @param ipV6Interval - every ipV6Interval-th packet, from the first, is IPv6
+	 * @return file written
+	 * @throws IOException on write errors
+	 */
+	public static File writeMixedPcap(List<Packet> packets, long seed, int count, int ipV6Interval)
+			throws IOException {
+		TestTraffic traffic = new TestTraffic(seed);
+		for (int i = 0; i < count; i++) {
+			packets.add(i % ipV6Interval == 0 ? traffic.randomIpV6Packet() : traffic.randomPacket());
+		}
+		File file = File.createTempFile("fwsim", ".pcap");
+		writePcap(file, packets);
+		return file;
+	}
+
+	/**
+	 * Delete a capture file and a sidecar file built from it.
+	 * @param file - capture file
+	 * @param sidecar - sidecar file, which need not exist
+	 * @throws IOException on delete errors
+	 */
+	public static void deletePcap(File file, Path sidecar) throws IOException {
+		Files.deleteIfExists(sidecar);
+		file.delete();
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(4);
+		packets = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			packets.add(traffic.randomPacket());
+		}
+		file = File.createTempFile("fwsim", ".pcap");
+		writePcap(file, packets);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	@Test
+	public void test() throws Exception {
+		// A tiny window makes most records straddle a window boundary.
+		try (PcapFileReader reader = new PcapFileReader(file.toPath(), 100)) {
+			assertEquals(IP.LINKTYPE_RAW, reader.getLinkType());
+			IP view = new IP();
+			for (int n = 0; n < packets.size(); n++) {
+				assertTrue(reader.next());
+				byte[] raw = packets.get(n).getRawData();
+				assertEquals(raw.length, reader.getCapturedLength());
+				assertEquals((1500000000L + n) * 1000000000L + n * 1000L, reader.getTimestampNanos());
+				for (int i = 0; i < raw.length; i++) {
+					assertEquals(raw[i], reader.getBuffer().get(reader.getFrameOffset() + i));
+				}
+				view.wrapFrame(reader.getLinkType(), reader.getBuffer(), reader.getFrameOffset(), reader.getCapturedLength());
+				assertTrue(view.isIpV4());
+			}
+			assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		RuleList rules = new RuleList();
+		rules.addRule("tcp action accept");
+		rules.addRule("udp action deny");
+		int tcp = 0;
+		int udp = 0;
+		for (Packet p : packets) {
+			byte protocol = p.getRawData()[9];
+			if (protocol == 6) {
+				tcp++;
+			} else if (protocol == 17) {
+				udp++;
+			}
+		}
+		try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+			ReplayStatistics stats = new CaptureReplay(rules).replay(reader, null);
+			assertEquals(packets.size(), stats.getPackets());
+			assertEquals(tcp, stats.getActionCount(RuleActions.ACCEPT));
+			assertEquals(udp, stats.getActionCount(RuleActions.DENY));
+			assertEquals(packets.size() - tcp - udp, stats.getUnmatched());
+		}
+	}
+}
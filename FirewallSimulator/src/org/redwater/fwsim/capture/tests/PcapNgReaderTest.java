@@ -0,0 +1,295 @@
+package org.redwater.fwsim.capture.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.capture.ICaptureSource;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.capture.PcapNgReader;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.CaptureReplay;
+import org.redwater.fwsim.services.ReplayStatistics;
+
+public class PcapNgReaderTest {
+	private static final byte[] ETHERNET_HEADER = {
+		0x66, 0x77, (byte)0x88, (byte)0x99, (byte)0xaa, (byte)0xbb, 0, 0x11, 0x22, 0x33, 0x44, 0x55, 0x08, 0x00
+	};
+
+	private List<Packet> packets;
+	private File file;
+	/** Expected link type, captured length and timestamp of each packet. */
+	private List<long[]> expected;
+
+	/**
+	 * Build a pcapng block.
+	 * @param order - byte order of the section
+	 * @param type - block type
+	 * @param body - block body, padded here to a multiple of four bytes
+	 * @return block
+	 */
+	public static byte[] block(ByteOrder order, int type, byte[] body) {
+		int length = 12 + ((body.length + 3) & ~3);
+		ByteBuffer b = ByteBuffer.allocate(length).order(order);
+		b.putInt(type);
+		b.putInt(length);
+		b.put(body);
+		b.putInt(length - 4, length);
+		return b.array();
+	}
+
+	/**
+	 * Build a section header block.
+	 * @param order - byte order of the section
+	 * @return block
+	 */
+	public static byte[] sectionHeader(ByteOrder order) {
+		ByteBuffer b = ByteBuffer.allocate(16).order(order);
+		b.putInt(PcapNgReader.BYTE_ORDER_MAGIC);
+		b.putShort((short)1);
+		b.putShort((short)0);
+		b.putLong(-1);
+		return block(order, PcapNgReader.SECTION_HEADER_BLOCK, b.array());
+	}
+
+	/**
+	 * Build an interface description block.
+	 * @param order - byte order of the section
+	 * @param linkType - link type of the interface
+	 * @param resolution - if_tsresol option value, or -1 for the default of microseconds
+	 * @return block
+	 */
+	public static byte[] interfaceDescription(ByteOrder order, int linkType, int resolution) {
+		ByteBuffer b = ByteBuffer.allocate(20).order(order);
+		b.putShort((short)linkType);
+		b.putShort((short)0);
+		b.putInt(65535);
+		if (resolution >= 0) {
+			b.putShort((short)9);
+			b.putShort((short)1);
+			b.put((byte)resolution);
+			b.position(b.position() + 3);
+		}
+		b.putInt(0);
+		return block(order, PcapNgReader.INTERFACE_DESCRIPTION_BLOCK, b.array());
+	}
+
+	/**
+	 * Build an enhanced packet block.
+	 * @param order - byte order of the section
+	 * @param interfaceId - interface the packet was captured on
+	 * @param timestamp - timestamp in the interface's units
+	 * @param frame - captured frame
+	 * @return block
+	 */
+	public static byte[] enhancedPacket(ByteOrder order, int interfaceId, long timestamp, byte[] frame) {
+		ByteBuffer b = ByteBuffer.allocate(20 + frame.length).order(order);
+		b.putInt(interfaceId);
+		b.putInt((int)(timestamp >>> 32));
+		b.putInt((int)timestamp);
+		b.putInt(frame.length);
+		b.putInt(frame.length);
+		b.put(frame);
+		return block(order, PcapNgReader.ENHANCED_PACKET_BLOCK, b.array());
+	}
+
+	/**
+	 * Write packets to a pcapng file of two sections. The first is little
+	 * endian, with a raw IP interface in nanoseconds and an Ethernet
+	 * interface in microseconds; the second is big endian, with one raw
+	 * IP interface in 2^-10 seconds.
+	 * @param out - stream to write to
+	 * @param packets - packets to write
+	 * @param expected - receives the link type, captured length and
+	 * timestamp of each packet, or null
+	 * @throws IOException on write errors
+	 */
+	public static void writePcapNg(ByteArrayOutputStream out, List<Packet> packets, List<long[]> expected)
+			throws IOException {
+		ByteOrder little = ByteOrder.LITTLE_ENDIAN;
+		out.write(sectionHeader(little));
+		out.write(interfaceDescription(little, IP.LINKTYPE_RAW, 9));
+		// A block the reader does not know is skipped.
+		out.write(block(little, 0x40000BAD, new byte[] { 1, 2, 3 }));
+		out.write(interfaceDescription(little, IP.LINKTYPE_ETHERNET, -1));
+		int half = packets.size() / 2;
+		for (int n = 0; n < half; n++) {
+			byte[] raw = packets.get(n).getRawData();
+			long seconds = 1500000000L + n;
+			if (n % 2 == 0) {
+				out.write(enhancedPacket(little, 0, seconds * 1000000000L + n, raw));
+				record(expected, IP.LINKTYPE_RAW, raw.length, seconds * 1000000000L + n);
+			} else {
+				byte[] frame = new byte[ETHERNET_HEADER.length + raw.length];
+				System.arraycopy(ETHERNET_HEADER, 0, frame, 0, ETHERNET_HEADER.length);
+				System.arraycopy(raw, 0, frame, ETHERNET_HEADER.length, raw.length);
+				out.write(enhancedPacket(little, 1, seconds * 1000000L + n, frame));
+				record(expected, IP.LINKTYPE_ETHERNET, frame.length, seconds * 1000000000L + n * 1000L);
+			}
+		}
+		ByteOrder big = ByteOrder.BIG_ENDIAN;
+		out.write(sectionHeader(big));
+		out.write(interfaceDescription(big, IP.LINKTYPE_RAW, 0x80 | 10));
+		for (int n = half; n < packets.size(); n++) {
+			byte[] raw = packets.get(n).getRawData();
+			// n and a half seconds, in 1024ths of a second.
+			out.write(enhancedPacket(big, 0, ((long)n << 10) + 512, raw));
+			record(expected, IP.LINKTYPE_RAW, raw.length, n * 1000000000L + 500000000L);
+		}
+	}
+
+	private static void record(List<long[]> expected, int linkType, int length, long timestamp) {
+		if (expected != null) {
+			expected.add(new long[] { linkType, length, timestamp });
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(21);
+		packets = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			packets.add(i % 5 == 0 ? traffic.randomIpV6Packet() : traffic.randomPacket());
+		}
+		expected = new ArrayList<>();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writePcapNg(out, packets, expected);
+		file = File.createTempFile("fwsim", ".pcapng");
+		Files.write(file.toPath(), out.toByteArray());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	@Test
+	public void test() throws Exception {
+		assertTrue(PcapNgReader.isPcapNg(file.toPath()));
+		// Small chunks split blocks across reads and force larger blocks to grow a chunk.
+		for (int chunkSize : new int[] { 64, 200, 4096, PcapNgReader.DEFAULT_CHUNK_SIZE }) {
+			try (PcapNgReader reader = new PcapNgReader(Files.newByteChannel(file.toPath()), 3, chunkSize)) {
+				IP view = new IP();
+				for (int n = 0; n < packets.size(); n++) {
+					assertTrue(reader.next());
+					long[] e = expected.get(n);
+					assertEquals(e[0], reader.getLinkType());
+					assertEquals(e[1], reader.getCapturedLength());
+					assertEquals(e[1], reader.getOriginalLength());
+					assertEquals(e[2], reader.getTimestampNanos());
+					byte[] raw = packets.get(n).getRawData();
+					int frame = reader.getFrameOffset() + (int)e[1] - raw.length;
+					for (int i = 0; i < raw.length; i++) {
+						assertEquals(raw[i], reader.getBuffer().get(frame + i));
+					}
+					view.wrapFrame(reader.getLinkType(), reader.getBuffer(), reader.getFrameOffset(),
+							reader.getCapturedLength());
+					assertTrue(view.isIpV4() || view.isIpV6());
+				}
+				assertFalse(reader.next());
+				assertFalse(reader.next());
+			}
+		}
+	}
+
+	@Test
+	public void testFineResolution() throws Exception {
+		// Tenths of a nanosecond since the epoch need all 64 unsigned bits.
+		ByteOrder little = ByteOrder.LITTLE_ENDIAN;
+		long nanos = 1790001030000000085L;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(sectionHeader(little));
+		out.write(interfaceDescription(little, IP.LINKTYPE_RAW, 10));
+		out.write(enhancedPacket(little, 0, nanos * 10 + 3, packets.get(0).getRawData()));
+		try (PcapNgReader reader = new PcapNgReader(Channels.newChannel(
+				new ByteArrayInputStream(out.toByteArray())), 1, 4096)) {
+			assertTrue(reader.next());
+			assertEquals(nanos, reader.getTimestampNanos());
+			assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		RuleList rules = new RuleList();
+		rules.addRule("tcp dstPort 0-1023 action accept");
+		rules.addRule("udp action deny");
+		rules.addRule("ip srcAddress 10.0.0.0/8 action reject");
+		File pcap = File.createTempFile("fwsim", ".pcap");
+		try {
+			PcapFileReaderTest.writePcap(pcap, packets);
+			assertFalse(PcapNgReader.isPcapNg(pcap.toPath()));
+			ReplayStatistics expectedStats;
+			try (ICaptureSource reader = CaptureReplay.openCapture(pcap.toPath())) {
+				assertTrue(reader instanceof PcapFileReader);
+				expectedStats = new CaptureReplay(rules).replay(reader, null);
+			}
+			try (ICaptureSource reader = CaptureReplay.openCapture(file.toPath())) {
+				assertTrue(reader instanceof PcapNgReader);
+				ReplayStatistics stats = new CaptureReplay(rules).replay(reader, null);
+				assertEquals(packets.size(), stats.getPackets());
+				for (RuleActions a : RuleActions.values()) {
+					assertEquals(expectedStats.getActionCount(a), stats.getActionCount(a));
+				}
+				assertEquals(expectedStats.getUnmatched(), stats.getUnmatched());
+			}
+		} finally {
+			pcap.delete();
+		}
+	}
+
+	@Test
+	public void testCorrupt() throws Exception {
+		byte[] good = Files.readAllBytes(file.toPath());
+		// A capture cut off in the middle of a block ends at the last whole block.
+		try (PcapNgReader reader = new PcapNgReader(Channels.newChannel(
+				new ByteArrayInputStream(good, 0, good.length - 3)), 2, 256)) {
+			int n = 0;
+			while (reader.next()) {
+				n++;
+			}
+			assertEquals(packets.size() - 1, n);
+		}
+
+		ByteOrder little = ByteOrder.LITTLE_ENDIAN;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(sectionHeader(little));
+		out.write(interfaceDescription(little, IP.LINKTYPE_RAW, -1));
+		out.write(enhancedPacket(little, 0, 0, packets.get(0).getRawData()));
+		out.write(enhancedPacket(little, 1, 0, packets.get(1).getRawData()));
+		try (PcapNgReader reader = new PcapNgReader(Channels.newChannel(
+				new ByteArrayInputStream(out.toByteArray())), 1, 4096)) {
+			assertTrue(reader.next());
+			reader.next();
+			fail("Read a packet of an undefined interface");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("undefined interface 1"));
+		}
+
+		byte[] pcap = new byte[PcapFileReader.GLOBAL_HEADER_LENGTH];
+		ByteBuffer.wrap(pcap).putInt(PcapFileReader.MAGIC_MICROSECONDS);
+		try (PcapNgReader reader = new PcapNgReader(Channels.newChannel(
+				new ByteArrayInputStream(pcap)), 1, 4096)) {
+			reader.next();
+			fail("Read a classic pcap file as pcapng");
+		} catch (IOException e) {
+			assertEquals("Not a pcapng file: first block type a1b2c3d4", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,18 @@
+package org.redwater.fwsim.classifiers;
+
+/**
+ * Matches a batch of packets against a CompactTableClassifier's table
+ * with vector instructions. Implementations are built only by the
+ * vector profile, which needs JDK 17 or later, and loaded by name.
+ * @author ghelmer
+ */
+interface BatchMatcher {
+	/**
+	 * Find the first table row that matches each packet of a batch.
+	 * @param table - rules to match against
+	 * @param batch - packets to classify
+	 * @param out - set to the priority of the first matching row of each
+	 * packet, or -1
+	 */
+	void match(CompactTableClassifier table, PacketBatch batch, int[] out);
+}
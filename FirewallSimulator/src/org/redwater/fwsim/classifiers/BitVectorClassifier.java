@@ -0,0 +1,177 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IPRule;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Lucent style bit vector classifier. Each header field is looked up
+ * on its own: the addresses in prefix tries, the ports in interval
+ * indexes and the protocol in a table. Every lookup returns a
+ * precomputed bit vector of the rules that match that field. The
+ * vectors of the five fields are ANDed one 64-bit word at a time, and
+ * the lowest bit left set is the first matching rule. Each vector has
+ * an aggregate vector with one bit per word that is not zero, so words
+ * where any field matches no rule are skipped without being read.
+ * @author ghelmer
+ */
+public class BitVectorClassifier extends CompiledClassifier {
+	/**
+	 * Bit vectors of one field, by lookup index. Equal vectors share one
+	 * array, and each array stops at its last word that is not zero.
+	 */
+	private static final class Field {
+		private final long[][] words;
+		private final long[][] aggregates;
+
+		/**
+		 * Pack the rule sets of a field's lookup.
+		 * @param sets - rule set of each lookup index
+		 * @param shared - vectors packed so far, to share equal ones
+		 */
+		private Field(BitSet[] sets, HashMap<BitSet, long[][]> shared) {
+			words = new long[sets.length][];
+			aggregates = new long[sets.length][];
+			for (int i = 0; i < sets.length; i++) {
+				long[][] packed = shared.get(sets[i]);
+				if (packed == null) {
+					long[] w = sets[i].toLongArray();
+					long[] a = new long[(w.length + 63) >>> 6];
+					for (int k = 0; k < w.length; k++) {
+						if (w[k] != 0) {
+							a[k >>> 6] |= 1L << k;
+						}
+					}
+					packed = new long[][] { w, a };
+					shared.put(sets[i], packed);
+				}
+				words[i] = packed[0];
+				aggregates[i] = packed[1];
+			}
+		}
+	}
+
+	private final PrefixTrie srcTrie;
+	private final PrefixTrie dstTrie;
+	private final IntervalIndex srcPortIndex;
+	private final IntervalIndex dstPortIndex;
+	/** Lookup index of each protocol number. */
+	private final int[] protocolTable;
+	private final Field src;
+	private final Field dst;
+	private final Field srcPort;
+	private final Field dstPort;
+	private final Field protocol;
+	/** Priority of each compiled rule, by bit number. */
+	private final int[] priority;
+	private final long vectorWords;
+
+	/**
+	 * Build the field lookups and bit vectors for a list of rules.
+	 * @param rules - rules in priority order
+	 */
+	public BitVectorClassifier(List<IRule> rules) {
+		super(rules);
+		CompiledRule[] compiled = getCompiledRules();
+		srcTrie = new PrefixTrie();
+		dstTrie = new PrefixTrie();
+		priority = new int[compiled.length];
+		for (int i = 0; i < compiled.length; i++) {
+			IPRule r = (IPRule)compiled[i].getRule();
+			srcTrie.add(r.getSrcNetwork(), r.getSrcPrefixLength(), i);
+			dstTrie.add(r.getDstNetwork(), r.getDstPrefixLength(), i);
+			priority[i] = compiled[i].getPriority();
+		}
+		srcTrie.build();
+		dstTrie.build();
+		srcPortIndex = new IntervalIndex(compiled, CompiledRule.DIM_SRC_PORT);
+		dstPortIndex = new IntervalIndex(compiled, CompiledRule.DIM_DST_PORT);
+		IntervalIndex protocolIndex = new IntervalIndex(compiled, CompiledRule.DIM_PROTOCOL);
+		protocolTable = new int[(int)CompiledRule.DIM_MAX[CompiledRule.DIM_PROTOCOL] + 1];
+		for (int p = 0; p < protocolTable.length; p++) {
+			protocolTable[p] = protocolIndex.lookupIndex(p);
+		}
+
+		HashMap<BitSet, long[][]> shared = new HashMap<>();
+		src = new Field(sets(srcTrie), shared);
+		dst = new Field(sets(dstTrie), shared);
+		srcPort = new Field(sets(srcPortIndex), shared);
+		dstPort = new Field(sets(dstPortIndex), shared);
+		protocol = new Field(sets(protocolIndex), shared);
+		srcTrie.discardMatchingSets();
+		dstTrie.discardMatchingSets();
+		long total = 0;
+		for (long[][] packed : shared.values()) {
+			total += packed[0].length + packed[1].length;
+		}
+		vectorWords = total;
+	}
+
+	private static BitSet[] sets(PrefixTrie trie) {
+		BitSet[] sets = new BitSet[trie.getMatchingSetCount()];
+		for (int i = 0; i < sets.length; i++) {
+			sets[i] = trie.getMatchingSet(i);
+		}
+		return sets;
+	}
+
+	private static BitSet[] sets(IntervalIndex index) {
+		BitSet[] sets = new BitSet[index.getIntervalCount()];
+		for (int i = 0; i < sets.length; i++) {
+			sets[i] = index.getMatchingSet(i);
+		}
+		return sets;
+	}
+
+	/**
+	 * AND the bit vectors of the five fields, skipping the words the
+	 * aggregates show are zero in any of them.
+	 * @param packet - header fields of an IPv4 packet
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	protected int lookup(IPacket packet) {
+		int s = srcTrie.lookupIndex(packet.getSrcAddr());
+		int d = dstTrie.lookupIndex(packet.getDstAddr());
+		int sp = srcPortIndex.lookupIndex(packet.getSrcPort());
+		int dp = dstPortIndex.lookupIndex(packet.getDstPort());
+		int p = protocolTable[packet.getProtocol()];
+		long[] w0 = src.words[s];
+		long[] w1 = dst.words[d];
+		long[] w2 = srcPort.words[sp];
+		long[] w3 = dstPort.words[dp];
+		long[] w4 = protocol.words[p];
+		long[] a0 = src.aggregates[s];
+		long[] a1 = dst.aggregates[d];
+		long[] a2 = srcPort.aggregates[sp];
+		long[] a3 = dstPort.aggregates[dp];
+		long[] a4 = protocol.aggregates[p];
+		int n = Math.min(Math.min(Math.min(a0.length, a1.length), Math.min(a2.length, a3.length)), a4.length);
+		for (int k = 0; k < n; k++) {
+			long candidates = a0[k] & a1[k] & a2[k] & a3[k] & a4[k];
+			while (candidates != 0) {
+				// A word is only present up to the last non-zero one, and
+				// its aggregate bit is set in all five, so all five have it.
+				int w = (k << 6) + Long.numberOfTrailingZeros(candidates);
+				long m = w0[w] & w1[w] & w2[w] & w3[w] & w4[w];
+				if (m != 0) {
+					return priority[(w << 6) + Long.numberOfTrailingZeros(m)];
+				}
+				candidates &= candidates - 1;
+			}
+		}
+		return NO_MATCH;
+	}
+
+	/**
+	 * Get the number of 64-bit words in the distinct bit vectors and
+	 * their aggregates, for sizing.
+	 * @return number of words
+	 */
+	public long getVectorWords() {
+		return vectorWords;
+	}
+}
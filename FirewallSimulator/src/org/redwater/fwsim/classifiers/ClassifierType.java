@@ -0,0 +1,61 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.List;
+
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * List of the classification engines a RuleList can use.
+ * @author ghelmer
+ */
+public enum ClassifierType {
+	/** Check every rule in order. */
+	LINEAR {
+		public IClassifier newClassifier(List<IRule> rules) {
+			return new LinearClassifier(rules);
+		}
+	},
+	/** HiCuts style decision tree over the header fields. */
+	DECISION_TREE {
+		public IClassifier newClassifier(List<IRule> rules) {
+			return new DecisionTreeClassifier(rules);
+		}
+	},
+	/** Source and destination address prefix tries. */
+	PREFIX_TRIE {
+		public IClassifier newClassifier(List<IRule> rules) {
+			return new PrefixTrieClassifier(rules);
+		}
+	},
+	/** Runtime generated JVM class with every rule inlined. */
+	GENERATED {
+		public IClassifier newClassifier(List<IRule> rules) {
+			return new GeneratedClassifier(rules);
+		}
+	},
+	/** Check every rule in order, over rules packed into primitive arrays. */
+	COMPACT_TABLE {
+		public IClassifier newClassifier(List<IRule> rules) {
+			return new CompactTableClassifier(rules);
+		}
+	},
+	/** Lucent style bit vectors of the rules matching each header field. */
+	BIT_VECTOR {
+		public IClassifier newClassifier(List<IRule> rules) {
+			return new BitVectorClassifier(rules);
+		}
+	},
+	/** Hash table per tuple of prefix lengths; follows single rule changes without a rebuild. */
+	TUPLE_SPACE {
+		public IClassifier newClassifier(List<IRule> rules) {
+			return new TupleSpaceClassifier(rules);
+		}
+	};
+
+	/**
+	 * Build a classifier of this type.
+	 * @param rules - rules in priority order
+	 * @return new classifier
+	 */
+	public abstract IClassifier newClassifier(List<IRule> rules);
+}
@@ -0,0 +1,228 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.List;
+
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Linear scan over the rules packed into parallel primitive arrays, one
+ * array per field, so that the scan reads memory in order instead of
+ * following a chain of objects for every rule. Each port field is kept
+ * as one range; rules with several ranges for a port (or none that can
+ * match) store the bounding range in the arrays, flag it, and keep the
+ * exact ranges in a side table checked only when the bounds match.
+ * <p>
+ * Batches of packets are matched with vector instructions when the
+ * vector profile was built and the jdk.incubator.vector module is
+ * present (run with --add-modules jdk.incubator.vector), and one packet
+ * at a time otherwise. Set the fwsim.vector system property to false to
+ * turn the vector matcher off.
+ * @author ghelmer
+ */
+public class CompactTableClassifier extends CompiledClassifier {
+	/** Source port ranges are in the side table. */
+	static final byte SIDE_SRC_PORT = 1;
+	/** Destination port ranges are in the side table. */
+	static final byte SIDE_DST_PORT = 2;
+
+	private static final String VECTOR_MATCHER = "org.redwater.fwsim.classifiers.VectorBatchMatcher";
+	private static final BatchMatcher MATCHER = loadMatcher();
+
+	final int size;
+	final int[] srcNet;
+	final int[] srcMask;
+	final int[] dstNet;
+	final int[] dstMask;
+	final char[] srcPortLow;
+	final char[] srcPortHigh;
+	final char[] dstPortLow;
+	final char[] dstPortHigh;
+	final byte[] protocolLow;
+	final byte[] protocolHigh;
+	final byte[] side;
+	final int[] priority;
+	/** Exact port ranges of the flagged rules, by table row; null for the others. */
+	final long[][] sideSrcPorts;
+	final long[][] sideDstPorts;
+
+	/**
+	 * Pack the rules into the table.
+	 * @param rules - rules in priority order
+	 */
+	public CompactTableClassifier(List<IRule> rules) {
+		super(rules);
+		CompiledRule[] compiled = getCompiledRules();
+		size = compiled.length;
+		srcNet = new int[size];
+		srcMask = new int[size];
+		dstNet = new int[size];
+		dstMask = new int[size];
+		srcPortLow = new char[size];
+		srcPortHigh = new char[size];
+		dstPortLow = new char[size];
+		dstPortHigh = new char[size];
+		protocolLow = new byte[size];
+		protocolHigh = new byte[size];
+		side = new byte[size];
+		priority = new int[size];
+		sideSrcPorts = new long[size][];
+		sideDstPorts = new long[size][];
+		for (int i = 0; i < size; i++) {
+			CompiledRule r = compiled[i];
+			long[] src = r.getRanges(CompiledRule.DIM_SRC_ADDR);
+			srcNet[i] = (int)src[0];
+			srcMask[i] = ~(int)(src[1] - src[0]);
+			long[] dst = r.getRanges(CompiledRule.DIM_DST_ADDR);
+			dstNet[i] = (int)dst[0];
+			dstMask[i] = ~(int)(dst[1] - dst[0]);
+			long[] protocol = r.getRanges(CompiledRule.DIM_PROTOCOL);
+			protocolLow[i] = (byte)protocol[0];
+			protocolHigh[i] = (byte)protocol[1];
+			long[] ports = r.getRanges(CompiledRule.DIM_SRC_PORT);
+			if (ports.length != 2) {
+				side[i] |= SIDE_SRC_PORT;
+				sideSrcPorts[i] = ports;
+			}
+			srcPortLow[i] = low(ports);
+			srcPortHigh[i] = high(ports);
+			ports = r.getRanges(CompiledRule.DIM_DST_PORT);
+			if (ports.length != 2) {
+				side[i] |= SIDE_DST_PORT;
+				sideDstPorts[i] = ports;
+			}
+			dstPortLow[i] = low(ports);
+			dstPortHigh[i] = high(ports);
+			priority[i] = r.getPriority();
+		}
+	}
+
+	/**
+	 * Get the low end of the range bounding a list of ranges.
+	 * @param ranges - inclusive (low, high) pairs
+	 * @return lowest port, or 1 if the list is empty so that no port is in bounds
+	 */
+	private static char low(long[] ranges) {
+		if (ranges.length == 0) {
+			return 1;
+		}
+		long low = ranges[0];
+		for (int i = 2; i < ranges.length; i += 2) {
+			low = Math.min(low, ranges[i]);
+		}
+		return (char)low;
+	}
+
+	/**
+	 * Get the high end of the range bounding a list of ranges.
+	 * @param ranges - inclusive (low, high) pairs
+	 * @return highest port, or 0 if the list is empty
+	 */
+	private static char high(long[] ranges) {
+		long high = 0;
+		for (int i = 1; i < ranges.length; i += 2) {
+			high = Math.max(high, ranges[i]);
+		}
+		return (char)high;
+	}
+
+	/**
+	 * Load the vector matcher if it was built and can run here.
+	 * @return vector matcher, or null to match one packet at a time
+	 */
+	private static BatchMatcher loadMatcher() {
+		if (!Boolean.parseBoolean(System.getProperty("fwsim.vector", "true"))) {
+			return null;
+		}
+		try {
+			return (BatchMatcher)Class.forName(VECTOR_MATCHER).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			// Not built, older JDK, or the incubator module was not added.
+			return null;
+		}
+	}
+
+	/**
+	 * Determine if batches are matched with vector instructions.
+	 * @return true if the vector matcher is in use
+	 */
+	public static boolean isVectorized() {
+		return MATCHER != null;
+	}
+
+	static boolean inRanges(long[] ranges, int value) {
+		for (int i = 0; i < ranges.length; i += 2) {
+			if (value >= ranges[i] && value <= ranges[i + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Scan the table for the first row that matches the packet.
+	 * @param packet - header fields of an IPv4 packet
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	protected int lookup(IPacket packet) {
+		return lookup(packet.getSrcAddr(), packet.getDstAddr(), packet.getSrcPort(), packet.getDstPort(),
+				packet.getProtocol(), 0);
+	}
+
+	/**
+	 * Scan the table for the first row that matches each packet of a batch.
+	 * @param batch - packets to classify
+	 * @param out - set to the priority of the first matching rule of
+	 * each packet, or NO_MATCH
+	 */
+	protected void lookup(PacketBatch batch, int[] out) {
+		if (MATCHER != null) {
+			MATCHER.match(this, batch, out);
+			return;
+		}
+		for (int i = 0; i < batch.size(); i++) {
+			out[i] = batch.protocol[i] < 0 ? NO_MATCH : lookup(batch, i, 0);
+		}
+	}
+
+	/**
+	 * Scan the table from a row on for the first row that matches one
+	 * packet of a batch.
+	 * @param batch - packets
+	 * @param p - index of the packet in the batch
+	 * @param from - first table row to check
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	int lookup(PacketBatch batch, int p, int from) {
+		return lookup(batch.srcAddr[p], batch.dstAddr[p], batch.srcPort[p], batch.dstPort[p], batch.protocol[p], from);
+	}
+
+	/**
+	 * Scan the table for the first row that matches the header fields.
+	 * @param src - source address
+	 * @param dst - destination address
+	 * @param srcPort - source port
+	 * @param dstPort - destination port
+	 * @param protocol - IP protocol number
+	 * @param from - first table row to check
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	private int lookup(int src, int dst, int srcPort, int dstPort, int protocol, int from) {
+		for (int i = from; i < size; i++) {
+			if ((dst & dstMask[i]) != dstNet[i]
+					|| (src & srcMask[i]) != srcNet[i]
+					|| dstPort < dstPortLow[i] || dstPort > dstPortHigh[i]
+					|| srcPort < srcPortLow[i] || srcPort > srcPortHigh[i]
+					|| protocol < (protocolLow[i] & 0xFF) || protocol > (protocolHigh[i] & 0xFF)) {
+				continue;
+			}
+			if (side[i] != 0
+					&& (((side[i] & SIDE_SRC_PORT) != 0 && !inRanges(sideSrcPorts[i], srcPort))
+						|| ((side[i] & SIDE_DST_PORT) != 0 && !inRanges(sideDstPorts[i], dstPort)))) {
+				continue;
+			}
+			return priority[i];
+		}
+		return NO_MATCH;
+	}
+}
@@ -0,0 +1,174 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Base class for classifiers that work on CompiledRule objects. Rules
+ * that cannot be compiled are kept aside and evaluated with their own
+ * matchesRule method, so the result is always the same first match the
+ * linear scan would find. Subclasses look up IPv4 packets among the
+ * rules that match IPv4; IPv6 packets are looked up here, in an index
+ * of the rules that match IPv6.
+ * @author ghelmer
+ */
+public abstract class CompiledClassifier implements IClassifier {
+	/** Priority returned by lookup when no compiled rule matches. */
+	protected static final int NO_MATCH = -1;
+
+	private final IRule[] rules;
+	private final CompiledRule[] compiledRules;
+	private final int[] opaqueRules;
+	/** Index of the rules that match IPv6, or null if there are none. */
+	private final IpV6Index ipV6Index;
+
+	/**
+	 * Compile the rules.
+	 * @param rules - rules in priority order
+	 */
+	protected CompiledClassifier(List<IRule> rules) {
+		this.rules = rules.toArray(new IRule[rules.size()]);
+		ArrayList<CompiledRule> compiled = new ArrayList<>();
+		ArrayList<CompiledRule> compiledV6 = new ArrayList<>();
+		int[] opaque = new int[this.rules.length];
+		int nOpaque = 0;
+		for (int i = 0; i < this.rules.length; i++) {
+			CompiledRule c = CompiledRule.compile(this.rules[i], i);
+			if (c == null) {
+				opaque[nOpaque++] = i;
+				continue;
+			}
+			if (c.matchesIpV4()) {
+				compiled.add(c);
+			}
+			if (c.matchesIpV6()) {
+				compiledV6.add(c);
+			}
+		}
+		compiledRules = compiled.toArray(new CompiledRule[compiled.size()]);
+		ipV6Index = compiledV6.isEmpty() ? null : new IpV6Index(compiledV6.toArray(new CompiledRule[compiledV6.size()]));
+		opaqueRules = new int[nOpaque];
+		System.arraycopy(opaque, 0, opaqueRules, 0, nOpaque);
+	}
+
+	/**
+	 * Get the compiled rules that can match IPv4 packets, in priority order.
+	 * @return compiled rules; do not modify
+	 */
+	protected CompiledRule[] getCompiledRules() {
+		return compiledRules;
+	}
+
+	/**
+	 * Get a rule by its priority.
+	 * @param priority - position of the rule in the list
+	 * @return rule
+	 */
+	protected IRule getRule(int priority) {
+		return rules[priority];
+	}
+
+	/**
+	 * Find the first compiled rule that matches the packet.
+	 * @param packet - header fields of an IPv4 packet
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	protected abstract int lookup(IPacket packet);
+
+	/**
+	 * Find the first compiled rule that matches an IPv6 packet.
+	 * @param packet - header fields of an IPv6 packet
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	private int lookupIpV6(IPacket packet) {
+		return ipV6Index == null ? NO_MATCH : ipV6Index.lookup(packet);
+	}
+
+	/**
+	 * Find the first compiled rule that matches each IPv4 packet of a
+	 * batch. This implementation looks the packets up one at a time.
+	 * @param batch - packets to classify
+	 * @param out - set to the priority of the first matching compiled
+	 * rule of each packet, or NO_MATCH
+	 */
+	protected void lookup(PacketBatch batch, int[] out) {
+		for (int i = 0; i < batch.size(); i++) {
+			out[i] = batch.isIpV4(i) ? lookup(batch.getKey(i)) : NO_MATCH;
+		}
+	}
+
+	/**
+	 * Find the first rule that matches each packet of a batch. Rules
+	 * that could not be compiled see only the header fields the batch
+	 * keeps, as with a PacketKey.
+	 * @param batch - packets to classify
+	 * @param out - set to the position in the rule list of the first
+	 * matching rule of each packet, or -1 if none
+	 */
+	public void classify(PacketBatch batch, int[] out) {
+		lookup(batch, out);
+		if (ipV6Index != null && batch.hasIpV6()) {
+			for (int p = 0; p < batch.size(); p++) {
+				if (batch.isIpV6(p)) {
+					out[p] = ipV6Index.lookup(batch.getKey(p));
+				}
+			}
+		}
+		if (opaqueRules.length == 0) {
+			return;
+		}
+		for (int p = 0; p < batch.size(); p++) {
+			PacketKey key = batch.getKey(p);
+			for (int i : opaqueRules) {
+				if (out[p] != NO_MATCH && i > out[p]) {
+					break;
+				}
+				if (rules[i].matchesRule(key)) {
+					out[p] = i;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Find the first rule that matches the packet.
+	 * @param packet - Packet to classify.
+	 * @return first matching IRule, or null if none
+	 */
+	public IRule classify(Packet packet) {
+		PacketKey key = PacketKey.of(packet);
+		int best = key.isIpV4() ? lookup(key) : key.isIpV6() ? lookupIpV6(key) : NO_MATCH;
+		for (int i : opaqueRules) {
+			if (best != NO_MATCH && i > best) {
+				break;
+			}
+			if (rules[i].matchesRule(packet)) {
+				return rules[i];
+			}
+		}
+		return best == NO_MATCH ? null : rules[best];
+	}
+
+	/**
+	 * Find the first rule that matches the packet header view.
+	 * @param packet - packet header view to classify.
+	 * @return first matching IRule, or null if none
+	 */
+	public IRule classify(IPacket packet) {
+		int best = packet.isIpV4() ? lookup(packet) : packet.isIpV6() ? lookupIpV6(packet) : NO_MATCH;
+		for (int i : opaqueRules) {
+			if (best != NO_MATCH && i > best) {
+				break;
+			}
+			if (rules[i].matchesRule(packet)) {
+				return rules[i];
+			}
+		}
+		return best == NO_MATCH ? null : rules[best];
+	}
+}
@@ -0,0 +1,306 @@
+package org.redwater.fwsim.classifiers;
+
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IPRule;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.PortRangeList;
+import org.redwater.fwsim.rules.TCPRule;
+import org.redwater.fwsim.rules.UDPRule;
+
+/**
+ * Primitive form of an IPRule, TCPRule or UDPRule. Every header field
+ * (dimension) the rule matches on is stored as a list of inclusive
+ * unsigned ranges, so that a classifier can reason about the space of
+ * packets a rule matches without calling back into the rule. The
+ * address dimensions are IPv4; a rule with IPv6 addresses has no
+ * ranges in them and keeps its addresses as 128-bit prefixes instead.
+ * @author ghelmer
+ */
+public final class CompiledRule {
+	public static final int DIM_SRC_ADDR = 0;
+	public static final int DIM_DST_ADDR = 1;
+	public static final int DIM_SRC_PORT = 2;
+	public static final int DIM_DST_PORT = 3;
+	public static final int DIM_PROTOCOL = 4;
+	public static final int DIMENSIONS = 5;
+
+	/** Largest value in each dimension. */
+	public static final long[] DIM_MAX = { 0xFFFFFFFFL, 0xFFFFFFFFL, 0xFFFF, 0xFFFF, 0xFF };
+
+	private final IRule rule;
+	private final int priority;
+	private final long[][] ranges;
+	private final boolean ipV4;
+	private final boolean ipV6;
+	/** IPv6 source and destination networks and netmasks: high, low, mask high, mask low. */
+	private final long[] src6;
+	private final long[] dst6;
+
+	/**
+	 * Construct a CompiledRule.
+	 * @param rule - rule this was compiled from
+	 * @param priority - position of the rule in its RuleList
+	 * @param ranges - per dimension array of inclusive (low, high) pairs
+	 */
+	private CompiledRule(IPRule rule, int priority, long[][] ranges) {
+		this.rule = rule;
+		this.priority = priority;
+		this.ranges = ranges;
+		ipV4 = rule.matchesIpV4();
+		ipV6 = rule.matchesIpV6();
+		src6 = new long[] { rule.getSrcNetworkHigh(), rule.getSrcNetworkLow(),
+				IPRule.maskHigh(rule.isSrcAddressIpV6() ? rule.getSrcPrefixLength() : 0),
+				IPRule.maskLow(rule.isSrcAddressIpV6() ? rule.getSrcPrefixLength() : 0) };
+		dst6 = new long[] { rule.getDstNetworkHigh(), rule.getDstNetworkLow(),
+				IPRule.maskHigh(rule.isDstAddressIpV6() ? rule.getDstPrefixLength() : 0),
+				IPRule.maskLow(rule.isDstAddressIpV6() ? rule.getDstPrefixLength() : 0) };
+	}
+
+	/**
+	 * Compile a rule into its primitive form.
+	 * @param rule - rule to compile
+	 * @param priority - position of the rule in its RuleList
+	 * @return compiled rule, or null if the rule type is not understood
+	 * and must be evaluated by calling its matchesRule method
+	 */
+	public static CompiledRule compile(IRule rule, int priority) {
+		long[][] ranges = new long[DIMENSIONS][];
+		Class<?> c = rule.getClass();
+		if (c == TCPRule.class) {
+			TCPRule tcpRule = (TCPRule)rule;
+			ranges[DIM_SRC_PORT] = portRanges(tcpRule.getSrcPortRanges());
+			ranges[DIM_DST_PORT] = portRanges(tcpRule.getDstPortRanges());
+			ranges[DIM_PROTOCOL] = new long[] { IPacket.PROTOCOL_TCP, IPacket.PROTOCOL_TCP };
+		} else if (c == UDPRule.class) {
+			UDPRule udpRule = (UDPRule)rule;
+			ranges[DIM_SRC_PORT] = portRanges(udpRule.getSrcPortRanges());
+			ranges[DIM_DST_PORT] = portRanges(udpRule.getDstPortRanges());
+			ranges[DIM_PROTOCOL] = new long[] { IPacket.PROTOCOL_UDP, IPacket.PROTOCOL_UDP };
+		} else if (c == IPRule.class) {
+			ranges[DIM_SRC_PORT] = new long[] { 0, DIM_MAX[DIM_SRC_PORT] };
+			ranges[DIM_DST_PORT] = new long[] { 0, DIM_MAX[DIM_DST_PORT] };
+			ranges[DIM_PROTOCOL] = new long[] { 0, DIM_MAX[DIM_PROTOCOL] };
+		} else {
+			return null;
+		}
+		IPRule ipRule = (IPRule)rule;
+		if (ipRule.matchesIpV4()) {
+			ranges[DIM_SRC_ADDR] = addressRange(ipRule.getSrcNetwork(), ipRule.getSrcPrefixLength());
+			ranges[DIM_DST_ADDR] = addressRange(ipRule.getDstNetwork(), ipRule.getDstPrefixLength());
+		} else {
+			// No IPv4 address matches.
+			ranges[DIM_SRC_ADDR] = new long[0];
+			ranges[DIM_DST_ADDR] = new long[0];
+		}
+		return new CompiledRule(ipRule, priority, ranges);
+	}
+
+	/**
+	 * Convert a CIDR block to the range of addresses it contains.
+	 * @param network - network address with the host bits cleared
+	 * @param prefixLength - number of network bits, 0 for any address
+	 * @return inclusive (low, high) pair
+	 */
+	private static long[] addressRange(int network, int prefixLength) {
+		long low = network & 0xFFFFFFFFL;
+		return new long[] { low, low | (0xFFFFFFFFL >>> prefixLength) };
+	}
+
+	/**
+	 * Convert a list of port ranges, dropping ranges that can never match.
+	 * @param portRanges - inclusive ranges, or null for any port
+	 * @return flattened array of inclusive (low, high) pairs
+	 */
+	private static long[] portRanges(PortRangeList portRanges) {
+		if (portRanges == null) {
+			return new long[] { 0, DIM_MAX[DIM_SRC_PORT] };
+		}
+		long[] result = new long[portRanges.size() * 2];
+		int n = 0;
+		for (int i = 0; i < portRanges.size(); i++) {
+			long low = Math.max(0, portRanges.getStart(i));
+			long high = Math.min(DIM_MAX[DIM_SRC_PORT], portRanges.getEnd(i));
+			if (low <= high) {
+				result[n++] = low;
+				result[n++] = high;
+			}
+		}
+		if (n < result.length) {
+			long[] trimmed = new long[n];
+			System.arraycopy(result, 0, trimmed, 0, n);
+			result = trimmed;
+		}
+		return result;
+	}
+
+	/**
+	 * Get a header field of a packet by its dimension number.
+	 * @param packet - packet header fields
+	 * @param dimension - one of the DIM_* constants
+	 * @return field value as an unsigned long
+	 */
+	public static long field(IPacket packet, int dimension) {
+		switch (dimension) {
+		case DIM_SRC_ADDR:
+			return packet.getSrcAddr() & 0xFFFFFFFFL;
+		case DIM_DST_ADDR:
+			return packet.getDstAddr() & 0xFFFFFFFFL;
+		case DIM_SRC_PORT:
+			return packet.getSrcPort();
+		case DIM_DST_PORT:
+			return packet.getDstPort();
+		case DIM_PROTOCOL:
+			return packet.getProtocol();
+		default:
+			throw new IllegalArgumentException(String.format("Invalid dimension %d", dimension));
+		}
+	}
+
+	/**
+	 * Determine if the packet matches this rule.
+	 * @param packet - packet header fields
+	 * @return true if the packet matches all fields
+	 */
+	public boolean matches(IPacket packet) {
+		int first;
+		if (packet.isIpV4()) {
+			if (!ipV4) {
+				return false;
+			}
+			first = 0;
+		} else if (packet.isIpV6()) {
+			if (!ipV6 || !matchesPrefix(src6, packet.getSrcAddrHigh(), packet.getSrcAddrLow())
+					|| !matchesPrefix(dst6, packet.getDstAddrHigh(), packet.getDstAddrLow())) {
+				return false;
+			}
+			first = DIM_SRC_PORT;
+		} else {
+			return false;
+		}
+		for (int d = first; d < DIMENSIONS; d++) {
+			if (!matchesField(d, field(packet, d))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matchesPrefix(long[] prefix, long high, long low) {
+		return (high & prefix[2]) == prefix[0] && (low & prefix[3]) == prefix[1];
+	}
+
+	private static boolean overlapsPrefix(long[] a, long[] b) {
+		return ((a[0] ^ b[0]) & a[2] & b[2]) == 0 && ((a[1] ^ b[1]) & a[3] & b[3]) == 0;
+	}
+
+	/**
+	 * Determine if a value falls within this rule's ranges for a dimension.
+	 * @param dimension - dimension to check
+	 * @param value - unsigned field value
+	 * @return true if any range contains the value
+	 */
+	public boolean matchesField(int dimension, long value) {
+		long[] r = ranges[dimension];
+		for (int i = 0; i < r.length; i += 2) {
+			if (value >= r[i] && value <= r[i + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if any of this rule's ranges for a dimension overlap a range.
+	 * @param dimension - dimension to check
+	 * @param low - inclusive low end of the range
+	 * @param high - inclusive high end of the range
+	 * @return true if the rule matches some value in the range
+	 */
+	public boolean overlaps(int dimension, long low, long high) {
+		long[] r = ranges[dimension];
+		for (int i = 0; i < r.length; i += 2) {
+			if (r[i] <= high && r[i + 1] >= low) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if one of this rule's ranges for a dimension covers a whole range.
+	 * @param dimension - dimension to check
+	 * @param low - inclusive low end of the range
+	 * @param high - inclusive high end of the range
+	 * @return true if the rule matches every value in the range
+	 */
+	public boolean covers(int dimension, long low, long high) {
+		long[] r = ranges[dimension];
+		for (int i = 0; i < r.length; i += 2) {
+			if (r[i] <= low && r[i + 1] >= high) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if some packet could match both this rule and another.
+	 * @param other - rule to compare with
+	 * @return true unless the rules are disjoint in at least one dimension
+	 * or match different address families
+	 */
+	public boolean intersects(CompiledRule other) {
+		for (int d = DIM_SRC_PORT; d < DIMENSIONS; d++) {
+			if (!intersects(other, d)) {
+				return false;
+			}
+		}
+		if (ipV4 && other.ipV4 && intersects(other, DIM_SRC_ADDR) && intersects(other, DIM_DST_ADDR)) {
+			return true;
+		}
+		return ipV6 && other.ipV6 && overlapsPrefix(src6, other.src6) && overlapsPrefix(dst6, other.dst6);
+	}
+
+	private boolean intersects(CompiledRule other, int dimension) {
+		long[] r = other.ranges[dimension];
+		for (int i = 0; i < r.length; i += 2) {
+			if (overlaps(dimension, r[i], r[i + 1])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determine if this rule can match an IPv4 packet.
+	 * @return true unless the rule has IPv6 addresses
+	 */
+	public boolean matchesIpV4() {
+		return ipV4;
+	}
+
+	/**
+	 * Determine if this rule can match an IPv6 packet.
+	 * @return true unless the rule has IPv4 addresses
+	 */
+	public boolean matchesIpV6() {
+		return ipV6;
+	}
+
+	/**
+	 * Get the ranges this rule matches in a dimension.
+	 * @param dimension - dimension to get
+	 * @return flattened array of inclusive (low, high) pairs; do not modify
+	 */
+	public long[] getRanges(int dimension) {
+		return ranges[dimension];
+	}
+
+	public IRule getRule() {
+		return rule;
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+}
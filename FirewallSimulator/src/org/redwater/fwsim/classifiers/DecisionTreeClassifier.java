@@ -0,0 +1,281 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * HiCuts style decision tree classifier. Each interior node cuts the
+ * header space along one dimension into a power of two number of equal
+ * slices, and each leaf holds a short list of rules that is checked in
+ * priority order. Slices are always aligned to their own width, so the
+ * child for a value is found from its bits alone.
+ * @author ghelmer
+ */
+public class DecisionTreeClassifier extends CompiledClassifier {
+	/** Maximum number of rules in a leaf before it is cut. */
+	private static final int BINTH = 8;
+	/** Space factor bounding how many rule copies a cut may create. */
+	private static final int SPFAC = 4;
+	/** Maximum number of children of one node. */
+	private static final int MAX_CUTS = 256;
+	/** Maximum depth of the tree. */
+	private static final int MAX_DEPTH = 64;
+	/**
+	 * Maximum average number of leaves each rule may be copied into.
+	 * Heavily overlapping rules cannot be separated by cutting, so once
+	 * the budget is spent the remaining nodes become longer leaves.
+	 */
+	private static final int MAX_REPLICATION = 32;
+
+	/**
+	 * A node of the tree. A leaf has rules and no children.
+	 */
+	private static final class Node {
+		private int dimension;
+		private int shift;
+		private int mask;
+		private Node[] children;
+		private CompiledRule[] rules;
+	}
+
+	private final Node root;
+	private final long maxRuleCopies;
+	private long ruleCopies;
+	private int nodeCount;
+
+	/**
+	 * Build the decision tree for a list of rules.
+	 * @param rules - rules in priority order
+	 */
+	public DecisionTreeClassifier(List<IRule> rules) {
+		super(rules);
+		long[] low = new long[CompiledRule.DIMENSIONS];
+		long[] high = CompiledRule.DIM_MAX.clone();
+		CompiledRule[] compiled = getCompiledRules();
+		maxRuleCopies = (long)MAX_REPLICATION * compiled.length + 1024;
+		ruleCopies = 0;
+		root = build(removeShadowed(compiled, low, high), low, high, 0);
+	}
+
+	/**
+	 * Recursively build a node covering the given box.
+	 * @param rules - rules that overlap the box, in priority order, with
+	 * shadowed rules already removed
+	 * @param low - low corner of the box
+	 * @param high - high corner of the box
+	 * @param depth - depth of this node
+	 * @return new node
+	 */
+	private Node build(CompiledRule[] rules, long[] low, long[] high, int depth) {
+		nodeCount++;
+		Node node = new Node();
+		if (rules.length <= BINTH || depth >= MAX_DEPTH || ruleCopies > maxRuleCopies) {
+			return leaf(node, rules);
+		}
+		int dimension = chooseDimension(rules, low, high);
+		if (dimension < 0) {
+			return leaf(node, rules);
+		}
+		long width = high[dimension] - low[dimension] + 1;
+		int cuts = chooseCuts(rules, dimension, low[dimension], width);
+		int shift = Long.numberOfTrailingZeros(width / cuts);
+
+		long savedLow = low[dimension];
+		long savedHigh = high[dimension];
+		CompiledRule[][] childRules = new CompiledRule[cuts][];
+		boolean progress = false;
+		for (int i = 0; i < cuts; i++) {
+			low[dimension] = savedLow + ((long)i << shift);
+			high[dimension] = low[dimension] + (1L << shift) - 1;
+			childRules[i] = removeShadowed(overlapping(rules, dimension, low[dimension], high[dimension]),
+					low, high);
+			if (childRules[i].length < rules.length) {
+				progress = true;
+			}
+		}
+		if (!progress) {
+			low[dimension] = savedLow;
+			high[dimension] = savedHigh;
+			return leaf(node, rules);
+		}
+
+		node.dimension = dimension;
+		node.shift = shift;
+		node.mask = cuts - 1;
+		node.children = new Node[cuts];
+		for (int i = 0; i < cuts; i++) {
+			// Adjacent slices with the same rules can share a leaf. Interior
+			// nodes remove shadowed rules for their own box, so are not shared.
+			if (i > 0 && node.children[i - 1].children == null
+					&& Arrays.equals(childRules[i], childRules[i - 1])) {
+				node.children[i] = node.children[i - 1];
+				continue;
+			}
+			low[dimension] = savedLow + ((long)i << shift);
+			high[dimension] = low[dimension] + (1L << shift) - 1;
+			node.children[i] = build(childRules[i], low, high, depth + 1);
+		}
+		low[dimension] = savedLow;
+		high[dimension] = savedHigh;
+		return node;
+	}
+
+	/**
+	 * Make a node into a leaf.
+	 * @param node - node to fill in
+	 * @param rules - rules to check at the leaf
+	 * @return the node
+	 */
+	private Node leaf(Node node, CompiledRule[] rules) {
+		node.rules = rules;
+		ruleCopies += rules.length;
+		return node;
+	}
+
+	/**
+	 * Drop every rule that follows a rule covering the whole box, since
+	 * no packet in the box can reach it.
+	 * @param rules - rules in priority order
+	 * @param low - low corner of the box
+	 * @param high - high corner of the box
+	 * @return remaining rules
+	 */
+	private static CompiledRule[] removeShadowed(CompiledRule[] rules, long[] low, long[] high) {
+		for (int i = 0; i < rules.length; i++) {
+			boolean covers = true;
+			for (int d = 0; d < CompiledRule.DIMENSIONS && covers; d++) {
+				covers = rules[i].covers(d, low[d], high[d]);
+			}
+			if (covers) {
+				return Arrays.copyOf(rules, i + 1);
+			}
+		}
+		return rules;
+	}
+
+	/**
+	 * Pick the dimension with the most distinct rule boundaries inside the box.
+	 * @param rules - rules in the box
+	 * @param low - low corner of the box
+	 * @param high - high corner of the box
+	 * @return dimension to cut, or -1 if no dimension can be cut
+	 */
+	private static int chooseDimension(CompiledRule[] rules, long[] low, long[] high) {
+		int best = -1;
+		int bestCount = 1;
+		for (int d = 0; d < CompiledRule.DIMENSIONS; d++) {
+			if (high[d] == low[d]) {
+				continue;
+			}
+			long[] bounds = new long[16];
+			int n = 0;
+			for (CompiledRule r : rules) {
+				long[] ranges = r.getRanges(d);
+				for (int i = 0; i < ranges.length; i += 2) {
+					if (ranges[i] <= high[d] && ranges[i + 1] >= low[d]) {
+						if (n + 2 > bounds.length) {
+							bounds = Arrays.copyOf(bounds, bounds.length * 2);
+						}
+						bounds[n++] = Math.max(ranges[i], low[d]);
+						bounds[n++] = Math.min(ranges[i + 1], high[d]) + 1;
+					}
+				}
+			}
+			Arrays.sort(bounds, 0, n);
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				if (i == 0 || bounds[i] != bounds[i - 1]) {
+					count++;
+				}
+			}
+			if (count > bestCount) {
+				best = d;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Pick the number of cuts: keep doubling while the total number of
+	 * rule copies in the children stays within the space factor.
+	 * @param rules - rules in the box
+	 * @param dimension - dimension to cut
+	 * @param low - low end of the box in the dimension
+	 * @param width - width of the box in the dimension, a power of two
+	 * @return number of cuts, a power of two
+	 */
+	private static int chooseCuts(CompiledRule[] rules, int dimension, long low, long width) {
+		int cuts = 2;
+		while (cuts < MAX_CUTS && cuts * 2 <= width) {
+			int next = cuts * 2;
+			int shift = Long.numberOfTrailingZeros(width / next);
+			long copies = next;
+			for (CompiledRule r : rules) {
+				long[] ranges = r.getRanges(dimension);
+				for (int i = 0; i < ranges.length; i += 2) {
+					if (ranges[i + 1] < low || ranges[i] > low + width - 1) {
+						continue;
+					}
+					long first = Math.max(ranges[i] - low, 0) >>> shift;
+					long last = Math.min(ranges[i + 1] - low, width - 1) >>> shift;
+					copies += last - first + 1;
+				}
+			}
+			if (copies > (long)SPFAC * rules.length) {
+				break;
+			}
+			cuts = next;
+		}
+		return cuts;
+	}
+
+	/**
+	 * Select the rules that overlap a slice of a dimension.
+	 * @param rules - rules in priority order
+	 * @param dimension - dimension of the slice
+	 * @param low - inclusive low end of the slice
+	 * @param high - inclusive high end of the slice
+	 * @return overlapping rules in priority order
+	 */
+	private static CompiledRule[] overlapping(CompiledRule[] rules, int dimension, long low, long high) {
+		CompiledRule[] result = new CompiledRule[rules.length];
+		int n = 0;
+		for (CompiledRule r : rules) {
+			if (r.overlaps(dimension, low, high)) {
+				result[n++] = r;
+			}
+		}
+		return n == rules.length ? rules : Arrays.copyOf(result, n);
+	}
+
+	/**
+	 * Walk the tree to a leaf and check its rules.
+	 * @param packet - header fields of an IPv4 packet
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	protected int lookup(IPacket packet) {
+		Node node = root;
+		while (node.children != null) {
+			long value = CompiledRule.field(packet, node.dimension);
+			node = node.children[(int)(value >>> node.shift) & node.mask];
+		}
+		for (CompiledRule r : node.rules) {
+			if (r.matches(packet)) {
+				return r.getPriority();
+			}
+		}
+		return NO_MATCH;
+	}
+
+	/**
+	 * Get the number of nodes built, for sizing the tree.
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+}
@@ -0,0 +1,333 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Classifier that generates a JVM class for its rules. Every rule's
+ * masks, port bounds and priority are constants in straight line code,
+ * so the JIT can inline and fold the whole policy behind one
+ * monomorphic call instead of walking the IRule chain. Very long rule
+ * lists are split across several generated classes, and a rule with
+ * too many ranges to fit in a compiled method is matched by its ranges.
+ * @author ghelmer
+ */
+public class GeneratedClassifier extends CompiledClassifier {
+	/**
+	 * Largest estimated bytecode size of a generated method. HotSpot does
+	 * not compile methods larger than 8000 bytes, so rules are packed
+	 * into methods that each stay below that.
+	 */
+	private static final int METHOD_BYTES = 7500;
+	/**
+	 * Largest estimated bytecode size of a generated class. Each
+	 * constant costs at least two bytes of code, so this also keeps the
+	 * constant pool well inside its limit. Lists longer than this get a
+	 * chain of matcher classes.
+	 */
+	private static final int CLASS_BYTES = 60000;
+
+	private static final String MATCHER_INTERFACE = RuleMatcher.class.getName().replace('.', '/');
+	private static final String MATCH_DESCRIPTOR = "(IIIII)I";
+	private static final AtomicInteger classCount = new AtomicInteger();
+
+	/** Order to check the dimensions of a rule in, most selective first. */
+	private static final int[] DIMENSION_ORDER = {
+			CompiledRule.DIM_PROTOCOL, CompiledRule.DIM_DST_PORT, CompiledRule.DIM_DST_ADDR,
+			CompiledRule.DIM_SRC_ADDR, CompiledRule.DIM_SRC_PORT
+	};
+
+	/** Local variable slots of the arguments of the static chunk methods. */
+	private static final int[] DIMENSION_SLOTS = new int[CompiledRule.DIMENSIONS];
+	static {
+		DIMENSION_SLOTS[CompiledRule.DIM_PROTOCOL] = 0;
+		DIMENSION_SLOTS[CompiledRule.DIM_SRC_ADDR] = 1;
+		DIMENSION_SLOTS[CompiledRule.DIM_DST_ADDR] = 2;
+		DIMENSION_SLOTS[CompiledRule.DIM_SRC_PORT] = 3;
+		DIMENSION_SLOTS[CompiledRule.DIM_DST_PORT] = 4;
+	}
+
+	/**
+	 * Class loader for the generated classes of one classifier, so the
+	 * classes can be unloaded together with their classifier.
+	 */
+	private static final class GeneratedClassLoader extends ClassLoader {
+		private GeneratedClassLoader() {
+			super(RuleMatcher.class.getClassLoader());
+		}
+
+		private Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	/**
+	 * Matcher for one rule whose checks are too large to generate.
+	 */
+	private static final class RangeMatcher implements RuleMatcher {
+		private final CompiledRule rule;
+
+		private RangeMatcher(CompiledRule rule) {
+			this.rule = rule;
+		}
+
+		@Override
+		public int match(int protocol, int srcAddr, int dstAddr, int srcPort, int dstPort) {
+			if (rule.matchesField(CompiledRule.DIM_PROTOCOL, protocol)
+					&& rule.matchesField(CompiledRule.DIM_DST_PORT, dstPort)
+					&& rule.matchesField(CompiledRule.DIM_DST_ADDR, dstAddr & 0xFFFFFFFFL)
+					&& rule.matchesField(CompiledRule.DIM_SRC_ADDR, srcAddr & 0xFFFFFFFFL)
+					&& rule.matchesField(CompiledRule.DIM_SRC_PORT, srcPort)) {
+				return rule.getPriority();
+			}
+			return NO_MATCH;
+		}
+	}
+
+	private final RuleMatcher matcher;
+	private final RuleMatcher[] matchers;
+
+	/**
+	 * Generate and load the matcher classes for a list of rules.
+	 * @param rules - rules in priority order
+	 */
+	public GeneratedClassifier(List<IRule> rules) {
+		super(rules);
+		CompiledRule[] compiled = getCompiledRules();
+		GeneratedClassLoader loader = new GeneratedClassLoader();
+		List<RuleMatcher> list = new ArrayList<>();
+		List<List<CompiledRule>> chunks = new ArrayList<>();
+		List<CompiledRule> chunk = new ArrayList<>();
+		int chunkBytes = 0;
+		int classBytes = 0;
+		for (CompiledRule r : compiled) {
+			int size = codeSize(r);
+			if (size > METHOD_BYTES) {
+				// Keep priority order: end the generated run before this rule.
+				if (!chunk.isEmpty()) {
+					chunks.add(chunk);
+					chunk = new ArrayList<>();
+				}
+				if (!chunks.isEmpty()) {
+					list.add(load(loader, chunks));
+					chunks = new ArrayList<>();
+				}
+				list.add(new RangeMatcher(r));
+				chunkBytes = 0;
+				classBytes = 0;
+				continue;
+			}
+			if (chunkBytes + size > METHOD_BYTES) {
+				chunks.add(chunk);
+				chunk = new ArrayList<>();
+				chunkBytes = 0;
+			}
+			if (classBytes + size > CLASS_BYTES) {
+				if (!chunk.isEmpty()) {
+					chunks.add(chunk);
+					chunk = new ArrayList<>();
+					chunkBytes = 0;
+				}
+				list.add(load(loader, chunks));
+				chunks = new ArrayList<>();
+				classBytes = 0;
+			}
+			chunk.add(r);
+			chunkBytes += size;
+			classBytes += size;
+		}
+		if (!chunk.isEmpty()) {
+			chunks.add(chunk);
+		}
+		if (!chunks.isEmpty() || list.isEmpty()) {
+			list.add(load(loader, chunks));
+		}
+		matchers = list.toArray(new RuleMatcher[list.size()]);
+		matcher = matchers[0];
+	}
+
+	/**
+	 * Generate and load one matcher class.
+	 * @param loader - class loader of this classifier
+	 * @param chunks - compiled rules of each generated method, in priority order
+	 * @return matcher
+	 */
+	private static RuleMatcher load(GeneratedClassLoader loader, List<List<CompiledRule>> chunks) {
+		String name = String.format("%s$Matcher%d", GeneratedClassifier.class.getName(), classCount.incrementAndGet());
+		byte[] b = generate(name.replace('.', '/'), chunks);
+		try {
+			return (RuleMatcher)loader.define(name, b).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(String.format("Cannot load generated matcher %s", name), e);
+		}
+	}
+
+	/**
+	 * Generate the bytecode of the matcher class.
+	 * @param name - internal name of the class
+	 * @param chunks - compiled rules of each method, in priority order
+	 * @return class file
+	 */
+	private static byte[] generate(String name, List<List<CompiledRule>> chunks) {
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+		cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, name, null,
+				"java/lang/Object", new String[] { MATCHER_INTERFACE });
+
+		MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(Opcodes.ALOAD, 0);
+		mv.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		mv.visitInsn(Opcodes.RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		// match() calls each chunk in turn until one finds a rule.
+		mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "match", MATCH_DESCRIPTOR, null, null);
+		mv.visitCode();
+		for (int c = 0; c < chunks.size(); c++) {
+			for (int slot = 1; slot <= 5; slot++) {
+				mv.visitVarInsn(Opcodes.ILOAD, slot);
+			}
+			mv.visitMethodInsn(Opcodes.INVOKESTATIC, name, "chunk" + c, MATCH_DESCRIPTOR, false);
+			mv.visitInsn(Opcodes.DUP);
+			Label next = new Label();
+			mv.visitJumpInsn(Opcodes.IFLT, next);
+			mv.visitInsn(Opcodes.IRETURN);
+			mv.visitLabel(next);
+			mv.visitInsn(Opcodes.POP);
+		}
+		mv.visitInsn(Opcodes.ICONST_M1);
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		for (int c = 0; c < chunks.size(); c++) {
+			mv = cw.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC, "chunk" + c, MATCH_DESCRIPTOR, null, null);
+			mv.visitCode();
+			for (CompiledRule r : chunks.get(c)) {
+				generateRule(mv, r);
+			}
+			mv.visitInsn(Opcodes.ICONST_M1);
+			mv.visitInsn(Opcodes.IRETURN);
+			mv.visitMaxs(0, 0);
+			mv.visitEnd();
+		}
+
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/**
+	 * Estimate the bytecode size of the checks generateRule emits for a
+	 * rule, counting every constant and local load in its longest form.
+	 * @param rule - compiled rule
+	 * @return upper bound in bytes, including the end of the method
+	 */
+	private static int codeSize(CompiledRule rule) {
+		int size = 6;
+		for (int d : DIMENSION_ORDER) {
+			long[] ranges = rule.getRanges(d);
+			if (ranges.length == 2 && ranges[0] == 0 && ranges[1] == CompiledRule.DIM_MAX[d]) {
+				continue;
+			}
+			if (ranges.length == 0) {
+				size += 3;
+				break;
+			}
+			if (d == CompiledRule.DIM_SRC_ADDR || d == CompiledRule.DIM_DST_ADDR) {
+				size += 11;
+				continue;
+			}
+			size += ranges.length / 2 * 19;
+		}
+		return size;
+	}
+
+	/**
+	 * Generate the checks for one rule: fall through to the next rule on
+	 * the first field that does not match, or return the rule's priority.
+	 * @param mv - method to generate into
+	 * @param rule - compiled rule
+	 */
+	private static void generateRule(MethodVisitor mv, CompiledRule rule) {
+		Label nextRule = new Label();
+		for (int d : DIMENSION_ORDER) {
+			long[] ranges = rule.getRanges(d);
+			int slot = DIMENSION_SLOTS[d];
+			if (ranges.length == 2 && ranges[0] == 0 && ranges[1] == CompiledRule.DIM_MAX[d]) {
+				continue;
+			}
+			if (ranges.length == 0) {
+				mv.visitJumpInsn(Opcodes.GOTO, nextRule);
+				break;
+			}
+			if (d == CompiledRule.DIM_SRC_ADDR || d == CompiledRule.DIM_DST_ADDR) {
+				// Address ranges are CIDR blocks: compare the network bits.
+				int network = (int)ranges[0];
+				int netmask = ~(int)(ranges[1] - ranges[0]);
+				mv.visitVarInsn(Opcodes.ILOAD, slot);
+				mv.visitLdcInsn(netmask);
+				mv.visitInsn(Opcodes.IAND);
+				mv.visitLdcInsn(network);
+				mv.visitJumpInsn(Opcodes.IF_ICMPNE, nextRule);
+				continue;
+			}
+			Label fieldMatched = new Label();
+			for (int i = 0; i < ranges.length; i += 2) {
+				Label nextRange = new Label();
+				boolean last = i + 2 == ranges.length;
+				Label miss = last ? nextRule : nextRange;
+				mv.visitVarInsn(Opcodes.ILOAD, slot);
+				mv.visitLdcInsn((int)ranges[i]);
+				if (ranges[i] == ranges[i + 1]) {
+					mv.visitJumpInsn(Opcodes.IF_ICMPNE, miss);
+				} else {
+					mv.visitJumpInsn(Opcodes.IF_ICMPLT, miss);
+					mv.visitVarInsn(Opcodes.ILOAD, slot);
+					mv.visitLdcInsn((int)ranges[i + 1]);
+					mv.visitJumpInsn(Opcodes.IF_ICMPGT, miss);
+				}
+				if (!last) {
+					mv.visitJumpInsn(Opcodes.GOTO, fieldMatched);
+					mv.visitLabel(nextRange);
+				}
+			}
+			mv.visitLabel(fieldMatched);
+		}
+		mv.visitLdcInsn(rule.getPriority());
+		mv.visitInsn(Opcodes.IRETURN);
+		mv.visitLabel(nextRule);
+	}
+
+	/**
+	 * Call the generated matcher.
+	 * @param packet - header fields of an IPv4 packet
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	protected int lookup(IPacket packet) {
+		if (matchers.length == 1) {
+			return matcher.match(packet.getProtocol(), packet.getSrcAddr(), packet.getDstAddr(),
+					packet.getSrcPort(), packet.getDstPort());
+		}
+		int protocol = packet.getProtocol();
+		int srcAddr = packet.getSrcAddr();
+		int dstAddr = packet.getDstAddr();
+		int srcPort = packet.getSrcPort();
+		int dstPort = packet.getDstPort();
+		for (RuleMatcher m : matchers) {
+			int priority = m.match(protocol, srcAddr, dstAddr, srcPort, dstPort);
+			if (priority >= 0) {
+				return priority;
+			}
+		}
+		return NO_MATCH;
+	}
+}
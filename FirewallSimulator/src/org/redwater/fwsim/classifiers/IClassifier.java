@@ -0,0 +1,26 @@
+package org.redwater.fwsim.classifiers;
+
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * A packet classifier finds the first rule in a list of rules that
+ * matches a packet.
+ * @author ghelmer
+ */
+public interface IClassifier {
+	/**
+	 * Find the first rule that matches the packet.
+	 * @param packet - Packet to classify.
+	 * @return first matching IRule, or null if none
+	 */
+	public IRule classify(Packet packet);
+
+	/**
+	 * Find the first rule that matches the packet header view.
+	 * @param packet - packet header view to classify.
+	 * @return first matching IRule, or null if none
+	 */
+	public IRule classify(IPacket packet);
+}
@@ -0,0 +1,31 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.List;
+
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * A classifier that can follow a change of one rule without being
+ * rebuilt. Deriving a classifier for the changed rules leaves this one
+ * classifying the rules it was built for.
+ * @author ghelmer
+ */
+public interface IIncrementalClassifier extends IClassifier {
+	/**
+	 * Get a classifier for this classifier's rules with one rule added
+	 * at the end.
+	 * @param rules - the new rules, ending with rule
+	 * @param rule - rule that was added
+	 * @return classifier for the new rules
+	 */
+	public IIncrementalClassifier withRuleAdded(List<IRule> rules, IRule rule);
+
+	/**
+	 * Get a classifier for this classifier's rules with the first
+	 * occurrence of one rule removed.
+	 * @param rules - the new rules
+	 * @param rule - rule that was removed
+	 * @return classifier for the new rules
+	 */
+	public IIncrementalClassifier withRuleRemoved(List<IRule> rules, IRule rule);
+}
@@ -0,0 +1,120 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Index of the ranges every rule matches in one dimension, such as the
+ * source or destination port. The dimension is split into elementary
+ * intervals at every range boundary, and each interval holds the set of
+ * rules that match it, so a binary search over the interval starts finds
+ * every rule that matches a value.
+ * @author ghelmer
+ */
+public class IntervalIndex {
+	private final int[] starts;
+	private final BitSet[] rules;
+
+	/**
+	 * Build the index for one dimension of a list of rules.
+	 * @param compiledRules - rules; a rule's number is its index in the array
+	 * @param dimension - dimension to index, with a maximum value below 2^31
+	 */
+	public IntervalIndex(CompiledRule[] compiledRules, int dimension) {
+		long max = CompiledRule.DIM_MAX[dimension];
+		if (max > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("Dimension %d is too wide for an IntervalIndex", dimension));
+		}
+
+		// Find the elementary intervals.
+		int[] bounds = new int[16];
+		int n = 0;
+		bounds[n++] = 0;
+		for (CompiledRule r : compiledRules) {
+			long[] ranges = r.getRanges(dimension);
+			for (int i = 0; i < ranges.length; i += 2) {
+				if (n + 2 > bounds.length) {
+					bounds = Arrays.copyOf(bounds, bounds.length * 2);
+				}
+				bounds[n++] = (int)ranges[i];
+				if (ranges[i + 1] < max) {
+					bounds[n++] = (int)ranges[i + 1] + 1;
+				}
+			}
+		}
+		Arrays.sort(bounds, 0, n);
+		int distinct = 0;
+		for (int i = 0; i < n; i++) {
+			if (distinct == 0 || bounds[i] != bounds[distinct - 1]) {
+				bounds[distinct++] = bounds[i];
+			}
+		}
+		int[] intervalStarts = Arrays.copyOf(bounds, distinct);
+
+		// Mark every interval each rule covers.
+		BitSet[] intervalRules = new BitSet[distinct];
+		for (int i = 0; i < distinct; i++) {
+			intervalRules[i] = new BitSet(compiledRules.length);
+		}
+		for (int r = 0; r < compiledRules.length; r++) {
+			long[] ranges = compiledRules[r].getRanges(dimension);
+			for (int i = 0; i < ranges.length; i += 2) {
+				int first = Arrays.binarySearch(intervalStarts, (int)ranges[i]);
+				for (int k = first; k < distinct && intervalStarts[k] <= ranges[i + 1]; k++) {
+					intervalRules[k].set(r);
+				}
+			}
+		}
+
+		// Merge neighboring intervals with the same rules.
+		int merged = 0;
+		for (int i = 0; i < distinct; i++) {
+			if (merged == 0 || !intervalRules[i].equals(intervalRules[merged - 1])) {
+				intervalStarts[merged] = intervalStarts[i];
+				intervalRules[merged] = intervalRules[i];
+				merged++;
+			}
+		}
+		starts = Arrays.copyOf(intervalStarts, merged);
+		rules = Arrays.copyOf(intervalRules, merged);
+	}
+
+	/**
+	 * Find the rules that match a value.
+	 * @param value - field value
+	 * @return set of rule numbers; shared, so do not modify
+	 */
+	public BitSet lookup(int value) {
+		return rules[lookupIndex(value)];
+	}
+
+	/**
+	 * Find the interval that holds a value.
+	 * @param value - field value
+	 * @return interval number for getMatchingSet
+	 */
+	public int lookupIndex(int value) {
+		int i = Arrays.binarySearch(starts, value);
+		if (i < 0) {
+			i = -i - 2;
+		}
+		return i;
+	}
+
+	/**
+	 * Get the rules that match every value in an interval.
+	 * @param index - interval number from lookupIndex
+	 * @return set of rule numbers; shared, so do not modify
+	 */
+	public BitSet getMatchingSet(int index) {
+		return rules[index];
+	}
+
+	/**
+	 * Get the number of intervals in the index, for sizing.
+	 * @return number of intervals
+	 */
+	public int getIntervalCount() {
+		return starts.length;
+	}
+}
@@ -0,0 +1,75 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.BitSet;
+
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IPRule;
+
+/**
+ * Index of the compiled rules that can match IPv6 packets, shared by
+ * every CompiledClassifier. The addresses are looked up once each in
+ * 128-bit prefix tries and the ports once each in interval indexes, and
+ * only the rules every lookup returned are checked, in priority order.
+ * @author ghelmer
+ */
+final class IpV6Index {
+	private final CompiledRule[] rules;
+	private final PrefixTrie6 srcTrie;
+	private final PrefixTrie6 dstTrie;
+	private final IntervalIndex srcPortIndex;
+	private final IntervalIndex dstPortIndex;
+
+	/**
+	 * Build the index.
+	 * @param rules - compiled rules that match IPv6, in priority order
+	 */
+	IpV6Index(CompiledRule[] rules) {
+		this.rules = rules;
+		srcTrie = new PrefixTrie6();
+		dstTrie = new PrefixTrie6();
+		for (int i = 0; i < rules.length; i++) {
+			IPRule r = (IPRule)rules[i].getRule();
+			srcTrie.add(r.getSrcNetworkHigh(), r.getSrcNetworkLow(), r.getSrcPrefixLength(), i);
+			dstTrie.add(r.getDstNetworkHigh(), r.getDstNetworkLow(), r.getDstPrefixLength(), i);
+		}
+		srcTrie.build();
+		dstTrie.build();
+		srcPortIndex = new IntervalIndex(rules, CompiledRule.DIM_SRC_PORT);
+		dstPortIndex = new IntervalIndex(rules, CompiledRule.DIM_DST_PORT);
+	}
+
+	/**
+	 * Find the first rule that matches an IPv6 packet.
+	 * @param packet - header fields of an IPv6 packet
+	 * @return priority of the first matching rule, or -1
+	 */
+	int lookup(IPacket packet) {
+		BitSet src = srcTrie.lookup(packet.getSrcAddrHigh(), packet.getSrcAddrLow());
+		BitSet dst = dstTrie.lookup(packet.getDstAddrHigh(), packet.getDstAddrLow());
+		BitSet srcPort = srcPortIndex.lookup(packet.getSrcPort());
+		BitSet dstPort = dstPortIndex.lookup(packet.getDstPort());
+		int i = src.nextSetBit(0);
+		while (i >= 0) {
+			// Leapfrog: advance to the next rule number present in every set.
+			int j = dst.nextSetBit(i);
+			if (j == i) {
+				j = srcPort.nextSetBit(i);
+			}
+			if (j == i) {
+				j = dstPort.nextSetBit(i);
+			}
+			if (j < 0) {
+				break;
+			}
+			if (j != i) {
+				i = src.nextSetBit(j);
+				continue;
+			}
+			if (rules[i].matches(packet)) {
+				return rules[i].getPriority();
+			}
+			i = src.nextSetBit(i + 1);
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,53 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Classifier that checks every rule in order. This is the reference
+ * behavior every other classifier must reproduce.
+ * @author ghelmer
+ */
+public class LinearClassifier implements IClassifier {
+	private final List<IRule> rules;
+
+	/**
+	 * Construct a LinearClassifier over a copy of the rules.
+	 * @param rules - rules in priority order
+	 */
+	public LinearClassifier(List<IRule> rules) {
+		this.rules = new ArrayList<>(rules);
+	}
+
+	/**
+	 * Find the first rule that matches the packet.
+	 * @param packet - Packet to classify.
+	 * @return first matching IRule, or null if none
+	 */
+	public IRule classify(Packet packet) {
+		for (IRule r : rules) {
+			if (r.matchesRule(packet)) {
+				return r;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the first rule that matches the packet header view.
+	 * @param packet - packet header view to classify.
+	 * @return first matching IRule, or null if none
+	 */
+	public IRule classify(IPacket packet) {
+		for (IRule r : rules) {
+			if (r.matchesRule(packet)) {
+				return r;
+			}
+		}
+		return null;
+	}
+}
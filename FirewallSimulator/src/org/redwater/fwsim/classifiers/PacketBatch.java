@@ -0,0 +1,228 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.Arrays;
+
+import org.redwater.fwsim.layers.IPacket;
+
+/**
+ * Header fields of a batch of packets, stored as one array per field
+ * so that a classifier can compare many packets against a rule at once.
+ * The arrays are padded to a multiple of MAX_LANES, and every unused
+ * slot, like every packet that is not IPv4, has protocol -1. IPv6
+ * packets keep their addresses and protocol in arrays of their own.
+ * @author ghelmer
+ */
+public final class PacketBatch {
+	/** Largest number of int lanes in a vector register (512 bits). */
+	public static final int MAX_LANES = 16;
+
+	final int[] srcAddr;
+	final int[] dstAddr;
+	final int[] srcPort;
+	final int[] dstPort;
+	/** IP protocol number, or -1 for a packet that is not IPv4. */
+	final int[] protocol;
+	/** IPv6 addresses, four longs per packet: source high and low, then destination. */
+	private final long[] addresses6;
+	/** IPv6 upper layer protocol number, or -1 for a packet that is not IPv6. */
+	private final int[] protocol6;
+	private final int[] lengths;
+	private final int capacity;
+	private int size;
+	private int ipV6Count;
+
+	/**
+	 * Construct an empty PacketBatch.
+	 * @param capacity - largest number of packets in the batch
+	 */
+	public PacketBatch(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException(String.format("Invalid batch capacity %d", capacity));
+		}
+		this.capacity = capacity;
+		int padded = (capacity + MAX_LANES - 1) / MAX_LANES * MAX_LANES;
+		srcAddr = new int[padded];
+		dstAddr = new int[padded];
+		srcPort = new int[padded];
+		dstPort = new int[padded];
+		protocol = new int[padded];
+		addresses6 = new long[4 * capacity];
+		protocol6 = new int[capacity];
+		lengths = new int[padded];
+		Arrays.fill(protocol, -1);
+		Arrays.fill(protocol6, -1);
+		size = 0;
+		ipV6Count = 0;
+	}
+
+	/**
+	 * Copy the header fields of a packet into the batch.
+	 * @param packet - packet header view
+	 * @param length - length of the packet for the byte counters, or 0
+	 * @return false if the batch is full
+	 */
+	public boolean add(IPacket packet, int length) {
+		if (size == capacity) {
+			return false;
+		}
+		if (packet.isIpV4()) {
+			srcAddr[size] = packet.getSrcAddr();
+			dstAddr[size] = packet.getDstAddr();
+			srcPort[size] = packet.getSrcPort();
+			dstPort[size] = packet.getDstPort();
+			protocol[size] = packet.getProtocol();
+		} else if (packet.isIpV6()) {
+			srcAddr[size] = 0;
+			dstAddr[size] = 0;
+			srcPort[size] = packet.getSrcPort();
+			dstPort[size] = packet.getDstPort();
+			protocol[size] = -1;
+			addresses6[4 * size] = packet.getSrcAddrHigh();
+			addresses6[4 * size + 1] = packet.getSrcAddrLow();
+			addresses6[4 * size + 2] = packet.getDstAddrHigh();
+			addresses6[4 * size + 3] = packet.getDstAddrLow();
+			protocol6[size] = packet.getProtocol();
+			ipV6Count++;
+		} else {
+			srcAddr[size] = 0;
+			dstAddr[size] = 0;
+			srcPort[size] = 0;
+			dstPort[size] = 0;
+			protocol[size] = -1;
+		}
+		lengths[size] = length;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Remove every packet from the batch.
+	 */
+	public void clear() {
+		Arrays.fill(protocol, 0, size, -1);
+		Arrays.fill(protocol6, 0, size, -1);
+		size = 0;
+		ipV6Count = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return capacity;
+	}
+
+	public boolean isIpV4(int i) {
+		return protocol[i] >= 0;
+	}
+
+	public boolean isIpV6(int i) {
+		return protocol6[i] >= 0;
+	}
+
+	/**
+	 * Determine if any packet of the batch is IPv6.
+	 * @return true if isIpV6 is true for some packet
+	 */
+	public boolean hasIpV6() {
+		return ipV6Count > 0;
+	}
+
+	public int getLength(int i) {
+		return lengths[i];
+	}
+
+	/**
+	 * Get the header fields of one packet of the batch.
+	 * @param i - index of the packet
+	 * @return header fields
+	 */
+	public PacketKey getKey(int i) {
+		if (isIpV4(i)) {
+			return new PacketKey(true, protocol[i], srcAddr[i], dstAddr[i], srcPort[i], dstPort[i]);
+		}
+		if (isIpV6(i)) {
+			return new PacketKey(protocol6[i], addresses6[4 * i], addresses6[4 * i + 1],
+					addresses6[4 * i + 2], addresses6[4 * i + 3], srcPort[i], dstPort[i]);
+		}
+		return new PacketKey(false, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Create a reusable view of the packets of this batch, which reads
+	 * the header fields of the selected packet without copying them.
+	 * @return view; select a packet before reading it
+	 */
+	public View view() {
+		return new View();
+	}
+
+	/**
+	 * Header fields of one packet of the batch, the same as getKey gives.
+	 */
+	public final class View implements IPacket {
+		private int selected;
+
+		private View() {
+			selected = 0;
+		}
+
+		/**
+		 * Select the packet to read.
+		 * @param i - index of the packet
+		 * @return this view
+		 */
+		public View select(int i) {
+			selected = i;
+			return this;
+		}
+
+		public boolean isIpV4() {
+			return PacketBatch.this.isIpV4(selected);
+		}
+
+		public boolean isIpV6() {
+			return PacketBatch.this.isIpV6(selected);
+		}
+
+		public int getProtocol() {
+			if (isIpV4()) {
+				return protocol[selected];
+			}
+			return isIpV6() ? protocol6[selected] : 0;
+		}
+
+		public int getSrcAddr() {
+			return srcAddr[selected];
+		}
+
+		public int getDstAddr() {
+			return dstAddr[selected];
+		}
+
+		public long getSrcAddrHigh() {
+			return isIpV6() ? addresses6[4 * selected] : 0;
+		}
+
+		public long getSrcAddrLow() {
+			return isIpV6() ? addresses6[4 * selected + 1] : 0;
+		}
+
+		public long getDstAddrHigh() {
+			return isIpV6() ? addresses6[4 * selected + 2] : 0;
+		}
+
+		public long getDstAddrLow() {
+			return isIpV6() ? addresses6[4 * selected + 3] : 0;
+		}
+
+		public int getSrcPort() {
+			return srcPort[selected];
+		}
+
+		public int getDstPort() {
+			return dstPort[selected];
+		}
+	}
+}
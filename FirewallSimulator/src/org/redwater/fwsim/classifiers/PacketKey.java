@@ -0,0 +1,210 @@
+package org.redwater.fwsim.classifiers;
+
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.IpV6ExtFragmentPacket;
+import org.pcap4j.packet.IpV6ExtOptionsPacket;
+import org.pcap4j.packet.IpV6ExtRoutingPacket;
+import org.pcap4j.packet.IpV6ExtUnknownPacket;
+import org.pcap4j.packet.IpV6Packet;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.TcpPacket;
+import org.pcap4j.packet.UdpPacket;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IPRule;
+
+/**
+ * Header fields of a packet that the rules can match on, decoded once
+ * so that a classifier does not have to walk the pcap4j packet for
+ * every rule.
+ * @author ghelmer
+ */
+public final class PacketKey implements IPacket {
+	private final boolean ipV4;
+	private final boolean ipV6;
+	private final int protocol;
+	private final int srcAddr;
+	private final int dstAddr;
+	private final long srcAddrHigh;
+	private final long srcAddrLow;
+	private final long dstAddrHigh;
+	private final long dstAddrLow;
+	private final int srcPort;
+	private final int dstPort;
+
+	/**
+	 * Construct a PacketKey from already decoded header fields.
+	 * @param ipV4 - true if the packet contains an IPv4 header
+	 * @param protocol - IP protocol number (6 for TCP, 17 for UDP)
+	 * @param srcAddr - IPv4 source address
+	 * @param dstAddr - IPv4 destination address
+	 * @param srcPort - TCP/UDP source port, or 0 for other protocols
+	 * @param dstPort - TCP/UDP destination port, or 0 for other protocols
+	 */
+	public PacketKey(boolean ipV4, int protocol, int srcAddr, int dstAddr, int srcPort, int dstPort) {
+		this.ipV4 = ipV4;
+		ipV6 = false;
+		this.protocol = protocol;
+		this.srcAddr = srcAddr;
+		this.dstAddr = dstAddr;
+		srcAddrHigh = 0;
+		srcAddrLow = 0;
+		dstAddrHigh = 0;
+		dstAddrLow = 0;
+		this.srcPort = srcPort;
+		this.dstPort = dstPort;
+	}
+
+	/**
+	 * Construct a PacketKey for an IPv6 packet from already decoded header fields.
+	 * @param protocol - upper layer protocol number (6 for TCP, 17 for UDP)
+	 * @param srcAddrHigh - high 64 bits of the source address
+	 * @param srcAddrLow - low 64 bits of the source address
+	 * @param dstAddrHigh - high 64 bits of the destination address
+	 * @param dstAddrLow - low 64 bits of the destination address
+	 * @param srcPort - TCP/UDP source port, or 0 for other protocols
+	 * @param dstPort - TCP/UDP destination port, or 0 for other protocols
+	 */
+	public PacketKey(int protocol, long srcAddrHigh, long srcAddrLow, long dstAddrHigh, long dstAddrLow,
+			int srcPort, int dstPort) {
+		ipV4 = false;
+		ipV6 = true;
+		this.protocol = protocol;
+		srcAddr = 0;
+		dstAddr = 0;
+		this.srcAddrHigh = srcAddrHigh;
+		this.srcAddrLow = srcAddrLow;
+		this.dstAddrHigh = dstAddrHigh;
+		this.dstAddrLow = dstAddrLow;
+		this.srcPort = srcPort;
+		this.dstPort = dstPort;
+	}
+
+	/**
+	 * Decode the header fields of a pcap4j packet.
+	 * @param packet - packet to decode
+	 * @return decoded header fields
+	 */
+	public static PacketKey of(Packet packet) {
+		IpV4Packet ipPacket = packet.get(IpV4Packet.class);
+		if (ipPacket == null) {
+			IpV6Packet ipV6Packet = packet.get(IpV6Packet.class);
+			return ipV6Packet == null ? new PacketKey(false, 0, 0, 0, 0, 0) : of(packet, ipV6Packet);
+		}
+		IpV4Packet.IpV4Header ipHeader = ipPacket.getHeader();
+		int srcAddr = IPRule.addressToInt(ipHeader.getSrcAddr());
+		int dstAddr = IPRule.addressToInt(ipHeader.getDstAddr());
+		TcpPacket tcpPacket = packet.get(TcpPacket.class);
+		if (tcpPacket != null) {
+			return new PacketKey(true, PROTOCOL_TCP, srcAddr, dstAddr,
+					tcpPacket.getHeader().getSrcPort().valueAsInt(),
+					tcpPacket.getHeader().getDstPort().valueAsInt());
+		}
+		UdpPacket udpPacket = packet.get(UdpPacket.class);
+		if (udpPacket != null) {
+			return new PacketKey(true, PROTOCOL_UDP, srcAddr, dstAddr,
+					udpPacket.getHeader().getSrcPort().valueAsInt(),
+					udpPacket.getHeader().getDstPort().valueAsInt());
+		}
+		int protocol = ipHeader.getProtocol().value() & 0xFF;
+		if (protocol == PROTOCOL_TCP || protocol == PROTOCOL_UDP) {
+			protocol = PROTOCOL_UNDECODED;
+		}
+		return new PacketKey(true, protocol, srcAddr, dstAddr, 0, 0);
+	}
+
+	/**
+	 * Decode the header fields of a pcap4j packet holding IPv6, following
+	 * the extension headers to the upper layer protocol.
+	 * @param packet - packet to decode
+	 * @param ipPacket - IPv6 layer of the packet
+	 * @return decoded header fields
+	 */
+	private static PacketKey of(Packet packet, IpV6Packet ipPacket) {
+		IpV6Packet.IpV6Header ipHeader = ipPacket.getHeader();
+		byte[] src = ipHeader.getSrcAddr().getAddress();
+		byte[] dst = ipHeader.getDstAddr().getAddress();
+		long srcHigh = IPRule.addressToLong(src, 0);
+		long srcLow = IPRule.addressToLong(src, 8);
+		long dstHigh = IPRule.addressToLong(dst, 0);
+		long dstLow = IPRule.addressToLong(dst, 8);
+		int protocol = ipHeader.getNextHeader().value() & 0xFF;
+		boolean laterFragment = false;
+		for (Packet p = ipPacket.getPayload(); p != null; p = p.getPayload()) {
+			if (p instanceof IpV6ExtOptionsPacket) {
+				protocol = ((IpV6ExtOptionsPacket)p).getHeader().getNextHeader().value() & 0xFF;
+			} else if (p instanceof IpV6ExtRoutingPacket) {
+				protocol = ((IpV6ExtRoutingPacket)p).getHeader().getNextHeader().value() & 0xFF;
+			} else if (p instanceof IpV6ExtUnknownPacket) {
+				protocol = ((IpV6ExtUnknownPacket)p).getHeader().getNextHeader().value() & 0xFF;
+			} else if (p instanceof IpV6ExtFragmentPacket) {
+				IpV6ExtFragmentPacket.IpV6ExtFragmentHeader fragment = ((IpV6ExtFragmentPacket)p).getHeader();
+				laterFragment |= fragment.getFragmentOffset() != 0;
+				protocol = fragment.getNextHeader().value() & 0xFF;
+			} else {
+				break;
+			}
+		}
+		if (!laterFragment) {
+			TcpPacket tcpPacket = packet.get(TcpPacket.class);
+			if (tcpPacket != null) {
+				return new PacketKey(PROTOCOL_TCP, srcHigh, srcLow, dstHigh, dstLow,
+						tcpPacket.getHeader().getSrcPort().valueAsInt(),
+						tcpPacket.getHeader().getDstPort().valueAsInt());
+			}
+			UdpPacket udpPacket = packet.get(UdpPacket.class);
+			if (udpPacket != null) {
+				return new PacketKey(PROTOCOL_UDP, srcHigh, srcLow, dstHigh, dstLow,
+						udpPacket.getHeader().getSrcPort().valueAsInt(),
+						udpPacket.getHeader().getDstPort().valueAsInt());
+			}
+		}
+		if (protocol == PROTOCOL_TCP || protocol == PROTOCOL_UDP) {
+			protocol = PROTOCOL_UNDECODED;
+		}
+		return new PacketKey(protocol, srcHigh, srcLow, dstHigh, dstLow, 0, 0);
+	}
+
+	public boolean isIpV4() {
+		return ipV4;
+	}
+
+	public boolean isIpV6() {
+		return ipV6;
+	}
+
+	public int getProtocol() {
+		return protocol;
+	}
+
+	public int getSrcAddr() {
+		return srcAddr;
+	}
+
+	public int getDstAddr() {
+		return dstAddr;
+	}
+
+	public long getSrcAddrHigh() {
+		return srcAddrHigh;
+	}
+
+	public long getSrcAddrLow() {
+		return srcAddrLow;
+	}
+
+	public long getDstAddrHigh() {
+		return dstAddrHigh;
+	}
+
+	public long getDstAddrLow() {
+		return dstAddrLow;
+	}
+
+	public int getSrcPort() {
+		return srcPort;
+	}
+
+	public int getDstPort() {
+		return dstPort;
+	}
+}
@@ -0,0 +1,240 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Path compressed binary trie of IPv4 prefixes. Each prefix carries the
+ * numbers of the rules that use it, and after build() every node knows
+ * the set of rules whose prefixes contain it, so one walk down the trie
+ * finds every rule whose prefix matches an address.
+ * @author ghelmer
+ */
+public class PrefixTrie {
+	/**
+	 * A node of the trie. Nodes are only created where a prefix ends or
+	 * where two prefixes branch apart.
+	 */
+	private static final class Node {
+		private final int prefix;
+		private final int length;
+		private final Node[] children;
+		private BitSet rules;
+		private BitSet matching;
+		private int matchingIndex;
+
+		private Node(int prefix, int length) {
+			this.prefix = prefix;
+			this.length = length;
+			children = new Node[2];
+		}
+
+		private void addRule(int rule) {
+			if (rules == null) {
+				rules = new BitSet();
+			}
+			rules.set(rule);
+		}
+	}
+
+	private final Node root;
+	private boolean built;
+	private boolean discarded;
+	private int nodeCount;
+	/** Distinct matching rule sets, by index; nodes without rules share their parent's set. */
+	private final List<BitSet> matchingSets;
+
+	/**
+	 * Construct an empty trie.
+	 */
+	public PrefixTrie() {
+		root = new Node(0, 0);
+		built = false;
+		discarded = false;
+		nodeCount = 1;
+		matchingSets = new ArrayList<>();
+	}
+
+	/**
+	 * Get the netmask for a prefix length.
+	 * @param length - prefix length, 0 to 32
+	 * @return netmask as an int
+	 */
+	private static int mask(int length) {
+		return length == 0 ? 0 : -1 << (32 - length);
+	}
+
+	/**
+	 * Get one bit of an address, counting from the most significant bit.
+	 * @param address - address
+	 * @param position - bit number, 0 to 31
+	 * @return 0 or 1
+	 */
+	private static int bitAt(int address, int position) {
+		return (address >>> (31 - position)) & 1;
+	}
+
+	/**
+	 * Add a rule's prefix to the trie. A prefix length of 0 matches every address.
+	 * @param prefix - network address; host bits are ignored
+	 * @param length - prefix length, 0 to 32
+	 * @param rule - rule number to report for addresses in the prefix
+	 */
+	public void add(int prefix, int length, int rule) {
+		if (length < 0 || length > 32) {
+			throw new IllegalArgumentException(String.format("Invalid prefix length %d", length));
+		}
+		prefix &= mask(length);
+		built = false;
+		Node node = root;
+		while (node.length != length) {
+			int bit = bitAt(prefix, node.length);
+			Node child = node.children[bit];
+			if (child == null) {
+				child = new Node(prefix, length);
+				nodeCount++;
+				node.children[bit] = child;
+				node = child;
+				break;
+			}
+			int common = Math.min(Math.min(length, child.length),
+					Integer.numberOfLeadingZeros(prefix ^ child.prefix));
+			if (common == child.length) {
+				node = child;
+				continue;
+			}
+			// The new prefix leaves the child's path part way down; split
+			// the path with a node at the point where they differ.
+			Node split = new Node(prefix & mask(common), common);
+			nodeCount++;
+			node.children[bit] = split;
+			split.children[bitAt(child.prefix, common)] = child;
+			node = split;
+		}
+		node.addRule(rule);
+	}
+
+	/**
+	 * Compute the matching rule sets. Must be called after the last add
+	 * and before lookup.
+	 */
+	public void build() {
+		matchingSets.clear();
+		matchingSets.add(new BitSet());
+		build(root, 0);
+		built = true;
+		discarded = false;
+	}
+
+	/**
+	 * Recursively compute the matching rule sets.
+	 * @param node - node to compute
+	 * @param inherited - index of the rules matching the parent node
+	 */
+	private void build(Node node, int inherited) {
+		if (node.rules == null) {
+			node.matchingIndex = inherited;
+		} else {
+			BitSet matching = (BitSet)matchingSets.get(inherited).clone();
+			matching.or(node.rules);
+			node.matchingIndex = matchingSets.size();
+			matchingSets.add(matching);
+		}
+		node.matching = matchingSets.get(node.matchingIndex);
+		for (Node child : node.children) {
+			if (child != null) {
+				build(child, node.matchingIndex);
+			}
+		}
+	}
+
+	/**
+	 * Find the rules whose prefixes contain an address.
+	 * @param address - IPv4 address as an int
+	 * @return set of rule numbers; shared, so do not modify
+	 */
+	public BitSet lookup(int address) {
+		if (discarded) {
+			throw new IllegalStateException("PrefixTrie rule sets were discarded");
+		}
+		return find(address).matching;
+	}
+
+	/**
+	 * Find the index of the set of rules whose prefixes contain an address.
+	 * @param address - IPv4 address as an int
+	 * @return index for getMatchingSet
+	 */
+	public int lookupIndex(int address) {
+		return find(address).matchingIndex;
+	}
+
+	/**
+	 * Find the longest prefix in the trie that contains an address.
+	 * @param address - IPv4 address as an int
+	 * @return node of the prefix
+	 */
+	private Node find(int address) {
+		if (!built) {
+			throw new IllegalStateException("PrefixTrie lookup before build");
+		}
+		Node node = root;
+		while (node.length < 32) {
+			Node child = node.children[bitAt(address, node.length)];
+			if (child == null || ((address ^ child.prefix) & mask(child.length)) != 0) {
+				break;
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	/**
+	 * Get one of the distinct matching rule sets.
+	 * @param index - index from lookupIndex
+	 * @return set of rule numbers; shared, so do not modify
+	 */
+	public BitSet getMatchingSet(int index) {
+		return matchingSets.get(index);
+	}
+
+	/**
+	 * Free the matching rule sets once a caller has copied them into its
+	 * own form. Afterwards only lookupIndex and getMatchingSetCount work,
+	 * until the next build.
+	 */
+	public void discardMatchingSets() {
+		discardMatchingSets(root);
+		for (int i = 0; i < matchingSets.size(); i++) {
+			matchingSets.set(i, null);
+		}
+		discarded = true;
+	}
+
+	private static void discardMatchingSets(Node node) {
+		node.matching = null;
+		for (Node child : node.children) {
+			if (child != null) {
+				discardMatchingSets(child);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of distinct matching rule sets; lookupIndex returns
+	 * a number below this.
+	 * @return number of sets
+	 */
+	public int getMatchingSetCount() {
+		return matchingSets.size();
+	}
+
+	/**
+	 * Get the number of nodes in the trie, for sizing.
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+}
@@ -0,0 +1,181 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.BitSet;
+
+import org.redwater.fwsim.rules.IPRule;
+
+/**
+ * Path compressed binary trie of IPv6 prefixes, the 128-bit form of
+ * PrefixTrie. Addresses are two longs, high bits first. Each prefix
+ * carries the numbers of the rules that use it, and after build() every
+ * node knows the set of rules whose prefixes contain it, so one walk
+ * down the trie finds every rule whose prefix matches an address.
+ * @author ghelmer
+ */
+public class PrefixTrie6 {
+	/**
+	 * A node of the trie. Nodes are only created where a prefix ends or
+	 * where two prefixes branch apart.
+	 */
+	private static final class Node {
+		private final long high;
+		private final long low;
+		private final long maskHigh;
+		private final long maskLow;
+		private final int length;
+		private final Node[] children;
+		private BitSet rules;
+		private BitSet matching;
+
+		private Node(long high, long low, int length) {
+			maskHigh = IPRule.maskHigh(length);
+			maskLow = IPRule.maskLow(length);
+			this.high = high & maskHigh;
+			this.low = low & maskLow;
+			this.length = length;
+			children = new Node[2];
+		}
+
+		private boolean contains(long high, long low) {
+			return ((high ^ this.high) & maskHigh) == 0 && ((low ^ this.low) & maskLow) == 0;
+		}
+
+		private void addRule(int rule) {
+			if (rules == null) {
+				rules = new BitSet();
+			}
+			rules.set(rule);
+		}
+	}
+
+	private final Node root;
+	private boolean built;
+	private int nodeCount;
+
+	/**
+	 * Construct an empty trie.
+	 */
+	public PrefixTrie6() {
+		root = new Node(0, 0, 0);
+		built = false;
+		nodeCount = 1;
+	}
+
+	/**
+	 * Get one bit of an address, counting from the most significant bit.
+	 * @param high - high 64 bits of the address
+	 * @param low - low 64 bits of the address
+	 * @param position - bit number, 0 to 127
+	 * @return 0 or 1
+	 */
+	private static int bitAt(long high, long low, int position) {
+		return (int)(position < 64 ? high >>> (63 - position) : low >>> (127 - position)) & 1;
+	}
+
+	/**
+	 * Count the leading bits two addresses have in common.
+	 * @return number of equal leading bits, 0 to 128
+	 */
+	private static int commonLength(long high1, long low1, long high2, long low2) {
+		long x = high1 ^ high2;
+		return x != 0 ? Long.numberOfLeadingZeros(x) : 64 + Long.numberOfLeadingZeros(low1 ^ low2);
+	}
+
+	/**
+	 * Add a rule's prefix to the trie. A prefix length of 0 matches every address.
+	 * @param high - high 64 bits of the network address; host bits are ignored
+	 * @param low - low 64 bits of the network address; host bits are ignored
+	 * @param length - prefix length, 0 to 128
+	 * @param rule - rule number to report for addresses in the prefix
+	 */
+	public void add(long high, long low, int length, int rule) {
+		if (length < 0 || length > 128) {
+			throw new IllegalArgumentException(String.format("Invalid prefix length %d", length));
+		}
+		high &= IPRule.maskHigh(length);
+		low &= IPRule.maskLow(length);
+		built = false;
+		Node node = root;
+		while (node.length != length) {
+			int bit = bitAt(high, low, node.length);
+			Node child = node.children[bit];
+			if (child == null) {
+				child = new Node(high, low, length);
+				nodeCount++;
+				node.children[bit] = child;
+				node = child;
+				break;
+			}
+			int common = Math.min(Math.min(length, child.length), commonLength(high, low, child.high, child.low));
+			if (common == child.length) {
+				node = child;
+				continue;
+			}
+			// The new prefix leaves the child's path part way down; split
+			// the path with a node at the point where they differ.
+			Node split = new Node(high, low, common);
+			nodeCount++;
+			node.children[bit] = split;
+			split.children[bitAt(child.high, child.low, common)] = child;
+			node = split;
+		}
+		node.addRule(rule);
+	}
+
+	/**
+	 * Compute the matching rule sets. Must be called after the last add
+	 * and before lookup.
+	 */
+	public void build() {
+		build(root, new BitSet());
+		built = true;
+	}
+
+	/**
+	 * Recursively compute the matching rule sets.
+	 * @param node - node to compute
+	 * @param inherited - rules matching the parent node
+	 */
+	private void build(Node node, BitSet inherited) {
+		if (node.rules == null) {
+			node.matching = inherited;
+		} else {
+			node.matching = (BitSet)inherited.clone();
+			node.matching.or(node.rules);
+		}
+		for (Node child : node.children) {
+			if (child != null) {
+				build(child, node.matching);
+			}
+		}
+	}
+
+	/**
+	 * Find the rules whose prefixes contain an address.
+	 * @param high - high 64 bits of the IPv6 address
+	 * @param low - low 64 bits of the IPv6 address
+	 * @return set of rule numbers; shared, so do not modify
+	 */
+	public BitSet lookup(long high, long low) {
+		if (!built) {
+			throw new IllegalStateException("PrefixTrie6 lookup before build");
+		}
+		Node node = root;
+		while (node.length < 128) {
+			Node child = node.children[bitAt(high, low, node.length)];
+			if (child == null || !child.contains(high, low)) {
+				break;
+			}
+			node = child;
+		}
+		return node.matching;
+	}
+
+	/**
+	 * Get the number of nodes in the trie, for sizing.
+	 * @return number of nodes
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+}
@@ -0,0 +1,79 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IPRule;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Classifier that looks up the source and destination addresses once
+ * each in shared prefix tries and the ports once each in interval
+ * indexes, then checks only the rules that every lookup returned, in
+ * priority order.
+ * @author ghelmer
+ */
+public class PrefixTrieClassifier extends CompiledClassifier {
+	private final PrefixTrie srcTrie;
+	private final PrefixTrie dstTrie;
+	private final IntervalIndex srcPortIndex;
+	private final IntervalIndex dstPortIndex;
+
+	/**
+	 * Build the address tries for a list of rules.
+	 * @param rules - rules in priority order
+	 */
+	public PrefixTrieClassifier(List<IRule> rules) {
+		super(rules);
+		srcTrie = new PrefixTrie();
+		dstTrie = new PrefixTrie();
+		CompiledRule[] compiled = getCompiledRules();
+		for (int i = 0; i < compiled.length; i++) {
+			IPRule r = (IPRule)compiled[i].getRule();
+			srcTrie.add(r.getSrcNetwork(), r.getSrcPrefixLength(), i);
+			dstTrie.add(r.getDstNetwork(), r.getDstPrefixLength(), i);
+		}
+		srcTrie.build();
+		dstTrie.build();
+		srcPortIndex = new IntervalIndex(compiled, CompiledRule.DIM_SRC_PORT);
+		dstPortIndex = new IntervalIndex(compiled, CompiledRule.DIM_DST_PORT);
+	}
+
+	/**
+	 * Intersect the rule sets of the addresses and ports and check the
+	 * remaining fields of each candidate in priority order.
+	 * @param packet - header fields of an IPv4 packet
+	 * @return priority of the first matching rule, or NO_MATCH
+	 */
+	protected int lookup(IPacket packet) {
+		CompiledRule[] compiled = getCompiledRules();
+		BitSet src = srcTrie.lookup(packet.getSrcAddr());
+		BitSet dst = dstTrie.lookup(packet.getDstAddr());
+		BitSet srcPort = srcPortIndex.lookup(packet.getSrcPort());
+		BitSet dstPort = dstPortIndex.lookup(packet.getDstPort());
+		int i = src.nextSetBit(0);
+		while (i >= 0) {
+			// Leapfrog: advance to the next rule number present in every set.
+			int j = dst.nextSetBit(i);
+			if (j == i) {
+				j = srcPort.nextSetBit(i);
+			}
+			if (j == i) {
+				j = dstPort.nextSetBit(i);
+			}
+			if (j < 0) {
+				break;
+			}
+			if (j != i) {
+				i = src.nextSetBit(j);
+				continue;
+			}
+			if (compiled[i].matches(packet)) {
+				return compiled[i].getPriority();
+			}
+			i = src.nextSetBit(i + 1);
+		}
+		return NO_MATCH;
+	}
+}
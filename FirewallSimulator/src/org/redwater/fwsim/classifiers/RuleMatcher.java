@@ -0,0 +1,19 @@
+package org.redwater.fwsim.classifiers;
+
+/**
+ * Matcher for the compiled rules of a RuleList, implemented by classes
+ * that GeneratedClassifier generates at runtime.
+ * @author ghelmer
+ */
+public interface RuleMatcher {
+	/**
+	 * Find the first rule that matches the header fields of an IPv4 packet.
+	 * @param protocol - IP protocol number
+	 * @param srcAddr - source address
+	 * @param dstAddr - destination address
+	 * @param srcPort - source port, or 0
+	 * @param dstPort - destination port, or 0
+	 * @return priority of the first matching rule, or -1 if none
+	 */
+	public int match(int protocol, int srcAddr, int dstAddr, int srcPort, int dstPort);
+}
@@ -0,0 +1,527 @@
+package org.redwater.fwsim.classifiers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IPRule;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Tuple space search classifier. Rules are grouped by their tuple: the
+ * source and destination prefix lengths, whether each port is a single
+ * port or not, and the protocol. Each tuple keeps a hash table of its
+ * rules keyed by the masked addresses and the single ports, so a packet
+ * is checked against a tuple with one probe. Tuples are probed in
+ * order of their best rule, and the search stops at the first tuple
+ * whose best rule comes after the match found so far.
+ * <p>
+ * Adding or removing a rule changes one hash table in O(1) amortized
+ * time instead of rebuilding the classifier. The tables are shared by
+ * every classifier derived from one another, and each entry records the
+ * versions it was added and removed in, so every classifier keeps
+ * seeing exactly the rules it was built for while later ones are
+ * derived and used from other threads. Removed entries are purged once
+ * they outnumber the live ones; a classifier older than the purge
+ * rebuilds its own tables on its next lookup.
+ * <p>
+ * Tuples are also split by address family. An IPv6 tuple's key folds
+ * the masked 128-bit addresses into one long, so its hits are always
+ * checked against the compiled rule.
+ * @author ghelmer
+ */
+public class TupleSpaceClassifier implements IIncrementalClassifier {
+	/** Removed entries kept beyond the number of live ones before a purge. */
+	private static final int PURGE_SLACK = 64;
+	private static final long LIVE = Long.MAX_VALUE;
+	/** Address families of a tuple: rules without addresses match both. */
+	private static final int FAMILY_ANY = 0;
+	private static final int FAMILY_IPV4 = 1;
+	private static final int FAMILY_IPV6 = 2;
+
+	/**
+	 * One occurrence of a rule in the list.
+	 */
+	private static final class Entry {
+		private final IRule rule;
+		/** Compiled form, or null if the rule must be checked with matchesRule. */
+		private final CompiledRule compiled;
+		/** Position relative to the other entries; smaller is checked first. */
+		private final long order;
+		/** Port ranges the hash key does not cover, so a hit must be checked. */
+		private final boolean verify;
+		private final long added;
+		private volatile long removed;
+
+		private Entry(IRule rule, CompiledRule compiled, long order, boolean verify, long added) {
+			this.rule = rule;
+			this.compiled = compiled;
+			this.order = order;
+			this.verify = verify;
+			this.added = added;
+			removed = LIVE;
+		}
+
+		private boolean isVisible(long version) {
+			return added <= version && removed > version;
+		}
+	}
+
+	/**
+	 * Entries of one tuple with the same key, in order. Never changed
+	 * once published; a new entry replaces the whole bucket.
+	 */
+	private static final class Bucket {
+		private final long addresses;
+		private final int ports;
+		private final Entry[] entries;
+
+		private Bucket(long addresses, int ports, Entry[] entries) {
+			this.addresses = addresses;
+			this.ports = ports;
+			this.entries = entries;
+		}
+	}
+
+	/**
+	 * Open addressing hash table of buckets. Only the writer stores into
+	 * it; a reader may probe while a bucket is being replaced.
+	 */
+	private static final class Table {
+		private final AtomicReferenceArray<Bucket> slots;
+		private final int mask;
+		private int size;
+
+		private Table(int capacity) {
+			slots = new AtomicReferenceArray<>(capacity);
+			mask = capacity - 1;
+			size = 0;
+		}
+
+		private static int hash(long addresses, int ports) {
+			long h = (addresses ^ ((long)ports << 17)) * 0x9E3779B97F4A7C15L;
+			return (int)(h ^ (h >>> 32));
+		}
+
+		private Bucket get(long addresses, int ports) {
+			for (int i = hash(addresses, ports) & mask; ; i = (i + 1) & mask) {
+				Bucket b = slots.get(i);
+				if (b == null || (b.addresses == addresses && b.ports == ports)) {
+					return b;
+				}
+			}
+		}
+
+		/**
+		 * Add an entry after the others with its key.
+		 * @return false if the table is too full and must be grown first
+		 */
+		private boolean add(long addresses, int ports, Entry e) {
+			for (int i = hash(addresses, ports) & mask; ; i = (i + 1) & mask) {
+				Bucket b = slots.get(i);
+				if (b == null) {
+					if ((size + 1) * 2 > slots.length()) {
+						return false;
+					}
+					slots.set(i, new Bucket(addresses, ports, new Entry[] { e }));
+					size++;
+					return true;
+				}
+				if (b.addresses == addresses && b.ports == ports) {
+					Entry[] entries = Arrays.copyOf(b.entries, b.entries.length + 1);
+					entries[b.entries.length] = e;
+					slots.set(i, new Bucket(addresses, ports, entries));
+					return true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rules sharing a tuple.
+	 */
+	private static final class Tuple {
+		private final int family;
+		private final int srcMask;
+		private final int dstMask;
+		private final long srcMaskHigh;
+		private final long srcMaskLow;
+		private final long dstMaskHigh;
+		private final long dstMaskLow;
+		private final boolean srcPortExact;
+		private final boolean dstPortExact;
+		/** Protocol number, or -1 for any. */
+		private final int protocol;
+		/** Holds the rules that cannot be compiled, all under one key. */
+		private final boolean opaque;
+		/** No entry of the tuple comes before this; exact after a purge. */
+		private volatile long minOrder;
+		private volatile Table table;
+
+		private Tuple(int family, int srcLength, int dstLength, boolean srcPortExact, boolean dstPortExact,
+				int protocol, boolean opaque, long minOrder) {
+			this.family = family;
+			srcMask = family == FAMILY_IPV6 ? 0 : mask(srcLength);
+			dstMask = family == FAMILY_IPV6 ? 0 : mask(dstLength);
+			srcMaskHigh = family == FAMILY_IPV6 ? IPRule.maskHigh(srcLength) : 0;
+			srcMaskLow = family == FAMILY_IPV6 ? IPRule.maskLow(srcLength) : 0;
+			dstMaskHigh = family == FAMILY_IPV6 ? IPRule.maskHigh(dstLength) : 0;
+			dstMaskLow = family == FAMILY_IPV6 ? IPRule.maskLow(dstLength) : 0;
+			this.srcPortExact = srcPortExact;
+			this.dstPortExact = dstPortExact;
+			this.protocol = protocol;
+			this.opaque = opaque;
+			this.minOrder = minOrder;
+			table = new Table(16);
+		}
+
+		private long addresses(int src, int dst) {
+			return ((long)(src & srcMask) << 32) | ((dst & dstMask) & 0xFFFFFFFFL);
+		}
+
+		/**
+		 * Fold masked IPv6 addresses into a key. Different addresses may
+		 * share a key, which is why IPv6 hits are always checked.
+		 */
+		private long addresses(long srcHigh, long srcLow, long dstHigh, long dstLow) {
+			long h = (srcHigh & srcMaskHigh) * 0x9E3779B97F4A7C15L + (srcLow & srcMaskLow);
+			h = h * 0xC2B2AE3D27D4EB4FL + (dstHigh & dstMaskHigh);
+			return h * 0x165667B19E3779F9L + (dstLow & dstMaskLow);
+		}
+
+		private int ports(int srcPort, int dstPort) {
+			return ((srcPortExact ? srcPort : 0) << 16) | (dstPortExact ? dstPort : 0);
+		}
+
+		/**
+		 * Add an entry to the table, growing it if needed.
+		 */
+		private void add(long addresses, int ports, Entry e) {
+			Table t = table;
+			if (!t.add(addresses, ports, e)) {
+				Table bigger = new Table(t.slots.length() * 2);
+				copyLive(t, bigger, false);
+				bigger.add(addresses, ports, e);
+				table = bigger;
+			}
+		}
+	}
+
+	/**
+	 * The tables shared by a line of classifiers derived from each other.
+	 * Changed only by one writer at a time, under its own lock.
+	 */
+	private static final class Space {
+		/** Version of the newest classifier. */
+		private long version;
+		/** Classifiers older than this must rebuild their own tables. */
+		private volatile long floor;
+		/** Tuples in order of minOrder. */
+		private volatile Tuple[] tuples;
+		private final HashMap<Integer, Tuple> tupleById;
+		/** Live entries of each rule, in order. */
+		private final IdentityHashMap<IRule, ArrayDeque<Entry>> entriesByRule;
+		private long nextOrder;
+		private int live;
+		private int dead;
+
+		private Space() {
+			version = 0;
+			floor = 0;
+			tuples = new Tuple[0];
+			tupleById = new HashMap<>();
+			entriesByRule = new IdentityHashMap<>();
+			nextOrder = 0;
+			live = 0;
+			dead = 0;
+		}
+
+		private void add(IRule rule) {
+			version++;
+			long order = nextOrder++;
+			CompiledRule compiled = CompiledRule.compile(rule, 0);
+			Tuple t;
+			Entry e;
+			long addresses = 0;
+			int ports = 0;
+			if (compiled == null) {
+				t = tuple(FAMILY_ANY, 0, 0, false, false, -1, true, order);
+				e = new Entry(rule, null, order, true, version);
+			} else {
+				IPRule ipRule = (IPRule)rule;
+				long[] srcPorts = compiled.getRanges(CompiledRule.DIM_SRC_PORT);
+				long[] dstPorts = compiled.getRanges(CompiledRule.DIM_DST_PORT);
+				long[] protocols = compiled.getRanges(CompiledRule.DIM_PROTOCOL);
+				boolean srcPortExact = isSinglePort(srcPorts);
+				boolean dstPortExact = isSinglePort(dstPorts);
+				int protocol = protocols[0] == protocols[1] ? (int)protocols[0] : -1;
+				int family = !compiled.matchesIpV6() ? FAMILY_IPV4 : !compiled.matchesIpV4() ? FAMILY_IPV6 : FAMILY_ANY;
+				t = tuple(family, ipRule.getSrcPrefixLength(), ipRule.getDstPrefixLength(), srcPortExact, dstPortExact,
+						protocol, false, order);
+				boolean verify = family == FAMILY_IPV6
+						|| !(srcPortExact || isAnyPort(srcPorts)) || !(dstPortExact || isAnyPort(dstPorts))
+						|| (protocol < 0 && !(protocols[0] == 0 && protocols[1] == CompiledRule.DIM_MAX[CompiledRule.DIM_PROTOCOL]));
+				e = new Entry(rule, compiled, order, verify, version);
+				addresses = family == FAMILY_IPV6
+						? t.addresses(ipRule.getSrcNetworkHigh(), ipRule.getSrcNetworkLow(),
+								ipRule.getDstNetworkHigh(), ipRule.getDstNetworkLow())
+						: t.addresses(ipRule.getSrcNetwork(), ipRule.getDstNetwork());
+				ports = t.ports(srcPortExact ? (int)srcPorts[0] : 0, dstPortExact ? (int)dstPorts[0] : 0);
+			}
+			t.add(addresses, ports, e);
+			ArrayDeque<Entry> occurrences = entriesByRule.get(rule);
+			if (occurrences == null) {
+				occurrences = new ArrayDeque<>(1);
+				entriesByRule.put(rule, occurrences);
+			}
+			occurrences.addLast(e);
+			live++;
+		}
+
+		/**
+		 * Mark the first live occurrence of a rule removed.
+		 * @return false if the rule has no live occurrence
+		 */
+		private boolean remove(IRule rule) {
+			ArrayDeque<Entry> occurrences = entriesByRule.get(rule);
+			if (occurrences == null) {
+				return false;
+			}
+			Entry e = occurrences.pollFirst();
+			if (occurrences.isEmpty()) {
+				entriesByRule.remove(rule);
+			}
+			version++;
+			e.removed = version;
+			live--;
+			dead++;
+			if (dead > live + PURGE_SLACK) {
+				purge();
+			}
+			return true;
+		}
+
+		/**
+		 * Find or create the tuple for a rule.
+		 */
+		private Tuple tuple(int family, int srcLength, int dstLength, boolean srcPortExact, boolean dstPortExact,
+				int protocol, boolean opaque, long order) {
+			int id = opaque ? -1 : (family << 28) | (srcLength << 20) | (dstLength << 12) | (srcPortExact ? 1 << 11 : 0)
+					| (dstPortExact ? 1 << 10 : 0) | (protocol + 1);
+			Tuple t = tupleById.get(id);
+			if (t == null) {
+				// Every existing entry comes before the new one, so the new
+				// tuple keeps the array in order at the end.
+				t = new Tuple(family, srcLength, dstLength, srcPortExact, dstPortExact, protocol, opaque, order);
+				tupleById.put(id, t);
+				Tuple[] grown = Arrays.copyOf(tuples, tuples.length + 1);
+				grown[tuples.length] = t;
+				tuples = grown;
+			}
+			return t;
+		}
+
+		/**
+		 * Drop the removed entries and the empty tuples, and put the
+		 * tuples back in order of their exact best rule. Classifiers
+		 * from before now must rebuild, since they may still need a
+		 * dropped entry.
+		 */
+		private void purge() {
+			floor = version;
+			ArrayList<Tuple> kept = new ArrayList<>();
+			for (Tuple t : tuples) {
+				Table purged = new Table(t.table.slots.length());
+				long min = copyLive(t.table, purged, true);
+				if (purged.size == 0) {
+					tupleById.values().remove(t);
+					continue;
+				}
+				t.minOrder = min;
+				t.table = purged;
+				kept.add(t);
+			}
+			kept.sort((a, b) -> Long.compare(a.minOrder, b.minOrder));
+			tuples = kept.toArray(new Tuple[kept.size()]);
+			dead = 0;
+		}
+	}
+
+	private final Space space;
+	private final long version;
+	private final List<IRule> rules;
+	/** Own tables, built if this classifier falls behind a purge. */
+	private volatile TupleSpaceClassifier rebuilt;
+
+	/**
+	 * Build the tables for a list of rules.
+	 * @param rules - rules in priority order
+	 */
+	public TupleSpaceClassifier(List<IRule> rules) {
+		space = new Space();
+		for (IRule r : rules) {
+			space.add(r);
+		}
+		version = space.version;
+		this.rules = rules;
+		rebuilt = null;
+	}
+
+	private TupleSpaceClassifier(Space space, List<IRule> rules) {
+		this.space = space;
+		version = space.version;
+		this.rules = rules;
+		rebuilt = null;
+	}
+
+	private static int mask(int length) {
+		return length == 0 ? 0 : -1 << (32 - length);
+	}
+
+	private static boolean isSinglePort(long[] ranges) {
+		return ranges.length == 2 && ranges[0] == ranges[1];
+	}
+
+	private static boolean isAnyPort(long[] ranges) {
+		return ranges.length == 2 && ranges[0] == 0 && ranges[1] == CompiledRule.DIM_MAX[CompiledRule.DIM_SRC_PORT];
+	}
+
+	/**
+	 * Copy the buckets of one table into another.
+	 * @param from - table to copy
+	 * @param to - empty table, large enough
+	 * @param liveOnly - leave out removed entries
+	 * @return smallest order copied, or Long.MAX_VALUE if none
+	 */
+	private static long copyLive(Table from, Table to, boolean liveOnly) {
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < from.slots.length(); i++) {
+			Bucket b = from.slots.get(i);
+			if (b == null) {
+				continue;
+			}
+			for (Entry e : b.entries) {
+				if (!liveOnly || e.removed == LIVE) {
+					to.add(b.addresses, b.ports, e);
+					min = Math.min(min, e.order);
+				}
+			}
+		}
+		return min;
+	}
+
+	public IIncrementalClassifier withRuleAdded(List<IRule> rules, IRule rule) {
+		synchronized (space) {
+			if (space.version != version) {
+				// Another classifier was derived from this one first.
+				return new TupleSpaceClassifier(rules);
+			}
+			space.add(rule);
+			return new TupleSpaceClassifier(space, rules);
+		}
+	}
+
+	public IIncrementalClassifier withRuleRemoved(List<IRule> rules, IRule rule) {
+		synchronized (space) {
+			if (space.version != version || !space.remove(rule)) {
+				return new TupleSpaceClassifier(rules);
+			}
+			return new TupleSpaceClassifier(space, rules);
+		}
+	}
+
+	/**
+	 * Probe the tuples for the first rule that matches a packet.
+	 * @param key - header fields of the packet
+	 * @param packet - packet for the rules that cannot be compiled, or null to give them key
+	 * @return first matching rule, or null
+	 */
+	private IRule find(IPacket key, Packet packet) {
+		TupleSpaceClassifier own = rebuilt;
+		if (own != null) {
+			return own.find(key, packet);
+		}
+		boolean ipV4 = key.isIpV4();
+		boolean ipV6 = !ipV4 && key.isIpV6();
+		// The family a tuple must not have to be probed.
+		int other = ipV4 ? FAMILY_IPV6 : ipV6 ? FAMILY_IPV4 : -1;
+		int src = ipV4 ? key.getSrcAddr() : 0;
+		int dst = ipV4 ? key.getDstAddr() : 0;
+		int srcPort = other >= 0 ? key.getSrcPort() : 0;
+		int dstPort = other >= 0 ? key.getDstPort() : 0;
+		int protocol = other >= 0 ? key.getProtocol() : -1;
+		Entry best = null;
+		long bestOrder = LIVE;
+		for (Tuple t : space.tuples) {
+			if (t.minOrder >= bestOrder) {
+				break;
+			}
+			if (!t.opaque && (other < 0 || t.family == other || (t.protocol >= 0 && t.protocol != protocol))) {
+				continue;
+			}
+			Bucket b;
+			if (t.opaque) {
+				b = t.table.get(0, 0);
+			} else if (t.family == FAMILY_IPV6) {
+				b = t.table.get(t.addresses(key.getSrcAddrHigh(), key.getSrcAddrLow(),
+						key.getDstAddrHigh(), key.getDstAddrLow()), t.ports(srcPort, dstPort));
+			} else {
+				b = t.table.get(t.addresses(src, dst), t.ports(srcPort, dstPort));
+			}
+			if (b == null) {
+				continue;
+			}
+			for (Entry e : b.entries) {
+				if (e.order >= bestOrder) {
+					break;
+				}
+				if (!e.isVisible(version)) {
+					continue;
+				}
+				if (e.verify) {
+					boolean matched;
+					if (e.compiled != null) {
+						matched = e.compiled.matches(key);
+					} else {
+						matched = packet != null ? e.rule.matchesRule(packet) : e.rule.matchesRule(key);
+					}
+					if (!matched) {
+						continue;
+					}
+				}
+				best = e;
+				bestOrder = e.order;
+				break;
+			}
+		}
+		if (version < space.floor) {
+			// A purge may have dropped entries this classifier still has.
+			own = new TupleSpaceClassifier(rules);
+			rebuilt = own;
+			return own.find(key, packet);
+		}
+		return best == null ? null : best.rule;
+	}
+
+	public IRule classify(Packet packet) {
+		return find(PacketKey.of(packet), packet);
+	}
+
+	public IRule classify(IPacket packet) {
+		return find(packet, null);
+	}
+
+	/**
+	 * Get the number of tuples probed for a packet at most, for sizing.
+	 * @return number of tuples
+	 */
+	public int getTupleCount() {
+		return space.tuples.length;
+	}
+}
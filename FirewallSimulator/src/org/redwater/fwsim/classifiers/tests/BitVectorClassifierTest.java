@@ -0,0 +1,68 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.classifiers.BitVectorClassifier;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+
+public class BitVectorClassifierTest {
+	private RuleList rules;
+	private List<Packet> packets;
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(4);
+		rules = new RuleList();
+		for (int i = 0; i < 500; i++) {
+			rules.addRule(traffic.randomRule()).setRuleMetadata(String.format("Rule %d", i));
+		}
+		packets = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			packets.add(traffic.randomPacket());
+		}
+	}
+
+	@Test
+	public void test() {
+		BitVectorClassifier classifier = new BitVectorClassifier(rules.getRules());
+		int matched = 0;
+		for (Packet p : packets) {
+			IRule expected = rules.checkRules(p);
+			assertSame("bit vector classifier disagrees with linear scan on " + p, expected, classifier.classify(p));
+			if (expected != null) {
+				matched++;
+			}
+		}
+		assertTrue(matched > packets.size() / 2);
+	}
+
+	@Test
+	public void testPastFirstAggregateWord() throws Exception {
+		// One aggregate word covers 4096 rules; put the only match beyond it.
+		RuleList many = new RuleList();
+		for (int i = 0; i < 5000; i++) {
+			many.addRule(String.format("tcp dstAddress 10.%d.%d.0/24 dstPort 22 action accept", i / 256, i % 256));
+		}
+		many.addRule("udp dstAddress 10.19.136.0/24 dstPort 5353 action deny").setRuleMetadata("last");
+		BitVectorClassifier classifier = new BitVectorClassifier(many.getRules());
+		Packet dns = TestTraffic.buildIpV4Packet(IpNumber.UDP,
+				TestTraffic.ipV4("192.0.2.1"), TestTraffic.ipV4("10.19.136.7"), 40000, 5353);
+		assertEquals("last", classifier.classify(dns).getRuleMetadata());
+		Packet ssh = TestTraffic.buildIpV4Packet(IpNumber.TCP,
+				TestTraffic.ipV4("192.0.2.1"), TestTraffic.ipV4("10.19.128.7"), 40000, 22);
+		assertSame(many.getRules().get(5000 - 8), classifier.classify(ssh));
+		Packet other = TestTraffic.buildIpV4Packet(IpNumber.UDP,
+				TestTraffic.ipV4("192.0.2.1"), TestTraffic.ipV4("10.19.136.7"), 40000, 53);
+		assertNull(classifier.classify(other));
+		// The destination trie holds most of the vectors; the ports and protocol share a few.
+		assertTrue(classifier.getVectorWords() < 5000L * 79 * 2);
+	}
+}
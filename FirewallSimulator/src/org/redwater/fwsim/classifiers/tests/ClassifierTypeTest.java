@@ -0,0 +1,163 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.CompiledClassifier;
+import org.redwater.fwsim.classifiers.IClassifier;
+import org.redwater.fwsim.classifiers.PacketBatch;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+
+public class ClassifierTypeTest {
+	private RuleList rules;
+	private List<Packet> packets;
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(2);
+		rules = new RuleList();
+		for (int i = 0; i < 300; i++) {
+			rules.addRule(traffic.randomRule()).setRuleMetadata(String.format("Rule %d", i));
+		}
+		packets = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			packets.add(traffic.randomPacket());
+		}
+	}
+
+	@Test
+	public void test() {
+		List<IRule> expected = new ArrayList<>();
+		for (Packet p : packets) {
+			expected.add(rules.checkRules(p));
+		}
+		IP view = new IP();
+		for (ClassifierType type : ClassifierType.values()) {
+			IClassifier classifier = type.newClassifier(rules.getRules());
+			for (int i = 0; i < packets.size(); i++) {
+				assertSame(String.format("%s disagrees with linear scan on %s", type, packets.get(i)),
+						expected.get(i), classifier.classify(packets.get(i)));
+				byte[] raw = packets.get(i).getRawData();
+				view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+				assertSame(String.format("%s disagrees with linear scan on header view of %s", type, packets.get(i)),
+						expected.get(i), classifier.classify(view));
+			}
+		}
+	}
+
+	@Test
+	public void testMixedFamilies() throws Exception {
+		TestTraffic traffic = new TestTraffic(8);
+		RuleList mixed = new RuleList();
+		for (int i = 0; i < 400; i++) {
+			mixed.addRule(traffic.randomRule(i % 3 != 0)).setRuleMetadata(String.format("Rule %d", i));
+			if (i == 300) {
+				// Matches both families, ahead of the rest.
+				mixed.addRule("udp dstPort 53 action deny").setRuleMetadata("dns");
+			}
+		}
+		List<Packet> mixedPackets = new ArrayList<>();
+		List<IRule> expected = new ArrayList<>();
+		IP view = new IP();
+		int matchedV6 = 0;
+		for (int i = 0; i < 1500; i++) {
+			Packet p = i % 2 == 0 ? traffic.randomIpV6Packet() : traffic.randomPacket();
+			mixedPackets.add(p);
+			IRule r = mixed.checkRules(p);
+			expected.add(r);
+			byte[] raw = p.getRawData();
+			view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+			assertSame("header view disagrees with packet on " + p, r, mixed.checkRules(view));
+			if (r != null && i % 2 == 0) {
+				matchedV6++;
+			}
+		}
+		assertTrue(matchedV6 > 200);
+		PacketBatch batch = new PacketBatch(mixedPackets.size());
+		for (Packet p : mixedPackets) {
+			byte[] raw = p.getRawData();
+			batch.add(view.wrap(ByteBuffer.wrap(raw), 0, raw.length), raw.length);
+		}
+		int[] positions = new int[batch.size()];
+		for (ClassifierType type : ClassifierType.values()) {
+			IClassifier classifier = type.newClassifier(mixed.getRules());
+			for (int i = 0; i < mixedPackets.size(); i++) {
+				Packet p = mixedPackets.get(i);
+				assertSame(String.format("%s disagrees with linear scan on %s", type, p),
+						expected.get(i), classifier.classify(p));
+				byte[] raw = p.getRawData();
+				view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+				assertSame(String.format("%s disagrees with linear scan on header view of %s", type, p),
+						expected.get(i), classifier.classify(view));
+			}
+			if (classifier instanceof CompiledClassifier) {
+				((CompiledClassifier)classifier).classify(batch, positions);
+				for (int i = 0; i < positions.length; i++) {
+					assertSame(String.format("%s batch disagrees with linear scan on %s", type, mixedPackets.get(i)),
+							expected.get(i), positions[i] < 0 ? null : mixed.getRules().get(positions[i]));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGeneratedLongList() throws Exception {
+		// Long enough to need several generated matcher classes.
+		TestTraffic traffic = new TestTraffic(5);
+		RuleList longRules = new RuleList();
+		for (int i = 0; i < 10000; i++) {
+			longRules.addRule(traffic.randomRule());
+		}
+		IClassifier classifier = ClassifierType.GENERATED.newClassifier(longRules.getRules());
+		for (int i = 0; i < 500; i++) {
+			Packet p = traffic.randomPacket();
+			assertSame(longRules.checkRules(p), classifier.classify(p));
+		}
+	}
+
+	@Test
+	public void testGeneratedManyRanges() throws Exception {
+		// Too many ranges for the old fixed number of rules per method,
+		// and one rule too large for any compiled method.
+		Random random = new Random(11);
+		RuleList manyRanges = new RuleList();
+		for (int i = 0; i < 65; i++) {
+			StringBuilder s = new StringBuilder("tcp");
+			int ranges = i == 32 ? 600 : 40;
+			for (int r = 0; r < ranges; r++) {
+				int port = random.nextInt(65000);
+				s.append(String.format(" srcPort %d-%d", port, port + random.nextInt(50)));
+				port = random.nextInt(65000);
+				s.append(String.format(" dstPort %d-%d", port, port + random.nextInt(50)));
+			}
+			manyRanges.addRule(s.append(" action accept").toString());
+		}
+		manyRanges.addRule("udp action deny");
+		IClassifier classifier = ClassifierType.GENERATED.newClassifier(manyRanges.getRules());
+		TestTraffic traffic = new TestTraffic(12);
+		int matched = 0;
+		for (int i = 0; i < 20000; i++) {
+			Packet p = TestTraffic.buildIpV4Packet(IpNumber.TCP, random.nextInt(), random.nextInt(),
+					random.nextInt(65536), random.nextInt(65536));
+			IRule expected = manyRanges.checkRules(p);
+			assertSame(expected, classifier.classify(p));
+			if (expected != null) {
+				matched++;
+			}
+			p = traffic.randomPacket();
+			assertSame(manyRanges.checkRules(p), classifier.classify(p));
+		}
+		assertTrue(matched > 0);
+	}
+}
@@ -0,0 +1,60 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.DecisionTreeClassifier;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+
+public class DecisionTreeClassifierTest {
+	private RuleList rules;
+	private List<Packet> packets;
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(1);
+		rules = new RuleList();
+		for (int i = 0; i < 500; i++) {
+			rules.addRule(traffic.randomRule()).setRuleMetadata(String.format("Rule %d", i));
+		}
+		packets = new ArrayList<>();
+		for (int i = 0; i < 2000; i++) {
+			packets.add(traffic.randomPacket());
+		}
+	}
+
+	@Test
+	public void test() {
+		DecisionTreeClassifier tree = new DecisionTreeClassifier(rules.getRules());
+		assertTrue(tree.getNodeCount() > 1);
+		int matched = 0;
+		for (Packet p : packets) {
+			rules.setClassifierType(ClassifierType.LINEAR);
+			IRule expected = rules.checkRules(p);
+			assertSame("decision tree disagrees with linear scan on " + p, expected, tree.classify(p));
+			if (expected != null) {
+				matched++;
+			}
+		}
+		assertTrue(matched > packets.size() / 2);
+	}
+
+	@Test
+	public void testRebuildOnAddRule() throws Exception {
+		Packet p = TestTraffic.buildIpV4Packet(IpNumber.TCP,
+				TestTraffic.ipV4("203.0.113.9"), TestTraffic.ipV4("203.0.113.10"), 7, 7);
+		RuleList empty = new RuleList();
+		empty.setClassifierType(ClassifierType.DECISION_TREE);
+		assertNull(empty.checkRules(p));
+		empty.addRule("tcp dstAddress 203.0.113.0/24 dstPort 7 action accept").setRuleMetadata("Line 1");
+		assertEquals("Line 1", empty.checkRules(p).getRuleMetadata());
+	}
+}
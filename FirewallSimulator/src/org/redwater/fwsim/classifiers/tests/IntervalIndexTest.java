@@ -0,0 +1,53 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.redwater.fwsim.classifiers.CompiledRule;
+import org.redwater.fwsim.classifiers.IntervalIndex;
+import org.redwater.fwsim.services.TextRuleParser;
+
+public class IntervalIndexTest {
+	private IntervalIndex index;
+
+	private static BitSet bits(int... rules) {
+		BitSet b = new BitSet();
+		for (int r : rules) {
+			b.set(r);
+		}
+		return b;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		String[] lines = {
+				"tcp dstPort 25 action accept",
+				"tcp dstPort 20-25 dstPort 80 action accept",
+				"udp dstPort 53 dstPort 1024-65535 action accept",
+				"ip srcAddress 10.0.0.0/8 action deny",
+				"tcp dstPort 70000 action deny",
+		};
+		CompiledRule[] rules = new CompiledRule[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			rules[i] = CompiledRule.compile(TextRuleParser.parse(lines[i]), i);
+		}
+		index = new IntervalIndex(rules, CompiledRule.DIM_DST_PORT);
+	}
+
+	@Test
+	public void test() {
+		assertEquals(bits(3), index.lookup(0));
+		assertEquals(bits(3), index.lookup(19));
+		assertEquals(bits(1, 3), index.lookup(20));
+		assertEquals(bits(0, 1, 3), index.lookup(25));
+		assertEquals(bits(3), index.lookup(26));
+		assertEquals(bits(2, 3), index.lookup(53));
+		assertEquals(bits(1, 3), index.lookup(80));
+		assertEquals(bits(3), index.lookup(1023));
+		assertEquals(bits(2, 3), index.lookup(1024));
+		assertEquals(bits(2, 3), index.lookup(65535));
+	}
+}
@@ -0,0 +1,150 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.PacketBatch;
+import org.redwater.fwsim.classifiers.PacketKey;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.rules.IPRule;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+
+public class PacketBatchTest {
+	private RuleSet.Builder builder;
+	private List<byte[]> packets;
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(3);
+		builder = new RuleSet.Builder();
+		for (int i = 0; i < 300; i++) {
+			builder.addRule(traffic.randomRule()).setRuleMetadata(String.format("Rule %d", i));
+			if (i == 150) {
+				// A rule type the classifiers do not understand.
+				builder.addRule(new IPRule() {
+					@Override
+					public boolean matchesRule(IPacket packet) {
+						return packet.isIpV4() && packet.getProtocol() == IPacket.PROTOCOL_TCP
+								&& packet.getDstPort() < 1024;
+					}
+				});
+			}
+		}
+		packets = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			Packet p = traffic.randomPacket();
+			packets.add(p.getRawData());
+			if (i % 97 == 0) {
+				byte[] ipV6 = new byte[40];
+				ipV6[0] = 0x60;
+				packets.add(ipV6);
+			}
+		}
+	}
+
+	@Test
+	public void test() {
+		RuleSet linear = builder.build();
+		IP view = new IP();
+		List<IRule> expected = new ArrayList<>();
+		for (byte[] raw : packets) {
+			view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+			expected.add(linear.checkRules(view));
+		}
+		// An odd capacity leaves a partial vector at the end of each batch.
+		PacketBatch batch = new PacketBatch(37);
+		int[] out = new int[batch.capacity()];
+		for (ClassifierType type : ClassifierType.values()) {
+			RuleSet set = builder.classifierType(type).build();
+			int start = 0;
+			while (start < packets.size()) {
+				batch.clear();
+				int n = 0;
+				while (start + n < packets.size()) {
+					byte[] raw = packets.get(start + n);
+					view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+					if (!batch.add(view, raw.length)) {
+						break;
+					}
+					n++;
+				}
+				assertEquals(Math.min(37, packets.size() - start), batch.size());
+				set.checkRules(batch, out);
+				for (int i = 0; i < n; i++) {
+					IRule r = out[i] < 0 ? null : set.getRules().get(out[i]);
+					assertSame(String.format("%s batch disagrees with linear scan on packet %d", type, start + i),
+							expected.get(start + i), r);
+				}
+				start += n;
+			}
+		}
+	}
+
+	@Test
+	public void testView() {
+		PacketBatch batch = new PacketBatch(packets.size());
+		IP view = new IP();
+		for (byte[] raw : packets) {
+			view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+			assertTrue(batch.add(view, raw.length));
+		}
+		PacketBatch.View batchView = batch.view();
+		for (int i = 0; i < batch.size(); i++) {
+			PacketKey key = batch.getKey(i);
+			assertSame(batchView, batchView.select(i));
+			assertEquals(key.isIpV4(), batchView.isIpV4());
+			assertEquals(key.isIpV6(), batchView.isIpV6());
+			assertEquals(key.getProtocol(), batchView.getProtocol());
+			assertEquals(key.getSrcAddr(), batchView.getSrcAddr());
+			assertEquals(key.getDstAddr(), batchView.getDstAddr());
+			assertEquals(key.getSrcAddrHigh(), batchView.getSrcAddrHigh());
+			assertEquals(key.getSrcAddrLow(), batchView.getSrcAddrLow());
+			assertEquals(key.getDstAddrHigh(), batchView.getDstAddrHigh());
+			assertEquals(key.getDstAddrLow(), batchView.getDstAddrLow());
+			assertEquals(key.getSrcPort(), batchView.getSrcPort());
+			assertEquals(key.getDstPort(), batchView.getDstPort());
+		}
+	}
+
+	@Test
+	public void testStatistics() {
+		RuleList rules = new RuleList();
+		rules.setRuleSet(builder.classifierType(ClassifierType.COMPACT_TABLE).build());
+		rules.setStatisticsEnabled(true);
+		PacketBatch batch = new PacketBatch(packets.size());
+		IP view = new IP();
+		for (byte[] raw : packets) {
+			view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+			assertTrue(batch.add(view, raw.length));
+		}
+		int[] out = new int[batch.size()];
+		RuleSet set = rules.checkRules(batch, out);
+		assertSame(rules.getRuleSet(), set);
+		long matches = 0;
+		long bytes = 0;
+		for (int i = 0; i < out.length; i++) {
+			if (out[i] >= 0) {
+				matches++;
+				bytes += batch.getLength(i);
+			}
+		}
+		long counted = 0;
+		long countedBytes = 0;
+		for (IRule r : set.getRules()) {
+			counted += r.getCounters().getMatches();
+			countedBytes += r.getCounters().getBytes();
+		}
+		assertEquals(matches, counted);
+		assertEquals(bytes, countedBytes);
+	}
+}
@@ -0,0 +1,57 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.redwater.fwsim.classifiers.PrefixTrie6;
+
+public class PrefixTrie6Test {
+	private PrefixTrie6 trie;
+
+	private static BitSet bits(int... rules) {
+		BitSet b = new BitSet();
+		for (int r : rules) {
+			b.set(r);
+		}
+		return b;
+	}
+
+	private void add(String address, int length, int rule) {
+		long[] a = TestTraffic.ipV6(address);
+		trie.add(a[0], a[1], length, rule);
+	}
+
+	private BitSet lookup(String address) {
+		long[] a = TestTraffic.ipV6(address);
+		return trie.lookup(a[0], a[1]);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		trie = new PrefixTrie6();
+		add("::", 0, 0);
+		add("2001:db8::", 32, 1);
+		add("2001:db8:0:1::", 64, 2);
+		add("2001:db8:0:1:8000::", 65, 3);
+		add("2001:db8:0:1::42", 128, 4);
+		add("fd00::", 8, 5);
+		add("2001:db8:0:1::99", 64, 6);
+		add("2001:db8:0:1::43", 127, 7);
+		trie.build();
+	}
+
+	@Test
+	public void test() {
+		assertEquals(bits(0), lookup("2001:db9::1"));
+		assertEquals(bits(0, 5), lookup("fdff:ffff::1"));
+		assertEquals(bits(0, 1), lookup("2001:db8:0:2::1"));
+		assertEquals(bits(0, 1, 2, 6), lookup("2001:db8:0:1::"));
+		assertEquals(bits(0, 1, 2, 3, 6), lookup("2001:db8:0:1:ffff::1"));
+		assertEquals(bits(0, 1, 2, 4, 6, 7), lookup("2001:db8:0:1::42"));
+		assertEquals(bits(0, 1, 2, 6, 7), lookup("2001:db8:0:1::43"));
+		assertEquals(bits(0, 1, 2, 6), lookup("2001:db8:0:1::44"));
+	}
+}
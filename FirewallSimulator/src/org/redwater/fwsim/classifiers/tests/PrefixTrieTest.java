@@ -0,0 +1,45 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.redwater.fwsim.classifiers.PrefixTrie;
+
+public class PrefixTrieTest {
+	private PrefixTrie trie;
+
+	private static BitSet bits(int... rules) {
+		BitSet b = new BitSet();
+		for (int r : rules) {
+			b.set(r);
+		}
+		return b;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		trie = new PrefixTrie();
+		trie.add(0, 0, 0);
+		trie.add(TestTraffic.ipV4("192.168.1.0"), 24, 1);
+		trie.add(TestTraffic.ipV4("192.168.1.128"), 25, 2);
+		trie.add(TestTraffic.ipV4("192.168.0.0"), 16, 3);
+		trie.add(TestTraffic.ipV4("192.168.1.200"), 32, 4);
+		trie.add(TestTraffic.ipV4("10.0.0.0"), 8, 5);
+		trie.add(TestTraffic.ipV4("192.168.1.77"), 24, 6);
+		trie.build();
+	}
+
+	@Test
+	public void test() {
+		assertEquals(bits(0), trie.lookup(TestTraffic.ipV4("1.2.3.4")));
+		assertEquals(bits(0, 5), trie.lookup(TestTraffic.ipV4("10.255.255.255")));
+		assertEquals(bits(0, 3), trie.lookup(TestTraffic.ipV4("192.168.2.1")));
+		assertEquals(bits(0, 1, 3, 6), trie.lookup(TestTraffic.ipV4("192.168.1.0")));
+		assertEquals(bits(0, 1, 2, 3, 6), trie.lookup(TestTraffic.ipV4("192.168.1.255")));
+		assertEquals(bits(0, 1, 2, 3, 4, 6), trie.lookup(TestTraffic.ipV4("192.168.1.200")));
+		assertEquals(bits(0, 1, 2, 3, 6), trie.lookup(TestTraffic.ipV4("192.168.1.201")));
+	}
+}
@@ -0,0 +1,331 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.IpV4Rfc1349Tos;
+import org.pcap4j.packet.IpV6Packet;
+import org.pcap4j.packet.IpV6SimpleFlowLabel;
+import org.pcap4j.packet.IpV6SimpleTrafficClass;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.TcpPacket;
+import org.pcap4j.packet.UdpPacket;
+import org.pcap4j.packet.UnknownPacket;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.pcap4j.packet.namednumber.IpVersion;
+import org.pcap4j.packet.namednumber.TcpPort;
+import org.pcap4j.packet.namednumber.UdpPort;
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.layers.TCP;
+import org.redwater.fwsim.rules.IPRule;
+
+/**
+ * Random rules and packets for differential tests of the classifiers.
+ * Addresses and ports are drawn from small pools so that rules overlap
+ * and packets hit many different rules.
+ * @author ghelmer
+ */
+public class TestTraffic {
+	private static final String[] NETWORKS = {
+			"10.0.0.0", "10.1.0.0", "10.1.2.0", "192.168.1.0", "192.168.1.128", "172.16.0.0", "1.2.3.0"
+	};
+	private static final int[] PREFIX_LENGTHS = { 0, 8, 16, 24, 25, 30, 32 };
+	private static final int[] PORTS = { 0, 22, 25, 53, 80, 443, 1024, 8080, 9876, 65535 };
+	private static final String[] NETWORKS6 = {
+			"2001:db8::", "2001:db8:1::", "2001:db8:1:2::", "2001:db8:1:2::8000", "fd00::", "fd00:0:0:1::", "fe80::"
+	};
+	private static final int[] PREFIX_LENGTHS6 = { 0, 16, 32, 48, 63, 64, 65, 96, 127, 128 };
+
+	private final Random random;
+
+	/**
+	 * Construct a generator with a fixed seed, so failures can be reproduced.
+	 * @param seed - random seed
+	 */
+	public TestTraffic(long seed) {
+		random = new Random(seed);
+	}
+
+	/**
+	 * Build a random rule in the text rule format.
+	 * @return rule text
+	 */
+	public String randomRule() {
+		return randomRule(false);
+	}
+
+	/**
+	 * Build a random rule in the text rule format.
+	 * @param ipV6 - use IPv6 addresses
+	 * @return rule text
+	 */
+	public String randomRule(boolean ipV6) {
+		StringBuilder s = new StringBuilder();
+		int type = random.nextInt(3);
+		s.append(type == 0 ? "ip" : type == 1 ? "tcp" : "udp");
+		if (type == 0) {
+			// Keep IP rules from matching everything and shadowing the rest.
+			s.append(" srcAddress ").append(ipV6
+					? String.format("%s/%d", NETWORKS6[random.nextInt(NETWORKS6.length)], 16 + random.nextInt(113))
+					: String.format("%s/%d", NETWORKS[random.nextInt(NETWORKS.length)], 8 + random.nextInt(25)));
+		} else if (random.nextInt(3) != 0) {
+			s.append(" srcAddress ").append(ipV6 ? randomCidr6() : randomCidr());
+		}
+		if (random.nextInt(3) != 0) {
+			s.append(" dstAddress ").append(ipV6 ? randomCidr6() : randomCidr());
+		}
+		if (type != 0) {
+			int n = random.nextInt(3);
+			for (int i = 0; i < n; i++) {
+				s.append(" srcPort ").append(randomPortRange());
+			}
+			n = random.nextInt(3);
+			for (int i = 0; i < n; i++) {
+				s.append(" dstPort ").append(randomPortRange());
+			}
+		}
+		String[] actions = { "accept", "deny", "reject" };
+		s.append(" action ").append(actions[random.nextInt(actions.length)]);
+		return s.toString();
+	}
+
+	private String randomCidr() {
+		return String.format("%s/%d", NETWORKS[random.nextInt(NETWORKS.length)],
+				PREFIX_LENGTHS[random.nextInt(PREFIX_LENGTHS.length)]);
+	}
+
+	private String randomCidr6() {
+		return String.format("%s/%d", NETWORKS6[random.nextInt(NETWORKS6.length)],
+				PREFIX_LENGTHS6[random.nextInt(PREFIX_LENGTHS6.length)]);
+	}
+
+	private String randomPortRange() {
+		int start = PORTS[random.nextInt(PORTS.length)];
+		if (random.nextBoolean()) {
+			return Integer.toString(start);
+		}
+		int end = Math.min(65535, start + random.nextInt(2000));
+		return String.format("%d-%d", start, end);
+	}
+
+	private int randomAddress() {
+		int address = ipV4(NETWORKS[random.nextInt(NETWORKS.length)]);
+		switch (random.nextInt(4)) {
+		case 0:
+			return address;
+		case 1:
+			return address | random.nextInt(256);
+		case 2:
+			return address | random.nextInt(65536);
+		default:
+			return random.nextInt();
+		}
+	}
+
+	private int randomPort() {
+		int port = PORTS[random.nextInt(PORTS.length)];
+		return random.nextBoolean() ? port : Math.min(65535, port + random.nextInt(3000));
+	}
+
+	/**
+	 * Build a random TCP, UDP or ICMP-like IPv4 packet.
+	 * @return packet
+	 */
+	public Packet randomPacket() {
+		int type = random.nextInt(5);
+		if (type == 0) {
+			return buildIpV4Packet(IpNumber.ICMPV4, randomAddress(), randomAddress(), 0, 0);
+		}
+		return buildIpV4Packet(type < 3 ? IpNumber.TCP : IpNumber.UDP,
+				randomAddress(), randomAddress(), randomPort(), randomPort());
+	}
+
+	private long[] randomAddress6() {
+		long[] address = ipV6(NETWORKS6[random.nextInt(NETWORKS6.length)]);
+		switch (random.nextInt(4)) {
+		case 0:
+			break;
+		case 1:
+			address[1] |= random.nextInt(256);
+			break;
+		case 2:
+			address[1] ^= random.nextLong() >>> random.nextInt(64);
+			break;
+		default:
+			address[0] = random.nextLong();
+			address[1] = random.nextLong();
+			break;
+		}
+		return address;
+	}
+
+	/**
+	 * Build a random TCP, UDP or ICMP-like IPv6 packet.
+	 * @return packet
+	 */
+	public Packet randomIpV6Packet() {
+		int type = random.nextInt(5);
+		long[] src = randomAddress6();
+		long[] dst = randomAddress6();
+		if (type == 0) {
+			return buildIpV6Packet(IpNumber.ICMPV6, src, dst, 0, 0);
+		}
+		return buildIpV6Packet(type < 3 ? IpNumber.TCP : IpNumber.UDP, src, dst, randomPort(), randomPort());
+	}
+
+	/**
+	 * Convert an IPv6 address to two longs.
+	 * @param address - IPv6 address text
+	 * @return high and low 64 bits
+	 */
+	public static long[] ipV6(String address) {
+		try {
+			long[] cidr = IPRule.parseIpV6Cidr(address);
+			return new long[] { cidr[0], cidr[1] };
+		} catch (InvalidFieldValueException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	private static Inet6Address toInet6Address(long[] address) {
+		byte[] b = new byte[16];
+		for (int i = 0; i < 8; i++) {
+			b[i] = (byte)(address[0] >>> (56 - 8 * i));
+			b[i + 8] = (byte)(address[1] >>> (56 - 8 * i));
+		}
+		try {
+			// Inet6Address keeps IPv4 mapped addresses in IPv6 form.
+			return Inet6Address.getByAddress(null, b, -1);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Convert a dotted quad address to an int.
+	 * @param address - dotted quad
+	 * @return address as an int
+	 */
+	public static int ipV4(String address) {
+		String[] parts = address.split("\\.");
+		int result = 0;
+		for (String p : parts) {
+			result = (result << 8) | Integer.parseInt(p);
+		}
+		return result;
+	}
+
+	private static Inet4Address toInet4Address(int address) {
+		try {
+			return (Inet4Address) Inet4Address.getByAddress(new byte[] {
+					(byte)(address >>> 24), (byte)(address >>> 16), (byte)(address >>> 8), (byte)address });
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+	/**
+	 * Build an IPv4 packet carrying a TCP segment, UDP datagram, or raw payload.
+	 * @param protocol - IP protocol
+	 * @param src - source address
+	 * @param dst - destination address
+	 * @param srcPort - source port, for TCP and UDP
+	 * @param dstPort - destination port, for TCP and UDP
+	 * @return packet
+	 */
+	public static Packet buildIpV4Packet(IpNumber protocol, int src, int dst, int srcPort, int dstPort) {
+		return buildIpV4Packet(protocol, src, dst, srcPort, dstPort, TCP.FLAG_SYN);
+	}
+
+	/**
+	 * Build an IPv4 packet carrying a TCP segment, UDP datagram, or raw payload.
+	 * @param protocol - IP protocol
+	 * @param src - source address
+	 * @param dst - destination address
+	 * @param srcPort - source port, for TCP and UDP
+	 * @param dstPort - destination port, for TCP and UDP
+	 * @param tcpFlags - TCP flags, from the TCP.FLAG_* constants
+	 * @return packet
+	 */
+	public static Packet buildIpV4Packet(IpNumber protocol, int src, int dst, int srcPort, int dstPort, int tcpFlags) {
+		Inet4Address srcAddr = toInet4Address(src);
+		Inet4Address dstAddr = toInet4Address(dst);
+		IpV4Packet.Builder b = new IpV4Packet.Builder();
+		b.version(IpVersion.IPV4)
+			.tos(IpV4Rfc1349Tos.newInstance((byte)0))
+			.ttl((byte)64)
+			.protocol(protocol)
+			.srcAddr(srcAddr)
+			.dstAddr(dstAddr)
+			.correctChecksumAtBuild(true)
+			.correctLengthAtBuild(true)
+			.dontFragmentFlag(true)
+			.paddingAtBuild(true)
+			.payloadBuilder(payload(protocol, srcAddr, dstAddr, srcPort, dstPort, tcpFlags));
+		return b.build();
+	}
+
+	/**
+	 * Build an IPv6 packet carrying a TCP segment, UDP datagram, or raw payload.
+	 * @param protocol - IP protocol
+	 * @param src - source address, from ipV6
+	 * @param dst - destination address, from ipV6
+	 * @param srcPort - source port, for TCP and UDP
+	 * @param dstPort - destination port, for TCP and UDP
+	 * @return packet
+	 */
+	public static Packet buildIpV6Packet(IpNumber protocol, long[] src, long[] dst, int srcPort, int dstPort) {
+		Inet6Address srcAddr = toInet6Address(src);
+		Inet6Address dstAddr = toInet6Address(dst);
+		IpV6Packet.Builder b = new IpV6Packet.Builder();
+		b.version(IpVersion.IPV6)
+			.trafficClass(IpV6SimpleTrafficClass.newInstance((byte)0))
+			.flowLabel(IpV6SimpleFlowLabel.newInstance(0))
+			.nextHeader(protocol)
+			.hopLimit((byte)64)
+			.srcAddr(srcAddr)
+			.dstAddr(dstAddr)
+			.correctLengthAtBuild(true)
+			.payloadBuilder(payload(protocol, srcAddr, dstAddr, srcPort, dstPort, TCP.FLAG_SYN));
+		return b.build();
+	}
+
+	private static Packet.Builder payload(IpNumber protocol, InetAddress srcAddr, InetAddress dstAddr,
+			int srcPort, int dstPort, int tcpFlags) {
+		UnknownPacket.Builder unknownb = new UnknownPacket.Builder();
+		unknownb.rawData(new byte[] { (byte)0, (byte)1, (byte)2, (byte)3 });
+		Packet.Builder payload;
+		if (protocol.equals(IpNumber.TCP)) {
+			payload = new TcpPacket.Builder()
+					.srcPort(TcpPort.getInstance((short)srcPort))
+					.dstPort(TcpPort.getInstance((short)dstPort))
+					.srcAddr(srcAddr)
+					.dstAddr(dstAddr)
+					.window((short)9999)
+					.syn((tcpFlags & TCP.FLAG_SYN) != 0)
+					.ack((tcpFlags & TCP.FLAG_ACK) != 0)
+					.fin((tcpFlags & TCP.FLAG_FIN) != 0)
+					.rst((tcpFlags & TCP.FLAG_RST) != 0)
+					.correctChecksumAtBuild(true)
+					.correctLengthAtBuild(true)
+					.paddingAtBuild(true)
+					.payloadBuilder(unknownb);
+		} else if (protocol.equals(IpNumber.UDP)) {
+			payload = new UdpPacket.Builder()
+					.srcPort(UdpPort.getInstance((short)srcPort))
+					.dstPort(UdpPort.getInstance((short)dstPort))
+					.srcAddr(srcAddr)
+					.dstAddr(dstAddr)
+					.correctChecksumAtBuild(true)
+					.correctLengthAtBuild(true)
+					.payloadBuilder(unknownb);
+		} else {
+			payload = unknownb;
+		}
+		return payload;
+	}
+}
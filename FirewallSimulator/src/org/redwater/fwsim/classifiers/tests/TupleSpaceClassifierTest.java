@@ -0,0 +1,112 @@
+package org.redwater.fwsim.classifiers.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.IIncrementalClassifier;
+import org.redwater.fwsim.classifiers.TupleSpaceClassifier;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+import org.redwater.fwsim.services.TextRuleParser;
+
+public class TupleSpaceClassifierTest {
+	private TestTraffic traffic;
+	private List<IRule> pool;
+	private List<Packet> packets;
+
+	@Before
+	public void setUp() throws Exception {
+		traffic = new TestTraffic(6);
+		pool = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			IRule r = TextRuleParser.parse(traffic.randomRule());
+			r.setRuleMetadata(String.format("Rule %d", i));
+			pool.add(r);
+		}
+		packets = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			packets.add(traffic.randomPacket());
+		}
+	}
+
+	private static void assertAgrees(String message, List<IRule> rules, RuleSet set) {
+		RuleSet linear = new RuleSet.Builder().addRules(rules).build();
+		assertEquals(rules, set.getRules());
+		TestTraffic traffic = new TestTraffic(rules.size());
+		for (int i = 0; i < 50; i++) {
+			Packet p = traffic.randomPacket();
+			assertSame(message + " on " + p, linear.checkRules(p), set.checkRules(p));
+		}
+	}
+
+	@Test
+	public void testAddAndRemove() throws Exception {
+		RuleList rules = new RuleList();
+		rules.setClassifierType(ClassifierType.TUPLE_SPACE);
+		rules.compile();
+		List<IRule> expected = new ArrayList<>();
+		Random random = new Random(7);
+		RuleSet early = null;
+		List<IRule> earlyRules = null;
+		for (int step = 0; step < 3000; step++) {
+			if (expected.isEmpty() || random.nextInt(100) < 55) {
+				// Reuse rule objects so some occur more than once.
+				IRule r = pool.get(random.nextInt(pool.size()));
+				rules.addRule(r);
+				expected.add(r);
+			} else {
+				IRule r = expected.get(random.nextInt(expected.size()));
+				assertTrue(rules.removeRule(r));
+				expected.remove(r);
+			}
+			if (step == 100) {
+				early = rules.getRuleSet();
+				earlyRules = new ArrayList<>(expected);
+			}
+			if (step % 50 == 0) {
+				assertAgrees("step " + step, expected, rules.getRuleSet());
+			}
+		}
+		assertAgrees("final", expected, rules.getRuleSet());
+		// Far more removals than live rules have been purged since.
+		assertAgrees("old snapshot", earlyRules, early);
+		assertFalse(rules.removeRule(TextRuleParser.parse("ip action deny")));
+	}
+
+	@Test
+	public void testSnapshots() throws Exception {
+		List<IRule> first = new ArrayList<>(pool.subList(0, 100));
+		TupleSpaceClassifier base = new TupleSpaceClassifier(first);
+		IRule extra = TextRuleParser.parse("ip action deny");
+		List<IRule> second = new ArrayList<>(first);
+		second.add(extra);
+		IIncrementalClassifier added = base.withRuleAdded(second, extra);
+		List<IRule> third = new ArrayList<>(second);
+		third.remove(pool.get(0));
+		IIncrementalClassifier removed = added.withRuleRemoved(third, pool.get(0));
+		// Derived from a classifier that already has a successor.
+		IRule other = TextRuleParser.parse("udp action accept");
+		List<IRule> branch = new ArrayList<>(first);
+		branch.add(other);
+		IIncrementalClassifier branched = base.withRuleAdded(branch, other);
+
+		RuleSet firstLinear = new RuleSet.Builder().addRules(first).build();
+		RuleSet secondLinear = new RuleSet.Builder().addRules(second).build();
+		RuleSet thirdLinear = new RuleSet.Builder().addRules(third).build();
+		RuleSet branchLinear = new RuleSet.Builder().addRules(branch).build();
+		for (Packet p : packets) {
+			assertSame(firstLinear.checkRules(p), base.classify(p));
+			assertSame(secondLinear.checkRules(p), added.classify(p));
+			assertSame(thirdLinear.checkRules(p), removed.classify(p));
+			assertSame(branchLinear.checkRules(p), branched.classify(p));
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package org.redwater.fwsim.conntrack;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * States of a tracked connection, with how long a connection may stay
+ * idle in each state before it expires. The TCP states and timeouts
+ * follow the Linux connection tracker.
+ * @author ghelmer
+ */
+public enum ConnectionState {
+	TCP_SYN_SENT(120),
+	TCP_SYN_RECEIVED(60),
+	TCP_ESTABLISHED(432000),
+	TCP_FIN_WAIT(120),
+	TCP_LAST_ACK(30),
+	TCP_TIME_WAIT(120),
+	TCP_CLOSED(10),
+	UDP_UNREPLIED(30),
+	UDP_REPLIED(180);
+
+	private final long timeoutNanos;
+
+	private ConnectionState(long timeoutSeconds) {
+		timeoutNanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+	}
+
+	/**
+	 * Get the idle time after which a connection in this state expires.
+	 * @return timeout in nanoseconds
+	 */
+	public long getTimeoutNanos() {
+		return timeoutNanos;
+	}
+}
@@ -0,0 +1,382 @@
+package org.redwater.fwsim.conntrack;
+
+import java.util.Arrays;
+
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.layers.TCP;
+import org.redwater.fwsim.rules.IRule;
+
+/**
+ * Bounded table of tracked TCP and UDP connections. Each connection is
+ * keyed by its 5-tuple packed into two longs, with the endpoints in a
+ * fixed order so that both directions find the same entry.
+ * <p>
+ * The table is split into segments, each an open addressing hash table
+ * with linear probing and its own lock, so several threads can use the
+ * table at once. A segment never grows: when it is full new connections
+ * are not tracked. Expired entries are removed when they are found, and
+ * every access also sweeps a few slots of its segment, so idle
+ * connections are reclaimed without a separate pass over the table.
+ * @author ghelmer
+ */
+public class ConnectionTable {
+	/** Slots swept for expired entries on each access. */
+	private static final int SWEEP_STEP = 4;
+	/** Slots swept when a segment is full before giving up on an insert. */
+	private static final int FULL_SWEEP = 64;
+	/** Marks a used slot in the ports key, which also keeps it non-zero. */
+	private static final long USED = 1L << 63;
+
+	/** Entry flag: the originator's endpoint sorts after the responder's. */
+	private static final int ORIGIN_REVERSED = 0x01;
+	/** Entry flag: the originator has sent a FIN. */
+	private static final int FIN_FROM_ORIGINATOR = 0x02;
+	/** Entry flag: the responder has sent a FIN. */
+	private static final int FIN_FROM_RESPONDER = 0x04;
+
+	private static final ConnectionState[] STATES = ConnectionState.values();
+
+	/**
+	 * One open addressing table. Guarded by its own monitor.
+	 */
+	private static final class Segment {
+		private final long[] addressKeys;
+		private final long[] portKeys;
+		private final byte[] states;
+		private final byte[] flags;
+		private final long[] expires;
+		private final IRule[] verdicts;
+		private final int mask;
+		private final int limit;
+		private int size;
+		private int sweepCursor;
+
+		private Segment(int capacity) {
+			addressKeys = new long[capacity];
+			portKeys = new long[capacity];
+			states = new byte[capacity];
+			flags = new byte[capacity];
+			expires = new long[capacity];
+			verdicts = new IRule[capacity];
+			mask = capacity - 1;
+			limit = capacity - capacity / 4;
+		}
+	}
+
+	private final Segment[] segments;
+	private final int segmentShift;
+	private final int maxConnections;
+
+	/**
+	 * Construct a ConnectionTable.
+	 * @param maxConnections - maximum number of connections tracked at once
+	 */
+	public ConnectionTable(int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException(String.format("Invalid connection limit %d", maxConnections));
+		}
+		int segmentCount = Integer.highestOneBit(Math.max(1, Math.min(64, maxConnections / 1024)));
+		// Size each segment so that its share of the connections fills at most 3/4 of it.
+		int perSegment = (maxConnections + segmentCount - 1) / segmentCount;
+		int capacity = Integer.highestOneBit(Math.max(4, perSegment + perSegment / 3) - 1) << 1;
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(capacity);
+		}
+		segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Find the connection of a packet, advance its state, and return the
+	 * verdict of its first packet.
+	 * @param packet - IPv4 TCP or UDP header fields
+	 * @param tcpFlags - TCP flags of the packet, ignored for UDP
+	 * @param now - packet timestamp in nanoseconds
+	 * @return verdict of the connection, or null if the packet does not
+	 * belong to a tracked connection and must be checked against the rules
+	 */
+	public IRule lookup(IPacket packet, int tcpFlags, long now) {
+		boolean reversed = isReversed(packet);
+		long addressKey = addressKey(packet, reversed);
+		long portKey = portKey(packet, reversed);
+		Segment s = segmentFor(addressKey, portKey);
+		synchronized (s) {
+			sweep(s, now, SWEEP_STEP);
+			int i = find(s, addressKey, portKey);
+			if (i < 0) {
+				return null;
+			}
+			if (now >= s.expires[i]) {
+				remove(s, i);
+				return null;
+			}
+			boolean fromOriginator = reversed == ((s.flags[i] & ORIGIN_REVERSED) != 0);
+			ConnectionState state = STATES[s.states[i]];
+			if (packet.getProtocol() == IPacket.PROTOCOL_TCP) {
+				if ((tcpFlags & (TCP.FLAG_SYN | TCP.FLAG_ACK | TCP.FLAG_RST)) == TCP.FLAG_SYN
+						&& (state == ConnectionState.TCP_TIME_WAIT || state == ConnectionState.TCP_CLOSED)) {
+					// The 5-tuple is being reused for a new connection.
+					remove(s, i);
+					return null;
+				}
+				state = nextTcpState(s, i, state, tcpFlags, fromOriginator);
+			} else if (!fromOriginator) {
+				state = ConnectionState.UDP_REPLIED;
+			}
+			s.states[i] = (byte)state.ordinal();
+			s.expires[i] = now + state.getTimeoutNanos();
+			return s.verdicts[i];
+		}
+	}
+
+	/**
+	 * Start tracking the connection of a packet that was checked against
+	 * the rules. If another thread added the connection first, its entry
+	 * is kept.
+	 * @param packet - first IPv4 TCP or UDP packet of the connection
+	 * @param tcpFlags - TCP flags of the packet, ignored for UDP
+	 * @param now - packet timestamp in nanoseconds
+	 * @param verdict - rule that matched the packet
+	 * @return true if the connection is tracked, false if the table is full
+	 */
+	public boolean insert(IPacket packet, int tcpFlags, long now, IRule verdict) {
+		ConnectionState state;
+		if (packet.getProtocol() == IPacket.PROTOCOL_TCP) {
+			if ((tcpFlags & TCP.FLAG_RST) != 0) {
+				return false;
+			}
+			// Connections already open when the capture started are picked up as established.
+			state = (tcpFlags & (TCP.FLAG_SYN | TCP.FLAG_ACK)) == TCP.FLAG_SYN
+					? ConnectionState.TCP_SYN_SENT : ConnectionState.TCP_ESTABLISHED;
+		} else if (packet.getProtocol() == IPacket.PROTOCOL_UDP) {
+			state = ConnectionState.UDP_UNREPLIED;
+		} else {
+			return false;
+		}
+		boolean reversed = isReversed(packet);
+		long addressKey = addressKey(packet, reversed);
+		long portKey = portKey(packet, reversed);
+		Segment s = segmentFor(addressKey, portKey);
+		synchronized (s) {
+			if (find(s, addressKey, portKey) >= 0) {
+				return true;
+			}
+			if (s.size >= s.limit) {
+				sweep(s, now, FULL_SWEEP);
+				if (s.size >= s.limit) {
+					return false;
+				}
+			}
+			int i = (int)hash(addressKey, portKey) & s.mask;
+			while (s.portKeys[i] != 0) {
+				i = (i + 1) & s.mask;
+			}
+			s.addressKeys[i] = addressKey;
+			s.portKeys[i] = portKey;
+			s.states[i] = (byte)state.ordinal();
+			s.flags[i] = (byte)(reversed ? ORIGIN_REVERSED : 0);
+			s.expires[i] = now + state.getTimeoutNanos();
+			s.verdicts[i] = verdict;
+			s.size++;
+			return true;
+		}
+	}
+
+	/**
+	 * Get the state of the connection a packet belongs to, without
+	 * changing it.
+	 * @param packet - IPv4 TCP or UDP header fields
+	 * @return state, or null if the connection is not tracked
+	 */
+	public ConnectionState getState(IPacket packet) {
+		boolean reversed = isReversed(packet);
+		long addressKey = addressKey(packet, reversed);
+		long portKey = portKey(packet, reversed);
+		Segment s = segmentFor(addressKey, portKey);
+		synchronized (s) {
+			int i = find(s, addressKey, portKey);
+			return i < 0 ? null : STATES[s.states[i]];
+		}
+	}
+
+	/**
+	 * Get the number of tracked connections, including expired ones not
+	 * yet swept.
+	 * @return number of connections
+	 */
+	public int size() {
+		int n = 0;
+		for (Segment s : segments) {
+			synchronized (s) {
+				n += s.size;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * Get the maximum number of connections this table was sized for.
+	 * @return number of connections
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Forget every connection, for example after the rules change.
+	 */
+	public void clear() {
+		for (Segment s : segments) {
+			synchronized (s) {
+				Arrays.fill(s.portKeys, 0);
+				Arrays.fill(s.verdicts, null);
+				s.size = 0;
+			}
+		}
+	}
+
+	/**
+	 * Advance the TCP state of an entry for a packet.
+	 * @param s - segment of the entry
+	 * @param i - slot of the entry
+	 * @param state - current state
+	 * @param tcpFlags - TCP flags of the packet
+	 * @param fromOriginator - true if the packet was sent by the originator
+	 * @return new state
+	 */
+	private static ConnectionState nextTcpState(Segment s, int i, ConnectionState state,
+			int tcpFlags, boolean fromOriginator) {
+		if ((tcpFlags & TCP.FLAG_RST) != 0) {
+			return ConnectionState.TCP_CLOSED;
+		}
+		if ((tcpFlags & TCP.FLAG_FIN) != 0) {
+			s.flags[i] |= fromOriginator ? FIN_FROM_ORIGINATOR : FIN_FROM_RESPONDER;
+			if ((s.flags[i] & (FIN_FROM_ORIGINATOR | FIN_FROM_RESPONDER)) == (FIN_FROM_ORIGINATOR | FIN_FROM_RESPONDER)) {
+				return ConnectionState.TCP_LAST_ACK;
+			}
+			return ConnectionState.TCP_FIN_WAIT;
+		}
+		boolean syn = (tcpFlags & TCP.FLAG_SYN) != 0;
+		boolean ack = (tcpFlags & TCP.FLAG_ACK) != 0;
+		switch (state) {
+		case TCP_SYN_SENT:
+			return !fromOriginator && syn && ack ? ConnectionState.TCP_SYN_RECEIVED : state;
+		case TCP_SYN_RECEIVED:
+			return fromOriginator && ack && !syn ? ConnectionState.TCP_ESTABLISHED : state;
+		case TCP_LAST_ACK:
+			return ack ? ConnectionState.TCP_TIME_WAIT : state;
+		default:
+			return state;
+		}
+	}
+
+	/**
+	 * Remove expired entries from the next few slots of a segment.
+	 * @param s - segment to sweep, locked by the caller
+	 * @param now - current time in nanoseconds
+	 * @param slots - number of slots to check
+	 */
+	private static void sweep(Segment s, long now, int slots) {
+		for (int n = 0; n < slots && s.size > 0; n++) {
+			int i = s.sweepCursor;
+			if (s.portKeys[i] != 0 && now >= s.expires[i]) {
+				// An entry may shift back into this slot, so check it again.
+				remove(s, i);
+			} else {
+				s.sweepCursor = (i + 1) & s.mask;
+			}
+		}
+	}
+
+	/**
+	 * Find the slot of a key.
+	 * @param s - segment to search, locked by the caller
+	 * @param addressKey - packed addresses
+	 * @param portKey - packed ports and protocol
+	 * @return slot, or -1 if absent
+	 */
+	private static int find(Segment s, long addressKey, long portKey) {
+		int i = (int)hash(addressKey, portKey) & s.mask;
+		while (s.portKeys[i] != 0) {
+			if (s.portKeys[i] == portKey && s.addressKeys[i] == addressKey) {
+				return i;
+			}
+			i = (i + 1) & s.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Remove the entry in a slot, shifting later entries of the same probe
+	 * run back so that no tombstone is needed.
+	 * @param s - segment of the entry, locked by the caller
+	 * @param i - slot to empty
+	 */
+	private static void remove(Segment s, int i) {
+		s.size--;
+		int hole = i;
+		int j = i;
+		while (true) {
+			j = (j + 1) & s.mask;
+			if (s.portKeys[j] == 0) {
+				break;
+			}
+			int home = (int)hash(s.addressKeys[j], s.portKeys[j]) & s.mask;
+			// Move the entry unless its home slot lies cyclically in (hole, j].
+			if (((j - home) & s.mask) >= ((j - hole) & s.mask)) {
+				s.addressKeys[hole] = s.addressKeys[j];
+				s.portKeys[hole] = s.portKeys[j];
+				s.states[hole] = s.states[j];
+				s.flags[hole] = s.flags[j];
+				s.expires[hole] = s.expires[j];
+				s.verdicts[hole] = s.verdicts[j];
+				hole = j;
+			}
+		}
+		s.portKeys[hole] = 0;
+		s.verdicts[hole] = null;
+	}
+
+	private Segment segmentFor(long addressKey, long portKey) {
+		return segments.length == 1 ? segments[0] : segments[(int)(hash(addressKey, portKey) >>> segmentShift)];
+	}
+
+	/**
+	 * Determine if the packet's source endpoint sorts after its destination.
+	 * @param packet - header fields
+	 * @return true if the endpoints must be swapped to form the key
+	 */
+	private static boolean isReversed(IPacket packet) {
+		long src = ((packet.getSrcAddr() & 0xFFFFFFFFL) << 16) | packet.getSrcPort();
+		long dst = ((packet.getDstAddr() & 0xFFFFFFFFL) << 16) | packet.getDstPort();
+		return src > dst;
+	}
+
+	private static long addressKey(IPacket packet, boolean reversed) {
+		long src = packet.getSrcAddr() & 0xFFFFFFFFL;
+		long dst = packet.getDstAddr() & 0xFFFFFFFFL;
+		return reversed ? (dst << 32) | src : (src << 32) | dst;
+	}
+
+	private static long portKey(IPacket packet, boolean reversed) {
+		long src = packet.getSrcPort();
+		long dst = packet.getDstPort();
+		long ports = reversed ? (dst << 16) | src : (src << 16) | dst;
+		return USED | ((long)packet.getProtocol() << 32) | ports;
+	}
+
+	/**
+	 * Mix the two key words into a hash; the low bits pick a slot and the
+	 * high bits a segment.
+	 */
+	private static long hash(long addressKey, long portKey) {
+		long h = addressKey * 0x9E3779B97F4A7C15L + portKey;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
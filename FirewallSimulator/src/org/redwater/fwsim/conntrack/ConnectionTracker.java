@@ -0,0 +1,172 @@
+package org.redwater.fwsim.conntrack;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.TcpPacket;
+import org.redwater.fwsim.classifiers.PacketKey;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.layers.TCP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+
+/**
+ * Stateful front end to a RuleList. The first packet of a TCP or UDP
+ * connection is checked against the rules, and if it is accepted the
+ * connection is tracked: every later packet of the connection, in
+ * either direction, gets the same verdict without checking the rules.
+ * Packets that are denied, rejected or unmatched do not open a
+ * connection, so they are checked against the rules every time.
+ * <p>
+ * Time is taken from the packet timestamps, so a capture replays the
+ * same way however fast it is read. Safe for concurrent use. When the
+ * rules change every tracked connection is forgotten, so that flows the
+ * new rules deny are checked again; a packet checked while the rules
+ * are being swapped may still open a connection with the old verdict.
+ * @author ghelmer
+ */
+public class ConnectionTracker {
+	/** Default maximum number of tracked connections. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 1 << 18;
+
+	private final RuleList rules;
+	private final ConnectionTable table;
+	private final AtomicLong generation;
+	private final LongAdder trackedPackets;
+	private final LongAdder checkedPackets;
+	private final LongAdder untrackedConnections;
+
+	/**
+	 * Construct a ConnectionTracker with the default table size.
+	 * @param rules - rules to check new connections against
+	 */
+	public ConnectionTracker(RuleList rules) {
+		this(rules, DEFAULT_MAX_CONNECTIONS);
+	}
+
+	/**
+	 * Construct a ConnectionTracker.
+	 * @param rules - rules to check new connections against
+	 * @param maxConnections - maximum number of connections tracked at once
+	 */
+	public ConnectionTracker(RuleList rules, int maxConnections) {
+		this.rules = rules;
+		table = new ConnectionTable(maxConnections);
+		generation = new AtomicLong(rules.getGeneration());
+		trackedPackets = new LongAdder();
+		checkedPackets = new LongAdder();
+		untrackedConnections = new LongAdder();
+	}
+
+	/**
+	 * Find the verdict for a packet header view.
+	 * @param packet - packet header view
+	 * @param timestampNanos - capture time of the packet
+	 * @return rule that matched the packet or its connection, or null
+	 */
+	public IRule checkRules(TCP packet, long timestampNanos) {
+		int flags = packet.isTcp() ? packet.getFlags() : 0;
+		IRule r = lookup(packet, flags, timestampNanos);
+		if (r != null) {
+			return r;
+		}
+		checkedPackets.increment();
+		r = rules.checkRules(packet);
+		if (r != null) {
+			track(packet, flags, timestampNanos, r, r.getAction(packet));
+		}
+		return r;
+	}
+
+	/**
+	 * Find the verdict for a pcap4j packet.
+	 * @param packet - packet to check
+	 * @param timestampNanos - capture time of the packet
+	 * @return rule that matched the packet or its connection, or null
+	 */
+	public IRule checkRules(Packet packet, long timestampNanos) {
+		PacketKey key = PacketKey.of(packet);
+		int flags = 0;
+		TcpPacket tcpPacket = packet.get(TcpPacket.class);
+		if (tcpPacket != null) {
+			TcpPacket.TcpHeader h = tcpPacket.getHeader();
+			flags = (h.getFin() ? TCP.FLAG_FIN : 0) | (h.getSyn() ? TCP.FLAG_SYN : 0)
+					| (h.getRst() ? TCP.FLAG_RST : 0) | (h.getAck() ? TCP.FLAG_ACK : 0);
+		}
+		IRule r = lookup(key, flags, timestampNanos);
+		if (r != null) {
+			return r;
+		}
+		checkedPackets.increment();
+		r = rules.checkRules(packet);
+		if (r != null) {
+			track(key, flags, timestampNanos, r, r.getAction(packet));
+		}
+		return r;
+	}
+
+	private IRule lookup(IPacket packet, int flags, long now) {
+		long current = rules.getGeneration();
+		long seen = generation.get();
+		if (current != seen && generation.compareAndSet(seen, current)) {
+			table.clear();
+		}
+		if (!isTrackable(packet)) {
+			return null;
+		}
+		IRule r = table.lookup(packet, flags, now);
+		if (r != null) {
+			trackedPackets.increment();
+		}
+		return r;
+	}
+
+	private void track(IPacket packet, int flags, long now, IRule rule, RuleActions action) {
+		if (action == RuleActions.ACCEPT && isTrackable(packet)
+				&& !table.insert(packet, flags, now, rule)) {
+			untrackedConnections.increment();
+		}
+	}
+
+	private static boolean isTrackable(IPacket packet) {
+		return packet.isIpV4()
+				&& (packet.getProtocol() == IPacket.PROTOCOL_TCP || packet.getProtocol() == IPacket.PROTOCOL_UDP);
+	}
+
+	/**
+	 * Forget every connection.
+	 */
+	public void clear() {
+		table.clear();
+	}
+
+	public ConnectionTable getTable() {
+		return table;
+	}
+
+	/**
+	 * Get the number of packets whose verdict came from a tracked connection.
+	 * @return number of packets
+	 */
+	public long getTrackedPackets() {
+		return trackedPackets.sum();
+	}
+
+	/**
+	 * Get the number of packets checked against the rules.
+	 * @return number of packets
+	 */
+	public long getCheckedPackets() {
+		return checkedPackets.sum();
+	}
+
+	/**
+	 * Get the number of accepted connections not tracked because the table was full.
+	 * @return number of connections
+	 */
+	public long getUntrackedConnections() {
+		return untrackedConnections.sum();
+	}
+}
@@ -0,0 +1,135 @@
+package org.redwater.fwsim.conntrack.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.classifiers.PacketKey;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.conntrack.ConnectionState;
+import org.redwater.fwsim.conntrack.ConnectionTracker;
+import org.redwater.fwsim.layers.TCP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+
+public class ConnectionTrackerTest {
+	private static final int CLIENT = TestTraffic.ipV4("10.1.2.3");
+	private static final int SERVER = TestTraffic.ipV4("192.168.1.10");
+	private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+	private RuleList rules;
+
+	@Before
+	public void setUp() throws Exception {
+		rules = new RuleList();
+		rules.addRule("tcp dstPort 80 action accept");
+		rules.addRule("udp dstPort 53 action accept");
+		rules.addRule("ip srcAddress 0.0.0.0/0 action deny");
+	}
+
+	private static Packet tcp(boolean fromClient, int flags) {
+		return fromClient
+				? TestTraffic.buildIpV4Packet(IpNumber.TCP, CLIENT, SERVER, 40000, 80, flags)
+				: TestTraffic.buildIpV4Packet(IpNumber.TCP, SERVER, CLIENT, 80, 40000, flags);
+	}
+
+	private static RuleActions check(ConnectionTracker tracker, Packet p, long now) {
+		IRule r = tracker.checkRules(p, now);
+		return r == null ? null : r.getAction(p);
+	}
+
+	@Test
+	public void testTcp() {
+		ConnectionTracker tracker = new ConnectionTracker(rules);
+		Packet syn = tcp(true, TCP.FLAG_SYN);
+		PacketKey key = PacketKey.of(syn);
+		assertEquals(RuleActions.ACCEPT, check(tracker, syn, SECOND));
+		assertEquals(ConnectionState.TCP_SYN_SENT, tracker.getTable().getState(key));
+		// The reply does not match the accept rule on its own.
+		assertEquals(RuleActions.DENY, rules.checkRules(tcp(false, TCP.FLAG_SYN | TCP.FLAG_ACK)).getAction(syn));
+		assertEquals(RuleActions.ACCEPT, check(tracker, tcp(false, TCP.FLAG_SYN | TCP.FLAG_ACK), SECOND));
+		assertEquals(ConnectionState.TCP_SYN_RECEIVED, tracker.getTable().getState(key));
+		assertEquals(RuleActions.ACCEPT, check(tracker, tcp(true, TCP.FLAG_ACK), SECOND));
+		assertEquals(ConnectionState.TCP_ESTABLISHED, tracker.getTable().getState(key));
+		assertEquals(RuleActions.ACCEPT, check(tracker, tcp(false, TCP.FLAG_ACK | TCP.FLAG_FIN), 2 * SECOND));
+		assertEquals(ConnectionState.TCP_FIN_WAIT, tracker.getTable().getState(key));
+		assertEquals(RuleActions.ACCEPT, check(tracker, tcp(true, TCP.FLAG_ACK | TCP.FLAG_FIN), 2 * SECOND));
+		assertEquals(ConnectionState.TCP_LAST_ACK, tracker.getTable().getState(key));
+		assertEquals(RuleActions.ACCEPT, check(tracker, tcp(false, TCP.FLAG_ACK), 2 * SECOND));
+		assertEquals(ConnectionState.TCP_TIME_WAIT, tracker.getTable().getState(key));
+		assertEquals(1, tracker.getCheckedPackets());
+		assertEquals(5, tracker.getTrackedPackets());
+
+		// A new SYN on the same 5-tuple is a new connection.
+		assertEquals(RuleActions.ACCEPT, check(tracker, syn, 3 * SECOND));
+		assertEquals(ConnectionState.TCP_SYN_SENT, tracker.getTable().getState(key));
+		assertEquals(2, tracker.getCheckedPackets());
+		assertEquals(RuleActions.ACCEPT, check(tracker, tcp(false, TCP.FLAG_RST), 3 * SECOND));
+		assertEquals(ConnectionState.TCP_CLOSED, tracker.getTable().getState(key));
+		// Closed connections expire.
+		assertEquals(RuleActions.DENY, check(tracker, tcp(false, TCP.FLAG_ACK), 20 * SECOND));
+		assertNull(tracker.getTable().getState(key));
+	}
+
+	@Test
+	public void testDeniedNotTracked() {
+		ConnectionTracker tracker = new ConnectionTracker(rules);
+		Packet syn = tcp(false, TCP.FLAG_SYN);
+		assertEquals(RuleActions.DENY, check(tracker, syn, SECOND));
+		assertEquals(RuleActions.DENY, check(tracker, tcp(false, TCP.FLAG_ACK), SECOND));
+		assertEquals(0, tracker.getTable().size());
+		assertEquals(2, tracker.getCheckedPackets());
+	}
+
+	@Test
+	public void testUdpExpiry() {
+		ConnectionTracker tracker = new ConnectionTracker(rules);
+		Packet query = TestTraffic.buildIpV4Packet(IpNumber.UDP, CLIENT, SERVER, 5353, 53);
+		Packet answer = TestTraffic.buildIpV4Packet(IpNumber.UDP, SERVER, CLIENT, 53, 5353);
+		PacketKey key = PacketKey.of(query);
+		assertEquals(RuleActions.ACCEPT, check(tracker, query, SECOND));
+		assertEquals(ConnectionState.UDP_UNREPLIED, tracker.getTable().getState(key));
+		assertEquals(RuleActions.ACCEPT, check(tracker, answer, 2 * SECOND));
+		assertEquals(ConnectionState.UDP_REPLIED, tracker.getTable().getState(key));
+		assertEquals(RuleActions.ACCEPT, check(tracker, answer, 100 * SECOND));
+		// Idle past the replied timeout, the answer is checked against the rules again.
+		assertEquals(RuleActions.DENY, check(tracker, answer, 300 * SECOND));
+		assertEquals(2, tracker.getCheckedPackets());
+	}
+
+	@Test
+	public void testBounded() {
+		ConnectionTracker tracker = new ConnectionTracker(rules, 100);
+		for (int i = 0; i < 1000; i++) {
+			check(tracker, TestTraffic.buildIpV4Packet(IpNumber.UDP, CLIENT + i, SERVER, 5353, 53), SECOND);
+		}
+		assertTrue(tracker.getTable().size() <= 200);
+		assertTrue(tracker.getUntrackedConnections() > 0);
+		// Once the first connections expire, the incremental sweep makes room.
+		long untracked = tracker.getUntrackedConnections();
+		for (int i = 0; i < 100; i++) {
+			check(tracker, TestTraffic.buildIpV4Packet(IpNumber.UDP, SERVER + i, CLIENT, 5353, 53), 100 * SECOND);
+		}
+		assertEquals(untracked, tracker.getUntrackedConnections());
+	}
+
+	@Test
+	public void testView() {
+		ConnectionTracker tracker = new ConnectionTracker(rules);
+		TCP view = new TCP();
+		byte[] raw = tcp(true, TCP.FLAG_SYN).getRawData();
+		assertEquals(RuleActions.ACCEPT, tracker.checkRules(view.wrap(ByteBuffer.wrap(raw), 0, raw.length), SECOND)
+				.getAction(view));
+		raw = tcp(false, TCP.FLAG_SYN | TCP.FLAG_ACK).getRawData();
+		assertEquals(RuleActions.ACCEPT, tracker.checkRules(view.wrap(ByteBuffer.wrap(raw), 0, raw.length), SECOND)
+				.getAction(view));
+		assertEquals(ConnectionState.TCP_SYN_RECEIVED, tracker.getTable().getState(view));
+		assertEquals(1, tracker.getCheckedPackets());
+	}
+}
@@ -1,4 +1,403 @@
 package org.redwater.fwsim.layers;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of an IPv4 or IPv6 packet in a frame buffer. Nothing
+ * is copied or decoded when a frame is wrapped: every field is read
+ * from its fixed offset in the buffer when asked for, so one IP object
+ * can be reused for every frame of a capture without allocating. The
+ * only exception is the chain of IPv6 extension headers, which is
+ * walked once per packet on first use.
+ * @author ghelmer
+ */
 public class IP implements IPacket {
+	/** pcap link type of Ethernet frames. */
+	public static final int LINKTYPE_ETHERNET = 1;
+	/** pcap link type of raw IP packets, as written by most platforms. */
+	public static final int LINKTYPE_RAW = 101;
+	/** pcap link type of raw IP packets, as written by OpenBSD. */
+	public static final int LINKTYPE_RAW_OPENBSD = 12;
+	/** pcap link type of raw IPv4 packets. */
+	public static final int LINKTYPE_IPV4 = 228;
+	/** pcap link type of raw IPv6 packets. */
+	public static final int LINKTYPE_IPV6 = 229;
+	/** pcap link type of Linux "cooked" capture frames. */
+	public static final int LINKTYPE_LINUX_SLL = 113;
+	public static final int ETHERTYPE_IPV4 = 0x0800;
+	public static final int ETHERTYPE_IPV6 = 0x86DD;
+	public static final int ETHERTYPE_VLAN = 0x8100;
+	public static final int ETHERTYPE_QINQ = 0x88A8;
+	private static final int ETHERNET_HEADER_LENGTH = 14;
+	private static final int LINUX_SLL_HEADER_LENGTH = 16;
+	private static final int VLAN_TAG_LENGTH = 4;
+	private static final int IPV4_MIN_HEADER_LENGTH = 20;
+	private static final int IPV6_HEADER_LENGTH = 40;
+	private static final int IPV6_HOP_BY_HOP = 0;
+	private static final int IPV6_ROUTING = 43;
+	private static final int IPV6_FRAGMENT = 44;
+	private static final int IPV6_AUTHENTICATION = 51;
+	private static final int IPV6_DESTINATION_OPTIONS = 60;
+	private static final int TCP_MIN_HEADER_LENGTH = 20;
+	private static final int UDP_HEADER_LENGTH = 8;
+
+	private ByteBuffer buffer;
+	private int offset;
+	private int length;
+	/** True once the IPv6 extension headers of this packet were walked. */
+	private boolean walked;
+	/** Length of the IPv6 header and its extension headers. */
+	private int ipV6HeaderLength;
+	/** Upper layer protocol after the IPv6 extension headers. */
+	private int ipV6Protocol;
+	private boolean ipV6LaterFragment;
+
+	/**
+	 * Construct an IP view that is not yet wrapping a packet.
+	 */
+	public IP() {
+		buffer = null;
+		offset = 0;
+		length = 0;
+		walked = false;
+	}
+
+	/**
+	 * Wrap an IPv4 or IPv6 packet with no link layer header.
+	 * @param buffer - buffer holding the frame
+	 * @param offset - absolute offset of the IP header in the buffer
+	 * @param length - number of bytes captured from the IP header on
+	 * @return this view
+	 */
+	public IP wrap(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		this.offset = offset;
+		this.length = length;
+		walked = false;
+		return this;
+	}
+
+	/**
+	 * Wrap an Ethernet frame, skipping any 802.1Q or 802.1ad VLAN tags.
+	 * A frame that does not carry IPv4 or IPv6 is wrapped as a non-IP
+	 * packet.
+	 * @param buffer - buffer holding the frame
+	 * @param offset - absolute offset of the Ethernet header in the buffer
+	 * @param length - number of bytes captured from the Ethernet header on
+	 * @return this view
+	 */
+	public IP wrapEthernet(ByteBuffer buffer, int offset, int length) {
+		this.buffer = buffer;
+		walked = false;
+		int typeOffset = offset + ETHERNET_HEADER_LENGTH - 2;
+		int end = offset + length;
+		while (typeOffset + 2 <= end) {
+			int etherType = getUnsignedShort(typeOffset);
+			if (etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) {
+				typeOffset += VLAN_TAG_LENGTH;
+				continue;
+			}
+			if (etherType == ETHERTYPE_IPV4 || etherType == ETHERTYPE_IPV6) {
+				this.offset = typeOffset + 2;
+				this.length = end - this.offset;
+				return this;
+			}
+			break;
+		}
+		this.offset = offset;
+		this.length = 0;
+		return this;
+	}
+
+	/**
+	 * Wrap a captured frame according to its pcap link type. A frame of
+	 * an unsupported link type is wrapped as a non-IP packet.
+	 * @param linkType - pcap link type of the capture
+	 * @param buffer - buffer holding the frame
+	 * @param offset - absolute offset of the frame in the buffer
+	 * @param length - number of bytes captured
+	 * @return this view
+	 */
+	public IP wrapFrame(int linkType, ByteBuffer buffer, int offset, int length) {
+		switch (linkType) {
+		case LINKTYPE_ETHERNET:
+			return wrapEthernet(buffer, offset, length);
+		case LINKTYPE_RAW:
+		case LINKTYPE_RAW_OPENBSD:
+		case LINKTYPE_IPV4:
+		case LINKTYPE_IPV6:
+			return wrap(buffer, offset, length);
+		case LINKTYPE_LINUX_SLL:
+			this.buffer = buffer;
+			if (length >= LINUX_SLL_HEADER_LENGTH && (getUnsignedShort(offset + 14) == ETHERTYPE_IPV4
+					|| getUnsignedShort(offset + 14) == ETHERTYPE_IPV6)) {
+				return wrap(buffer, offset + LINUX_SLL_HEADER_LENGTH, length - LINUX_SLL_HEADER_LENGTH);
+			}
+			return wrap(buffer, offset, 0);
+		default:
+			return wrap(buffer, offset, 0);
+		}
+	}
+
+	/**
+	 * Read an unsigned byte from the buffer.
+	 * @param index - absolute index
+	 * @return byte value
+	 */
+	protected int getUnsignedByte(int index) {
+		return buffer.get(index) & 0xFF;
+	}
+
+	/**
+	 * Read an unsigned network order short from the buffer.
+	 * @param index - absolute index
+	 * @return short value
+	 */
+	protected int getUnsignedShort(int index) {
+		return ((buffer.get(index) & 0xFF) << 8) | (buffer.get(index + 1) & 0xFF);
+	}
+
+	/**
+	 * Read a network order int from the buffer.
+	 * @param index - absolute index
+	 * @return int value
+	 */
+	protected int getInt(int index) {
+		return ((buffer.get(index) & 0xFF) << 24) | ((buffer.get(index + 1) & 0xFF) << 16)
+				| ((buffer.get(index + 2) & 0xFF) << 8) | (buffer.get(index + 3) & 0xFF);
+	}
+
+	/**
+	 * Read a network order long from the buffer.
+	 * @param index - absolute index
+	 * @return long value
+	 */
+	protected long getLong(int index) {
+		return ((long)getInt(index) << 32) | (getInt(index + 4) & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Determine if this is an IPv4 packet.
+	 * @return true if the packet has a valid IPv4 header
+	 */
+	public boolean isIpV4() {
+		if (length < IPV4_MIN_HEADER_LENGTH) {
+			return false;
+		}
+		int versionAndLength = getUnsignedByte(offset);
+		int headerLength = (versionAndLength & 0x0F) * 4;
+		return (versionAndLength >>> 4) == 4 && headerLength >= IPV4_MIN_HEADER_LENGTH && headerLength <= length;
+	}
+
+	/**
+	 * Determine if this is an IPv6 packet.
+	 * @return true if the packet has a complete IPv6 header
+	 */
+	public boolean isIpV6() {
+		return length >= IPV6_HEADER_LENGTH && (getUnsignedByte(offset) >>> 4) == 6;
+	}
+
+	/**
+	 * Determine if the wrapped packet claims to be IPv6, before checking
+	 * that its header was captured.
+	 * @return true if the version field is 6
+	 */
+	private boolean isVersion6() {
+		return length > 0 && (getUnsignedByte(offset) >>> 4) == 6;
+	}
+
+	/**
+	 * Walk the IPv6 extension headers to the upper layer header. A chain
+	 * that runs past the captured bytes leaves the protocol undecoded.
+	 */
+	private void walkIpV6() {
+		walked = true;
+		if (length < IPV6_HEADER_LENGTH) {
+			ipV6HeaderLength = length;
+			ipV6Protocol = PROTOCOL_UNDECODED;
+			ipV6LaterFragment = false;
+			return;
+		}
+		int end = offset + length;
+		int next = getUnsignedByte(offset + 6);
+		int position = offset + IPV6_HEADER_LENGTH;
+		boolean later = false;
+		while (next == IPV6_HOP_BY_HOP || next == IPV6_ROUTING || next == IPV6_FRAGMENT
+				|| next == IPV6_AUTHENTICATION || next == IPV6_DESTINATION_OPTIONS) {
+			if (position + 8 > end) {
+				next = PROTOCOL_UNDECODED;
+				position = end;
+				break;
+			}
+			int headerNext = getUnsignedByte(position);
+			if (next == IPV6_FRAGMENT) {
+				later |= (getUnsignedShort(position + 2) & 0xFFF8) != 0;
+				position += 8;
+			} else if (next == IPV6_AUTHENTICATION) {
+				position += (getUnsignedByte(position + 1) + 2) * 4;
+			} else {
+				position += (getUnsignedByte(position + 1) + 1) * 8;
+			}
+			next = headerNext;
+		}
+		ipV6HeaderLength = Math.min(position, end) - offset;
+		ipV6Protocol = next;
+		ipV6LaterFragment = later;
+	}
+
+	/**
+	 * Get the IP header length, including any IPv6 extension headers.
+	 * @return header length in bytes
+	 */
+	public int getHeaderLength() {
+		int versionAndLength = getUnsignedByte(offset);
+		if ((versionAndLength >>> 4) == 6) {
+			if (!walked) {
+				walkIpV6();
+			}
+			return ipV6HeaderLength;
+		}
+		return (versionAndLength & 0x0F) * 4;
+	}
+
+	/**
+	 * Get the length of the IP packet from its header.
+	 * @return length of the IP packet in bytes
+	 */
+	public int getTotalLength() {
+		if (isVersion6()) {
+			return IPV6_HEADER_LENGTH + getUnsignedShort(offset + 4);
+		}
+		return getUnsignedShort(offset + 2);
+	}
+
+	/**
+	 * Get the protocol field of the IPv4 header, or the upper layer
+	 * protocol after the IPv6 extension headers.
+	 * @return IP protocol number
+	 */
+	public int getIpProtocol() {
+		if (isVersion6()) {
+			if (!walked) {
+				walkIpV6();
+			}
+			return ipV6Protocol;
+		}
+		return getUnsignedByte(offset + 9);
+	}
+
+	/**
+	 * Determine if this is a later fragment of a fragmented datagram,
+	 * which does not start with a transport header.
+	 * @return true if the fragment offset is not zero
+	 */
+	public boolean isLaterFragment() {
+		if (isVersion6()) {
+			if (!walked) {
+				walkIpV6();
+			}
+			return ipV6LaterFragment;
+		}
+		return (getUnsignedShort(offset + 6) & 0x1FFF) != 0;
+	}
+
+	/**
+	 * Get the absolute offset of the transport header in the buffer.
+	 * @return offset of the TCP or UDP header
+	 */
+	protected int getTransportOffset() {
+		return offset + getHeaderLength();
+	}
+
+	/**
+	 * Get the number of captured bytes from the transport header on.
+	 * @return number of bytes
+	 */
+	protected int getTransportLength() {
+		return length - getHeaderLength();
+	}
+
+	/**
+	 * Get the absolute offset just past the headers the rules look at:
+	 * the IP header, any IPv6 extension headers, and a captured TCP or
+	 * UDP header.
+	 * @return offset in the buffer
+	 */
+	public int getHeadersEnd() {
+		int protocol = getProtocol();
+		if (protocol == PROTOCOL_TCP) {
+			return getTransportOffset() + TCP_MIN_HEADER_LENGTH;
+		} else if (protocol == PROTOCOL_UDP) {
+			return getTransportOffset() + UDP_HEADER_LENGTH;
+		}
+		return getTransportOffset();
+	}
+
+	/**
+	 * Get the protocol of the packet: PROTOCOL_TCP or PROTOCOL_UDP only
+	 * if the transport header was captured, otherwise the IP protocol
+	 * number or PROTOCOL_UNDECODED.
+	 * @return protocol number
+	 */
+	public int getProtocol() {
+		int protocol = getIpProtocol();
+		if (protocol == PROTOCOL_TCP) {
+			if (isLaterFragment() || getTransportLength() < TCP_MIN_HEADER_LENGTH) {
+				return PROTOCOL_UNDECODED;
+			}
+		} else if (protocol == PROTOCOL_UDP) {
+			if (isLaterFragment() || getTransportLength() < UDP_HEADER_LENGTH) {
+				return PROTOCOL_UNDECODED;
+			}
+		}
+		return protocol;
+	}
+
+	public int getSrcAddr() {
+		return getInt(offset + 12);
+	}
+
+	public int getDstAddr() {
+		return getInt(offset + 16);
+	}
+
+	public long getSrcAddrHigh() {
+		return getLong(offset + 8);
+	}
+
+	public long getSrcAddrLow() {
+		return getLong(offset + 16);
+	}
+
+	public long getDstAddrHigh() {
+		return getLong(offset + 24);
+	}
+
+	public long getDstAddrLow() {
+		return getLong(offset + 32);
+	}
+
+	/**
+	 * Get the TCP or UDP source port.
+	 * @return port, or 0 for other protocols
+	 */
+	public int getSrcPort() {
+		int protocol = getProtocol();
+		if (protocol != PROTOCOL_TCP && protocol != PROTOCOL_UDP) {
+			return 0;
+		}
+		return getUnsignedShort(getTransportOffset());
+	}
+
+	/**
+	 * Get the TCP or UDP destination port.
+	 * @return port, or 0 for other protocols
+	 */
+	public int getDstPort() {
+		int protocol = getProtocol();
+		if (protocol != PROTOCOL_TCP && protocol != PROTOCOL_UDP) {
+			return 0;
+		}
+		return getUnsignedShort(getTransportOffset() + 2);
+	}
 }
@@ -1,4 +1,86 @@
 package org.redwater.fwsim.layers;
 
+/**
+ * Header fields of a packet that rules match on, as primitives.
+ * @author ghelmer
+ */
 public interface IPacket {
+	/** IP protocol number of TCP. */
+	public static final int PROTOCOL_TCP = 6;
+	/** IP protocol number of UDP. */
+	public static final int PROTOCOL_UDP = 17;
+	/**
+	 * Protocol value used for an IP packet that claims to carry TCP or
+	 * UDP but whose transport header could not be decoded. TCP and UDP
+	 * rules never match such a packet, but IP rules do.
+	 */
+	public static final int PROTOCOL_UNDECODED = 255;
+
+	/**
+	 * Determine if this is an IPv4 packet.
+	 * @return true if the packet has a valid IPv4 header
+	 */
+	public boolean isIpV4();
+
+	/**
+	 * Determine if this is an IPv6 packet.
+	 * @return true if the packet has a valid IPv6 header
+	 */
+	public boolean isIpV6();
+
+	/**
+	 * Get the protocol of the packet: PROTOCOL_TCP or PROTOCOL_UDP only
+	 * if the transport header was decoded, otherwise the IP protocol
+	 * number or PROTOCOL_UNDECODED.
+	 * @return protocol number
+	 */
+	public int getProtocol();
+
+	/**
+	 * Get the IPv4 source address.
+	 * @return address as an int
+	 */
+	public int getSrcAddr();
+
+	/**
+	 * Get the IPv4 destination address.
+	 * @return address as an int
+	 */
+	public int getDstAddr();
+
+	/**
+	 * Get the high 64 bits of the IPv6 source address.
+	 * @return address bits; only meaningful for an IPv6 packet
+	 */
+	public long getSrcAddrHigh();
+
+	/**
+	 * Get the low 64 bits of the IPv6 source address.
+	 * @return address bits; only meaningful for an IPv6 packet
+	 */
+	public long getSrcAddrLow();
+
+	/**
+	 * Get the high 64 bits of the IPv6 destination address.
+	 * @return address bits; only meaningful for an IPv6 packet
+	 */
+	public long getDstAddrHigh();
+
+	/**
+	 * Get the low 64 bits of the IPv6 destination address.
+	 * @return address bits; only meaningful for an IPv6 packet
+	 */
+	public long getDstAddrLow();
+
+	/**
+	 * Get the TCP or UDP source port.
+	 * @return port, or 0 for other protocols
+	 */
+	public int getSrcPort();
+
+	/**
+	 * Get the TCP or UDP destination port.
+	 * @return port, or 0 for other protocols
+	 */
+	public int getDstPort();
 }
@@ -1,5 +1,72 @@
 package org.redwater.fwsim.layers;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of a TCP segment in an IPv4 or IPv6 packet. The TCP fields
+ * are only meaningful when isTcp() is true.
+ * @author ghelmer
+ */
 public class TCP extends IP {
+	public static final int FLAG_FIN = 0x01;
+	public static final int FLAG_SYN = 0x02;
+	public static final int FLAG_RST = 0x04;
+	public static final int FLAG_PSH = 0x08;
+	public static final int FLAG_ACK = 0x10;
+	public static final int FLAG_URG = 0x20;
+
+	public TCP wrap(ByteBuffer buffer, int offset, int length) {
+		super.wrap(buffer, offset, length);
+		return this;
+	}
+
+	public TCP wrapEthernet(ByteBuffer buffer, int offset, int length) {
+		super.wrapEthernet(buffer, offset, length);
+		return this;
+	}
+
+	public TCP wrapFrame(int linkType, ByteBuffer buffer, int offset, int length) {
+		super.wrapFrame(linkType, buffer, offset, length);
+		return this;
+	}
+
+	/**
+	 * Determine if the packet carries a decodable TCP header.
+	 * @return true for TCP
+	 */
+	public boolean isTcp() {
+		return (isIpV4() || isIpV6()) && getProtocol() == PROTOCOL_TCP;
+	}
+
+	public int getSequenceNumber() {
+		return getInt(getTransportOffset() + 4);
+	}
+
+	public int getAcknowledgmentNumber() {
+		return getInt(getTransportOffset() + 8);
+	}
+
+	/**
+	 * Get the TCP flag bits.
+	 * @return flags; test with the FLAG_* constants
+	 */
+	public int getFlags() {
+		return getUnsignedByte(getTransportOffset() + 13) & 0x3F;
+	}
+
+	public boolean isSyn() {
+		return (getFlags() & FLAG_SYN) != 0;
+	}
+
+	public boolean isAck() {
+		return (getFlags() & FLAG_ACK) != 0;
+	}
+
+	public boolean isFin() {
+		return (getFlags() & FLAG_FIN) != 0;
+	}
 
+	public boolean isRst() {
+		return (getFlags() & FLAG_RST) != 0;
+	}
 }
@@ -1,5 +1,42 @@
 package org.redwater.fwsim.layers;
 
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of a UDP datagram in an IPv4 or IPv6 packet. The UDP fields
+ * are only meaningful when isUdp() is true.
+ * @author ghelmer
+ */
 public class UDP extends IP {
 
+	public UDP wrap(ByteBuffer buffer, int offset, int length) {
+		super.wrap(buffer, offset, length);
+		return this;
+	}
+
+	public UDP wrapEthernet(ByteBuffer buffer, int offset, int length) {
+		super.wrapEthernet(buffer, offset, length);
+		return this;
+	}
+
+	public UDP wrapFrame(int linkType, ByteBuffer buffer, int offset, int length) {
+		super.wrapFrame(linkType, buffer, offset, length);
+		return this;
+	}
+
+	/**
+	 * Determine if the packet carries a decodable UDP header.
+	 * @return true for UDP
+	 */
+	public boolean isUdp() {
+		return (isIpV4() || isIpV6()) && getProtocol() == PROTOCOL_UDP;
+	}
+
+	/**
+	 * Get the UDP length field.
+	 * @return length of the UDP header and payload in bytes
+	 */
+	public int getLength() {
+		return getUnsignedShort(getTransportOffset() + 4);
+	}
 }
@@ -0,0 +1,165 @@
+package org.redwater.fwsim.layers.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.EthernetPacket;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.EtherType;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.pcap4j.util.MacAddress;
+import org.redwater.fwsim.classifiers.PacketKey;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.layers.TCP;
+
+public class IPTest {
+	private List<Packet> packets;
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(3);
+		packets = new ArrayList<>();
+		for (int i = 0; i < 200; i++) {
+			packets.add(traffic.randomPacket());
+		}
+	}
+
+	private static void assertSameFields(PacketKey expected, IP actual) {
+		assertEquals(expected.isIpV4(), actual.isIpV4());
+		assertEquals(expected.isIpV6(), actual.isIpV6());
+		assertEquals(expected.getProtocol(), actual.getProtocol());
+		if (expected.isIpV6()) {
+			assertEquals(expected.getSrcAddrHigh(), actual.getSrcAddrHigh());
+			assertEquals(expected.getSrcAddrLow(), actual.getSrcAddrLow());
+			assertEquals(expected.getDstAddrHigh(), actual.getDstAddrHigh());
+			assertEquals(expected.getDstAddrLow(), actual.getDstAddrLow());
+		} else {
+			assertEquals(expected.getSrcAddr(), actual.getSrcAddr());
+			assertEquals(expected.getDstAddr(), actual.getDstAddr());
+		}
+		assertEquals(expected.getSrcPort(), actual.getSrcPort());
+		assertEquals(expected.getDstPort(), actual.getDstPort());
+	}
+
+	@Test
+	public void test() {
+		IP ip = new IP();
+		for (Packet p : packets) {
+			byte[] raw = p.getRawData();
+			// Place the packet part way into a larger buffer.
+			ByteBuffer buffer = ByteBuffer.allocate(raw.length + 10);
+			buffer.position(10);
+			buffer.put(raw);
+			assertSameFields(PacketKey.of(p), ip.wrap(buffer, 10, raw.length));
+		}
+	}
+
+	@Test
+	public void testEthernet() {
+		IP ip = new IP();
+		for (Packet p : packets) {
+			EthernetPacket frame = new EthernetPacket.Builder()
+					.srcAddr(MacAddress.getByName("00:11:22:33:44:55"))
+					.dstAddr(MacAddress.getByName("66:77:88:99:aa:bb"))
+					.type(EtherType.IPV4)
+					.payloadBuilder(p.getBuilder())
+					.paddingAtBuild(true)
+					.build();
+			byte[] raw = frame.getRawData();
+			assertSameFields(PacketKey.of(frame), ip.wrapEthernet(ByteBuffer.wrap(raw), 0, raw.length));
+		}
+	}
+
+	/**
+	 * Insert an IPv6 extension header after the fixed header.
+	 * @param raw - IPv6 packet
+	 * @param type - extension header type
+	 * @param header - extension header, whose first byte is replaced
+	 * with the next header of the packet
+	 * @return new packet
+	 */
+	private static byte[] insertExtension(byte[] raw, int type, byte[] header) {
+		byte[] result = new byte[raw.length + header.length];
+		System.arraycopy(raw, 0, result, 0, 40);
+		System.arraycopy(header, 0, result, 40, header.length);
+		System.arraycopy(raw, 40, result, 40 + header.length, raw.length - 40);
+		result[40] = raw[6];
+		result[6] = (byte)type;
+		int payloadLength = ((raw[4] & 0xFF) << 8 | (raw[5] & 0xFF)) + header.length;
+		result[4] = (byte)(payloadLength >>> 8);
+		result[5] = (byte)payloadLength;
+		return result;
+	}
+
+	@Test
+	public void testIpV6() {
+		TestTraffic traffic = new TestTraffic(9);
+		IP ip = new IP();
+		for (int i = 0; i < 200; i++) {
+			Packet p = traffic.randomIpV6Packet();
+			byte[] raw = p.getRawData();
+			assertSameFields(PacketKey.of(p), ip.wrapFrame(IP.LINKTYPE_RAW, ByteBuffer.wrap(raw), 0, raw.length));
+			assertFalse(ip.isIpV4());
+			assertEquals(raw.length, ip.getTotalLength());
+			EthernetPacket frame = new EthernetPacket.Builder()
+					.srcAddr(MacAddress.getByName("00:11:22:33:44:55"))
+					.dstAddr(MacAddress.getByName("66:77:88:99:aa:bb"))
+					.type(EtherType.IPV6)
+					.payloadBuilder(p.getBuilder())
+					.paddingAtBuild(true)
+					.build();
+			byte[] frameRaw = frame.getRawData();
+			assertSameFields(PacketKey.of(frame), ip.wrapEthernet(ByteBuffer.wrap(frameRaw), 0, frameRaw.length));
+		}
+
+		TCP tcp = new TCP();
+		Packet p = TestTraffic.buildIpV6Packet(IpNumber.TCP,
+				TestTraffic.ipV6("2001:db8::1"), TestTraffic.ipV6("2001:db8::2"), 1234, 443);
+		byte[] raw = p.getRawData();
+		assertTrue(tcp.wrap(ByteBuffer.wrap(raw), 0, raw.length).isTcp());
+		assertEquals(443, tcp.getDstPort());
+		// Hop-by-hop options: one PadN option filling the 8 bytes.
+		byte[] hopByHop = insertExtension(raw, 0, new byte[] { 0, 0, 1, 4, 0, 0, 0, 0 });
+		assertTrue(tcp.wrap(ByteBuffer.wrap(hopByHop), 0, hopByHop.length).isTcp());
+		assertEquals(48, tcp.getHeaderLength());
+		assertEquals(1234, tcp.getSrcPort());
+		assertEquals(443, tcp.getDstPort());
+		assertTrue(tcp.isSyn());
+		// A first fragment still starts with the TCP header; a later one does not.
+		byte[] first = insertExtension(raw, 44, new byte[] { 0, 0, 0, 1, 0, 0, 0, 7 });
+		assertTrue(tcp.wrap(ByteBuffer.wrap(first), 0, first.length).isTcp());
+		assertEquals(443, tcp.getDstPort());
+		byte[] later = insertExtension(raw, 44, new byte[] { 0, 0, 0, 8, 0, 0, 0, 7 });
+		tcp.wrap(ByteBuffer.wrap(later), 0, later.length);
+		assertTrue(tcp.isIpV6());
+		assertFalse(tcp.isTcp());
+		assertEquals(IP.PROTOCOL_UNDECODED, tcp.getProtocol());
+		// An extension header chain cut short by the capture length.
+		tcp.wrap(ByteBuffer.wrap(hopByHop), 0, 44);
+		assertTrue(tcp.isIpV6());
+		assertEquals(IP.PROTOCOL_UNDECODED, tcp.getProtocol());
+		assertFalse(tcp.wrap(ByteBuffer.wrap(raw), 0, 39).isIpV6());
+	}
+
+	@Test
+	public void testTruncated() {
+		TCP tcp = new TCP();
+		Packet p = TestTraffic.buildIpV4Packet(IpNumber.TCP,
+				TestTraffic.ipV4("10.0.0.1"), TestTraffic.ipV4("10.0.0.2"), 1234, 80);
+		byte[] raw = p.getRawData();
+		assertTrue(tcp.wrap(ByteBuffer.wrap(raw), 0, raw.length).isTcp());
+		assertTrue(tcp.isSyn());
+		assertEquals(80, tcp.getDstPort());
+		tcp.wrap(ByteBuffer.wrap(raw), 0, 30);
+		assertTrue(tcp.isIpV4());
+		assertFalse(tcp.isTcp());
+		assertEquals(0, tcp.getDstPort());
+		assertFalse(tcp.wrap(ByteBuffer.wrap(raw), 0, 10).isIpV4());
+	}
+}
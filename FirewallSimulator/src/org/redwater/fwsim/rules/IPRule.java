@@ -1,20 +1,50 @@
 package org.redwater.fwsim.rules;
 
+import java.net.Inet4Address;
 import java.util.List;
 import java.util.Map.Entry;
 
 import org.apache.commons.net.util.SubnetUtils;
 import org.apache.commons.net.util.SubnetUtils.SubnetInfo;
-import org.pcap4j.packet.IpPacket;
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.IpV6Packet;
 import org.pcap4j.packet.Packet;
-import org.pcap4j.util.Packets;
 import org.redwater.fwsim.exceptions.InvalidFieldValueException;
 import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.layers.IPacket;
 
+/**
+ * Rule that matches IP packets by source and destination address. An
+ * address may be an IPv4 or an IPv6 CIDR block, and a rule with an
+ * address of one family only matches packets of that family; a rule
+ * without addresses matches both. IPv6 addresses are kept as two longs,
+ * so matching a packet never converts an address.
+ * @author ghelmer
+ */
 public class IPRule extends Rule {
-	private SubnetInfo srcAddressMatch;
+	private boolean srcAddressMatch;
+	private boolean srcAddressIpV6;
+	private int srcAddress;
+	private int srcNetwork;
+	private int srcNetmask;
+	private long srcAddressHigh;
+	private long srcAddressLow;
+	private long srcNetworkHigh;
+	private long srcNetworkLow;
+	private long srcNetmaskHigh;
+	private long srcNetmaskLow;
 	private boolean srcAddressMatchFlag;
-	private SubnetInfo dstAddressMatch;
+	private boolean dstAddressMatch;
+	private boolean dstAddressIpV6;
+	private int dstAddress;
+	private int dstNetwork;
+	private int dstNetmask;
+	private long dstAddressHigh;
+	private long dstAddressLow;
+	private long dstNetworkHigh;
+	private long dstNetworkLow;
+	private long dstNetmaskHigh;
+	private long dstNetmaskLow;
 	private boolean dstAddressMatchFlag;
 	
 	/**
@@ -22,9 +52,17 @@ public class IPRule extends Rule {
 	 */
 	public IPRule() {
 		super();
-		srcAddressMatch = null;
+		srcAddressMatch = false;
+		srcAddressIpV6 = false;
+		srcAddress = 0;
+		srcNetwork = 0;
+		srcNetmask = 0;
 		srcAddressMatchFlag = false;
-		dstAddressMatch = null;
+		dstAddressMatch = false;
+		dstAddressIpV6 = false;
+		dstAddress = 0;
+		dstNetwork = 0;
+		dstNetmask = 0;
 		dstAddressMatchFlag = false;
 	}
 	
@@ -34,9 +72,17 @@ public class IPRule extends Rule {
 	 */
 	public IPRule(List<Entry<String, String>> parameters) throws UnhandledFieldNameException, InvalidFieldValueException {
 		super();
-		srcAddressMatch = null;
+		srcAddressMatch = false;
+		srcAddressIpV6 = false;
+		srcAddress = 0;
+		srcNetwork = 0;
+		srcNetmask = 0;
 		srcAddressMatchFlag = false;
-		dstAddressMatch = null;
+		dstAddressMatch = false;
+		dstAddressIpV6 = false;
+		dstAddress = 0;
+		dstNetwork = 0;
+		dstNetmask = 0;
 		dstAddressMatchFlag = false;
 		for (Entry<String, String> e : parameters) {
 			setRuleField(e.getKey(), e.getValue());
@@ -44,29 +90,130 @@ public class IPRule extends Rule {
 	}
 	
 	/**
-	 * Determine if the packet matches this rule.
+	 * Determine if the packet matches this rule. Addresses match a CIDR
+	 * block when their network bits are equal, so the network and
+	 * broadcast addresses of the block also match.
 	 * @param packet Packet to evaluate.
 	 * @return true if the packet matches all fields
 	 */
 	public boolean matchesRule(Packet packet) {
-		if (!Packets.containsIpV4Packet(packet)) {
+		IpV4Packet ipPacket = packet.get(IpV4Packet.class);
+		if (ipPacket == null) {
+			IpV6Packet ipV6Packet = packet.get(IpV6Packet.class);
+			return ipV6Packet != null && matchesIpV6Addresses(packet, ipV6Packet);
+		}
+		if (!matchesIpV4()) {
 			return false;
 		}
-		IpPacket ipPacket = (IpPacket)packet.get(IpPacket.class);
-		if (ipPacket == null) {
+		// Check source address.
+		if (srcAddressMatch) {
+			if ((addressToInt(ipPacket.getHeader().getSrcAddr()) & srcNetmask) != srcNetwork) {
+				return false;
+			} else if (srcAddressMatchFlag) {
+				return false;
+			}
+		}
+		// Check destination address.
+		if (dstAddressMatch) {
+			if ((addressToInt(ipPacket.getHeader().getDstAddr()) & dstNetmask) != dstNetwork) {
+				return false;
+			} else if (dstAddressMatchFlag) {
+				return false;
+			}
+		}
+		// So far, this rule matches. Evaluate the superclass on the packet.
+		return super.matchesRule(packet);
+	}
+	
+	/**
+	 * Determine if the addresses of a pcap4j IPv6 packet match this rule.
+	 * @param packet - Packet to evaluate
+	 * @param ipPacket - IPv6 layer of the packet
+	 * @return true if the packet matches all fields
+	 */
+	private boolean matchesIpV6Addresses(Packet packet, IpV6Packet ipPacket) {
+		if (!matchesIpV6()) {
 			return false;
 		}
 		// Check source address.
-		if (srcAddressMatch != null) {
-			if (!srcAddressMatch.isInRange(ipPacket.getHeader().getSrcAddr().getHostAddress())) {
+		if (srcAddressMatch) {
+			byte[] src = ipPacket.getHeader().getSrcAddr().getAddress();
+			if ((addressToLong(src, 0) & srcNetmaskHigh) != srcNetworkHigh
+					|| (addressToLong(src, 8) & srcNetmaskLow) != srcNetworkLow) {
 				return false;
 			} else if (srcAddressMatchFlag) {
 				return false;
 			}
 		}
 		// Check destination address.
-		if (dstAddressMatch != null) {
-			if (!dstAddressMatch.isInRange(ipPacket.getHeader().getDstAddr().getHostAddress())) {
+		if (dstAddressMatch) {
+			byte[] dst = ipPacket.getHeader().getDstAddr().getAddress();
+			if ((addressToLong(dst, 0) & dstNetmaskHigh) != dstNetworkHigh
+					|| (addressToLong(dst, 8) & dstNetmaskLow) != dstNetworkLow) {
+				return false;
+			} else if (dstAddressMatchFlag) {
+				return false;
+			}
+		}
+		// So far, this rule matches. Evaluate the superclass on the packet.
+		return super.matchesRule(packet);
+	}
+
+	/**
+	 * Determine if the packet header view matches this rule, without
+	 * allocating or converting the addresses.
+	 * @param packet packet header view to evaluate.
+	 * @return true if the packet matches all fields
+	 */
+	public boolean matchesRule(IPacket packet) {
+		if (!packet.isIpV4()) {
+			return packet.isIpV6() && matchesIpV6Addresses(packet);
+		}
+		if (!matchesIpV4()) {
+			return false;
+		}
+		// Check source address.
+		if (srcAddressMatch) {
+			if ((packet.getSrcAddr() & srcNetmask) != srcNetwork) {
+				return false;
+			} else if (srcAddressMatchFlag) {
+				return false;
+			}
+		}
+		// Check destination address.
+		if (dstAddressMatch) {
+			if ((packet.getDstAddr() & dstNetmask) != dstNetwork) {
+				return false;
+			} else if (dstAddressMatchFlag) {
+				return false;
+			}
+		}
+		// So far, this rule matches. Evaluate the superclass on the packet.
+		return super.matchesRule(packet);
+	}
+	
+	/**
+	 * Determine if the IPv6 addresses of a packet header view match this rule.
+	 * @param packet - header view of an IPv6 packet
+	 * @return true if the packet matches all fields
+	 */
+	private boolean matchesIpV6Addresses(IPacket packet) {
+		if (!matchesIpV6()) {
+			return false;
+		}
+		// Check source address.
+		if (srcAddressMatch) {
+			if ((packet.getSrcAddrHigh() & srcNetmaskHigh) != srcNetworkHigh
+					|| (packet.getSrcAddrLow() & srcNetmaskLow) != srcNetworkLow) {
+				return false;
+			} else if (srcAddressMatchFlag) {
+				return false;
+			}
+		}
+		// Check destination address.
+		if (dstAddressMatch) {
+			if ((packet.getDstAddrHigh() & dstNetmaskHigh) != dstNetworkHigh
+					|| (packet.getDstAddrLow() & dstNetmaskLow) != dstNetworkLow) {
 				return false;
 			} else if (dstAddressMatchFlag) {
 				return false;
@@ -81,14 +228,34 @@ public class IPRule extends Rule {
 	 * @param fieldName - name of rule field to set
 	 * @param value - value to use for field
 	 * @throws UnhandledFieldNameException always
+	 * @throws InvalidFieldValueException if an IPv6 address is invalid,
+	 * or the source and destination addresses are of different families
 	 */
 	public void setRuleField(String fieldName, String value) throws UnhandledFieldNameException, InvalidFieldValueException {
+		SubnetInfo info;
+		long[] cidr;
 		switch (fieldName) {
 		case "srcAddress":
-			srcAddressMatch = new SubnetUtils(value).getInfo();
+			if (value.indexOf(':') >= 0) {
+				cidr = parseIpV6Cidr(value);
+				checkFamily(dstAddressMatch && !dstAddressIpV6, value);
+				setSrcAddress(cidr[0], cidr[1], (int)cidr[2]);
+			} else {
+				info = new SubnetUtils(value).getInfo();
+				checkFamily(dstAddressMatch && dstAddressIpV6, value);
+				setSrcAddress(info.asInteger(info.getAddress()), Integer.bitCount(info.asInteger(info.getNetmask())));
+			}
 			break;
 		case "dstAddress":
-			dstAddressMatch = new SubnetUtils(value).getInfo();
+			if (value.indexOf(':') >= 0) {
+				cidr = parseIpV6Cidr(value);
+				checkFamily(srcAddressMatch && !srcAddressIpV6, value);
+				setDstAddress(cidr[0], cidr[1], (int)cidr[2]);
+			} else {
+				info = new SubnetUtils(value).getInfo();
+				checkFamily(srcAddressMatch && srcAddressIpV6, value);
+				setDstAddress(info.asInteger(info.getAddress()), Integer.bitCount(info.asInteger(info.getNetmask())));
+			}
 			break;
 		default:
 			super.setRuleField(fieldName, value);
@@ -96,6 +263,488 @@ public class IPRule extends Rule {
 		}
 	}
 
+	/**
+	 * Reject an address whose family differs from the other address of the rule.
+	 * @param conflict - true if the other address is of the other family
+	 * @param value - address being set
+	 * @throws InvalidFieldValueException if conflict is true
+	 */
+	private static void checkFamily(boolean conflict, String value) throws InvalidFieldValueException {
+		if (conflict) {
+			throw new InvalidFieldValueException(String.format("Invalid address '%s': source and destination addresses must both be IPv4 or both be IPv6", value));
+		}
+	}
+
+	/**
+	 * Match the source address against a CIDR block.
+	 * @param address - address as an int, host bits may be set
+	 * @param prefixLength - number of network bits, 0 to 32
+	 * @throws IllegalArgumentException if the destination address is IPv6
+	 */
+	public void setSrcAddress(int address, int prefixLength) {
+		if (dstAddressMatch && dstAddressIpV6) {
+			throw new IllegalArgumentException("Source and destination addresses must be of the same family");
+		}
+		srcAddressMatch = true;
+		srcAddressIpV6 = false;
+		srcAddress = address;
+		srcNetmask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+		srcNetwork = address & srcNetmask;
+		srcAddressHigh = 0;
+		srcAddressLow = 0;
+		srcNetworkHigh = 0;
+		srcNetworkLow = 0;
+		srcNetmaskHigh = 0;
+		srcNetmaskLow = 0;
+	}
+
+	/**
+	 * Match the destination address against a CIDR block.
+	 * @param address - address as an int, host bits may be set
+	 * @param prefixLength - number of network bits, 0 to 32
+	 * @throws IllegalArgumentException if the source address is IPv6
+	 */
+	public void setDstAddress(int address, int prefixLength) {
+		if (srcAddressMatch && srcAddressIpV6) {
+			throw new IllegalArgumentException("Source and destination addresses must be of the same family");
+		}
+		dstAddressMatch = true;
+		dstAddressIpV6 = false;
+		dstAddress = address;
+		dstNetmask = prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+		dstNetwork = address & dstNetmask;
+		dstAddressHigh = 0;
+		dstAddressLow = 0;
+		dstNetworkHigh = 0;
+		dstNetworkLow = 0;
+		dstNetmaskHigh = 0;
+		dstNetmaskLow = 0;
+	}
+
+	/**
+	 * Match the source address against an IPv6 CIDR block.
+	 * @param high - high 64 bits of the address, host bits may be set
+	 * @param low - low 64 bits of the address, host bits may be set
+	 * @param prefixLength - number of network bits, 0 to 128
+	 * @throws IllegalArgumentException if the destination address is IPv4
+	 */
+	public void setSrcAddress(long high, long low, int prefixLength) {
+		if (dstAddressMatch && !dstAddressIpV6) {
+			throw new IllegalArgumentException("Source and destination addresses must be of the same family");
+		}
+		srcAddressMatch = true;
+		srcAddressIpV6 = true;
+		srcAddress = 0;
+		srcNetmask = 0;
+		srcNetwork = 0;
+		srcAddressHigh = high;
+		srcAddressLow = low;
+		srcNetmaskHigh = maskHigh(prefixLength);
+		srcNetmaskLow = maskLow(prefixLength);
+		srcNetworkHigh = high & srcNetmaskHigh;
+		srcNetworkLow = low & srcNetmaskLow;
+	}
+
+	/**
+	 * Match the destination address against an IPv6 CIDR block.
+	 * @param high - high 64 bits of the address, host bits may be set
+	 * @param low - low 64 bits of the address, host bits may be set
+	 * @param prefixLength - number of network bits, 0 to 128
+	 * @throws IllegalArgumentException if the source address is IPv4
+	 */
+	public void setDstAddress(long high, long low, int prefixLength) {
+		if (srcAddressMatch && !srcAddressIpV6) {
+			throw new IllegalArgumentException("Source and destination addresses must be of the same family");
+		}
+		dstAddressMatch = true;
+		dstAddressIpV6 = true;
+		dstAddress = 0;
+		dstNetmask = 0;
+		dstNetwork = 0;
+		dstAddressHigh = high;
+		dstAddressLow = low;
+		dstNetmaskHigh = maskHigh(prefixLength);
+		dstNetmaskLow = maskLow(prefixLength);
+		dstNetworkHigh = high & dstNetmaskHigh;
+		dstNetworkLow = low & dstNetmaskLow;
+	}
+
+	/**
+	 * Get the high 64 bits of an IPv6 netmask.
+	 * @param prefixLength - number of network bits, 0 to 128
+	 * @return netmask bits
+	 */
+	public static long maskHigh(int prefixLength) {
+		if (prefixLength < 0 || prefixLength > 128) {
+			throw new IllegalArgumentException(String.format("Invalid IPv6 prefix length %d", prefixLength));
+		}
+		return prefixLength == 0 ? 0 : -1L << (64 - Math.min(prefixLength, 64));
+	}
+
+	/**
+	 * Get the low 64 bits of an IPv6 netmask.
+	 * @param prefixLength - number of network bits, 0 to 128
+	 * @return netmask bits
+	 */
+	public static long maskLow(int prefixLength) {
+		return prefixLength <= 64 ? 0 : -1L << (128 - prefixLength);
+	}
+
+	/**
+	 * Decode an IPv6 address in CIDR notation, such as 2001:db8::/32.
+	 * A missing prefix length means a single address (/128), and the
+	 * last 32 bits may be written as an IPv4 address.
+	 * @param value - text to decode
+	 * @return high and low 64 bits of the address, then the prefix length
+	 * @throws InvalidFieldValueException if the text is not an IPv6 address
+	 */
+	public static long[] parseIpV6Cidr(String value) throws InvalidFieldValueException {
+		String address = value;
+		int prefixLength = 128;
+		int slash = value.indexOf('/');
+		if (slash >= 0) {
+			address = value.substring(0, slash);
+			try {
+				prefixLength = Integer.parseInt(value.substring(slash + 1));
+			} catch (NumberFormatException e) {
+				prefixLength = -1;
+			}
+			if (prefixLength < 0 || prefixLength > 128) {
+				throw new InvalidFieldValueException(String.format("Invalid IPv6 address '%s': bad prefix length", value));
+			}
+		}
+		int[] groups = new int[8];
+		int gap = address.indexOf("::");
+		if (gap >= 0 && address.indexOf("::", gap + 1) >= 0) {
+			throw new InvalidFieldValueException(String.format("Invalid IPv6 address '%s': more than one '::'", value));
+		}
+		String head = gap >= 0 ? address.substring(0, gap) : address;
+		String tail = gap >= 0 ? address.substring(gap + 2) : "";
+		int[] headGroups = parseGroups(head, value);
+		int[] tailGroups = parseGroups(tail, value);
+		int count = headGroups.length + tailGroups.length;
+		if (gap >= 0 ? count > 7 : count != 8) {
+			throw new InvalidFieldValueException(String.format("Invalid IPv6 address '%s': wrong number of groups", value));
+		}
+		System.arraycopy(headGroups, 0, groups, 0, headGroups.length);
+		System.arraycopy(tailGroups, 0, groups, 8 - tailGroups.length, tailGroups.length);
+		long high = 0;
+		long low = 0;
+		for (int i = 0; i < 4; i++) {
+			high = (high << 16) | groups[i];
+			low = (low << 16) | groups[i + 4];
+		}
+		return new long[] { high, low, prefixLength };
+	}
+
+	/**
+	 * Decode colon separated groups of an IPv6 address, the last of
+	 * which may be an IPv4 address counting as two groups.
+	 * @param text - groups without a '::'
+	 * @param value - whole address, for the error message
+	 * @return 16-bit groups
+	 * @throws InvalidFieldValueException if a group is not valid
+	 */
+	private static int[] parseGroups(String text, String value) throws InvalidFieldValueException {
+		if (text.isEmpty()) {
+			return new int[0];
+		}
+		String[] parts = text.split(":", -1);
+		boolean dotted = parts[parts.length - 1].indexOf('.') >= 0;
+		int[] groups = new int[dotted ? parts.length + 1 : parts.length];
+		for (int i = 0; i < parts.length; i++) {
+			String part = parts[i];
+			if (dotted && i == parts.length - 1) {
+				String[] octets = part.split("\\.", -1);
+				if (octets.length != 4) {
+					throw new InvalidFieldValueException(String.format("Invalid IPv6 address '%s': bad IPv4 part", value));
+				}
+				int v4 = 0;
+				for (String octet : octets) {
+					int b = parseNumber(octet, 10, 3, value);
+					if (b > 255) {
+						throw new InvalidFieldValueException(String.format("Invalid IPv6 address '%s': bad IPv4 part", value));
+					}
+					v4 = (v4 << 8) | b;
+				}
+				groups[i] = v4 >>> 16;
+				groups[i + 1] = v4 & 0xFFFF;
+			} else {
+				groups[i] = parseNumber(part, 16, 4, value);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Decode one group or octet of an address.
+	 * @param text - digits
+	 * @param radix - 16 for a group, 10 for an octet
+	 * @param maxDigits - largest number of digits allowed
+	 * @param value - whole address, for the error message
+	 * @return value of the digits
+	 * @throws InvalidFieldValueException if the text is not valid
+	 */
+	private static int parseNumber(String text, int radix, int maxDigits, String value) throws InvalidFieldValueException {
+		if (text.isEmpty() || text.length() > maxDigits) {
+			throw new InvalidFieldValueException(String.format("Invalid IPv6 address '%s': bad group '%s'", value, text));
+		}
+		int n = 0;
+		for (int i = 0; i < text.length(); i++) {
+			int digit = Character.digit(text.charAt(i), radix);
+			if (digit < 0) {
+				throw new InvalidFieldValueException(String.format("Invalid IPv6 address '%s': bad group '%s'", value, text));
+			}
+			n = n * radix + digit;
+		}
+		return n;
+	}
+
+	/**
+	 * Append an address and netmask in CIDR notation.
+	 * @param s - text to append to
+	 * @param address - address as an int
+	 * @param netmask - netmask as an int
+	 */
+	private static void appendCidr(StringBuilder s, int address, int netmask) {
+		s.append(address >>> 24).append('.').append((address >>> 16) & 0xFF).append('.')
+				.append((address >>> 8) & 0xFF).append('.').append(address & 0xFF)
+				.append('/').append(Integer.bitCount(netmask));
+	}
+
+	/**
+	 * Append an IPv6 address and prefix length in CIDR notation, with
+	 * the longest run of zero groups shortened to '::'.
+	 * @param s - text to append to
+	 * @param high - high 64 bits of the address
+	 * @param low - low 64 bits of the address
+	 * @param prefixLength - number of network bits
+	 */
+	private static void appendCidr(StringBuilder s, long high, long low, int prefixLength) {
+		int[] groups = new int[8];
+		for (int i = 0; i < 4; i++) {
+			groups[i] = (int)(high >>> (48 - 16 * i)) & 0xFFFF;
+			groups[i + 4] = (int)(low >>> (48 - 16 * i)) & 0xFFFF;
+		}
+		int runStart = -1;
+		int runLength = 1;
+		for (int i = 0; i < 8; i++) {
+			int j = i;
+			while (j < 8 && groups[j] == 0) {
+				j++;
+			}
+			if (j - i > runLength) {
+				runStart = i;
+				runLength = j - i;
+			}
+			i = Math.max(i, j - 1);
+		}
+		for (int i = 0; i < 8; i++) {
+			if (i == runStart) {
+				s.append("::");
+				i += runLength - 1;
+				continue;
+			}
+			if (i > 0 && i != runStart + runLength) {
+				s.append(':');
+			}
+			s.append(Integer.toHexString(groups[i]));
+		}
+		s.append('/').append(prefixLength);
+	}
+
+	/**
+	 * Convert eight bytes of an address to a long in network byte order.
+	 * @param b - address bytes
+	 * @param offset - index of the first byte
+	 * @return bytes as a long
+	 */
+	public static long addressToLong(byte[] b, int offset) {
+		long v = 0;
+		for (int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[offset + i] & 0xFF);
+		}
+		return v;
+	}
+
+	/**
+	 * Convert an IPv4 address to an int in network byte order.
+	 * @param address - address to convert
+	 * @return address as an int
+	 */
+	public static int addressToInt(Inet4Address address) {
+		byte[] b = address.getAddress();
+		return ((b[0] & 0xFF) << 24) | ((b[1] & 0xFF) << 16) | ((b[2] & 0xFF) << 8) | (b[3] & 0xFF);
+	}
+
+	/**
+	 * Determine if this rule can match an IPv4 packet.
+	 * @return true unless an address of the rule is IPv6
+	 */
+	public boolean matchesIpV4() {
+		return !srcAddressIpV6 && !dstAddressIpV6;
+	}
+
+	/**
+	 * Determine if this rule can match an IPv6 packet.
+	 * @return true unless an address of the rule is IPv4
+	 */
+	public boolean matchesIpV6() {
+		return (!srcAddressMatch || srcAddressIpV6) && (!dstAddressMatch || dstAddressIpV6);
+	}
+
+	/**
+	 * Determine if this rule matches on the source address.
+	 * @return true if a srcAddress field was set
+	 */
+	public boolean hasSrcAddressMatch() {
+		return srcAddressMatch;
+	}
+
+	/**
+	 * Get the source address as it was given, host bits included.
+	 * @return address as an int, or 0 if any source address matches
+	 */
+	public int getSrcAddress() {
+		return srcAddress;
+	}
+
+	/**
+	 * Get the source network address, with the host bits cleared.
+	 * @return network address as an int, or 0 if any source address matches
+	 */
+	public int getSrcNetwork() {
+		return srcNetwork;
+	}
+
+	/**
+	 * Get the source network prefix length.
+	 * @return number of leading bits in the netmask, up to 128 for an
+	 * IPv6 address, or 0 if any source address matches
+	 */
+	public int getSrcPrefixLength() {
+		if (srcAddressIpV6) {
+			return Long.bitCount(srcNetmaskHigh) + Long.bitCount(srcNetmaskLow);
+		}
+		return Integer.bitCount(srcNetmask);
+	}
+
+	/**
+	 * Determine if the source address is IPv6.
+	 * @return true if the srcAddress field is an IPv6 CIDR block
+	 */
+	public boolean isSrcAddressIpV6() {
+		return srcAddressIpV6;
+	}
+
+	/**
+	 * Get the high 64 bits of the IPv6 source address as it was given.
+	 * @return address bits, or 0 if the source address is not IPv6
+	 */
+	public long getSrcAddressHigh() {
+		return srcAddressHigh;
+	}
+
+	/**
+	 * Get the low 64 bits of the IPv6 source address as it was given.
+	 * @return address bits, or 0 if the source address is not IPv6
+	 */
+	public long getSrcAddressLow() {
+		return srcAddressLow;
+	}
+
+	/**
+	 * Get the high 64 bits of the IPv6 source network address.
+	 * @return network bits, or 0 if the source address is not IPv6
+	 */
+	public long getSrcNetworkHigh() {
+		return srcNetworkHigh;
+	}
+
+	/**
+	 * Get the low 64 bits of the IPv6 source network address.
+	 * @return network bits, or 0 if the source address is not IPv6
+	 */
+	public long getSrcNetworkLow() {
+		return srcNetworkLow;
+	}
+
+	/**
+	 * Determine if this rule matches on the destination address.
+	 * @return true if a dstAddress field was set
+	 */
+	public boolean hasDstAddressMatch() {
+		return dstAddressMatch;
+	}
+
+	/**
+	 * Get the destination address as it was given, host bits included.
+	 * @return address as an int, or 0 if any destination address matches
+	 */
+	public int getDstAddress() {
+		return dstAddress;
+	}
+
+	/**
+	 * Get the destination network address, with the host bits cleared.
+	 * @return network address as an int, or 0 if any destination address matches
+	 */
+	public int getDstNetwork() {
+		return dstNetwork;
+	}
+
+	/**
+	 * Get the destination network prefix length.
+	 * @return number of leading bits in the netmask, up to 128 for an
+	 * IPv6 address, or 0 if any destination address matches
+	 */
+	public int getDstPrefixLength() {
+		if (dstAddressIpV6) {
+			return Long.bitCount(dstNetmaskHigh) + Long.bitCount(dstNetmaskLow);
+		}
+		return Integer.bitCount(dstNetmask);
+	}
+
+	/**
+	 * Determine if the destination address is IPv6.
+	 * @return true if the dstAddress field is an IPv6 CIDR block
+	 */
+	public boolean isDstAddressIpV6() {
+		return dstAddressIpV6;
+	}
+
+	/**
+	 * Get the high 64 bits of the IPv6 destination address as it was given.
+	 * @return address bits, or 0 if the destination address is not IPv6
+	 */
+	public long getDstAddressHigh() {
+		return dstAddressHigh;
+	}
+
+	/**
+	 * Get the low 64 bits of the IPv6 destination address as it was given.
+	 * @return address bits, or 0 if the destination address is not IPv6
+	 */
+	public long getDstAddressLow() {
+		return dstAddressLow;
+	}
+
+	/**
+	 * Get the high 64 bits of the IPv6 destination network address.
+	 * @return network bits, or 0 if the destination address is not IPv6
+	 */
+	public long getDstNetworkHigh() {
+		return dstNetworkHigh;
+	}
+
+	/**
+	 * Get the low 64 bits of the IPv6 destination network address.
+	 * @return network bits, or 0 if the destination address is not IPv6
+	 */
+	public long getDstNetworkLow() {
+		return dstNetworkLow;
+	}
+
 	/**
 	 * Return a text representation of this rule.
 	 * @return text
@@ -104,17 +753,25 @@ public class IPRule extends Rule {
 		StringBuilder s = new StringBuilder();
 
 		// Check source address.
-		if (srcAddressMatch != null) {
+		if (srcAddressMatch) {
 			s.append("srcAddress ");
-			s.append(srcAddressMatch.getCidrSignature());
+			if (srcAddressIpV6) {
+				appendCidr(s, srcAddressHigh, srcAddressLow, getSrcPrefixLength());
+			} else {
+				appendCidr(s, srcAddress, srcNetmask);
+			}
 		}
 		// Check destination address.
-		if (dstAddressMatch != null) {
+		if (dstAddressMatch) {
 			if (s.length() > 0) {
 				s.append(' ');
 			}
 			s.append("dstAddress ");
-			s.append(dstAddressMatch.getCidrSignature());
+			if (dstAddressIpV6) {
+				appendCidr(s, dstAddressHigh, dstAddressLow, getDstPrefixLength());
+			} else {
+				appendCidr(s, dstAddress, dstNetmask);
+			}
 		}
 		if (s.length() > 0) {
 			s.append(' ');
@@ -3,6 +3,7 @@ package org.redwater.fwsim.rules;
 import org.pcap4j.packet.Packet;
 import org.redwater.fwsim.exceptions.InvalidFieldValueException;
 import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.layers.IPacket;
 
 public interface IRule {
 	/**
@@ -19,6 +20,27 @@ public interface IRule {
 	 */
 	public boolean matchesRule(Packet packet);
 
+	/**
+	 * Determine action for this rule on a packet header view.
+	 * @param packet - packet header view to check against this rule.
+	 * @return a RuleAction or null
+	 */
+	public RuleActions getAction(IPacket packet);
+
+	/**
+	 * Determine if this packet header view satisfies the rule.
+	 * @param packet - packet header view to check against this rule.
+	 * @return true if matched, or false otherwise
+	 */
+	public boolean matchesRule(IPacket packet);
+
+	/**
+	 * Get the hit counters of this rule, updated by RuleList.checkRules
+	 * while statistics are enabled.
+	 * @return counters
+	 */
+	public RuleCounters getCounters();
+
 	/**
 	 * Set a field in a rule.
 	 * @param fieldName - name of field to set
@@ -0,0 +1,95 @@
+package org.redwater.fwsim.rules;
+
+import java.util.Arrays;
+
+/**
+ * List of inclusive TCP or UDP port ranges, stored as pairs of ints so
+ * that matching a port does not unbox anything.
+ * @author ghelmer
+ */
+public class PortRangeList {
+	private int[] ranges;
+	private int size;
+
+	/**
+	 * Construct an empty PortRangeList.
+	 */
+	public PortRangeList() {
+		ranges = new int[4];
+		size = 0;
+	}
+
+	/**
+	 * Add an inclusive range to the list.
+	 * @param start - first port in the range
+	 * @param end - last port in the range
+	 */
+	public void add(int start, int end) {
+		if (size * 2 == ranges.length) {
+			ranges = Arrays.copyOf(ranges, ranges.length * 2);
+		}
+		ranges[size * 2] = start;
+		ranges[size * 2 + 1] = end;
+		size++;
+	}
+
+	/**
+	 * Determine if a port falls within any range in the list.
+	 * @param port - port to check
+	 * @return true if some range contains the port
+	 */
+	public boolean contains(int port) {
+		for (int i = 0; i < size * 2; i += 2) {
+			if (port >= ranges[i] && port <= ranges[i + 1]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the number of ranges in the list.
+	 * @return number of ranges
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the first port of a range.
+	 * @param i - index of the range
+	 * @return first port
+	 */
+	public int getStart(int i) {
+		return ranges[i * 2];
+	}
+
+	/**
+	 * Get the last port of a range.
+	 * @param i - index of the range
+	 * @return last port
+	 */
+	public int getEnd(int i) {
+		return ranges[i * 2 + 1];
+	}
+
+	/**
+	 * Append the ranges to a rule's text representation.
+	 * @param s - text to append to
+	 * @param fieldName - rule field name to use for each range
+	 */
+	public void appendTo(StringBuilder s, String fieldName) {
+		for (int i = 0; i < size; i++) {
+			s.append(' ');
+			s.append(fieldName);
+			s.append(' ');
+			int start = getStart(i);
+			int end = getEnd(i);
+			if (start == end) {
+				s.append(String.format("%d", start));
+			} else {
+				s.append(String.format("%d-%d", start, end));
+			}
+		}
+	}
+}
@@ -2,10 +2,12 @@ package org.redwater.fwsim.rules;
 
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.pcap4j.packet.Packet;
 import org.redwater.fwsim.exceptions.InvalidFieldValueException;
 import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.layers.IPacket;
 
 /**
  * Base class for a rule that matches packets.
@@ -14,6 +16,11 @@ import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
 public class Rule implements IRule {
 	private RuleActions ruleAction;
 	private String metadata;
+	/** Hit counters, made on first use so that loading many rules does not build them. */
+	private volatile RuleCounters counters;
+
+	private static final AtomicReferenceFieldUpdater<Rule, RuleCounters> COUNTERS =
+			AtomicReferenceFieldUpdater.newUpdater(Rule.class, RuleCounters.class, "counters");
 
 	public Rule () {
 		ruleAction = null;
@@ -39,6 +46,22 @@ public class Rule implements IRule {
 		return ruleAction;
 	}
 	
+	/**
+	 * Get the action assigned to this rule, whatever the packet.
+	 * @return action, or null if none was set
+	 */
+	public RuleActions getRuleAction() {
+		return ruleAction;
+	}
+
+	/**
+	 * Set the action assigned to this rule.
+	 * @param action - action, or null for none
+	 */
+	public void setRuleAction(RuleActions action) {
+		ruleAction = action;
+	}
+
 	/**
 	 * Default rule match method. Always succeeds.
 	 * @param packet - packet to check
@@ -48,6 +71,39 @@ public class Rule implements IRule {
 		return true;
 	}
 
+	/**
+	 * Action access method..
+	 * @param packet - packet header view to check
+	 * @return action assigned to rule
+	 */
+	public RuleActions getAction(IPacket packet) {
+		return ruleAction;
+	}
+
+	/**
+	 * Default rule match method. Always succeeds.
+	 * @param packet - packet header view to check
+	 * @return true
+	 */
+	public boolean matchesRule(IPacket packet) {
+		return true;
+	}
+
+	/**
+	 * Get the hit counters of this rule.
+	 * @return counters
+	 */
+	public RuleCounters getCounters() {
+		RuleCounters c = counters;
+		if (c == null) {
+			c = new RuleCounters();
+			if (!COUNTERS.compareAndSet(this, null, c)) {
+				c = counters;
+			}
+		}
+		return c;
+	}
+
 	/**
 	 * Default rule field set method implementation. Always throws exception.
 	 * @param fieldName - name of rule field to set
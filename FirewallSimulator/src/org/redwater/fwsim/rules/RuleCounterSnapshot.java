@@ -0,0 +1,115 @@
+package org.redwater.fwsim.rules;
+
+/**
+ * Counter values of one rule at the time RuleList.getStatistics was called.
+ * @author ghelmer
+ */
+public final class RuleCounterSnapshot {
+	private final int index;
+	private final int lineNumber;
+	private final String metadata;
+	private final long matches;
+	private final long evaluations;
+	private final long bytes;
+	private final long samples;
+	private final long sampledNanos;
+
+	/**
+	 * Take a snapshot of a rule's counters.
+	 * @param index - position of the rule in its RuleList
+	 * @param rule - rule to read
+	 */
+	RuleCounterSnapshot(int index, IRule rule) {
+		RuleCounters c = rule.getCounters();
+		this.index = index;
+		metadata = rule.getRuleMetadata();
+		lineNumber = lineNumber(metadata);
+		matches = c.getMatches();
+		evaluations = c.getEvaluations();
+		bytes = c.getBytes();
+		samples = c.getSamples();
+		sampledNanos = c.getSampledNanos();
+	}
+
+	/**
+	 * Get the line number from "Line N" metadata set by RuleList.parse.
+	 * @param metadata - rule metadata
+	 * @return line number, or -1 if the metadata has none
+	 */
+	public static int lineNumber(String metadata) {
+		if (metadata == null || !metadata.startsWith("Line ")) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(metadata.substring(5));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Get the position of the rule in its RuleList.
+	 * @return index from 0
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * Get the line of the rules file the rule came from.
+	 * @return line number, or -1 if not known
+	 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	public String getMetadata() {
+		return metadata;
+	}
+
+	public long getMatches() {
+		return matches;
+	}
+
+	/**
+	 * Get the number of times matchesRule was called for the rule. Only
+	 * the LINEAR classifier calls it for every rule it passes.
+	 * @return number of calls
+	 */
+	public long getEvaluations() {
+		return evaluations;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the number of matchesRule calls that were timed.
+	 * @return number of samples
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Get the mean time of the timed matchesRule calls.
+	 * @return nanoseconds per call, or 0 if none were timed
+	 */
+	public double getAverageNanos() {
+		return samples == 0 ? 0 : (double)sampledNanos / samples;
+	}
+
+	/**
+	 * Return a one line text report of the counters.
+	 * @return text
+	 */
+	public String toString() {
+		String name = metadata == null || metadata.isEmpty() ? String.format("Rule %d", index) : metadata;
+		if (samples == 0) {
+			return String.format("%s: %d matches, %d evaluations, %d bytes", name, matches, evaluations, bytes);
+		}
+		return String.format("%s: %d matches, %d evaluations, %d bytes, %.1f ns/evaluation",
+				name, matches, evaluations, bytes, getAverageNanos());
+	}
+}
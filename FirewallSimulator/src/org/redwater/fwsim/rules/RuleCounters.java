@@ -0,0 +1,75 @@
+package org.redwater.fwsim.rules;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hit counters of one rule. The counters are striped LongAdders, so
+ * threads that check packets against the same rules at once do not
+ * contend on a shared counter.
+ * @author ghelmer
+ */
+public final class RuleCounters {
+	private final LongAdder matches = new LongAdder();
+	private final LongAdder evaluations = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder samples = new LongAdder();
+	private final LongAdder sampledNanos = new LongAdder();
+
+	/**
+	 * Count a packet that matched the rule.
+	 * @param length - length of the packet, or 0 if not known
+	 */
+	public void recordMatch(int length) {
+		matches.increment();
+		if (length != 0) {
+			bytes.add(length);
+		}
+	}
+
+	/**
+	 * Count a call of the rule's matchesRule method.
+	 */
+	public void recordEvaluation() {
+		evaluations.increment();
+	}
+
+	/**
+	 * Add the measured time of one matchesRule call.
+	 * @param nanos - elapsed time
+	 */
+	public void recordSample(long nanos) {
+		samples.increment();
+		sampledNanos.add(nanos);
+	}
+
+	/**
+	 * Set every counter back to zero.
+	 */
+	public void reset() {
+		matches.reset();
+		evaluations.reset();
+		bytes.reset();
+		samples.reset();
+		sampledNanos.reset();
+	}
+
+	public long getMatches() {
+		return matches.sum();
+	}
+
+	public long getEvaluations() {
+		return evaluations.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	public long getSamples() {
+		return samples.sum();
+	}
+
+	public long getSampledNanos() {
+		return sampledNanos.sum();
+	}
+}
@@ -1,67 +1,198 @@
 package org.redwater.fwsim.rules;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Scanner;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.PacketBatch;
 import org.redwater.fwsim.exceptions.InvalidFieldValueException;
 import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.layers.IPacket;
 import org.redwater.fwsim.services.TextRuleParser;
 
 /**
- * Maintain a list of firewall rules, and execute rules on a packet. 
+ * Maintain a list of firewall rules, and execute rules on a packet.
+ * The rules are kept as an immutable RuleSet that is replaced as a
+ * whole whenever they change, so checkRules never locks and always
+ * sees one complete policy, even while rules are added or a new
+ * RuleSet is swapped in from another thread.
  * @author ghelmer
  */
 public class RuleList {
-	private List<IRule> rules;
+	private final AtomicReference<RuleSet> current;
+	/** Array the current RuleSet was built over, appended to by addRule; null if it must be copied first. */
+	private IRule[] buffer;
+	private volatile boolean statisticsEnabled;
+	private volatile int sampleMask;
 
 	/**
 	 * Construct a new RuleList.
 	 */
 	public RuleList() {
-		rules = new ArrayList<>();
+		current = new AtomicReference<>(new RuleSet.Builder().buildUncompiled());
+		buffer = null;
+		statisticsEnabled = false;
+		sampleMask = -1;
 	}
 
 	/**
-	 * Parse a list of Strings into rules.
+	 * Select the engine checkRules uses to find the first matching rule.
+	 * Every engine returns the same rule as the linear scan; the others
+	 * are compiled from the rules on first use and rebuilt after addRule,
+	 * except TUPLE_SPACE, which follows added and removed rules.
+	 * @param classifierType - engine to use
+	 */
+	public synchronized void setClassifierType(ClassifierType classifierType) {
+		RuleSet set = current.get();
+		current.set(new RuleSet(set.rules, set.count, classifierType));
+	}
+
+	/**
+	 * Get the engine checkRules uses to find the first matching rule.
+	 * @return engine in use
+	 */
+	public ClassifierType getClassifierType() {
+		return current.get().getClassifierType();
+	}
+
+	/**
+	 * Build the classifier now instead of on the next checkRules call.
+	 */
+	public void compile() {
+		current.get().compile();
+	}
+
+	/**
+	 * Get the RuleSet checkRules is currently using.
+	 * @return current rules
+	 */
+	public RuleSet getRuleSet() {
+		return current.get();
+	}
+
+	/**
+	 * Replace all of the rules at once. Packets already being checked
+	 * finish against the old rules; every later check uses the new ones.
+	 * Build the set with RuleSet.Builder.build() so it is compiled
+	 * before it is published.
+	 * @param set - new rules
+	 */
+	public synchronized void setRuleSet(RuleSet set) {
+		buffer = null;
+		current.set(set);
+	}
+
+	/**
+	 * Get a number that changes whenever the rules change, so that
+	 * anything derived from the rules can tell when it is stale.
+	 * @return generation number
+	 */
+	public long getGeneration() {
+		return current.get().getGeneration();
+	}
+
+	/**
+	 * Turn the per-rule hit counters on or off. While they are off,
+	 * checkRules does not touch them.
+	 * @param enabled - true to count matches, evaluations and bytes
+	 */
+	public void setStatisticsEnabled(boolean enabled) {
+		statisticsEnabled = enabled;
+	}
+
+	public boolean isStatisticsEnabled() {
+		return statisticsEnabled;
+	}
+
+	/**
+	 * Time the matchesRule calls of a random sample of the packets
+	 * checked while statistics are enabled. Only the LINEAR classifier
+	 * calls matchesRule for each rule, so only it is timed.
+	 * @param interval - time about one packet in this many, a power of
+	 * two, or 0 to time none
+	 */
+	public void setCostSampleInterval(int interval) {
+		if (interval < 0 || Integer.bitCount(interval) > 1) {
+			throw new IllegalArgumentException(String.format("Invalid sample interval %d", interval));
+		}
+		sampleMask = interval - 1;
+	}
+
+	/**
+	 * Set the hit counters of every rule back to zero.
+	 */
+	public void resetStatistics() {
+		for (IRule r : current.get().getRules()) {
+			r.getCounters().reset();
+		}
+	}
+
+	/**
+	 * Take a snapshot of the hit counters of every rule.
+	 * @return one snapshot per rule, in priority order
+	 */
+	public List<RuleCounterSnapshot> getStatistics() {
+		List<IRule> rules = current.get().getRules();
+		List<RuleCounterSnapshot> result = new ArrayList<>(rules.size());
+		for (int i = 0; i < rules.size(); i++) {
+			result.add(new RuleCounterSnapshot(i, rules.get(i)));
+		}
+		return result;
+	}
+
+	/**
+	 * Take a snapshot of the hit counters of the rules that came from a
+	 * rules file, keyed by the line number in their metadata.
+	 * @return snapshots ordered by line number
+	 */
+	public SortedMap<Integer, RuleCounterSnapshot> getStatisticsByLine() {
+		SortedMap<Integer, RuleCounterSnapshot> result = new TreeMap<>();
+		for (RuleCounterSnapshot c : getStatistics()) {
+			if (c.getLineNumber() >= 0) {
+				result.put(c.getLineNumber(), c);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Get the rules in this list.
+	 * @return unmodifiable list of rules, in priority order
+	 */
+	public List<IRule> getRules() {
+		return current.get().getRules();
+	}
+
+	/**
+	 * Parse a list of Strings into rules. The rules are published
+	 * together, and none are added if any of them is invalid.
 	 * @throws InvalidFieldValueException 
 	 * @throws UnhandledFieldNameException 
 	 */
-	public void parse(List<String> strings) throws UnhandledFieldNameException, InvalidFieldValueException {
-		for (String s : strings) {
-			addRule(s);
-		}
+	public synchronized void parse(List<String> strings) throws UnhandledFieldNameException, InvalidFieldValueException {
+		RuleSet.Builder builder = new RuleSet.Builder(current.get());
+		builder.parse(strings);
+		setRuleSet(builder.buildUncompiled());
 	}
 	
 	/**
 	 * Parse lines from an input stream into rules. Comments begin with '#'.
-	 * Add metadata to each rule indicating the source line number.
+	 * Add metadata to each rule indicating the source line number. The
+	 * rules are published together, and none are added if any of them
+	 * is invalid.
 	 * @throws InvalidFieldValueException 
 	 * @throws UnhandledFieldNameException 
 	 */
-	public void parse(Scanner in) throws UnhandledFieldNameException, InvalidFieldValueException {
-		int line = 0;
-		while (in.hasNextLine()) {
-			line++;
-			String s = in.nextLine();
-			
-			// Trim lines at # (used for comments).
-			int hashIndex = s.indexOf('#');
-			if (hashIndex != -1) {
-				s = s.substring(0,  hashIndex);
-			}
-			
-			// Skip empty lines.
-			s = s.trim();
-			if (s.length() == 0) {
-				continue;
-			}
-			
-			// Parse the remaining string, and set a default metadata.
-			IRule r = addRule(s);
-			r.setRuleMetadata(String.format("Line %d", line));
-		}
+	public synchronized void parse(Scanner in) throws UnhandledFieldNameException, InvalidFieldValueException {
+		RuleSet.Builder builder = new RuleSet.Builder(current.get());
+		builder.parse(in);
+		setRuleSet(builder.buildUncompiled());
 	}
 	
 	/**
@@ -72,10 +203,46 @@ public class RuleList {
 	 */
 	public IRule addRule(String s) throws UnhandledFieldNameException, InvalidFieldValueException {
 		IRule r = TextRuleParser.parse(s);
-		rules.add(r);
+		addRule(r);
 		return r;
 	}
 
+	/**
+	 * Add an already built rule to the end of the list. The rule goes
+	 * into a slot no published RuleSet covers, so it is appended in
+	 * place unless the array is full.
+	 * @param r - rule to add
+	 */
+	public synchronized void addRule(IRule r) {
+		RuleSet set = current.get();
+		int n = set.count;
+		if (buffer == null || buffer.length == n) {
+			buffer = Arrays.copyOf(set.rules, Math.max(16, n * 2));
+		}
+		buffer[n] = r;
+		current.set(set.withRuleAdded(buffer, r));
+	}
+
+	/**
+	 * Remove the first occurrence of a rule from the list. With the
+	 * TUPLE_SPACE engine the classifier follows the change instead of
+	 * being rebuilt.
+	 * @param r - rule to remove
+	 * @return true if the rule was in the list
+	 */
+	public synchronized boolean removeRule(IRule r) {
+		RuleSet set = current.get();
+		for (int i = 0; i < set.count; i++) {
+			if (set.rules[i] == r) {
+				RuleSet next = set.withRuleRemoved(i, set.count + 15);
+				buffer = next.rules;
+				current.set(next);
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Check this packet against the list of rules. Return the first
 	 * rule that matches, or null if none.
@@ -83,11 +250,66 @@ public class RuleList {
 	 * @return IRule object that matched the package, or null
 	 */
 	public IRule checkRules(Packet packet) {
-		for (IRule r : rules) {
-			if (r.matchesRule(packet)) {
-				return r;
-			}
+		RuleSet set = current.get();
+		if (statisticsEnabled) {
+			return set.checkRulesCounted(packet, null, packet.length(), sampleMask);
+		}
+		return set.checkRules(packet);
+	}
+
+	/**
+	 * Check this packet header view against the list of rules. Return
+	 * the first rule that matches, or null if none. With a flyweight
+	 * view from org.redwater.fwsim.layers nothing is allocated.
+	 * @param packet - packet header view to check.
+	 * @return IRule object that matched the packet, or null
+	 */
+	public IRule checkRules(IPacket packet) {
+		return checkRules(packet, 0);
+	}
+
+	/**
+	 * Check this packet header view against the list of rules. Return
+	 * the first rule that matches, or null if none.
+	 * @param packet - packet header view to check.
+	 * @param length - length of the packet for the byte counters, or 0
+	 * @return IRule object that matched the packet, or null
+	 */
+	public IRule checkRules(IPacket packet, int length) {
+		RuleSet set = current.get();
+		if (statisticsEnabled) {
+			return set.checkRulesCounted(null, packet, length, sampleMask);
+		}
+		return set.checkRules(packet);
+	}
+
+	/**
+	 * Determine if checkRules(PacketBatch, int[]) keeps the same
+	 * statistics as checking each packet: the LINEAR engine also counts
+	 * evaluations, which only the per-packet path does.
+	 * @return false if statistics are enabled on the LINEAR engine
+	 */
+	public boolean canCheckBatch() {
+		return !statisticsEnabled || getClassifierType() != ClassifierType.LINEAR;
+	}
+
+	/**
+	 * Check a batch of packets against the list of rules. Each result
+	 * is a position in the rules of the returned RuleSet, which is the
+	 * snapshot that was current when the batch was checked. While
+	 * statistics are enabled only the matching rules are counted.
+	 * @param batch - packets to check
+	 * @param out - set to the position of the first rule that matched
+	 * each packet, or -1 if none; must be at least batch.size() long
+	 * @return RuleSet to look the results up in
+	 */
+	public RuleSet checkRules(PacketBatch batch, int[] out) {
+		RuleSet set = current.get();
+		if (statisticsEnabled) {
+			set.checkRulesCounted(batch, out);
+		} else {
+			set.checkRules(batch, out);
 		}
-		return null;
+		return set;
 	}
 }
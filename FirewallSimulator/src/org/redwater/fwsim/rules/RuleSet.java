@@ -0,0 +1,421 @@
+package org.redwater.fwsim.rules;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.CompactTableClassifier;
+import org.redwater.fwsim.classifiers.IClassifier;
+import org.redwater.fwsim.classifiers.IIncrementalClassifier;
+import org.redwater.fwsim.classifiers.PacketBatch;
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.services.BulkRuleLoader;
+import org.redwater.fwsim.services.CompiledRuleFile;
+import org.redwater.fwsim.services.TextRuleParser;
+
+/**
+ * Immutable snapshot of a list of firewall rules together with the
+ * classifier compiled from them. A RuleSet never changes once built, so
+ * any number of threads can check packets against it while a new one
+ * is being built. Use a RuleSet.Builder to make one.
+ * @author ghelmer
+ */
+public final class RuleSet {
+	private static final AtomicLong generations = new AtomicLong();
+
+	/** Rules in priority order; slots at count and beyond belong to later sets. */
+	final IRule[] rules;
+	final int count;
+	private final List<IRule> ruleList;
+	private final ClassifierType classifierType;
+	private final long generation;
+	private volatile IClassifier classifier;
+	/** Classifier for batches when the engine does not classify batches itself. */
+	private volatile CompactTableClassifier batchClassifier;
+
+	/**
+	 * Construct a RuleSet over the first count rules of an array. The
+	 * array is not copied: the caller may append to it past count, but
+	 * must never change the first count slots.
+	 * @param rules - rules in priority order
+	 * @param count - number of rules in the set
+	 * @param classifierType - engine to find the first matching rule with
+	 */
+	RuleSet(IRule[] rules, int count, ClassifierType classifierType) {
+		this.rules = rules;
+		this.count = count;
+		ruleList = Collections.unmodifiableList(Arrays.asList(rules).subList(0, count));
+		this.classifierType = classifierType;
+		generation = generations.incrementAndGet();
+		classifier = null;
+		batchClassifier = null;
+	}
+
+	/**
+	 * Builds a RuleSet from rule text or already parsed rules.
+	 */
+	public static final class Builder {
+		private final List<IRule> rules;
+		private ClassifierType classifierType;
+
+		/**
+		 * Construct a Builder for an empty RuleSet that uses the LINEAR engine.
+		 */
+		public Builder() {
+			rules = new ArrayList<>();
+			classifierType = ClassifierType.LINEAR;
+		}
+
+		/**
+		 * Construct a Builder that starts with the rules and engine of a RuleSet.
+		 * @param base - rules to start from
+		 */
+		public Builder(RuleSet base) {
+			rules = new ArrayList<>(base.ruleList);
+			classifierType = base.classifierType;
+		}
+
+		/**
+		 * Select the engine the RuleSet uses to find the first matching rule.
+		 * @param classifierType - engine to use
+		 * @return this builder
+		 */
+		public Builder classifierType(ClassifierType classifierType) {
+			this.classifierType = classifierType;
+			return this;
+		}
+
+		/**
+		 * Parse and add a new rule.
+		 * @param s - rule text
+		 * @return newly parsed rule
+		 * @throws InvalidFieldValueException on invalid rule field value
+		 * @throws UnhandledFieldNameException on invalid rule field name
+		 */
+		public IRule addRule(String s) throws UnhandledFieldNameException, InvalidFieldValueException {
+			IRule r = TextRuleParser.parse(s);
+			rules.add(r);
+			return r;
+		}
+
+		/**
+		 * Add an already built rule.
+		 * @param r - rule to add
+		 * @return this builder
+		 */
+		public Builder addRule(IRule r) {
+			rules.add(r);
+			return this;
+		}
+
+		/**
+		 * Add already built rules.
+		 * @param rules - rules to add, in priority order
+		 * @return this builder
+		 */
+		public Builder addRules(Collection<? extends IRule> rules) {
+			this.rules.addAll(rules);
+			return this;
+		}
+
+		/**
+		 * Load the rules of a compiled ruleset file, or of a rules file
+		 * with a BulkRuleLoader, adding metadata to each rule indicating
+		 * the source line number.
+		 * @param path - rules file or compiled ruleset file
+		 * @return this builder
+		 * @throws IOException if the file cannot be read
+		 * @throws InvalidFieldValueException on invalid rule field value
+		 * @throws UnhandledFieldNameException on invalid rule field name
+		 */
+		public Builder load(Path path) throws IOException, UnhandledFieldNameException, InvalidFieldValueException {
+			if (CompiledRuleFile.isCompiled(path)) {
+				return addRules(CompiledRuleFile.read(path).getRules());
+			}
+			return addRules(new BulkRuleLoader().load(path));
+		}
+
+		/**
+		 * Parse a list of Strings into rules.
+		 * @param strings - rule text, one rule per string
+		 * @return this builder
+		 * @throws InvalidFieldValueException on invalid rule field value
+		 * @throws UnhandledFieldNameException on invalid rule field name
+		 */
+		public Builder parse(List<String> strings) throws UnhandledFieldNameException, InvalidFieldValueException {
+			for (String s : strings) {
+				addRule(s);
+			}
+			return this;
+		}
+
+		/**
+		 * Parse lines from an input stream into rules. Comments begin with '#'.
+		 * Add metadata to each rule indicating the source line number.
+		 * @param in - rule text
+		 * @return this builder
+		 * @throws InvalidFieldValueException on invalid rule field value
+		 * @throws UnhandledFieldNameException on invalid rule field name
+		 */
+		public Builder parse(Scanner in) throws UnhandledFieldNameException, InvalidFieldValueException {
+			int line = 0;
+			while (in.hasNextLine()) {
+				line++;
+				String s = in.nextLine();
+
+				// Trim lines at # (used for comments).
+				int hashIndex = s.indexOf('#');
+				if (hashIndex != -1) {
+					s = s.substring(0,  hashIndex);
+				}
+
+				// Skip empty lines.
+				s = s.trim();
+				if (s.length() == 0) {
+					continue;
+				}
+
+				// Parse the remaining string, and set a default metadata.
+				IRule r = addRule(s);
+				r.setRuleMetadata(String.format("Line %d", line));
+			}
+			return this;
+		}
+
+		/**
+		 * Build the RuleSet and compile its classifier, so the first
+		 * packet checked against it does not pay for the compilation.
+		 * @return new RuleSet
+		 */
+		public RuleSet build() {
+			RuleSet set = buildUncompiled();
+			set.compile();
+			return set;
+		}
+
+		/**
+		 * Build the RuleSet, leaving the classifier to be compiled on first use.
+		 * @return new RuleSet
+		 */
+		RuleSet buildUncompiled() {
+			return new RuleSet(rules.toArray(new IRule[rules.size()]), rules.size(), classifierType);
+		}
+	}
+
+	/**
+	 * Make the RuleSet for this set's rules with one more rule at the
+	 * end. A classifier that follows single rule changes is carried over;
+	 * any other is compiled again on first use.
+	 * @param buffer - this set's array, or a copy of it, with the rule
+	 * in the slot at count
+	 * @param rule - rule added
+	 * @return new RuleSet
+	 */
+	RuleSet withRuleAdded(IRule[] buffer, IRule rule) {
+		RuleSet next = new RuleSet(buffer, count + 1, classifierType);
+		IClassifier c = classifier;
+		if (c instanceof IIncrementalClassifier) {
+			next.classifier = ((IIncrementalClassifier)c).withRuleAdded(next.ruleList, rule);
+		}
+		return next;
+	}
+
+	/**
+	 * Make the RuleSet for this set's rules without one of them. A
+	 * classifier that follows single rule changes is carried over; any
+	 * other is compiled again on first use.
+	 * @param index - position of the first occurrence of the rule to remove
+	 * @param capacity - length of the new array, at least count - 1
+	 * @return new RuleSet, over a new array with the given capacity
+	 */
+	RuleSet withRuleRemoved(int index, int capacity) {
+		IRule[] copy = new IRule[capacity];
+		System.arraycopy(rules, 0, copy, 0, index);
+		System.arraycopy(rules, index + 1, copy, index, count - index - 1);
+		RuleSet next = new RuleSet(copy, count - 1, classifierType);
+		IClassifier c = classifier;
+		if (c instanceof IIncrementalClassifier) {
+			next.classifier = ((IIncrementalClassifier)c).withRuleRemoved(next.ruleList, rules[index]);
+		}
+		return next;
+	}
+
+	/**
+	 * Build the classifier now instead of on the first checkRules call.
+	 */
+	public void compile() {
+		if (classifierType != ClassifierType.LINEAR && classifier == null) {
+			classifier = classifierType.newClassifier(ruleList);
+		}
+	}
+
+	/**
+	 * Get the classifier, compiling it if needed. Threads that race to
+	 * compile it each build a complete classifier and one of them is kept.
+	 * @return classifier
+	 */
+	private IClassifier getClassifier() {
+		IClassifier c = classifier;
+		if (c == null) {
+			c = classifierType.newClassifier(ruleList);
+			classifier = c;
+		}
+		return c;
+	}
+
+	/**
+	 * Get the classifier for batches: the classifier itself if it is a
+	 * COMPACT_TABLE, otherwise a compact table built on first use, since
+	 * every engine finds the same first matching rule.
+	 * @return batch classifier
+	 */
+	private CompactTableClassifier getBatchClassifier() {
+		IClassifier c = classifierType == ClassifierType.LINEAR ? null : getClassifier();
+		if (c instanceof CompactTableClassifier) {
+			return (CompactTableClassifier)c;
+		}
+		CompactTableClassifier b = batchClassifier;
+		if (b == null) {
+			b = new CompactTableClassifier(ruleList);
+			batchClassifier = b;
+		}
+		return b;
+	}
+
+	/**
+	 * Get the rules in this set.
+	 * @return unmodifiable list of rules, in priority order
+	 */
+	public List<IRule> getRules() {
+		return ruleList;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public ClassifierType getClassifierType() {
+		return classifierType;
+	}
+
+	/**
+	 * Get a number that is different for every RuleSet built, and larger
+	 * for sets built later.
+	 * @return generation number
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Check this packet against the rules. Return the first rule that
+	 * matches, or null if none.
+	 * @param packet - Packet to check against the rules.
+	 * @return IRule object that matched the packet, or null
+	 */
+	public IRule checkRules(Packet packet) {
+		if (classifierType != ClassifierType.LINEAR) {
+			return getClassifier().classify(packet);
+		}
+		for (int i = 0; i < count; i++) {
+			if (rules[i].matchesRule(packet)) {
+				return rules[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check this packet header view against the rules. Return the first
+	 * rule that matches, or null if none.
+	 * @param packet - packet header view to check.
+	 * @return IRule object that matched the packet, or null
+	 */
+	public IRule checkRules(IPacket packet) {
+		if (classifierType != ClassifierType.LINEAR) {
+			return getClassifier().classify(packet);
+		}
+		for (int i = 0; i < count; i++) {
+			if (rules[i].matchesRule(packet)) {
+				return rules[i];
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Check a batch of packets against the rules. The result for each
+	 * packet is the position of the first matching rule in getRules().
+	 * @param batch - packets to check
+	 * @param out - set to the position of the first rule that matched
+	 * each packet, or -1 if none; must be at least batch.size() long
+	 */
+	public void checkRules(PacketBatch batch, int[] out) {
+		getBatchClassifier().classify(batch, out);
+	}
+
+	/**
+	 * Check a batch of packets against the rules, updating the match
+	 * and byte counters of the matching rules.
+	 * @param batch - packets to check
+	 * @param out - set to the position of the first rule that matched
+	 * each packet, or -1 if none
+	 */
+	void checkRulesCounted(PacketBatch batch, int[] out) {
+		checkRules(batch, out);
+		for (int i = 0; i < batch.size(); i++) {
+			if (out[i] >= 0) {
+				rules[out[i]].getCounters().recordMatch(batch.getLength(i));
+			}
+		}
+	}
+
+	/**
+	 * Check a packet against the rules, updating the hit counters.
+	 * @param packet - packet to check, or null to check the view
+	 * @param view - packet header view to check if packet is null
+	 * @param length - length of the packet for the byte counters
+	 * @param sampleMask - time the rules for one packet in sampleMask + 1, or -1 for none
+	 * @return IRule object that matched the packet, or null
+	 */
+	IRule checkRulesCounted(Packet packet, IPacket view, int length, int sampleMask) {
+		IRule match = null;
+		if (classifierType != ClassifierType.LINEAR) {
+			match = packet != null ? getClassifier().classify(packet) : getClassifier().classify(view);
+		} else {
+			boolean sample = sampleMask >= 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) == 0;
+			for (int i = 0; i < count; i++) {
+				IRule r = rules[i];
+				RuleCounters c = r.getCounters();
+				c.recordEvaluation();
+				boolean matched;
+				if (sample) {
+					long start = System.nanoTime();
+					matched = packet != null ? r.matchesRule(packet) : r.matchesRule(view);
+					c.recordSample(System.nanoTime() - start);
+				} else {
+					matched = packet != null ? r.matchesRule(packet) : r.matchesRule(view);
+				}
+				if (matched) {
+					match = r;
+					break;
+				}
+			}
+		}
+		if (match != null) {
+			match.getCounters().recordMatch(length);
+		}
+		return match;
+	}
+}
@@ -1,8 +1,6 @@
 package org.redwater.fwsim.rules;
 
 import java.util.List;
-import java.util.AbstractMap.SimpleEntry;
-import java.util.ArrayList;
 import java.util.Map.Entry;
 
 import org.pcap4j.packet.Packet;
@@ -10,11 +8,12 @@ import org.pcap4j.packet.TcpPacket;
 import org.pcap4j.util.Packets;
 import org.redwater.fwsim.exceptions.InvalidFieldValueException;
 import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.layers.IPacket;
 
 public class TCPRule extends IPRule {
-	private List<Entry<Integer, Integer>> srcPortRanges; 
+	private PortRangeList srcPortRanges; 
 	private boolean srcPortRangeMatchFlag;
-	private List<Entry<Integer, Integer>> dstPortRanges;
+	private PortRangeList dstPortRanges;
 	private boolean dstPortRangeMatchFlag;
 	
 	/**
@@ -59,14 +58,7 @@ public class TCPRule extends IPRule {
 		// Check source port ranges, if any.
 		if (srcPortRanges != null) {
 			int srcPort = tcpPacket.getHeader().getSrcPort().valueAsInt();
-			boolean matched = false;
-			for (Entry<Integer, Integer> r : srcPortRanges) {
-				if (srcPort >= r.getKey() && srcPort <= r.getValue()) { 
-					matched = true;
-					break;
-				}
-			}
-			if (!matched) {
+			if (!srcPortRanges.contains(srcPort)) {
 				return false;
 			} else if (srcPortRangeMatchFlag) {
 				return false;
@@ -75,14 +67,36 @@ public class TCPRule extends IPRule {
 		// Check destination port ranges, if any.
 		if (dstPortRanges != null) {
 			int dstPort = tcpPacket.getHeader().getDstPort().valueAsInt();
-			boolean matched = false;
-			for (Entry<Integer, Integer> r : dstPortRanges) {
-				if (dstPort >= r.getKey() && dstPort <= r.getValue()) { 
-					matched = true;
-					break;
-				}
+			if (!dstPortRanges.contains(dstPort)) {
+				return false;
+			} else if (dstPortRangeMatchFlag) {
+				return false;
+			}
+		}
+		// So far, this rule matches. Evaluate the superclass on the packet.
+		return super.matchesRule(packet);
+	}
+	
+	/**
+	 * Determine if the packet header view matches this rule.
+	 * @param packet packet header view to evaluate.
+	 * @return true if the packet matches all fields
+	 */
+	public boolean matchesRule(IPacket packet) {
+		if ((!packet.isIpV4() && !packet.isIpV6()) || packet.getProtocol() != IPacket.PROTOCOL_TCP) {
+			return false;
+		}
+		// Check source port ranges, if any.
+		if (srcPortRanges != null) {
+			if (!srcPortRanges.contains(packet.getSrcPort())) {
+				return false;
+			} else if (srcPortRangeMatchFlag) {
+				return false;
 			}
-			if (!matched) {
+		}
+		// Check destination port ranges, if any.
+		if (dstPortRanges != null) {
+			if (!dstPortRanges.contains(packet.getDstPort())) {
 				return false;
 			} else if (dstPortRangeMatchFlag) {
 				return false;
@@ -119,10 +133,7 @@ public class TCPRule extends IPRule {
 			catch (NumberFormatException e) {
 				throw new InvalidFieldValueException(String.format("Invalid src port range '%s': NumberFormatException %s", value, e.getMessage()));
 			}
-			if (srcPortRanges == null) {
-				srcPortRanges = new ArrayList<>();
-			}
-			srcPortRanges.add(new SimpleEntry<>(srcPortRangeStart, srcPortRangeEnd));
+			addSrcPortRange(srcPortRangeStart, srcPortRangeEnd);
 			break;
 		case "dstPort":
 			int dstPortRangeStart;
@@ -143,10 +154,7 @@ public class TCPRule extends IPRule {
 			catch (NumberFormatException e) {
 				throw new InvalidFieldValueException(String.format("Invalid dst port range '%s': NumberFormatException %s", value, e.getMessage()));
 			}
-			if (dstPortRanges == null) {
-				dstPortRanges = new ArrayList<>();
-			}
-			dstPortRanges.add(new SimpleEntry<>(dstPortRangeStart, dstPortRangeEnd));
+			addDstPortRange(dstPortRangeStart, dstPortRangeEnd);
 			break;
 		default:
 			super.setRuleField(fieldName, value);
@@ -154,6 +162,46 @@ public class TCPRule extends IPRule {
 		}
 	}
 
+	/**
+	 * Add an inclusive range to the source ports this rule matches.
+	 * @param start - first port in the range
+	 * @param end - last port in the range
+	 */
+	public void addSrcPortRange(int start, int end) {
+		if (srcPortRanges == null) {
+			srcPortRanges = new PortRangeList();
+		}
+		srcPortRanges.add(start, end);
+	}
+
+	/**
+	 * Add an inclusive range to the destination ports this rule matches.
+	 * @param start - first port in the range
+	 * @param end - last port in the range
+	 */
+	public void addDstPortRange(int start, int end) {
+		if (dstPortRanges == null) {
+			dstPortRanges = new PortRangeList();
+		}
+		dstPortRanges.add(start, end);
+	}
+
+	/**
+	 * Get the source port ranges for this rule.
+	 * @return port ranges, or null if the rule matches any source port
+	 */
+	public PortRangeList getSrcPortRanges() {
+		return srcPortRanges;
+	}
+
+	/**
+	 * Get the destination port ranges for this rule.
+	 * @return port ranges, or null if the rule matches any destination port
+	 */
+	public PortRangeList getDstPortRanges() {
+		return dstPortRanges;
+	}
+
 	/**
 	 * Return a text representation of this rule.
 	 * @return text
@@ -164,31 +212,11 @@ public class TCPRule extends IPRule {
 		s.append("tcp");
 		// Check source ports.
 		if (srcPortRanges != null) {
-			for (Entry<Integer, Integer> r : srcPortRanges) {
-				s.append(' ');
-				s.append("srcPort ");
-				int start = r.getKey();
-				int end = r.getValue();
-				if (start == end) {
-					s.append(String.format("%d", start));
-				} else {
-					s.append(String.format("%d-%d", start, end));
-				}
-			}
+			srcPortRanges.appendTo(s, "srcPort");
 		}
 		// Check destination ports.
 		if (dstPortRanges != null) {
-			for (Entry<Integer, Integer> r : dstPortRanges) {
-				s.append(' ');
-				s.append("dstPort ");
-				int start = r.getKey();
-				int end = r.getValue();
-				if (start == end) {
-					s.append(String.format("%d", start));
-				} else {
-					s.append(String.format("%d-%d", start, end));
-				}
-			}
+			dstPortRanges.appendTo(s, "dstPort");
 		}
 		s.append(' ');
 		s.append(super.toString());
@@ -14,7 +14,10 @@ import org.pcap4j.packet.IpV4Rfc1349Tos;
 import org.pcap4j.packet.Packet;
 import org.pcap4j.packet.namednumber.IpNumber;
 import org.pcap4j.packet.namednumber.IpVersion;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
 import org.redwater.fwsim.rules.IPRule;
+import org.redwater.fwsim.services.TextRuleParser;
 
 public class IPRuleTest {
 	private IPRule ipRule1; 
@@ -87,4 +90,72 @@ public class IPRuleTest {
 		assertTrue("packet2 did not match rule 3 (not src or dst)",
 				ipRule3.matchesRule(packet2));
 	}
+
+	@Test
+	public void testHostAndNetworkAddresses() throws Exception {
+		ArrayList<Entry<String, String>> parameters = new ArrayList<>();
+		parameters.add(new SimpleEntry<>("srcAddress", "192.168.1.1/32"));
+		parameters.add(new SimpleEntry<>("action", "accept"));
+		assertTrue("packet1 did not match host rule src 192.168.1.1/32",
+				new IPRule(parameters).matchesRule(packet1));
+
+		parameters = new ArrayList<>();
+		parameters.add(new SimpleEntry<>("dstAddress", "1.2.3.4/30"));
+		parameters.add(new SimpleEntry<>("action", "accept"));
+		assertTrue("packet1 did not match network address rule dst 1.2.3.4/30",
+				new IPRule(parameters).matchesRule(packet1));
+		assertFalse("packet2 unexpectedly matched rule dst 1.2.3.4/30",
+				new IPRule(parameters).matchesRule(packet2));
+	}
+
+	@Test
+	public void testIpV6() throws Exception {
+		Packet v6 = TestTraffic.buildIpV6Packet(IpNumber.TCP,
+				TestTraffic.ipV6("2001:db8:0:1::7"), TestTraffic.ipV6("fd00::1"), 40000, 22);
+		IPRule src = (IPRule)TextRuleParser.parse("ip srcAddress 2001:db8:0:1::/64 action accept");
+		assertTrue(src.matchesRule(v6));
+		assertFalse("IPv6 rule matched an IPv4 packet", src.matchesRule(packet1));
+		assertFalse("IPv6 rule matched outside its prefix", ((IPRule)TextRuleParser.parse(
+				"ip srcAddress 2001:db8:0:2::/64 action accept")).matchesRule(v6));
+		assertTrue(((IPRule)TextRuleParser.parse("ip dstAddress fd00::1 action accept")).matchesRule(v6));
+		assertFalse("IPv4 rule matched an IPv6 packet", ipRule1.matchesRule(v6));
+		assertFalse("IPv4 any address rule matched an IPv6 packet", ipRule2.matchesRule(v6));
+		assertTrue("rule without addresses did not match an IPv6 packet", ipRule3.matchesRule(v6));
+		assertTrue(src.matchesIpV6());
+		assertFalse(src.matchesIpV4());
+		assertTrue(ipRule3.matchesIpV4() && ipRule3.matchesIpV6());
+		assertEquals(64, src.getSrcPrefixLength());
+
+		String[][] formats = {
+			{ "::/0", "::/0" },
+			{ "::1", "::1/128" },
+			{ "2001:DB8:0:0:1:0:0:1/64", "2001:db8::1:0:0:1/64" },
+			{ "2001:db8:0:1:0:0:0:0/48", "2001:db8:0:1::/48" },
+			{ "::ffff:10.0.0.1/128", "::ffff:a00:1/128" },
+			{ "1:2:3:4:5:6:7:8/100", "1:2:3:4:5:6:7:8/100" }
+		};
+		for (String[] f : formats) {
+			IPRule r = (IPRule)TextRuleParser.parse("ip dstAddress " + f[0] + " action deny");
+			assertTrue(r.toString(), r.toString().startsWith("dstAddress " + f[1] + " "));
+		}
+
+		String[] invalid = {
+			"ip srcAddress 10.0.0.0/8 dstAddress 2001:db8::/32 action deny",
+			"ip dstAddress 2001:db8::/32 srcAddress 10.0.0.0/8 action deny",
+			"ip srcAddress 2001:db8:::1 action deny",
+			"ip srcAddress 1:2:3:4:5:6:7:8:9 action deny",
+			"ip srcAddress 1:2:3:4:5:6:7 action deny",
+			"ip srcAddress 2001:db8::/129 action deny",
+			"ip srcAddress gggg::1 action deny",
+			"ip srcAddress ::1.2.3.256 action deny"
+		};
+		for (String text : invalid) {
+			try {
+				TextRuleParser.parse(text);
+				fail("Parsed " + text);
+			} catch (InvalidFieldValueException e) {
+				// Expected.
+			}
+		}
+	}
 }
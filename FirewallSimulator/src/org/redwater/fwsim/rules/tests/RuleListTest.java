@@ -22,6 +22,7 @@ import org.pcap4j.packet.namednumber.IpNumber;
 import org.pcap4j.packet.namednumber.IpVersion;
 import org.pcap4j.packet.namednumber.TcpPort;
 import org.pcap4j.packet.namednumber.UdpPort;
+import org.redwater.fwsim.classifiers.ClassifierType;
 import org.redwater.fwsim.rules.IRule;
 import org.redwater.fwsim.rules.RuleList;
 
@@ -319,4 +320,18 @@ public class RuleListTest {
 		assertEquals(r.getRuleMetadata(), "Line 3");
 		System.out.printf("tcpPacket2 matched fromScanner rule %s %s\n", r.getRuleMetadata(), r.toString());
 	}
+
+	@Test
+	public void testClassifierTypes() {
+		Packet[] packets = { udpPacket1, udpPacket2, tcpPacket1, tcpPacket2 };
+		for (ClassifierType type : ClassifierType.values()) {
+			for (Packet p : packets) {
+				rulesFromScanner.setClassifierType(ClassifierType.LINEAR);
+				IRule expected = rulesFromScanner.checkRules(p);
+				rulesFromScanner.setClassifierType(type);
+				assertSame(String.format("%s classifier disagrees with linear scan", type),
+						expected, rulesFromScanner.checkRules(p));
+			}
+		}
+	}
 }
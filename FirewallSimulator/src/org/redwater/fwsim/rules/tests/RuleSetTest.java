@@ -0,0 +1,168 @@
+package org.redwater.fwsim.rules.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+import org.redwater.fwsim.services.RuleFileWatcher;
+
+public class RuleSetTest {
+	private static final String ALLOW_WEB = "tcp dstPort 80 action accept\ntcp dstPort 22 action deny\n";
+	private static final String DENY_WEB = "tcp dstPort 80 action deny\ntcp dstPort 22 action accept\n";
+
+	private static Packet tcp(int dstPort) {
+		return TestTraffic.buildIpV4Packet(IpNumber.TCP, TestTraffic.ipV4("10.1.2.3"),
+				TestTraffic.ipV4("192.168.1.1"), 40000, dstPort);
+	}
+
+	@Test
+	public void testBuilder() throws Exception {
+		RuleSet set = new RuleSet.Builder().classifierType(ClassifierType.DECISION_TREE)
+				.parse(new Scanner("# comment\n" + ALLOW_WEB)).build();
+		assertEquals(2, set.size());
+		assertEquals("Line 2", set.getRules().get(0).getRuleMetadata());
+		assertSame(set.getRules().get(0), set.checkRules(tcp(80)));
+		assertNull(set.checkRules(tcp(443)));
+
+		// A builder started from a set copies it; the set itself never changes.
+		RuleSet.Builder builder = new RuleSet.Builder(set);
+		builder.addRule("tcp dstPort 443 action reject");
+		RuleSet bigger = builder.build();
+		assertEquals(2, set.size());
+		assertEquals(3, bigger.size());
+		assertEquals(ClassifierType.DECISION_TREE, bigger.getClassifierType());
+		assertTrue(bigger.getGeneration() > set.getGeneration());
+		assertNull(set.checkRules(tcp(443)));
+		assertSame(bigger.getRules().get(2), bigger.checkRules(tcp(443)));
+	}
+
+	@Test
+	public void testSnapshotsUnchangedByAddRule() throws Exception {
+		RuleList rules = new RuleList();
+		rules.addRule("tcp dstPort 80 action accept");
+		RuleSet before = rules.getRuleSet();
+		long generation = rules.getGeneration();
+		for (int i = 0; i < 100; i++) {
+			rules.addRule(String.format("tcp dstPort %d action deny", 1000 + i));
+		}
+		assertEquals(1, before.size());
+		assertEquals(101, rules.getRules().size());
+		assertNull(before.checkRules(tcp(1050)));
+		assertSame(rules.getRules().get(51), rules.checkRules(tcp(1050)));
+		assertTrue(rules.getGeneration() != generation);
+
+		// A bad rule in a bulk parse adds none of the rules.
+		try {
+			rules.parse(Arrays.asList("tcp dstPort 8080 action accept", "tcp bogus 1 action accept"));
+			fail("Parsed an invalid rule");
+		} catch (UnhandledFieldNameException e) {
+			// Expected.
+		}
+		assertEquals(101, rules.getRules().size());
+	}
+
+	@Test
+	public void testConcurrentSwap() throws Exception {
+		RuleList rules = new RuleList();
+		rules.setClassifierType(ClassifierType.PREFIX_TRIE);
+		RuleSet allow = new RuleSet.Builder().classifierType(ClassifierType.PREFIX_TRIE)
+				.parse(new Scanner(ALLOW_WEB)).build();
+		RuleSet deny = new RuleSet.Builder().classifierType(ClassifierType.PREFIX_TRIE)
+				.parse(new Scanner(DENY_WEB)).build();
+		rules.setRuleSet(allow);
+		Packet web = tcp(80);
+		Packet ssh = tcp(22);
+		AtomicReference<String> failure = new AtomicReference<>();
+		Thread[] readers = new Thread[4];
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread(() -> {
+				for (int i = 0; i < 20000 && failure.get() == null; i++) {
+					// Both verdicts must come from one policy.
+					RuleSet set = rules.getRuleSet();
+					IRule w = set.checkRules(web);
+					IRule s = set.checkRules(ssh);
+					if (w == null || s == null || w.getAction(web) == s.getAction(ssh)) {
+						failure.set("Mixed policy");
+					}
+					IRule r = rules.checkRules(web);
+					if (r != allow.getRules().get(0) && r != deny.getRules().get(0)) {
+						failure.set("Rule from neither policy");
+					}
+				}
+			});
+			readers[t].start();
+		}
+		for (int i = 0; i < 2000; i++) {
+			rules.setRuleSet(i % 2 == 0 ? deny : allow);
+		}
+		for (Thread t : readers) {
+			t.join();
+		}
+		assertNull(failure.get());
+	}
+
+	@Test
+	public void testFileWatcher() throws IOException, InterruptedException {
+		Path dir = Files.createTempDirectory("rules");
+		Path file = dir.resolve("rules.txt");
+		Files.write(file, ALLOW_WEB.getBytes(StandardCharsets.US_ASCII));
+		RuleList rules = new RuleList();
+		rules.setClassifierType(ClassifierType.DECISION_TREE);
+		try (RuleFileWatcher watcher = new RuleFileWatcher(rules, file)) {
+			assertTrue(watcher.reload());
+			assertEquals(RuleActions.ACCEPT, rules.checkRules(tcp(80)).getAction(tcp(80)));
+
+			// A file that does not parse leaves the old rules in force.
+			Files.write(file, "tcp dstPort 80 action maybe\n".getBytes(StandardCharsets.US_ASCII));
+			assertFalse(watcher.reload());
+			assertNotNull(watcher.getLastError());
+			assertEquals(RuleActions.ACCEPT, rules.checkRules(tcp(80)).getAction(tcp(80)));
+
+			watcher.start();
+			Files.write(file, DENY_WEB.getBytes(StandardCharsets.US_ASCII));
+			long deadline = System.currentTimeMillis() + 30000;
+			while (watcher.getReloadCount() < 2 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(2, watcher.getReloadCount());
+			assertNull(watcher.getLastError());
+			assertEquals(ClassifierType.DECISION_TREE, rules.getClassifierType());
+			assertEquals(RuleActions.DENY, rules.checkRules(tcp(80)).getAction(tcp(80)));
+
+			// An unknown rule type must not stop the watcher.
+			Files.write(file, "tpc dstPort 80 action accept\n".getBytes(StandardCharsets.US_ASCII));
+			deadline = System.currentTimeMillis() + 30000;
+			while (watcher.getLastError() == null && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertTrue(watcher.getLastError() instanceof IllegalArgumentException);
+			Files.write(file, ALLOW_WEB.getBytes(StandardCharsets.US_ASCII));
+			deadline = System.currentTimeMillis() + 30000;
+			while (watcher.getReloadCount() < 3 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(20);
+			}
+			assertEquals(3, watcher.getReloadCount());
+			assertNull(watcher.getLastError());
+			assertEquals(RuleActions.ACCEPT, rules.checkRules(tcp(80)).getAction(tcp(80)));
+		} finally {
+			Files.delete(file);
+			Files.delete(dir);
+		}
+	}
+}
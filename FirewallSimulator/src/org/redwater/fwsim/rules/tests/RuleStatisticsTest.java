@@ -0,0 +1,95 @@
+package org.redwater.fwsim.rules.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.rules.RuleCounterSnapshot;
+import org.redwater.fwsim.rules.RuleList;
+
+public class RuleStatisticsTest {
+	private RuleList rules;
+	private List<Packet> packets;
+
+	@Before
+	public void setUp() throws Exception {
+		rules = new RuleList();
+		rules.parse(new Scanner("# web\ntcp dstPort 80 action accept\n\nudp dstPort 53 action accept\nip srcAddress 10.0.0.0/8 action deny\n"));
+		int client = TestTraffic.ipV4("10.1.2.3");
+		int server = TestTraffic.ipV4("192.168.1.1");
+		packets = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			packets.add(TestTraffic.buildIpV4Packet(IpNumber.TCP, client, server, 40000 + i, 80));
+		}
+		for (int i = 0; i < 5; i++) {
+			packets.add(TestTraffic.buildIpV4Packet(IpNumber.UDP, client, server, 40000 + i, 53));
+		}
+		for (int i = 0; i < 3; i++) {
+			packets.add(TestTraffic.buildIpV4Packet(IpNumber.TCP, client, server, 40000 + i, 22));
+		}
+		packets.add(TestTraffic.buildIpV4Packet(IpNumber.TCP, server, client, 22, 40000));
+	}
+
+	@Test
+	public void test() throws Exception {
+		for (Packet p : packets) {
+			rules.checkRules(p);
+		}
+		assertEquals(0, rules.getStatistics().get(0).getMatches());
+		assertTrue(rules.canCheckBatch());
+
+		rules.setStatisticsEnabled(true);
+		assertFalse(rules.canCheckBatch());
+		rules.setCostSampleInterval(1);
+		// Several threads counting at once must not lose counts.
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (Packet p : packets) {
+					rules.checkRules(p);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		Map<Integer, RuleCounterSnapshot> byLine = rules.getStatisticsByLine();
+		assertEquals(3, byLine.size());
+		RuleCounterSnapshot web = byLine.get(2);
+		RuleCounterSnapshot dns = byLine.get(4);
+		RuleCounterSnapshot deny = byLine.get(5);
+		assertEquals(40, web.getMatches());
+		assertEquals(4 * packets.size(), web.getEvaluations());
+		assertEquals(20, dns.getMatches());
+		assertEquals(4 * (packets.size() - 10), dns.getEvaluations());
+		assertEquals(12, deny.getMatches());
+		assertEquals(16, deny.getEvaluations());
+		assertEquals(web.getEvaluations(), web.getSamples());
+		long bytes = 0;
+		for (int i = 0; i < 10; i++) {
+			bytes += packets.get(i).length();
+		}
+		assertEquals(4 * bytes, web.getBytes());
+
+		rules.resetStatistics();
+		rules.setClassifierType(ClassifierType.DECISION_TREE);
+		assertTrue(rules.canCheckBatch());
+		for (Packet p : packets) {
+			rules.checkRules(p);
+		}
+		byLine = rules.getStatisticsByLine();
+		assertEquals(10, byLine.get(2).getMatches());
+		assertEquals(0, byLine.get(2).getEvaluations());
+		assertEquals(3, byLine.get(5).getMatches());
+	}
+}
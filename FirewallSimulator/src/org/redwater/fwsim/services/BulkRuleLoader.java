@@ -0,0 +1,507 @@
+package org.redwater.fwsim.services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.rules.IPRule;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.TCPRule;
+import org.redwater.fwsim.rules.UDPRule;
+
+/**
+ * Load a large rules file quickly. The file is memory mapped and cut
+ * into chunks at line boundaries, and the chunks are parsed on several
+ * threads by a single pass tokenizer that works on the bytes directly.
+ * Well formed addresses, ports and actions are decoded without making
+ * Strings; any other field goes through setRuleField, so the rules and
+ * errors are the same as those of RuleList.parse(Scanner). The chunks
+ * are merged in file order, and each rule gets the same "Line N"
+ * metadata. An error names the line it was found on; if several lines
+ * are bad, the first one is reported.
+ * @author ghelmer
+ */
+public class BulkRuleLoader {
+	/** Smallest chunk worth parsing on a thread of its own. */
+	private static final int MIN_CHUNK_SIZE = 1 << 16;
+	/** Chunks per thread, so a chunk of long lines does not hold up the others. */
+	private static final int CHUNKS_PER_THREAD = 4;
+
+	private static final byte[] TYPE_IP = ascii("ip");
+	private static final byte[] TYPE_TCP = ascii("tcp");
+	private static final byte[] TYPE_UDP = ascii("udp");
+	private static final byte[] FIELD_ACTION = ascii("action");
+	private static final byte[] FIELD_SRC_ADDRESS = ascii("srcAddress");
+	private static final byte[] FIELD_DST_ADDRESS = ascii("dstAddress");
+	private static final byte[] FIELD_SRC_PORT = ascii("srcPort");
+	private static final byte[] FIELD_DST_PORT = ascii("dstPort");
+	private static final String[] ACTIONS = { "accept", "deny", "reject" };
+	private static final byte[][] ACTION_BYTES = { ascii(ACTIONS[0]), ascii(ACTIONS[1]), ascii(ACTIONS[2]) };
+
+	private final int threads;
+
+	/**
+	 * Construct a BulkRuleLoader that uses one thread per processor.
+	 */
+	public BulkRuleLoader() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Construct a BulkRuleLoader.
+	 * @param threads - maximum number of threads to parse on
+	 */
+	public BulkRuleLoader(int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException(String.format("Invalid thread count %d", threads));
+		}
+		this.threads = threads;
+	}
+
+	private static byte[] ascii(String s) {
+		return s.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	/**
+	 * Load a rules file. Comments begin with '#'.
+	 * @param path - rules file
+	 * @return rules in file order, with "Line N" metadata
+	 * @throws IOException if the file cannot be read
+	 * @throws InvalidFieldValueException on invalid rule field value
+	 * @throws UnhandledFieldNameException on invalid rule field name
+	 */
+	public List<IRule> load(Path path) throws IOException, UnhandledFieldNameException, InvalidFieldValueException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(String.format("Rules file %s is too large", path));
+			}
+			ByteBuffer text = size == 0 ? ByteBuffer.allocate(0) : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			return parse(text);
+		}
+	}
+
+	/**
+	 * Parse rule text. Comments begin with '#'.
+	 * @param text - rule text, from its position to its limit; only read
+	 * @return rules in text order, with "Line N" metadata
+	 * @throws IOException if interrupted while waiting for the threads
+	 * @throws InvalidFieldValueException on invalid rule field value
+	 * @throws UnhandledFieldNameException on invalid rule field name
+	 */
+	public List<IRule> parse(ByteBuffer text) throws IOException, UnhandledFieldNameException, InvalidFieldValueException {
+		int[] bounds = chunkBounds(text);
+		Chunk[] chunks = new Chunk[bounds.length - 1];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new Chunk(text, bounds[i], bounds[i + 1]);
+		}
+		if (chunks.length == 1) {
+			chunks[0].parse();
+		} else {
+			ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, chunks.length));
+			try {
+				List<Future<?>> futures = new ArrayList<>(chunks.length);
+				for (Chunk c : chunks) {
+					futures.add(pool.submit(c::parse));
+				}
+				for (Future<?> f : futures) {
+					f.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while loading rules");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException)e.getCause();
+				} else if (e.getCause() instanceof Error) {
+					throw (Error)e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			} finally {
+				pool.shutdownNow();
+			}
+		}
+		return merge(chunks);
+	}
+
+	/**
+	 * Cut the text into chunks that each end just after a line feed.
+	 * @param text - rule text
+	 * @return start of each chunk, then the end of the last
+	 */
+	private int[] chunkBounds(ByteBuffer text) {
+		int start = text.position();
+		int end = text.limit();
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, (end - start) / (threads * CHUNKS_PER_THREAD) + 1);
+		int[] bounds = new int[16];
+		int n = 0;
+		bounds[n++] = start;
+		int pos = start;
+		while (end - pos > chunkSize) {
+			pos += chunkSize;
+			while (pos < end && text.get(pos - 1) != '\n') {
+				pos++;
+			}
+			if (n == bounds.length) {
+				bounds = Arrays.copyOf(bounds, n * 2);
+			}
+			bounds[n++] = pos;
+		}
+		if (pos < end || n == 1) {
+			if (n == bounds.length) {
+				bounds = Arrays.copyOf(bounds, n + 1);
+			}
+			bounds[n++] = end;
+		}
+		return Arrays.copyOf(bounds, n);
+	}
+
+	/**
+	 * Join the rules of the chunks in order and give them their line
+	 * numbers, or throw the error of the first chunk that has one.
+	 * @param chunks - parsed chunks in text order
+	 * @return rules
+	 * @throws InvalidFieldValueException on invalid rule field value
+	 * @throws UnhandledFieldNameException on invalid rule field name
+	 */
+	private static List<IRule> merge(Chunk[] chunks) throws UnhandledFieldNameException, InvalidFieldValueException {
+		int total = 0;
+		for (Chunk c : chunks) {
+			total += c.count;
+		}
+		List<IRule> result = new ArrayList<>(total);
+		int lineBase = 0;
+		for (Chunk c : chunks) {
+			if (c.error != null) {
+				throw lineError(c.error, lineBase + c.errorLine);
+			}
+			for (int i = 0; i < c.count; i++) {
+				c.rules[i].setRuleMetadata("Line " + (lineBase + c.lines[i]));
+				result.add(c.rules[i]);
+			}
+			lineBase += c.lineCount;
+		}
+		return result;
+	}
+
+	/**
+	 * Add the line number to the message of a parse error.
+	 * @param e - error thrown while parsing the line
+	 * @param line - line number in the file
+	 * @return exception to throw
+	 * @throws InvalidFieldValueException on invalid rule field value
+	 * @throws UnhandledFieldNameException on invalid rule field name
+	 */
+	private static RuntimeException lineError(Exception e, int line) throws UnhandledFieldNameException, InvalidFieldValueException {
+		String message = String.format("Line %d: %s", line, e.getMessage());
+		if (e instanceof UnhandledFieldNameException) {
+			throw new UnhandledFieldNameException(message);
+		} else if (e instanceof InvalidFieldValueException) {
+			throw new InvalidFieldValueException(message);
+		}
+		return new IllegalArgumentException(message, e);
+	}
+
+	/**
+	 * A run of whole lines of the text and the rules parsed from them.
+	 */
+	private static final class Chunk {
+		private final ByteBuffer text;
+		private final int start;
+		private final int end;
+		private IRule[] rules;
+		/** Line number of each rule, counting from 1 at the start of the chunk. */
+		private int[] lines;
+		private int count;
+		private int lineCount;
+		private Exception error;
+		private int errorLine;
+		private int[] tokenStarts;
+		private int[] tokenEnds;
+
+		private Chunk(ByteBuffer text, int start, int end) {
+			this.text = text;
+			this.start = start;
+			this.end = end;
+			rules = new IRule[64];
+			lines = new int[64];
+			count = 0;
+			lineCount = 0;
+			error = null;
+			errorLine = 0;
+			tokenStarts = new int[16];
+			tokenEnds = new int[16];
+		}
+
+		/**
+		 * Parse every line of the chunk, stopping at the first bad one.
+		 * Lines end at "\n", "\r\n" or "\r", as for Scanner.nextLine.
+		 */
+		private void parse() {
+			int pos = start;
+			int line = 0;
+			while (pos < end) {
+				line++;
+				int lineEnd = pos;
+				byte b = 0;
+				while (lineEnd < end && (b = text.get(lineEnd)) != '\n' && b != '\r') {
+					lineEnd++;
+				}
+				try {
+					parseLine(pos, lineEnd, line);
+				} catch (UnhandledFieldNameException | InvalidFieldValueException | IllegalArgumentException e) {
+					error = e;
+					errorLine = line;
+					return;
+				}
+				pos = lineEnd + 1;
+				if (b == '\r' && pos < end && text.get(pos) == '\n') {
+					pos++;
+				}
+			}
+			lineCount = line;
+		}
+
+		/**
+		 * Split a line into tokens and build a rule from them.
+		 * @param from - start of the line
+		 * @param to - end of the line, before the line terminator
+		 * @param line - line number within the chunk
+		 * @throws InvalidFieldValueException on invalid rule field value
+		 * @throws UnhandledFieldNameException on invalid rule field name
+		 */
+		private void parseLine(int from, int to, int line) throws UnhandledFieldNameException, InvalidFieldValueException {
+			int n = 0;
+			int pos = from;
+			while (pos < to) {
+				byte b = text.get(pos);
+				if (b == '#') {
+					break;
+				}
+				if (isSpace(b)) {
+					pos++;
+					continue;
+				}
+				int tokenStart = pos;
+				while (pos < to && !isSpace(b = text.get(pos)) && b != '#') {
+					pos++;
+				}
+				if (n == tokenStarts.length) {
+					tokenStarts = Arrays.copyOf(tokenStarts, n * 2);
+					tokenEnds = Arrays.copyOf(tokenEnds, n * 2);
+				}
+				tokenStarts[n] = tokenStart;
+				tokenEnds[n] = pos;
+				n++;
+			}
+			if (n == 0) {
+				return;
+			}
+
+			IPRule r;
+			if (equals(0, TYPE_TCP)) {
+				r = new TCPRule();
+			} else if (equals(0, TYPE_UDP)) {
+				r = new UDPRule();
+			} else if (equals(0, TYPE_IP)) {
+				r = new IPRule();
+			} else {
+				throw new IllegalArgumentException(String.format("Invalid rule type %s", token(0)));
+			}
+			if (n % 2 == 0) {
+				throw new InvalidFieldValueException(String.format("Missing value for field %s", token(n - 1)));
+			}
+			for (int i = 1; i < n; i += 2) {
+				setField(r, i, i + 1);
+			}
+
+			if (count == rules.length) {
+				rules = Arrays.copyOf(rules, count * 2);
+				lines = Arrays.copyOf(lines, count * 2);
+			}
+			rules[count] = r;
+			lines[count] = line;
+			count++;
+		}
+
+		/**
+		 * Set a rule field from a name and value token, decoding the value
+		 * directly when it is well formed.
+		 * @param r - rule to set the field of
+		 * @param name - index of the name token
+		 * @param value - index of the value token
+		 * @throws InvalidFieldValueException on invalid rule field value
+		 * @throws UnhandledFieldNameException on invalid rule field name
+		 */
+		private void setField(IPRule r, int name, int value) throws UnhandledFieldNameException, InvalidFieldValueException {
+			if (equals(name, FIELD_ACTION)) {
+				for (int a = 0; a < ACTIONS.length; a++) {
+					if (equals(value, ACTION_BYTES[a])) {
+						r.setRuleField("action", ACTIONS[a]);
+						return;
+					}
+				}
+			} else if (equals(name, FIELD_SRC_ADDRESS) || equals(name, FIELD_DST_ADDRESS)) {
+				long cidr = parseCidr(tokenStarts[value], tokenEnds[value]);
+				// IPv6 addresses, and mixing families, go through setRuleField.
+				if (cidr >= 0 && r.matchesIpV4()) {
+					if (text.get(tokenStarts[name]) == 's') {
+						r.setSrcAddress((int)(cidr >>> 8), (int)cidr & 0xFF);
+					} else {
+						r.setDstAddress((int)(cidr >>> 8), (int)cidr & 0xFF);
+					}
+					return;
+				}
+			} else if ((r instanceof TCPRule || r instanceof UDPRule)
+					&& (equals(name, FIELD_SRC_PORT) || equals(name, FIELD_DST_PORT))) {
+				long range = parsePortRange(tokenStarts[value], tokenEnds[value]);
+				if (range >= 0) {
+					int low = (int)(range >>> 32);
+					int high = (int)range;
+					boolean src = text.get(tokenStarts[name]) == 's';
+					if (r instanceof TCPRule) {
+						if (src) {
+							((TCPRule)r).addSrcPortRange(low, high);
+						} else {
+							((TCPRule)r).addDstPortRange(low, high);
+						}
+					} else if (src) {
+						((UDPRule)r).addSrcPortRange(low, high);
+					} else {
+						((UDPRule)r).addDstPortRange(low, high);
+					}
+					return;
+				}
+			}
+			// Anything else is handled, or rejected, exactly as TextRuleParser would.
+			r.setRuleField(token(name), token(value));
+		}
+
+		/**
+		 * Decode an address in the a.b.c.d/n form SubnetUtils accepts.
+		 * @param from - start of the text
+		 * @param to - end of the text
+		 * @return address in the high bits and prefix length in the low
+		 * 8 bits, or -1 if the text is not a valid CIDR block
+		 */
+		private long parseCidr(int from, int to) {
+			long address = 0;
+			int pos = from;
+			for (int octet = 0; octet < 4; octet++) {
+				int digitsEnd = digitsEnd(pos, to, 3);
+				if (digitsEnd < 0 || digitsEnd == to || text.get(digitsEnd) != (octet < 3 ? '.' : '/')) {
+					return -1;
+				}
+				int v = number(pos, digitsEnd);
+				if (v > 255) {
+					return -1;
+				}
+				address = (address << 8) | v;
+				pos = digitsEnd + 1;
+			}
+			int digitsEnd = digitsEnd(pos, to, 3);
+			if (digitsEnd != to) {
+				return -1;
+			}
+			int prefixLength = number(pos, to);
+			if (prefixLength > 32) {
+				return -1;
+			}
+			return (address << 8) | prefixLength;
+		}
+
+		/**
+		 * Decode a port or inclusive port range in the n or n-m form.
+		 * @param from - start of the text
+		 * @param to - end of the text
+		 * @return first port in the high 32 bits and last in the low 32
+		 * bits, or -1 if the text is not plain digits
+		 */
+		private long parsePortRange(int from, int to) {
+			int digitsEnd = digitsEnd(from, to, 9);
+			if (digitsEnd < 0) {
+				return -1;
+			}
+			long low = number(from, digitsEnd);
+			long high = low;
+			if (digitsEnd < to) {
+				if (text.get(digitsEnd) != '-' || digitsEnd(digitsEnd + 1, to, 9) != to) {
+					return -1;
+				}
+				high = number(digitsEnd + 1, to);
+			}
+			return (low << 32) | high;
+		}
+
+		/**
+		 * Find the end of a run of 1 to maxDigits ASCII digits.
+		 * @param from - start of the run
+		 * @param to - end of the text
+		 * @param maxDigits - most digits allowed
+		 * @return end of the run, or -1 if it is empty or too long
+		 */
+		private int digitsEnd(int from, int to, int maxDigits) {
+			int pos = from;
+			while (pos < to && pos - from <= maxDigits) {
+				byte b = text.get(pos);
+				if (b < '0' || b > '9') {
+					break;
+				}
+				pos++;
+			}
+			return pos == from || pos - from > maxDigits ? -1 : pos;
+		}
+
+		/**
+		 * Determine if a byte separates tokens. Bytes of multibyte UTF-8
+		 * characters are negative, so never separate tokens.
+		 * @param b - byte to check
+		 * @return true for ASCII space and control characters
+		 */
+		private static boolean isSpace(byte b) {
+			return b >= 0 && b <= ' ';
+		}
+
+		private int number(int from, int to) {
+			int v = 0;
+			for (int pos = from; pos < to; pos++) {
+				v = v * 10 + (text.get(pos) - '0');
+			}
+			return v;
+		}
+
+		private boolean equals(int token, byte[] s) {
+			int from = tokenStarts[token];
+			if (tokenEnds[token] - from != s.length) {
+				return false;
+			}
+			for (int i = 0; i < s.length; i++) {
+				if (text.get(from + i) != s[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private String token(int token) {
+			byte[] b = new byte[tokenEnds[token] - tokenStarts[token]];
+			for (int i = 0; i < b.length; i++) {
+				b[i] = text.get(tokenStarts[token] + i);
+			}
+			return new String(b, StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,403 @@
+package org.redwater.fwsim.services;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.layers.IP;
+
+/**
+ * Sidecar index of a classic pcap file, so a replay can seek straight
+ * to a time or split the file at record boundaries without walking it.
+ * The index is written next to the capture, with ".idx" appended to its
+ * name. Sparse checkpoints hold the absolute record offset and
+ * timestamp of a packet, and every packet has small deltas from its
+ * checkpoint. All values are big endian:
+ * <pre>
+ * header      magic, version (ints), capture size, capture modified
+ *             time in milliseconds, packet count (longs), checkpoint
+ *             count (int)
+ * packets     for each packet: record offset and timestamp in
+ *             nanoseconds less those of its checkpoint, and the flow
+ *             hash of ParallelCaptureReplay, or 0 if not IP (ints)
+ * checkpoints for each checkpoint: first packet number, record offset
+ *             and timestamp in nanoseconds (longs)
+ * </pre>
+ * A checkpoint starts every CHECKPOINT_INTERVAL packets, and sooner if
+ * a delta would not fit in an int. An index whose capture has changed
+ * size or modified time is stale and is rebuilt. Build one with:
+ * CaptureIndex capture-file
+ * @author ghelmer
+ */
+public class CaptureIndex implements Closeable {
+	/** First four bytes of the file, "FWIX". */
+	public static final int MAGIC = 0x46574958;
+	/** Format version written; readers reject any other. */
+	public static final int VERSION = 1;
+	/** Default number of packets between checkpoints. */
+	public static final int CHECKPOINT_INTERVAL = 4096;
+	/** Appended to the capture file name to name its index. */
+	public static final String SUFFIX = ".idx";
+	private static final int HEADER_SIZE = 2 * 4 + 3 * 8 + 4;
+	private static final int ENTRY_SIZE = 3 * 4;
+
+	private final FileChannel channel;
+	private final long packetCount;
+	private final long captureSize;
+	private final long[] checkpointPackets;
+	private final long[] checkpointOffsets;
+	private final long[] checkpointTimestamps;
+	/** Entries of the checkpoint last read, as offset, timestamp and hash triples. */
+	private int[] block;
+	private int blockCheckpoint;
+
+	/**
+	 * Open an index file.
+	 * @param path - index file
+	 * @param captureSize - size of the indexed capture
+	 * @param captureModified - modified time of the indexed capture in milliseconds
+	 * @throws IOException if the index cannot be read, is corrupt or is stale
+	 */
+	private CaptureIndex(Path path, long captureSize, long captureModified) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = read(0, HEADER_SIZE);
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException(String.format("Not a capture index: %s", path));
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new IOException(String.format("Unsupported capture index version %d", header.getInt(4)));
+			}
+			if (header.getLong(8) != captureSize || header.getLong(16) != captureModified) {
+				throw new IOException(String.format("Stale capture index: %s", path));
+			}
+			this.captureSize = captureSize;
+			packetCount = header.getLong(24);
+			int checkpointCount = header.getInt(32);
+			long checkpointStart = HEADER_SIZE + packetCount * ENTRY_SIZE;
+			if (packetCount < 0 || checkpointCount < 0 || checkpointCount > packetCount
+					|| (packetCount > 0 && checkpointCount == 0)
+					|| channel.size() != checkpointStart + checkpointCount * 24L) {
+				throw new IOException(String.format("Corrupt capture index: %s", path));
+			}
+			checkpointPackets = new long[checkpointCount];
+			checkpointOffsets = new long[checkpointCount];
+			checkpointTimestamps = new long[checkpointCount];
+			ByteBuffer b = read(checkpointStart, checkpointCount * 24);
+			for (int i = 0; i < checkpointCount; i++) {
+				checkpointPackets[i] = b.getLong();
+				checkpointOffsets[i] = b.getLong();
+				checkpointTimestamps[i] = b.getLong();
+				if (checkpointPackets[i] >= packetCount
+						|| (i == 0 ? checkpointPackets[i] != 0 : checkpointPackets[i] <= checkpointPackets[i - 1])) {
+					throw new IOException(String.format("Corrupt capture index: %s", path));
+				}
+			}
+			blockCheckpoint = -1;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the path of the index of a capture file.
+	 * @param capture - capture file
+	 * @return index file
+	 */
+	public static Path indexPath(Path capture) {
+		return capture.resolveSibling(capture.getFileName() + SUFFIX);
+	}
+
+	/**
+	 * Open the index of a capture file.
+	 * @param capture - indexed capture file
+	 * @return index
+	 * @throws IOException if there is no index, or it is corrupt or stale
+	 */
+	public static CaptureIndex load(Path capture) throws IOException {
+		return new CaptureIndex(indexPath(capture), Files.size(capture),
+				Files.getLastModifiedTime(capture).toMillis());
+	}
+
+	/**
+	 * Open the index of a capture file, building it first if it is
+	 * missing or stale.
+	 * @param capture - classic pcap file
+	 * @return index
+	 * @throws IOException if the capture cannot be read or the index cannot be written
+	 */
+	public static CaptureIndex open(Path capture) throws IOException {
+		if (Files.exists(indexPath(capture))) {
+			try {
+				return load(capture);
+			} catch (IOException e) {
+				// Rebuild it.
+			}
+		}
+		return build(capture, CHECKPOINT_INTERVAL);
+	}
+
+	/**
+	 * Walk a capture file and write its index.
+	 * @param capture - classic pcap file
+	 * @param checkpointInterval - number of packets between checkpoints
+	 * @return index
+	 * @throws IOException if the capture cannot be read or the index cannot be written
+	 */
+	public static CaptureIndex build(Path capture, int checkpointInterval) throws IOException {
+		if (checkpointInterval < 1) {
+			throw new IllegalArgumentException(String.format("Invalid checkpoint interval %d", checkpointInterval));
+		}
+		long captureModified = Files.getLastModifiedTime(capture).toMillis();
+		long captureSize;
+		Path path = indexPath(capture);
+		long[] checkpoints = new long[3 * 64];
+		int checkpointCount = 0;
+		long packets = 0;
+		try (PcapFileReader reader = new PcapFileReader(capture);
+				FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			captureSize = reader.getFileSize();
+			DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 1 << 16));
+			data.write(new byte[HEADER_SIZE]);
+			IP view = new IP();
+			long baseOffset = 0;
+			long baseTimestamp = 0;
+			while (reader.next()) {
+				long offset = reader.getRecordOffset();
+				long timestamp = reader.getTimestampNanos();
+				long offsetDelta = offset - baseOffset;
+				long timestampDelta = timestamp - baseTimestamp;
+				if (checkpointCount == 0 || packets - checkpoints[3 * (checkpointCount - 1)] >= checkpointInterval
+						|| offsetDelta > Integer.MAX_VALUE || timestampDelta != (int)timestampDelta) {
+					if (3 * checkpointCount == checkpoints.length) {
+						checkpoints = Arrays.copyOf(checkpoints, checkpoints.length * 2);
+					}
+					checkpoints[3 * checkpointCount] = packets;
+					checkpoints[3 * checkpointCount + 1] = offset;
+					checkpoints[3 * checkpointCount + 2] = timestamp;
+					checkpointCount++;
+					baseOffset = offset;
+					baseTimestamp = timestamp;
+					offsetDelta = 0;
+					timestampDelta = 0;
+				}
+				view.wrapFrame(reader.getLinkType(), reader.getBuffer(), reader.getFrameOffset(), reader.getCapturedLength());
+				data.writeInt((int)offsetDelta);
+				data.writeInt((int)timestampDelta);
+				data.writeInt(view.isIpV4() || view.isIpV6() ? ParallelCaptureReplay.flowHash(view) : 0);
+				packets++;
+			}
+			for (int i = 0; i < 3 * checkpointCount; i++) {
+				data.writeLong(checkpoints[i]);
+			}
+			data.flush();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(captureSize).putLong(captureModified).putLong(packets)
+					.putInt(checkpointCount).flip();
+			while (header.hasRemaining()) {
+				out.write(header, header.position());
+			}
+		}
+		return new CaptureIndex(path, captureSize, captureModified);
+	}
+
+	/**
+	 * Read part of the index file.
+	 * @param position - file offset
+	 * @param length - number of bytes
+	 * @return buffer holding the bytes
+	 * @throws IOException if the file is too short
+	 */
+	private ByteBuffer read(long position, int length) throws IOException {
+		ByteBuffer b = ByteBuffer.allocate(length);
+		while (b.hasRemaining()) {
+			if (channel.read(b, position + b.position()) < 0) {
+				throw new IOException("Capture index too short");
+			}
+		}
+		b.flip();
+		return b;
+	}
+
+	/**
+	 * Find the checkpoint a packet belongs to.
+	 * @param packet - packet number
+	 * @return checkpoint number
+	 */
+	private int checkpointOf(long packet) {
+		int i = Arrays.binarySearch(checkpointPackets, packet);
+		return i >= 0 ? i : -i - 2;
+	}
+
+	/**
+	 * Get the entries of a packet's checkpoint, reading them if need be.
+	 * @param checkpoint - checkpoint number
+	 * @return offset delta, timestamp delta and flow hash of each packet
+	 * @throws IOException on read errors
+	 */
+	private int[] block(int checkpoint) throws IOException {
+		if (checkpoint != blockCheckpoint) {
+			long first = checkpointPackets[checkpoint];
+			long end = checkpoint + 1 < checkpointPackets.length ? checkpointPackets[checkpoint + 1] : packetCount;
+			ByteBuffer b = read(HEADER_SIZE + first * ENTRY_SIZE, (int)(end - first) * ENTRY_SIZE);
+			block = new int[(int)(end - first) * 3];
+			b.asIntBuffer().get(block);
+			blockCheckpoint = checkpoint;
+		}
+		return block;
+	}
+
+	private void checkPacket(long packet) {
+		if (packet < 0 || packet >= packetCount) {
+			throw new IndexOutOfBoundsException(String.format("Packet %d of %d", packet, packetCount));
+		}
+	}
+
+	/**
+	 * Get the number of packets in the capture.
+	 * @return number of packets
+	 */
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * Get the file offset of a packet's record.
+	 * @param packet - packet number from 0, or the packet count for the end of the capture
+	 * @return file offset
+	 * @throws IOException on read errors
+	 */
+	public synchronized long getRecordOffset(long packet) throws IOException {
+		if (packet == packetCount) {
+			return captureSize;
+		}
+		checkPacket(packet);
+		int c = checkpointOf(packet);
+		return checkpointOffsets[c] + block(c)[(int)(packet - checkpointPackets[c]) * 3];
+	}
+
+	/**
+	 * Get the capture time of a packet.
+	 * @param packet - packet number from 0
+	 * @return nanoseconds since the epoch
+	 * @throws IOException on read errors
+	 */
+	public synchronized long getTimestampNanos(long packet) throws IOException {
+		checkPacket(packet);
+		int c = checkpointOf(packet);
+		return checkpointTimestamps[c] + block(c)[(int)(packet - checkpointPackets[c]) * 3 + 1];
+	}
+
+	/**
+	 * Get the flow hash of a packet, which is the same for both
+	 * directions of a flow.
+	 * @param packet - packet number from 0
+	 * @return flow hash, or 0 if the packet is not IP
+	 * @throws IOException on read errors
+	 */
+	public synchronized int getFlowHash(long packet) throws IOException {
+		checkPacket(packet);
+		int c = checkpointOf(packet);
+		return block(c)[(int)(packet - checkpointPackets[c]) * 3 + 2];
+	}
+
+	/**
+	 * Find the first packet captured at or after a time. Packets are
+	 * taken to be in time order, as capture tools write them.
+	 * @param timestampNanos - nanoseconds since the epoch
+	 * @return packet number, or the packet count if every packet is earlier
+	 * @throws IOException on read errors
+	 */
+	public synchronized long findTime(long timestampNanos) throws IOException {
+		int i = Arrays.binarySearch(checkpointTimestamps, timestampNanos);
+		// Start at the last checkpoint before the time; equal times may span checkpoints.
+		int c = i >= 0 ? i : -i - 2;
+		while (c > 0 && checkpointTimestamps[c] >= timestampNanos) {
+			c--;
+		}
+		for (long packet = c < 0 ? 0 : checkpointPackets[c]; packet < packetCount; packet++) {
+			if (getTimestampNanos(packet) >= timestampNanos) {
+				return packet;
+			}
+		}
+		return packetCount;
+	}
+
+	/**
+	 * Find the first packet whose record starts at or after a file offset.
+	 * @param offset - file offset
+	 * @return packet number, or the packet count if every record starts earlier
+	 * @throws IOException on read errors
+	 */
+	public synchronized long findOffset(long offset) throws IOException {
+		int i = Arrays.binarySearch(checkpointOffsets, offset);
+		if (i >= 0) {
+			return checkpointPackets[i];
+		}
+		int c = -i - 2;
+		for (long packet = c < 0 ? 0 : checkpointPackets[c]; packet < packetCount; packet++) {
+			if (getRecordOffset(packet) >= offset) {
+				return packet;
+			}
+		}
+		return packetCount;
+	}
+
+	/**
+	 * Split a run of packets into shards of about the same number of
+	 * bytes, along record boundaries.
+	 * @param first - first packet number
+	 * @param end - packet number after the last
+	 * @param shards - number of shards
+	 * @return shard boundaries: first, then the first packet of each later shard, then end
+	 * @throws IOException on read errors
+	 */
+	public long[] split(long first, long end, int shards) throws IOException {
+		if (shards < 1) {
+			throw new IllegalArgumentException(String.format("Invalid shard count %d", shards));
+		}
+		long[] bounds = new long[shards + 1];
+		long start = getRecordOffset(first);
+		long length = getRecordOffset(end) - start;
+		bounds[0] = first;
+		for (int i = 1; i < shards; i++) {
+			bounds[i] = Math.max(bounds[i - 1], Math.min(end, findOffset(start + length * i / shards)));
+		}
+		bounds[shards] = end;
+		return bounds;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Build the index of a capture file.
+	 * Usage: CaptureIndex capture-file
+	 * @param args - command line arguments
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: CaptureIndex capture-file");
+			System.exit(2);
+		}
+		try (CaptureIndex index = build(Paths.get(args[0]), CHECKPOINT_INTERVAL)) {
+			System.out.printf("Indexed %d packets in %s%n", index.getPacketCount(), indexPath(Paths.get(args[0])));
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,314 @@
+package org.redwater.fwsim.services;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.redwater.fwsim.cache.VerdictCache;
+import org.redwater.fwsim.capture.CompressedCaptureSource;
+import org.redwater.fwsim.capture.ICaptureSource;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.capture.PcapNgReader;
+import org.redwater.fwsim.conntrack.ConnectionTracker;
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.layers.TCP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleCounterSnapshot;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+
+/**
+ * Replay a packet capture through a RuleList and report the verdicts.
+ * Frames are classified through a flyweight header view, straight
+ * from the capture source's buffer.
+ * @author ghelmer
+ */
+public class CaptureReplay {
+	private final RuleList rules;
+	private ConnectionTracker tracker;
+	private VerdictCache cache;
+
+	/**
+	 * Construct a CaptureReplay for a list of rules.
+	 * @param rules - rules to evaluate every packet against
+	 */
+	public CaptureReplay(RuleList rules) {
+		this.rules = rules;
+		tracker = null;
+		cache = null;
+	}
+
+	/**
+	 * Replay statefully: packets of accepted connections reuse the
+	 * verdict of the connection's first packet.
+	 * @param tracker - connection tracker over the same rules, or null to
+	 * check every packet against the rules
+	 */
+	public void setConnectionTracker(ConnectionTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Look verdicts up in a cache before checking the rules. A
+	 * connection tracker, if set, takes precedence.
+	 * @param cache - cache over the same rules, or null
+	 */
+	public void setVerdictCache(VerdictCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Classify every frame of a capture.
+	 * @param source - capture to read
+	 * @param listener - receives the verdict of each packet, or null
+	 * @return totals of the verdicts
+	 * @throws IOException on capture read errors
+	 */
+	public ReplayStatistics replay(ICaptureSource source, VerdictListener listener) throws IOException {
+		ReplayStatistics stats = new ReplayStatistics();
+		TCP view = new TCP();
+		long packetNumber = 0;
+		long start = System.nanoTime();
+		while (source.next()) {
+			packetNumber++;
+			view.wrapFrame(source.getLinkType(), source.getBuffer(), source.getFrameOffset(), source.getCapturedLength());
+			IRule r;
+			if (tracker != null) {
+				r = tracker.checkRules(view, source.getTimestampNanos());
+			} else if (cache != null) {
+				r = cache.checkRules(view, source.getOriginalLength());
+			} else {
+				r = rules.checkRules(view, source.getOriginalLength());
+			}
+			RuleActions action = r == null ? null : r.getAction(view);
+			stats.record(r, action, source.getOriginalLength());
+			if (listener != null) {
+				listener.verdict(packetNumber, source.getTimestampNanos(), r, action);
+			}
+		}
+		stats.setElapsedNanos(System.nanoTime() - start);
+		stats.setInputWaitNanos(source.getInputWaitNanos());
+		return stats;
+	}
+
+	/**
+	 * Format the verdict of one packet as a line of text.
+	 * @param packetNumber - number of the packet in the capture
+	 * @param rule - rule that matched, or null
+	 * @param action - action of the rule, or null
+	 * @return text
+	 */
+	public static String formatVerdict(long packetNumber, IRule rule, RuleActions action) {
+		if (rule == null) {
+			return String.format("%d no match", packetNumber);
+		}
+		return String.format("%d %s %s", packetNumber, rule.getRuleMetadata(),
+				action == null ? "none" : action.toString().toLowerCase());
+	}
+
+	/**
+	 * Load a rules file, or a compiled ruleset file written by
+	 * CompiledRuleFile, which keeps its classifier type.
+	 * @param path - rules file or compiled ruleset file
+	 * @return parsed rules
+	 * @throws IOException if the file cannot be read
+	 * @throws InvalidFieldValueException on invalid rule field value
+	 * @throws UnhandledFieldNameException on invalid rule field name
+	 */
+	public static RuleList loadRules(Path path) throws IOException, UnhandledFieldNameException, InvalidFieldValueException {
+		RuleList rules = new RuleList();
+		if (CompiledRuleFile.isCompiled(path)) {
+			rules.setRuleSet(CompiledRuleFile.read(path));
+		} else {
+			rules.setRuleSet(new RuleSet.Builder().load(path).build());
+		}
+		return rules;
+	}
+
+	/**
+	 * Open a classic pcap or a pcapng capture file, which may be gzip or
+	 * zstd compressed.
+	 * @param path - capture file
+	 * @return capture source
+	 * @throws IOException if the file cannot be read or is not a capture file
+	 */
+	public static ICaptureSource openCapture(Path path) throws IOException {
+		if (CompressedCaptureSource.isCompressed(path)) {
+			return new CompressedCaptureSource(path);
+		}
+		if (PcapNgReader.isPcapNg(path)) {
+			return new PcapNgReader(path);
+		}
+		return new PcapFileReader(path);
+	}
+
+	/**
+	 * Parse a time range given as start-end, in seconds since the epoch.
+	 * @param s - time range, such as 1500000000-1500000600.5
+	 * @return start and end in nanoseconds since the epoch
+	 * @throws NumberFormatException if the range cannot be parsed
+	 */
+	public static long[] parseTimeRange(String s) {
+		int dash = s.indexOf('-', 1);
+		if (dash < 0) {
+			throw new NumberFormatException(String.format("Invalid time range %s", s));
+		}
+		long start = new BigDecimal(s.substring(0, dash)).movePointRight(9).setScale(0, RoundingMode.CEILING)
+				.longValueExact();
+		long end = new BigDecimal(s.substring(dash + 1)).movePointRight(9).setScale(0, RoundingMode.CEILING)
+				.longValueExact();
+		return new long[] { start, end };
+	}
+
+	/**
+	 * Replay a pcap or pcapng file through a rules file.
+	 * Usage: CaptureReplay [-v] [-s] [-c] [-r] [-w] [-d] [-j workers | -n shards] [-t start-end] rules-file capture-file
+	 * @param args - command line arguments
+	 */
+	public static void main(String[] args) {
+		String usage = "Usage: CaptureReplay [-v] [-s] [-c] [-r] [-w] [-d] [-j workers | -n shards] [-t start-end] "
+				+ "rules-file capture-file";
+		boolean verbose = false;
+		boolean stateful = false;
+		boolean cached = false;
+		boolean ruleStatistics = false;
+		boolean watch = false;
+		boolean decoded = false;
+		int workers = 1;
+		int shards = 0;
+		long[] timeRange = null;
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-v")) {
+				verbose = true;
+				i++;
+			} else if (args[i].equals("-s")) {
+				stateful = true;
+				i++;
+			} else if (args[i].equals("-c")) {
+				cached = true;
+				i++;
+			} else if (args[i].equals("-r")) {
+				ruleStatistics = true;
+				i++;
+			} else if (args[i].equals("-w")) {
+				watch = true;
+				i++;
+			} else if (args[i].equals("-d")) {
+				decoded = true;
+				i++;
+			} else if (args[i].equals("-j") && i + 1 < args.length) {
+				try {
+					workers = Integer.parseInt(args[i + 1]);
+				} catch (NumberFormatException e) {
+					System.err.println(usage);
+					System.exit(2);
+				}
+				i += 2;
+			} else if (args[i].equals("-n") && i + 1 < args.length) {
+				try {
+					shards = Integer.parseInt(args[i + 1]);
+				} catch (NumberFormatException e) {
+					System.err.println(usage);
+					System.exit(2);
+				}
+				i += 2;
+			} else if (args[i].equals("-t") && i + 1 < args.length) {
+				try {
+					timeRange = parseTimeRange(args[i + 1]);
+				} catch (NumberFormatException | ArithmeticException e) {
+					System.err.println(usage);
+					System.exit(2);
+				}
+				i += 2;
+			} else {
+				System.err.println(usage);
+				System.exit(2);
+			}
+		}
+		boolean indexed = timeRange != null || shards > 0;
+		if (args.length - i != 2 || (stateful && cached) || (watch && workers > 1)
+				|| (indexed && (stateful || workers > 1)) || (decoded && (indexed || stateful || workers > 1))) {
+			System.err.println(usage);
+			System.exit(2);
+		}
+		try {
+			RuleList rules = loadRules(Paths.get(args[i]));
+			if (ruleStatistics) {
+				rules.setStatisticsEnabled(true);
+				rules.setCostSampleInterval(1024);
+			}
+			Path capture = Paths.get(args[i + 1]);
+			try (RuleFileWatcher watcher = new RuleFileWatcher(rules, Paths.get(args[i]));
+					ICaptureSource source = indexed || decoded ? null : openCapture(capture);
+					CaptureIndex index = indexed ? CaptureIndex.open(capture) : null;
+					HeaderColumnFile columns = decoded ? HeaderColumnFile.open(capture) : null) {
+				if (watch) {
+					watcher.start();
+				}
+				VerdictListener listener = null;
+				if (verbose) {
+					listener = (n, t, r, a) -> System.out.println(formatVerdict(n, r, a));
+				}
+				ConnectionTracker tracker = stateful ? new ConnectionTracker(rules) : null;
+				if (columns != null) {
+					ColumnarReplay replay = new ColumnarReplay(rules);
+					VerdictCache cache = cached ? new VerdictCache(rules) : null;
+					replay.setVerdictCache(cache);
+					System.out.print(replay.replay(columns, listener));
+					if (cache != null) {
+						System.out.print(cache.getStatistics());
+					}
+				} else if (index != null) {
+					long[] range = timeRange == null ? new long[] { 0, index.getPacketCount() }
+							: ShardedCaptureReplay.findTimeRange(index, timeRange[0], timeRange[1]);
+					ShardedCaptureReplay replay = new ShardedCaptureReplay(rules, Math.max(shards, 1));
+					replay.setVerdictCaching(cached);
+					System.out.print(replay.replay(capture, index, range[0], range[1], listener));
+					if (cached) {
+						System.out.print(replay.getCacheStatistics());
+					}
+				} else if (workers > 1) {
+					ParallelCaptureReplay replay = new ParallelCaptureReplay(rules, workers);
+					replay.setConnectionTracker(tracker);
+					replay.setVerdictCaching(cached);
+					System.out.print(replay.replay(source, listener));
+					if (cached) {
+						System.out.print(replay.getCacheStatistics());
+					}
+				} else {
+					CaptureReplay replay = new CaptureReplay(rules);
+					VerdictCache cache = cached ? new VerdictCache(rules) : null;
+					replay.setConnectionTracker(tracker);
+					replay.setVerdictCache(cache);
+					System.out.print(replay.replay(source, listener));
+					if (cache != null) {
+						System.out.print(cache.getStatistics());
+					}
+				}
+				if (source instanceof CompressedCaptureSource) {
+					System.out.print(((CompressedCaptureSource)source).getStatistics());
+				}
+				if (ruleStatistics) {
+					for (RuleCounterSnapshot c : rules.getStatistics()) {
+						System.out.println(c);
+					}
+				}
+				if (watch) {
+					System.out.printf("Rule reloads: %d%n", watcher.getReloadCount());
+				}
+				if (tracker != null) {
+					System.out.printf("Tracked: %d checked: %d untracked connections: %d%n",
+							tracker.getTrackedPackets(), tracker.getCheckedPackets(), tracker.getUntrackedConnections());
+				}
+			}
+		} catch (IOException | UnhandledFieldNameException | InvalidFieldValueException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
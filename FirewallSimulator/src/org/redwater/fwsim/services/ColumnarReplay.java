@@ -0,0 +1,93 @@
+package org.redwater.fwsim.services;
+
+import java.io.IOException;
+
+import org.redwater.fwsim.cache.VerdictCache;
+import org.redwater.fwsim.classifiers.PacketBatch;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+
+/**
+ * Replay the decoded header columns of a capture through a RuleList.
+ * No frame is parsed: each stripe of the HeaderColumnFile is memory
+ * mapped and its packets are checked against the rules in batches, so
+ * after the capture has been decoded once a replay costs little more
+ * than reading the columns.
+ * @author ghelmer
+ */
+public class ColumnarReplay {
+	/** Number of packets checked against the rules at once. */
+	private static final int BATCH_SIZE = 256;
+
+	private final RuleList rules;
+	private VerdictCache cache;
+
+	/**
+	 * Construct a ColumnarReplay for a list of rules.
+	 * @param rules - rules to evaluate every packet against
+	 */
+	public ColumnarReplay(RuleList rules) {
+		this.rules = rules;
+		cache = null;
+	}
+
+	/**
+	 * Look verdicts up in a cache before checking the rules.
+	 * @param cache - cache over the same rules, or null
+	 */
+	public void setVerdictCache(VerdictCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Classify every packet of a column file, from its first stripe.
+	 * @param columns - decoded header columns of a capture
+	 * @param listener - receives the verdict of each packet, or null
+	 * @return totals of the verdicts
+	 * @throws IOException on column file read errors
+	 */
+	public ReplayStatistics replay(HeaderColumnFile columns, VerdictListener listener) throws IOException {
+		ReplayStatistics stats = new ReplayStatistics();
+		PacketBatch batch = new PacketBatch(BATCH_SIZE);
+		int[] positions = new int[BATCH_SIZE];
+		long packetNumber = 0;
+		long start = System.nanoTime();
+		columns.rewind();
+		HeaderColumnFile.Stripe stripe;
+		while ((stripe = columns.nextStripe()) != null) {
+			for (int first = 0; first < stripe.size(); first += BATCH_SIZE) {
+				int end = Math.min(stripe.size(), first + BATCH_SIZE);
+				RuleSet set = null;
+				if (cache == null && rules.canCheckBatch()) {
+					batch.clear();
+					for (int i = first; i < end; i++) {
+						stripe.select(i);
+						batch.add(stripe, stripe.getLength());
+					}
+					set = rules.checkRules(batch, positions);
+				}
+				for (int i = first; i < end; i++) {
+					stripe.select(i);
+					packetNumber++;
+					IRule r;
+					if (set != null) {
+						r = positions[i - first] < 0 ? null : set.getRules().get(positions[i - first]);
+					} else if (cache != null) {
+						r = cache.checkRules(stripe, stripe.getLength());
+					} else {
+						r = rules.checkRules(stripe, stripe.getLength());
+					}
+					RuleActions action = r == null ? null : r.getAction(stripe);
+					stats.record(r, action, stripe.getLength());
+					if (listener != null) {
+						listener.verdict(packetNumber, stripe.getTimestampNanos(), r, action);
+					}
+				}
+			}
+		}
+		stats.setElapsedNanos(System.nanoTime() - start);
+		return stats;
+	}
+}
@@ -0,0 +1,426 @@
+package org.redwater.fwsim.services;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.rules.IPRule;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.PortRangeList;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleSet;
+import org.redwater.fwsim.rules.TCPRule;
+import org.redwater.fwsim.rules.UDPRule;
+
+/**
+ * Binary form of a RuleSet that loads without parsing any text. The
+ * file is a fixed header followed by one column per rule field, each a
+ * primitive array in big endian order and padded to a multiple of four
+ * bytes:
+ * <pre>
+ * header   magic, version, rule count, classifier, src port range
+ *          count, dst port range count, metadata byte count, IPv6
+ *          rule count (ints)
+ * type     byte per rule: 1 ip, 2 tcp, 3 udp, plus 0x10 if the rule's
+ *          addresses are IPv6
+ * action   byte per rule: 0 none, else RuleActions ordinal + 1
+ * prefix   byte per rule for src, then dst: prefix length, or -1 for any
+ * address  int per rule for src, then dst, as given in the rule text;
+ *          0 for an IPv6 rule
+ * address6 for each IPv6 rule in order, src high, src low, dst high
+ *          and dst low as given in the rule text (longs)
+ * ports    for src, then dst: int index per rule + 1 into the ranges,
+ *          then (low, high) int pairs; a rule without ranges matches any
+ * metadata int offset per rule + 1, then the UTF-8 bytes
+ * </pre>
+ * Version 1 files, which have no IPv6 rule count or address6 column,
+ * are still read. The file is memory mapped and the rules are built
+ * straight from the columns. Compile a rules file with:
+ * CompiledRuleFile [-t classifier] rules-file compiled-file
+ * @author ghelmer
+ */
+public class CompiledRuleFile {
+	/** First four bytes of the file, "FWRS". */
+	public static final int MAGIC = 0x46575253;
+	/** Format version written; readers reject any other but version 1. */
+	public static final int VERSION = 2;
+
+	private static final int HEADER_SIZE_V1 = 7 * 4;
+	private static final int HEADER_SIZE = 8 * 4;
+	private static final int TYPE_IP = 1;
+	private static final int TYPE_TCP = 2;
+	private static final int TYPE_UDP = 3;
+	/** Added to the type of a rule whose addresses are IPv6. */
+	private static final int TYPE_IPV6 = 0x10;
+	/** Classifier codes, by position; never reorder, only append. */
+	private static final ClassifierType[] CLASSIFIERS = {
+		ClassifierType.LINEAR, ClassifierType.DECISION_TREE, ClassifierType.PREFIX_TRIE, ClassifierType.GENERATED,
+		ClassifierType.COMPACT_TABLE, ClassifierType.BIT_VECTOR, ClassifierType.TUPLE_SPACE
+	};
+
+	/**
+	 * Determine if a file starts with the compiled ruleset magic number.
+	 * @param path - file to check
+	 * @return true if the file looks like a compiled ruleset
+	 * @throws IOException if the file cannot be read
+	 */
+	public static boolean isCompiled(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			ByteBuffer b = ByteBuffer.allocate(4);
+			while (b.hasRemaining() && channel.read(b) >= 0) {
+				// Keep reading.
+			}
+			return !b.hasRemaining() && b.getInt(0) == MAGIC;
+		}
+	}
+
+	/**
+	 * Write a RuleSet in binary form.
+	 * @param rules - rules to write; every rule must be an IPRule, TCPRule or UDPRule
+	 * @param path - file to write
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(RuleSet rules, Path path) throws IOException {
+		try (OutputStream out = Files.newOutputStream(path)) {
+			write(rules, out);
+		}
+	}
+
+	/**
+	 * Write a RuleSet in binary form.
+	 * @param rules - rules to write; every rule must be an IPRule, TCPRule or UDPRule
+	 * @param stream - stream to write to
+	 * @throws IOException if the stream cannot be written
+	 */
+	public static void write(RuleSet rules, OutputStream stream) throws IOException {
+		List<IRule> list = rules.getRules();
+		int n = list.size();
+		byte[] types = new byte[n];
+		byte[] actions = new byte[n];
+		byte[][] prefixes = new byte[2][n];
+		int[][] addresses = new int[2][n];
+		long[] addresses6 = new long[4 * n];
+		int ipV6Count = 0;
+		PortRangeList[][] ports = new PortRangeList[2][n];
+		int[] portRangeCounts = new int[2];
+		byte[][] metadata = new byte[n][];
+		int metadataBytes = 0;
+		for (int i = 0; i < n; i++) {
+			IRule r = list.get(i);
+			Class<?> c = r.getClass();
+			if (c == TCPRule.class) {
+				types[i] = TYPE_TCP;
+				ports[0][i] = ((TCPRule)r).getSrcPortRanges();
+				ports[1][i] = ((TCPRule)r).getDstPortRanges();
+			} else if (c == UDPRule.class) {
+				types[i] = TYPE_UDP;
+				ports[0][i] = ((UDPRule)r).getSrcPortRanges();
+				ports[1][i] = ((UDPRule)r).getDstPortRanges();
+			} else if (c == IPRule.class) {
+				types[i] = TYPE_IP;
+			} else {
+				throw new IllegalArgumentException(String.format("Cannot compile rule type %s", c.getName()));
+			}
+			IPRule ipRule = (IPRule)r;
+			RuleActions action = ipRule.getRuleAction();
+			actions[i] = (byte)(action == null ? 0 : action.ordinal() + 1);
+			prefixes[0][i] = (byte)(ipRule.hasSrcAddressMatch() ? ipRule.getSrcPrefixLength() : -1);
+			prefixes[1][i] = (byte)(ipRule.hasDstAddressMatch() ? ipRule.getDstPrefixLength() : -1);
+			addresses[0][i] = ipRule.getSrcAddress();
+			addresses[1][i] = ipRule.getDstAddress();
+			if (ipRule.isSrcAddressIpV6() || ipRule.isDstAddressIpV6()) {
+				types[i] |= TYPE_IPV6;
+				addresses6[4 * ipV6Count] = ipRule.getSrcAddressHigh();
+				addresses6[4 * ipV6Count + 1] = ipRule.getSrcAddressLow();
+				addresses6[4 * ipV6Count + 2] = ipRule.getDstAddressHigh();
+				addresses6[4 * ipV6Count + 3] = ipRule.getDstAddressLow();
+				ipV6Count++;
+			}
+			for (int d = 0; d < 2; d++) {
+				if (ports[d][i] != null) {
+					portRangeCounts[d] += ports[d][i].size();
+				}
+			}
+			metadata[i] = r.getRuleMetadata().getBytes(StandardCharsets.UTF_8);
+			metadataBytes += metadata[i].length;
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(n);
+		out.writeInt(classifierCode(rules.getClassifierType()));
+		out.writeInt(portRangeCounts[0]);
+		out.writeInt(portRangeCounts[1]);
+		out.writeInt(metadataBytes);
+		out.writeInt(ipV6Count);
+		writePadded(out, types);
+		writePadded(out, actions);
+		writePadded(out, prefixes[0]);
+		writePadded(out, prefixes[1]);
+		for (int d = 0; d < 2; d++) {
+			for (int i = 0; i < n; i++) {
+				out.writeInt(addresses[d][i]);
+			}
+		}
+		for (int i = 0; i < 4 * ipV6Count; i++) {
+			out.writeLong(addresses6[i]);
+		}
+		for (int d = 0; d < 2; d++) {
+			int index = 0;
+			for (int i = 0; i < n; i++) {
+				out.writeInt(index);
+				index += ports[d][i] == null ? 0 : ports[d][i].size();
+			}
+			out.writeInt(index);
+			for (int i = 0; i < n; i++) {
+				PortRangeList p = ports[d][i];
+				for (int j = 0; p != null && j < p.size(); j++) {
+					out.writeInt(p.getStart(j));
+					out.writeInt(p.getEnd(j));
+				}
+			}
+		}
+		int offset = 0;
+		for (int i = 0; i < n; i++) {
+			out.writeInt(offset);
+			offset += metadata[i].length;
+		}
+		out.writeInt(offset);
+		for (int i = 0; i < n; i++) {
+			out.write(metadata[i]);
+		}
+		out.flush();
+	}
+
+	private static void writePadded(DataOutputStream out, byte[] b) throws IOException {
+		out.write(b);
+		for (int i = b.length; i % 4 != 0; i++) {
+			out.write(0);
+		}
+	}
+
+	private static int classifierCode(ClassifierType type) {
+		for (int i = 0; i < CLASSIFIERS.length; i++) {
+			if (CLASSIFIERS[i] == type) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException(String.format("Unknown classifier type %s", type));
+	}
+
+	private static int padded(int length) {
+		return (length + 3) & ~3;
+	}
+
+	/**
+	 * Load a compiled ruleset file.
+	 * @param path - file written by write
+	 * @return compiled RuleSet
+	 * @throws IOException if the file cannot be read or is not a
+	 * compiled ruleset of this version
+	 */
+	public static RuleSet read(Path path) throws IOException {
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_SIZE_V1 || size > Integer.MAX_VALUE) {
+				throw new IOException(String.format("%s is not a compiled ruleset", path));
+			}
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		}
+	}
+
+	/**
+	 * Check an index column: n + 1 offsets, starting at or after 0, that
+	 * never decrease and stay within the entries they index.
+	 * @param b - compiled ruleset
+	 * @param index - position of the column
+	 * @param n - number of rules
+	 * @param count - number of entries indexed
+	 * @param name - name of the entries, for the error message
+	 * @throws IOException if an offset is out of order or out of range
+	 */
+	private static void checkIndex(ByteBuffer b, int index, int n, int count, String name) throws IOException {
+		int previous = 0;
+		for (int i = 0; i <= n; i++) {
+			int offset = b.getInt(index + 4 * i);
+			if (offset < previous || offset > count) {
+				throw new IOException(String.format("Corrupt compiled ruleset: invalid %s index %d", name, i));
+			}
+			previous = offset;
+		}
+	}
+
+	/**
+	 * Build a RuleSet from a compiled ruleset.
+	 * @param b - compiled ruleset, starting at position 0; only read
+	 * @return compiled RuleSet
+	 * @throws IOException if the buffer is not a compiled ruleset of this version
+	 */
+	public static RuleSet read(ByteBuffer b) throws IOException {
+		if (b.limit() < HEADER_SIZE_V1 || b.getInt(0) != MAGIC) {
+			throw new IOException("Not a compiled ruleset");
+		}
+		int version = b.getInt(4);
+		if (version != VERSION && version != 1) {
+			throw new IOException(String.format("Unsupported compiled ruleset version %d", version));
+		}
+		if (version == VERSION && b.limit() < HEADER_SIZE) {
+			throw new IOException("Corrupt compiled ruleset header");
+		}
+		int n = b.getInt(8);
+		int classifier = b.getInt(12);
+		int[] portRangeCounts = { b.getInt(16), b.getInt(20) };
+		int metadataBytes = b.getInt(24);
+		int ipV6Count = version == 1 ? 0 : b.getInt(28);
+		if (n < 0 || classifier < 0 || classifier >= CLASSIFIERS.length
+				|| portRangeCounts[0] < 0 || portRangeCounts[1] < 0 || metadataBytes < 0
+				|| ipV6Count < 0 || ipV6Count > n || n > b.limit() / 16) {
+			throw new IOException("Corrupt compiled ruleset header");
+		}
+		int types = version == 1 ? HEADER_SIZE_V1 : HEADER_SIZE;
+		// Check the length before laying out the columns, so no offset overflows.
+		if (types + 4L * padded(n) + 8L * n + 32L * ipV6Count + 3 * 4L * (n + 1)
+				+ 8L * portRangeCounts[0] + 8L * portRangeCounts[1] + metadataBytes != b.limit()) {
+			throw new IOException("Corrupt compiled ruleset: wrong length");
+		}
+		int actions = types + padded(n);
+		int[] prefixes = { actions + padded(n), actions + 2 * padded(n) };
+		int[] addresses = { actions + 3 * padded(n), actions + 3 * padded(n) + 4 * n };
+		int addresses6 = addresses[1] + 4 * n;
+		int[] portIndexes = new int[2];
+		int[] portRanges = new int[2];
+		portIndexes[0] = addresses6 + 32 * ipV6Count;
+		portRanges[0] = portIndexes[0] + 4 * (n + 1);
+		portIndexes[1] = portRanges[0] + 8 * portRangeCounts[0];
+		portRanges[1] = portIndexes[1] + 4 * (n + 1);
+		int metadataIndex = portRanges[1] + 8 * portRangeCounts[1];
+		int metadata = metadataIndex + 4 * (n + 1);
+		checkIndex(b, portIndexes[0], n, portRangeCounts[0], "source port range");
+		checkIndex(b, portIndexes[1], n, portRangeCounts[1], "destination port range");
+		checkIndex(b, metadataIndex, n, metadataBytes, "metadata");
+
+		RuleSet.Builder builder = new RuleSet.Builder().classifierType(CLASSIFIERS[classifier]);
+		RuleActions[] actionValues = RuleActions.values();
+		byte[] text = new byte[64];
+		int nextIpV6 = 0;
+		for (int i = 0; i < n; i++) {
+			IPRule r;
+			int type = b.get(types + i);
+			boolean ipV6 = (type & TYPE_IPV6) != 0;
+			if (ipV6 && nextIpV6 == ipV6Count) {
+				throw new IOException(String.format("Corrupt compiled ruleset: rule %d has no IPv6 addresses", i));
+			}
+			switch (type & ~TYPE_IPV6) {
+			case TYPE_IP:
+				r = new IPRule();
+				break;
+			case TYPE_TCP:
+				TCPRule tcpRule = new TCPRule();
+				for (int j = b.getInt(portIndexes[0] + 4 * i); j < b.getInt(portIndexes[0] + 4 * i + 4); j++) {
+					tcpRule.addSrcPortRange(b.getInt(portRanges[0] + 8 * j), b.getInt(portRanges[0] + 8 * j + 4));
+				}
+				for (int j = b.getInt(portIndexes[1] + 4 * i); j < b.getInt(portIndexes[1] + 4 * i + 4); j++) {
+					tcpRule.addDstPortRange(b.getInt(portRanges[1] + 8 * j), b.getInt(portRanges[1] + 8 * j + 4));
+				}
+				r = tcpRule;
+				break;
+			case TYPE_UDP:
+				UDPRule udpRule = new UDPRule();
+				for (int j = b.getInt(portIndexes[0] + 4 * i); j < b.getInt(portIndexes[0] + 4 * i + 4); j++) {
+					udpRule.addSrcPortRange(b.getInt(portRanges[0] + 8 * j), b.getInt(portRanges[0] + 8 * j + 4));
+				}
+				for (int j = b.getInt(portIndexes[1] + 4 * i); j < b.getInt(portIndexes[1] + 4 * i + 4); j++) {
+					udpRule.addDstPortRange(b.getInt(portRanges[1] + 8 * j), b.getInt(portRanges[1] + 8 * j + 4));
+				}
+				r = udpRule;
+				break;
+			default:
+				throw new IOException(String.format("Corrupt compiled ruleset: rule %d has unknown type", i));
+			}
+			int action = b.get(actions + i);
+			if (action < 0 || action > actionValues.length) {
+				throw new IOException(String.format("Corrupt compiled ruleset: rule %d has unknown action", i));
+			}
+			r.setRuleAction(action == 0 ? null : actionValues[action - 1]);
+			// Prefix lengths are unsigned so that IPv6 lengths fit; -1 is 255.
+			int srcPrefix = b.get(prefixes[0] + i) & 0xFF;
+			int dstPrefix = b.get(prefixes[1] + i) & 0xFF;
+			int maxPrefix = ipV6 ? 128 : 32;
+			if ((srcPrefix > maxPrefix && srcPrefix != 0xFF) || (dstPrefix > maxPrefix && dstPrefix != 0xFF)) {
+				throw new IOException(String.format("Corrupt compiled ruleset: rule %d has an invalid prefix length", i));
+			}
+			if (ipV6) {
+				int a = addresses6 + 32 * nextIpV6++;
+				if (srcPrefix != 0xFF) {
+					r.setSrcAddress(b.getLong(a), b.getLong(a + 8), srcPrefix);
+				}
+				if (dstPrefix != 0xFF) {
+					r.setDstAddress(b.getLong(a + 16), b.getLong(a + 24), dstPrefix);
+				}
+			} else {
+				if (srcPrefix != 0xFF) {
+					r.setSrcAddress(b.getInt(addresses[0] + 4 * i), srcPrefix);
+				}
+				if (dstPrefix != 0xFF) {
+					r.setDstAddress(b.getInt(addresses[1] + 4 * i), dstPrefix);
+				}
+			}
+			int start = b.getInt(metadataIndex + 4 * i);
+			int length = b.getInt(metadataIndex + 4 * i + 4) - start;
+			if (length > text.length) {
+				text = new byte[Math.max(length, text.length * 2)];
+			}
+			for (int j = 0; j < length; j++) {
+				text[j] = b.get(metadata + start + j);
+			}
+			r.setRuleMetadata(new String(text, 0, length, StandardCharsets.UTF_8));
+			builder.addRule(r);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Compile a rules file to binary form.
+	 * Usage: CompiledRuleFile [-t classifier] rules-file compiled-file
+	 * @param args - command line arguments
+	 */
+	public static void main(String[] args) {
+		String usage = "Usage: CompiledRuleFile [-t classifier] rules-file compiled-file";
+		ClassifierType type = ClassifierType.LINEAR;
+		int i = 0;
+		if (args.length == 4 && args[0].equals("-t")) {
+			try {
+				type = ClassifierType.valueOf(args[1]);
+			} catch (IllegalArgumentException e) {
+				System.err.println(usage);
+				System.exit(2);
+			}
+			i = 2;
+		}
+		if (args.length - i != 2) {
+			System.err.println(usage);
+			System.exit(2);
+		}
+		try {
+			RuleSet rules = new RuleSet.Builder().classifierType(type).load(Paths.get(args[i])).build();
+			write(rules, Paths.get(args[i + 1]));
+			System.out.printf("Compiled %d rules%n", rules.size());
+		} catch (IOException | UnhandledFieldNameException | InvalidFieldValueException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
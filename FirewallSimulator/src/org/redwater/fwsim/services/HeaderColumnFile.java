@@ -0,0 +1,508 @@
+package org.redwater.fwsim.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import org.redwater.fwsim.capture.ICaptureSource;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.layers.TCP;
+
+/**
+ * Decoded header fields of every packet of a capture, stored as
+ * primitive columns so that repeated replays of the same capture read
+ * them from a memory map instead of parsing frames again. The file is
+ * written next to the capture, with ".cols" appended to its name. The
+ * packets are cut into stripes of STRIPE_PACKETS, and each stripe holds
+ * one column per field. All values are big endian:
+ * <pre>
+ * header  magic, version (ints), capture size, capture modified time
+ *         in milliseconds, packet count (longs), stripe packets (int),
+ *         padding (int)
+ * stripe  packet count n, IPv6 packet count m (ints); n timestamps in
+ *         nanoseconds; m IPv6 address quads: source high and low, then
+ *         destination (longs); n IPv4 source addresses, n IPv4
+ *         destination addresses, n original lengths (ints); n source
+ *         ports, n destination ports (shorts); n IP versions: 4, 6 or
+ *         0 if not IP, n protocols, n TCP flags (bytes); padding to a
+ *         multiple of 8 bytes
+ * </pre>
+ * Fields a packet does not have are 0. A file whose capture has changed
+ * size or modified time is stale and is rebuilt. Build one with:
+ * HeaderColumnFile capture-file
+ * @author ghelmer
+ */
+public class HeaderColumnFile implements Closeable {
+	/** First four bytes of the file, "FWHC". */
+	public static final int MAGIC = 0x46574843;
+	/** Format version written; readers reject any other. */
+	public static final int VERSION = 1;
+	/** Number of packets in each stripe but the last. */
+	public static final int STRIPE_PACKETS = 1 << 16;
+	/** Appended to the capture file name to name its columns. */
+	public static final String SUFFIX = ".cols";
+	private static final int HEADER_SIZE = 2 * 4 + 3 * 8 + 2 * 4;
+	private static final int STRIPE_HEADER_SIZE = 2 * 4;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final long packetCount;
+	private final int stripePackets;
+	private final Stripe stripe;
+	/** File offset of the next stripe to map. */
+	private long position;
+
+	/**
+	 * Open a column file.
+	 * @param path - column file
+	 * @param captureSize - size of the decoded capture
+	 * @param captureModified - modified time of the decoded capture in milliseconds
+	 * @throws IOException if the file cannot be read, is corrupt or is stale
+	 */
+	private HeaderColumnFile(Path path, long captureSize, long captureModified) throws IOException {
+		this.path = path;
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while (header.hasRemaining()) {
+				if (channel.read(header, header.position()) < 0) {
+					throw new IOException(String.format("Not a header column file: %s", path));
+				}
+			}
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException(String.format("Not a header column file: %s", path));
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new IOException(String.format("Unsupported header column file version %d", header.getInt(4)));
+			}
+			if (header.getLong(8) != captureSize || header.getLong(16) != captureModified) {
+				throw new IOException(String.format("Stale header column file: %s", path));
+			}
+			packetCount = header.getLong(24);
+			stripePackets = header.getInt(32);
+			if (packetCount < 0 || stripePackets < 1) {
+				throw new IOException(String.format("Corrupt header column file: %s", path));
+			}
+			stripe = new Stripe();
+			position = HEADER_SIZE;
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Get the path of the column file of a capture file.
+	 * @param capture - capture file
+	 * @return column file
+	 */
+	public static Path columnPath(Path capture) {
+		return capture.resolveSibling(capture.getFileName() + SUFFIX);
+	}
+
+	/**
+	 * Open the column file of a capture file.
+	 * @param capture - decoded capture file
+	 * @return column file
+	 * @throws IOException if there is no column file, or it is corrupt or stale
+	 */
+	public static HeaderColumnFile load(Path capture) throws IOException {
+		return new HeaderColumnFile(columnPath(capture), Files.size(capture),
+				Files.getLastModifiedTime(capture).toMillis());
+	}
+
+	/**
+	 * Open the column file of a capture file, decoding the capture first
+	 * if the file is missing or stale.
+	 * @param capture - capture file, in any format CaptureReplay.openCapture reads
+	 * @return column file
+	 * @throws IOException if the capture cannot be read or the column file cannot be written
+	 */
+	public static HeaderColumnFile open(Path capture) throws IOException {
+		if (Files.exists(columnPath(capture))) {
+			try {
+				return load(capture);
+			} catch (IOException e) {
+				// Decode it again.
+			}
+		}
+		return build(capture, STRIPE_PACKETS);
+	}
+
+	/**
+	 * Decode every frame of a capture and write its column file.
+	 * @param capture - capture file, in any format CaptureReplay.openCapture reads
+	 * @param stripePackets - number of packets per stripe
+	 * @return column file
+	 * @throws IOException if the capture cannot be read or the column file cannot be written
+	 */
+	public static HeaderColumnFile build(Path capture, int stripePackets) throws IOException {
+		if (stripePackets < 1 || stripeSize(stripePackets, stripePackets) > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("Invalid stripe size %d", stripePackets));
+		}
+		long captureModified = Files.getLastModifiedTime(capture).toMillis();
+		long captureSize = Files.size(capture);
+		Path path = columnPath(capture);
+		long packets = 0;
+		try (ICaptureSource source = CaptureReplay.openCapture(capture);
+				FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			StripeWriter writer = new StripeWriter(stripePackets);
+			write(out, ByteBuffer.allocate(HEADER_SIZE));
+			TCP view = new TCP();
+			while (source.next()) {
+				view.wrapFrame(source.getLinkType(), source.getBuffer(), source.getFrameOffset(), source.getCapturedLength());
+				writer.add(view, source.getTimestampNanos(), source.getOriginalLength());
+				packets++;
+				if (writer.size == stripePackets) {
+					write(out, writer.toBuffer());
+				}
+			}
+			if (writer.size > 0) {
+				write(out, writer.toBuffer());
+			}
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).putLong(captureSize).putLong(captureModified).putLong(packets)
+					.putInt(stripePackets).putInt(0).flip();
+			out.position(0);
+			write(out, header);
+		}
+		return new HeaderColumnFile(path, captureSize, captureModified);
+	}
+
+	private static void write(FileChannel out, ByteBuffer b) throws IOException {
+		while (b.hasRemaining()) {
+			out.write(b);
+		}
+	}
+
+	/**
+	 * Get the size of a stripe.
+	 * @param packets - number of packets in the stripe
+	 * @param ipV6Packets - number of IPv6 packets in the stripe
+	 * @return bytes, padded to a multiple of 8
+	 */
+	private static long stripeSize(long packets, long ipV6Packets) {
+		long size = STRIPE_HEADER_SIZE + packets * 8 + ipV6Packets * 32 + packets * (3 * 4 + 2 * 2 + 3);
+		return (size + 7) & ~7L;
+	}
+
+	/**
+	 * Gathers the columns of one stripe while the capture is decoded.
+	 */
+	private static final class StripeWriter {
+		private final long[] timestamps;
+		private final long[] addresses6;
+		private final int[] srcAddrs;
+		private final int[] dstAddrs;
+		private final int[] lengths;
+		private final short[] srcPorts;
+		private final short[] dstPorts;
+		private final byte[] versions;
+		private final byte[] protocols;
+		private final byte[] tcpFlags;
+		private int size;
+		private int ipV6Count;
+
+		private StripeWriter(int capacity) {
+			timestamps = new long[capacity];
+			addresses6 = new long[4 * capacity];
+			srcAddrs = new int[capacity];
+			dstAddrs = new int[capacity];
+			lengths = new int[capacity];
+			srcPorts = new short[capacity];
+			dstPorts = new short[capacity];
+			versions = new byte[capacity];
+			protocols = new byte[capacity];
+			tcpFlags = new byte[capacity];
+		}
+
+		private void add(TCP view, long timestampNanos, int length) {
+			timestamps[size] = timestampNanos;
+			lengths[size] = length;
+			srcAddrs[size] = 0;
+			dstAddrs[size] = 0;
+			srcPorts[size] = 0;
+			dstPorts[size] = 0;
+			versions[size] = 0;
+			protocols[size] = 0;
+			tcpFlags[size] = 0;
+			if (view.isIpV4() || view.isIpV6()) {
+				if (view.isIpV4()) {
+					versions[size] = 4;
+					srcAddrs[size] = view.getSrcAddr();
+					dstAddrs[size] = view.getDstAddr();
+				} else {
+					versions[size] = 6;
+					addresses6[4 * ipV6Count] = view.getSrcAddrHigh();
+					addresses6[4 * ipV6Count + 1] = view.getSrcAddrLow();
+					addresses6[4 * ipV6Count + 2] = view.getDstAddrHigh();
+					addresses6[4 * ipV6Count + 3] = view.getDstAddrLow();
+					ipV6Count++;
+				}
+				protocols[size] = (byte)view.getProtocol();
+				srcPorts[size] = (short)view.getSrcPort();
+				dstPorts[size] = (short)view.getDstPort();
+				if (view.isTcp()) {
+					tcpFlags[size] = (byte)view.getFlags();
+				}
+			}
+			size++;
+		}
+
+		/**
+		 * Lay the stripe out for writing and start a new one.
+		 * @return stripe bytes
+		 */
+		private ByteBuffer toBuffer() {
+			ByteBuffer b = ByteBuffer.allocate((int)stripeSize(size, ipV6Count));
+			b.putInt(size).putInt(ipV6Count);
+			b.asLongBuffer().put(timestamps, 0, size).put(addresses6, 0, 4 * ipV6Count);
+			b.position(b.position() + (size + 4 * ipV6Count) * 8);
+			b.asIntBuffer().put(srcAddrs, 0, size).put(dstAddrs, 0, size).put(lengths, 0, size);
+			b.position(b.position() + size * 3 * 4);
+			b.asShortBuffer().put(srcPorts, 0, size).put(dstPorts, 0, size);
+			b.position(b.position() + size * 2 * 2);
+			b.put(versions, 0, size).put(protocols, 0, size).put(tcpFlags, 0, size);
+			b.clear();
+			size = 0;
+			ipV6Count = 0;
+			return b;
+		}
+	}
+
+	/**
+	 * The columns of one mapped stripe, read as the header fields of
+	 * the selected packet. Each column is copied out of the map in bulk
+	 * into an array that is reused for the next stripe.
+	 */
+	public static final class Stripe implements IPacket {
+		private long[] timestamps;
+		private long[] addresses6;
+		private int[] srcAddrs;
+		private int[] dstAddrs;
+		private int[] lengths;
+		private short[] srcPorts;
+		private short[] dstPorts;
+		private byte[] versions;
+		private byte[] protocols;
+		private byte[] tcpFlags;
+		/** Position of each packet among the IPv6 packets of the stripe. */
+		private int[] ipV6Positions;
+		private int size;
+		private int selected;
+
+		private Stripe() {
+			grow(0, 0);
+		}
+
+		/**
+		 * Make the column arrays large enough for a stripe.
+		 * @param capacity - number of packets
+		 * @param ipV6Capacity - number of IPv6 packets
+		 */
+		private void grow(int capacity, int ipV6Capacity) {
+			if (timestamps == null || timestamps.length < capacity) {
+				timestamps = new long[capacity];
+				srcAddrs = new int[capacity];
+				dstAddrs = new int[capacity];
+				lengths = new int[capacity];
+				srcPorts = new short[capacity];
+				dstPorts = new short[capacity];
+				versions = new byte[capacity];
+				protocols = new byte[capacity];
+				tcpFlags = new byte[capacity];
+				ipV6Positions = new int[capacity];
+			}
+			if (addresses6 == null || addresses6.length < 4 * ipV6Capacity) {
+				addresses6 = new long[4 * ipV6Capacity];
+			}
+		}
+
+		/**
+		 * Copy the columns of a newly mapped stripe.
+		 * @param map - stripe bytes
+		 * @return false if the stripe is corrupt
+		 */
+		private boolean reset(MappedByteBuffer map) {
+			int n = map.getInt(0);
+			int m = map.getInt(4);
+			if (n < 1 || m < 0 || m > n || stripeSize(n, m) != map.capacity()) {
+				return false;
+			}
+			grow(n, m);
+			map.position(STRIPE_HEADER_SIZE);
+			map.asLongBuffer().get(timestamps, 0, n).get(addresses6, 0, 4 * m);
+			map.position(map.position() + (n + 4 * m) * 8);
+			map.asIntBuffer().get(srcAddrs, 0, n).get(dstAddrs, 0, n).get(lengths, 0, n);
+			map.position(map.position() + n * 3 * 4);
+			map.asShortBuffer().get(srcPorts, 0, n).get(dstPorts, 0, n);
+			map.position(map.position() + n * 2 * 2);
+			map.get(versions, 0, n).get(protocols, 0, n).get(tcpFlags, 0, n);
+			int count = 0;
+			for (int i = 0; i < n; i++) {
+				ipV6Positions[i] = count;
+				if (versions[i] == 6) {
+					count++;
+				}
+			}
+			if (count != m) {
+				return false;
+			}
+			size = n;
+			selected = 0;
+			return true;
+		}
+
+		/**
+		 * Get the number of packets in the stripe.
+		 * @return number of packets
+		 */
+		public int size() {
+			return size;
+		}
+
+		/**
+		 * Select the packet whose fields the getters return.
+		 * @param i - index of the packet in the stripe
+		 */
+		public void select(int i) {
+			if (i < 0 || i >= size) {
+				throw new IndexOutOfBoundsException(String.format("Packet %d of %d", i, size));
+			}
+			selected = i;
+		}
+
+		public long getTimestampNanos() {
+			return timestamps[selected];
+		}
+
+		/**
+		 * Get the length of the packet on the wire.
+		 * @return bytes
+		 */
+		public int getLength() {
+			return lengths[selected];
+		}
+
+		/**
+		 * Get the TCP flag bits.
+		 * @return flags, tested with the TCP.FLAG_* constants, or 0 if not TCP
+		 */
+		public int getTcpFlags() {
+			return tcpFlags[selected] & 0xFF;
+		}
+
+		public boolean isIpV4() {
+			return versions[selected] == 4;
+		}
+
+		public boolean isIpV6() {
+			return versions[selected] == 6;
+		}
+
+		public int getProtocol() {
+			return protocols[selected] & 0xFF;
+		}
+
+		public int getSrcAddr() {
+			return srcAddrs[selected];
+		}
+
+		public int getDstAddr() {
+			return dstAddrs[selected];
+		}
+
+		public long getSrcAddrHigh() {
+			return isIpV6() ? addresses6[4 * ipV6Positions[selected]] : 0;
+		}
+
+		public long getSrcAddrLow() {
+			return isIpV6() ? addresses6[4 * ipV6Positions[selected] + 1] : 0;
+		}
+
+		public long getDstAddrHigh() {
+			return isIpV6() ? addresses6[4 * ipV6Positions[selected] + 2] : 0;
+		}
+
+		public long getDstAddrLow() {
+			return isIpV6() ? addresses6[4 * ipV6Positions[selected] + 3] : 0;
+		}
+
+		public int getSrcPort() {
+			return srcPorts[selected] & 0xFFFF;
+		}
+
+		public int getDstPort() {
+			return dstPorts[selected] & 0xFFFF;
+		}
+	}
+
+	/**
+	 * Get the number of packets in the capture.
+	 * @return number of packets
+	 */
+	public long getPacketCount() {
+		return packetCount;
+	}
+
+	/**
+	 * Map the next stripe of the file. The Stripe returned is reused
+	 * by later calls.
+	 * @return stripe, or null after the last
+	 * @throws IOException on read errors or if the file is corrupt
+	 */
+	public Stripe nextStripe() throws IOException {
+		if (position >= channel.size()) {
+			return null;
+		}
+		ByteBuffer counts = ByteBuffer.allocate(STRIPE_HEADER_SIZE);
+		while (counts.hasRemaining()) {
+			if (channel.read(counts, position + counts.position()) < 0) {
+				throw new IOException(String.format("Corrupt header column file: %s", path));
+			}
+		}
+		long size = stripeSize(counts.getInt(0), counts.getInt(4));
+		if (counts.getInt(0) < 1 || counts.getInt(0) > stripePackets || position + size > channel.size()
+				|| !stripe.reset(channel.map(FileChannel.MapMode.READ_ONLY, position, size))) {
+			throw new IOException(String.format("Corrupt header column file: %s", path));
+		}
+		position += size;
+		return stripe;
+	}
+
+	/**
+	 * Go back to the first stripe.
+	 */
+	public void rewind() {
+		position = HEADER_SIZE;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Decode a capture file to its column file.
+	 * Usage: HeaderColumnFile capture-file
+	 * @param args - command line arguments
+	 */
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.err.println("Usage: HeaderColumnFile capture-file");
+			System.exit(2);
+		}
+		try (HeaderColumnFile columns = build(Paths.get(args[0]), STRIPE_PACKETS)) {
+			System.out.printf("Decoded %d packets to %s%n", columns.getPacketCount(), columnPath(Paths.get(args[0])));
+		} catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
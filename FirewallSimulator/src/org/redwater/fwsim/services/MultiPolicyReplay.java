@@ -0,0 +1,331 @@
+package org.redwater.fwsim.services;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.redwater.fwsim.capture.ICaptureSource;
+import org.redwater.fwsim.classifiers.PacketBatch;
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.layers.TCP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+
+/**
+ * Replay one capture through several candidate policies at once. Each
+ * packet is read and decoded once into a PacketBatch, and the batch is
+ * checked against every policy, with the policies spread over a pool
+ * of threads. While the pool checks one batch the next one is decoded,
+ * so N policies cost one pass over the capture plus N classifications.
+ * The first policy is the baseline that the others are compared to.
+ * @author ghelmer
+ */
+public class MultiPolicyReplay {
+	/** Number of packets decoded before they are checked. */
+	private static final int BATCH_SIZE = 1024;
+
+	private final List<RuleList> policies;
+	private final int threadCount;
+
+	/**
+	 * Construct a MultiPolicyReplay.
+	 * @param policies - rules of each policy, the baseline first
+	 * @param threadCount - number of threads checking the policies; 1
+	 * checks them on the caller's thread between batches
+	 */
+	public MultiPolicyReplay(List<RuleList> policies, int threadCount) {
+		if (policies.isEmpty()) {
+			throw new IllegalArgumentException("No policies to replay");
+		}
+		if (threadCount < 1) {
+			throw new IllegalArgumentException(String.format("Invalid thread count %d", threadCount));
+		}
+		this.policies = new ArrayList<>(policies);
+		this.threadCount = Math.min(threadCount, policies.size());
+	}
+
+	/**
+	 * Decoded packets, and each policy's verdicts for them.
+	 */
+	private final class Batch {
+		private final PacketBatch packets;
+		private final long[] timestamps;
+		private final IRule[][] rules;
+		private final RuleActions[][] actions;
+
+		private Batch() {
+			packets = new PacketBatch(BATCH_SIZE);
+			timestamps = new long[BATCH_SIZE];
+			rules = new IRule[policies.size()][BATCH_SIZE];
+			actions = new RuleActions[policies.size()][BATCH_SIZE];
+		}
+	}
+
+	/**
+	 * Fills a batch with the next packets of a capture.
+	 */
+	private interface Decoder {
+		/**
+		 * Decode packets until the batch is full or the capture ends.
+		 * @param b - cleared batch
+		 * @throws IOException on read errors
+		 */
+		public void fill(Batch b) throws IOException;
+	}
+
+	/**
+	 * Classify every frame of a capture against every policy.
+	 * @param source - capture to read
+	 * @param listener - receives the verdicts of each packet, or null
+	 * @return verdict totals and disagreements
+	 * @throws IOException on capture read errors
+	 */
+	public PolicyComparison replay(ICaptureSource source, PolicyVerdictListener listener) throws IOException {
+		TCP view = new TCP();
+		long waitStart = source.getInputWaitNanos();
+		return replay(b -> {
+			while (b.packets.size() < BATCH_SIZE && source.next()) {
+				view.wrapFrame(source.getLinkType(), source.getBuffer(), source.getFrameOffset(), source.getCapturedLength());
+				b.timestamps[b.packets.size()] = source.getTimestampNanos();
+				b.packets.add(view, source.getOriginalLength());
+			}
+		}, listener, () -> source.getInputWaitNanos() - waitStart);
+	}
+
+	/**
+	 * Classify the decoded header columns of a capture against every policy.
+	 * @param columns - decoded header columns of a capture
+	 * @param listener - receives the verdicts of each packet, or null
+	 * @return verdict totals and disagreements
+	 * @throws IOException on column file read errors
+	 */
+	public PolicyComparison replay(HeaderColumnFile columns, PolicyVerdictListener listener) throws IOException {
+		columns.rewind();
+		HeaderColumnFile.Stripe[] stripe = { columns.nextStripe() };
+		int[] next = { 0 };
+		return replay(b -> {
+			while (b.packets.size() < BATCH_SIZE && stripe[0] != null) {
+				if (next[0] == stripe[0].size()) {
+					stripe[0] = columns.nextStripe();
+					next[0] = 0;
+					continue;
+				}
+				stripe[0].select(next[0]++);
+				b.timestamps[b.packets.size()] = stripe[0].getTimestampNanos();
+				b.packets.add(stripe[0], stripe[0].getLength());
+			}
+		}, listener, () -> 0);
+	}
+
+	/**
+	 * Decode batches and check each against every policy, decoding the
+	 * next batch while the pool checks the current one.
+	 * @param decoder - fills batches from the capture
+	 * @param listener - receives the verdicts of each packet, or null
+	 * @param inputWait - gives the time spent waiting for the capture
+	 * @return verdict totals and disagreements
+	 * @throws IOException on read errors
+	 */
+	private PolicyComparison replay(Decoder decoder, PolicyVerdictListener listener,
+			LongSupplier inputWait) throws IOException {
+		int n = policies.size();
+		ReplayStatistics[] stats = new ReplayStatistics[n];
+		for (int p = 0; p < n; p++) {
+			stats[p] = new ReplayStatistics();
+		}
+		long[][] disagreements = new long[n][n];
+		IRule[] rowRules = new IRule[n];
+		RuleActions[] rowActions = new RuleActions[n];
+		ExecutorService pool = null;
+		if (threadCount > 1) {
+			AtomicInteger threadNumber = new AtomicInteger();
+			pool = Executors.newFixedThreadPool(threadCount, r -> {
+				Thread t = new Thread(r, "policy-" + threadNumber.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		long packetNumber = 0;
+		long start = System.nanoTime();
+		try {
+			Batch current = new Batch();
+			Batch filling = new Batch();
+			decoder.fill(current);
+			while (current.packets.size() > 0) {
+				List<Future<?>> checks = new ArrayList<>(threadCount);
+				if (pool != null) {
+					for (int t = 0; t < threadCount; t++) {
+						int first = t;
+						Batch batch = current;
+						checks.add(pool.submit(() -> check(batch, first, stats)));
+					}
+				} else {
+					check(current, 0, stats);
+				}
+				filling.packets.clear();
+				decoder.fill(filling);
+				for (Future<?> f : checks) {
+					f.get();
+				}
+				for (int i = 0; i < current.packets.size(); i++) {
+					packetNumber++;
+					for (int a = 0; a < n; a++) {
+						RuleActions action = current.actions[a][i];
+						for (int b = a + 1; b < n; b++) {
+							if (current.actions[b][i] != action) {
+								disagreements[a][b]++;
+							}
+						}
+					}
+					if (listener != null) {
+						for (int p = 0; p < n; p++) {
+							rowRules[p] = current.rules[p][i];
+							rowActions[p] = current.actions[p][i];
+						}
+						listener.verdicts(packetNumber, current.timestamps[i], rowRules, rowActions);
+					}
+				}
+				Batch checked = current;
+				current = filling;
+				filling = checked;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during replay", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException)e.getCause();
+			}
+			throw new IllegalStateException("Replay failed", e.getCause());
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		for (ReplayStatistics s : stats) {
+			s.setElapsedNanos(elapsed);
+		}
+		return new PolicyComparison(stats, disagreements, elapsed, inputWait.getAsLong());
+	}
+
+	/**
+	 * Check a batch against every threadCount-th policy.
+	 * @param b - decoded batch
+	 * @param first - position of the first policy to check
+	 * @param stats - totals of each policy, updated for the policies checked
+	 */
+	private void check(Batch b, int first, ReplayStatistics[] stats) {
+		int size = b.packets.size();
+		int[] positions = new int[size];
+		PacketBatch.View view = b.packets.view();
+		for (int p = first; p < policies.size(); p += threadCount) {
+			RuleList rules = policies.get(p);
+			IRule[] verdicts = b.rules[p];
+			RuleActions[] actions = b.actions[p];
+			if (rules.canCheckBatch()) {
+				RuleSet set = rules.checkRules(b.packets, positions);
+				for (int i = 0; i < size; i++) {
+					verdicts[i] = positions[i] < 0 ? null : set.getRules().get(positions[i]);
+				}
+			} else {
+				for (int i = 0; i < size; i++) {
+					verdicts[i] = rules.checkRules(view.select(i), b.packets.getLength(i));
+				}
+			}
+			for (int i = 0; i < size; i++) {
+				IRule r = verdicts[i];
+				actions[i] = r == null ? null : r.getAction(view.select(i));
+				stats[p].record(r, actions[i], b.packets.getLength(i));
+			}
+		}
+	}
+
+	/**
+	 * Format the verdicts of every policy for one packet as a line of text.
+	 * @param packetNumber - number of the packet in the capture
+	 * @param actions - action of each policy, or null if no rule matched
+	 * @return text
+	 */
+	public static String formatVerdicts(long packetNumber, RuleActions[] actions) {
+		StringBuilder s = new StringBuilder();
+		s.append(packetNumber);
+		for (RuleActions a : actions) {
+			s.append(' ').append(a == null ? "-" : a.toString().toLowerCase());
+		}
+		return s.toString();
+	}
+
+	/**
+	 * Replay a capture file through several rules files in one pass.
+	 * Usage: MultiPolicyReplay [-v] [-d] [-j threads] capture-file rules-file...
+	 * @param args - command line arguments
+	 */
+	public static void main(String[] args) {
+		String usage = "Usage: MultiPolicyReplay [-v] [-d] [-j threads] capture-file rules-file...";
+		boolean verbose = false;
+		boolean decoded = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int i = 0;
+		while (i < args.length && args[i].startsWith("-")) {
+			if (args[i].equals("-v")) {
+				verbose = true;
+				i++;
+			} else if (args[i].equals("-d")) {
+				decoded = true;
+				i++;
+			} else if (args[i].equals("-j") && i + 1 < args.length) {
+				try {
+					threads = Integer.parseInt(args[i + 1]);
+				} catch (NumberFormatException e) {
+					System.err.println(usage);
+					System.exit(2);
+				}
+				i += 2;
+			} else {
+				System.err.println(usage);
+				System.exit(2);
+			}
+		}
+		if (args.length - i < 2) {
+			System.err.println(usage);
+			System.exit(2);
+		}
+		try {
+			Path capture = Paths.get(args[i]);
+			List<RuleList> policies = new ArrayList<>();
+			for (int p = i + 1; p < args.length; p++) {
+				policies.add(CaptureReplay.loadRules(Paths.get(args[p])));
+				System.out.printf("Policy %d: %s%n", p - i, args[p]);
+			}
+			MultiPolicyReplay replay = new MultiPolicyReplay(policies, threads);
+			PolicyVerdictListener listener = null;
+			if (verbose) {
+				listener = (n, t, r, a) -> System.out.println(formatVerdicts(n, a));
+			}
+			if (decoded) {
+				try (HeaderColumnFile columns = HeaderColumnFile.open(capture)) {
+					System.out.print(replay.replay(columns, listener));
+				}
+			} else {
+				try (ICaptureSource source = CaptureReplay.openCapture(capture)) {
+					System.out.print(replay.replay(source, listener));
+				}
+			}
+		} catch (IOException | UnhandledFieldNameException | InvalidFieldValueException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
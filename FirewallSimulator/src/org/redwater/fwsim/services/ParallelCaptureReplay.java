@@ -0,0 +1,447 @@
+package org.redwater.fwsim.services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.redwater.fwsim.cache.CacheStatistics;
+import org.redwater.fwsim.cache.VerdictCache;
+import org.redwater.fwsim.capture.ICaptureSource;
+import org.redwater.fwsim.classifiers.PacketBatch;
+import org.redwater.fwsim.conntrack.ConnectionTracker;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.layers.IPacket;
+import org.redwater.fwsim.layers.TCP;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+
+/**
+ * Replay a packet capture through a RuleList on several worker threads.
+ * The reading thread hashes each packet's 5-tuple to pick a worker, so
+ * every packet of a flow, in both directions, is classified by the same
+ * worker. A reorder stage puts the verdicts back in capture order
+ * before they reach the VerdictListener.
+ * <p>
+ * Only the first HEADER_SNAP_LENGTH bytes of each frame are copied out
+ * of the capture source into reusable batches, which is enough for the
+ * link, IP and transport headers the rules look at. A frame whose
+ * headers run past that, behind stacked VLAN tags or a long IPv6
+ * extension header chain, is copied whole into a buffer of its own.
+ * @author ghelmer
+ */
+public class ParallelCaptureReplay {
+	/** Number of bytes of each frame copied for the workers. */
+	public static final int HEADER_SNAP_LENGTH = 128;
+	/** Number of packets per batch handed to a worker. */
+	private static final int BATCH_SIZE = 256;
+	/** Number of packets per chunk of the worker routing log. */
+	private static final int ROUTE_CHUNK_SIZE = 4096;
+
+	/**
+	 * A batch of packets for one worker, recycled through a pool. The
+	 * batch that ends a worker's input has last set and is not pooled.
+	 */
+	private static final class Batch {
+		private final ByteBuffer data = ByteBuffer.allocate(BATCH_SIZE * HEADER_SNAP_LENGTH);
+		private final int[] lengths = new int[BATCH_SIZE];
+		private final int[] originalLengths = new int[BATCH_SIZE];
+		private final int[] linkTypes = new int[BATCH_SIZE];
+		private final long[] timestamps = new long[BATCH_SIZE];
+		/** Whole copies of the frames whose headers do not fit in data, or null. */
+		private final ByteBuffer[] large = new ByteBuffer[BATCH_SIZE];
+		private final IRule[] verdicts = new IRule[BATCH_SIZE];
+		private final RuleActions[] actions = new RuleActions[BATCH_SIZE];
+		private int count;
+		private int next;
+		private boolean last;
+	}
+
+	/**
+	 * The worker each packet went to, in capture order.
+	 */
+	private static final class RouteChunk {
+		private final byte[] workers = new byte[ROUTE_CHUNK_SIZE];
+		private int count;
+		private boolean last;
+	}
+
+	private final RuleList rules;
+	private final int workerCount;
+	private ConnectionTracker tracker;
+	private boolean caching;
+	private final CacheStatistics cacheStatistics;
+
+	/**
+	 * Construct a ParallelCaptureReplay.
+	 * @param rules - rules to evaluate every packet against; must not be
+	 * changed during a replay
+	 * @param workerCount - number of worker threads, 1 to 127
+	 */
+	public ParallelCaptureReplay(RuleList rules, int workerCount) {
+		if (workerCount < 1 || workerCount > Byte.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format("Invalid worker count %d", workerCount));
+		}
+		this.rules = rules;
+		this.workerCount = workerCount;
+		tracker = null;
+		caching = false;
+		cacheStatistics = new CacheStatistics();
+	}
+
+	/**
+	 * Replay statefully: packets of accepted connections reuse the
+	 * verdict of the connection's first packet. Both directions of a
+	 * connection go to the same worker, so its packets are tracked in
+	 * capture order.
+	 * @param tracker - connection tracker over the same rules, or null to
+	 * check every packet against the rules
+	 */
+	public void setConnectionTracker(ConnectionTracker tracker) {
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Give each worker its own VerdictCache over the rules. A connection
+	 * tracker, if set, takes precedence.
+	 * @param caching - true to look verdicts up in a cache before checking the rules
+	 */
+	public void setVerdictCaching(boolean caching) {
+		this.caching = caching;
+	}
+
+	/**
+	 * Get the combined hit and miss counts of the workers' caches over
+	 * every replay so far.
+	 * @return cache statistics
+	 */
+	public CacheStatistics getCacheStatistics() {
+		synchronized (cacheStatistics) {
+			CacheStatistics copy = new CacheStatistics();
+			copy.merge(cacheStatistics);
+			return copy;
+		}
+	}
+
+	/**
+	 * Hash the 5-tuple of a packet so that both directions of a flow hash
+	 * to the same value.
+	 * @param packet - IPv4 or IPv6 packet header view
+	 * @return hash value
+	 */
+	public static int flowHash(IPacket packet) {
+		int addresses;
+		if (packet.isIpV6()) {
+			long a = packet.getSrcAddrHigh() ^ packet.getSrcAddrLow() ^ packet.getDstAddrHigh() ^ packet.getDstAddrLow();
+			addresses = (int)(a ^ (a >>> 32));
+		} else {
+			addresses = packet.getSrcAddr() ^ packet.getDstAddr();
+		}
+		int ports = packet.getSrcPort() ^ packet.getDstPort();
+		int h = addresses * 0x9E3779B1 + ports * 0x85EBCA77 + packet.getProtocol();
+		// Murmur3 finalizer.
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		h *= 0xC2B2AE35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	/**
+	 * Classify every frame of a capture in parallel.
+	 * @param source - capture to read
+	 * @param listener - receives the verdict of each packet in capture order, or null
+	 * @return totals of the verdicts
+	 * @throws IOException on capture read errors
+	 */
+	public ReplayStatistics replay(ICaptureSource source, VerdictListener listener) throws IOException {
+		rules.compile();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		BlockingQueue<Batch> pool = new ArrayBlockingQueue<>(workerCount * 5);
+		for (int i = 0; i < workerCount * 5; i++) {
+			pool.add(new Batch());
+		}
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		BlockingQueue<Batch>[] toWorker = new BlockingQueue[workerCount];
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		BlockingQueue<Batch>[] fromWorker = new BlockingQueue[workerCount];
+		BlockingQueue<RouteChunk> routes = new LinkedBlockingQueue<>();
+		Thread[] workers = new Thread[workerCount];
+		for (int w = 0; w < workerCount; w++) {
+			toWorker[w] = new LinkedBlockingQueue<>();
+			fromWorker[w] = new LinkedBlockingQueue<>();
+			workers[w] = new Thread(new Worker(toWorker[w], fromWorker[w], failure), "replay-worker-" + w);
+			workers[w].start();
+		}
+		ReplayStatistics stats = new ReplayStatistics();
+		Thread output = new Thread(() -> reorder(routes, fromWorker, pool, listener, stats, failure), "replay-reorder");
+		output.start();
+
+		long start = System.nanoTime();
+		Batch[] filling = new Batch[workerCount];
+		RouteChunk route = new RouteChunk();
+		IP view = new IP();
+		long packetNumber = 0;
+		try {
+			while (source.next()) {
+				ByteBuffer buffer = source.getBuffer();
+				int offset = source.getFrameOffset();
+				int length = source.getCapturedLength();
+				int linkType = source.getLinkType();
+				view.wrapFrame(linkType, buffer, offset, length);
+				int w;
+				if (view.isIpV4() || view.isIpV6()) {
+					w = (flowHash(view) & Integer.MAX_VALUE) % workerCount;
+				} else {
+					w = (int)(packetNumber % workerCount);
+				}
+				packetNumber++;
+
+				if (filling[w] == null) {
+					filling[w] = pool.poll();
+					if (filling[w] == null) {
+						// Every batch is in flight. Hand over the partly filled
+						// batches so the reorder stage can drain and recycle.
+						for (int i = 0; i < workerCount; i++) {
+							if (filling[i] != null) {
+								toWorker[i].put(filling[i]);
+								filling[i] = null;
+							}
+						}
+						routes.put(route);
+						route = new RouteChunk();
+						filling[w] = pool.take();
+					}
+					filling[w].count = 0;
+					filling[w].last = false;
+				}
+				Batch b = filling[w];
+				int n = b.count++;
+				int copy = Math.min(length, HEADER_SNAP_LENGTH);
+				if ((view.isIpV4() || view.isIpV6()) && view.getHeadersEnd() - offset > copy) {
+					ByteBuffer frame = ByteBuffer.allocate(length);
+					for (int i = 0; i < length; i++) {
+						frame.put(i, buffer.get(offset + i));
+					}
+					b.large[n] = frame;
+					copy = length;
+				} else {
+					int base = n * HEADER_SNAP_LENGTH;
+					for (int i = 0; i < copy; i++) {
+						b.data.put(base + i, buffer.get(offset + i));
+					}
+					b.large[n] = null;
+				}
+				b.lengths[n] = copy;
+				b.originalLengths[n] = source.getOriginalLength();
+				b.linkTypes[n] = linkType;
+				b.timestamps[n] = source.getTimestampNanos();
+				if (b.count == BATCH_SIZE) {
+					toWorker[w].put(b);
+					filling[w] = null;
+				}
+
+				route.workers[route.count++] = (byte)w;
+				if (route.count == ROUTE_CHUNK_SIZE) {
+					routes.put(route);
+					route = new RouteChunk();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during replay", e);
+		} finally {
+			// Flush everything, then tell the workers and reorder stage to
+			// finish. The end markers are not taken from the pool: only the
+			// reorder stage refills it, and it may be waiting on a flushed batch.
+			try {
+				for (int w = 0; w < workerCount; w++) {
+					if (filling[w] != null) {
+						toWorker[w].put(filling[w]);
+						filling[w] = null;
+					}
+				}
+				routes.put(route);
+				for (int w = 0; w < workerCount; w++) {
+					Batch end = new Batch();
+					end.last = true;
+					toWorker[w].put(end);
+				}
+				RouteChunk end = new RouteChunk();
+				end.last = true;
+				routes.put(end);
+				output.join();
+				for (Thread t : workers) {
+					t.join();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted during replay", e);
+			}
+		}
+		stats.setElapsedNanos(System.nanoTime() - start);
+		stats.setInputWaitNanos(source.getInputWaitNanos());
+		if (failure.get() != null) {
+			throw new IllegalStateException("Replay failed", failure.get());
+		}
+		return stats;
+	}
+
+	/**
+	 * Classifies batches for one flow shard.
+	 */
+	private final class Worker implements Runnable {
+		private final BlockingQueue<Batch> in;
+		private final BlockingQueue<Batch> out;
+		private final AtomicReference<Throwable> failure;
+
+		private Worker(BlockingQueue<Batch> in, BlockingQueue<Batch> out, AtomicReference<Throwable> failure) {
+			this.in = in;
+			this.out = out;
+			this.failure = failure;
+		}
+
+		public void run() {
+			TCP view = new TCP();
+			VerdictCache cache = caching ? new VerdictCache(rules) : null;
+			PacketBatch packets = new PacketBatch(BATCH_SIZE);
+			int[] positions = new int[BATCH_SIZE];
+			try {
+				boolean last = false;
+				while (!last) {
+					Batch b = in.take();
+					last = b.last;
+					try {
+						if (tracker == null && cache == null && rules.canCheckBatch()) {
+							checkBatch(b, view, packets, positions);
+						} else {
+							checkEach(b, view, cache);
+						}
+					} catch (RuntimeException e) {
+						// Keep the pipeline moving so the replay can finish and report.
+						failure.compareAndSet(null, e);
+					}
+					b.next = 0;
+					out.put(b);
+				}
+			} catch (InterruptedException e) {
+				failure.compareAndSet(null, e);
+			}
+			if (cache != null) {
+				synchronized (cacheStatistics) {
+					cacheStatistics.merge(cache.getStatistics());
+				}
+			}
+		}
+
+		/**
+		 * Wrap a packet of a batch in a view.
+		 * @param view - view to wrap the packet in
+		 * @param b - batch
+		 * @param i - position of the packet in the batch
+		 */
+		private void wrap(TCP view, Batch b, int i) {
+			if (b.large[i] != null) {
+				view.wrapFrame(b.linkTypes[i], b.large[i], 0, b.lengths[i]);
+			} else {
+				view.wrapFrame(b.linkTypes[i], b.data, i * HEADER_SNAP_LENGTH, b.lengths[i]);
+			}
+		}
+
+		/**
+		 * Check the packets of a batch one at a time.
+		 */
+		private void checkEach(Batch b, TCP view, VerdictCache cache) {
+			for (int i = 0; i < b.count; i++) {
+				wrap(view, b, i);
+				IRule r;
+				if (tracker != null) {
+					r = tracker.checkRules(view, b.timestamps[i]);
+				} else if (cache != null) {
+					r = cache.checkRules(view, b.originalLengths[i]);
+				} else {
+					r = rules.checkRules(view, b.originalLengths[i]);
+				}
+				b.verdicts[i] = r;
+				b.actions[i] = r == null ? null : r.getAction(view);
+			}
+		}
+
+		/**
+		 * Check the packets of a batch together against the rules.
+		 */
+		private void checkBatch(Batch b, TCP view, PacketBatch packets, int[] positions) {
+			packets.clear();
+			for (int i = 0; i < b.count; i++) {
+				wrap(view, b, i);
+				packets.add(view, b.originalLengths[i]);
+			}
+			RuleSet set = rules.checkRules(packets, positions);
+			for (int i = 0; i < b.count; i++) {
+				IRule r = positions[i] < 0 ? null : set.getRules().get(positions[i]);
+				b.verdicts[i] = r;
+				if (r != null) {
+					wrap(view, b, i);
+					b.actions[i] = r.getAction(view);
+				} else {
+					b.actions[i] = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Emit the verdicts in capture order: the routing log names the
+	 * worker of each packet, and each worker's batches come back in the
+	 * order it was given them.
+	 */
+	private void reorder(BlockingQueue<RouteChunk> routes, BlockingQueue<Batch>[] fromWorker,
+			BlockingQueue<Batch> pool, VerdictListener listener, ReplayStatistics stats,
+			AtomicReference<Throwable> failure) {
+		Batch[] current = new Batch[workerCount];
+		long packetNumber = 0;
+		try {
+			boolean last = false;
+			while (!last) {
+				RouteChunk route = routes.take();
+				last = route.last;
+				for (int i = 0; i < route.count; i++) {
+					int w = route.workers[i];
+					while (current[w] == null || current[w].next == current[w].count) {
+						if (current[w] != null) {
+							pool.put(current[w]);
+						}
+						current[w] = fromWorker[w].take();
+					}
+					Batch b = current[w];
+					int n = b.next++;
+					packetNumber++;
+					stats.record(b.verdicts[n], b.actions[n], b.originalLengths[n]);
+					if (listener != null && failure.get() == null) {
+						try {
+							listener.verdict(packetNumber, b.timestamps[n], b.verdicts[n], b.actions[n]);
+						} catch (RuntimeException e) {
+							failure.compareAndSet(null, e);
+						}
+					}
+				}
+			}
+			// Drain the final batches so the workers can exit.
+			for (int w = 0; w < workerCount; w++) {
+				while (current[w] == null || !current[w].last) {
+					if (current[w] != null) {
+						pool.put(current[w]);
+					}
+					current[w] = fromWorker[w].take();
+				}
+			}
+		} catch (InterruptedException e) {
+			failure.compareAndSet(null, e);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+package org.redwater.fwsim.services;
+
+import org.redwater.fwsim.rules.RuleActions;
+
+/**
+ * Result of MultiPolicyReplay: the totals of each policy's verdicts and
+ * the number of packets on which each pair of policies disagreed. Two
+ * policies disagree on a packet if their actions differ, taking no
+ * match as an action of its own.
+ * @author ghelmer
+ */
+public class PolicyComparison {
+	private final ReplayStatistics[] statistics;
+	private final long[][] disagreements;
+	private final long elapsedNanos;
+	private final long inputWaitNanos;
+
+	/**
+	 * Construct a PolicyComparison.
+	 * @param statistics - totals of the verdicts of each policy
+	 * @param disagreements - packets on which each pair of policies
+	 * disagreed, counted where the first index is less than the second
+	 * @param elapsedNanos - time taken by the replay
+	 * @param inputWaitNanos - part of the elapsed time spent waiting for the capture source
+	 */
+	PolicyComparison(ReplayStatistics[] statistics, long[][] disagreements, long elapsedNanos, long inputWaitNanos) {
+		this.statistics = statistics;
+		this.disagreements = disagreements;
+		this.elapsedNanos = elapsedNanos;
+		this.inputWaitNanos = inputWaitNanos;
+	}
+
+	public int getPolicyCount() {
+		return statistics.length;
+	}
+
+	/**
+	 * Get the totals of the verdicts of one policy.
+	 * @param policy - position of the policy, from 0
+	 * @return statistics
+	 */
+	public ReplayStatistics getStatistics(int policy) {
+		return statistics[policy];
+	}
+
+	/**
+	 * Get the number of packets on which two policies disagreed.
+	 * @param a - position of one policy
+	 * @param b - position of the other policy
+	 * @return number of packets, 0 if a and b are the same policy
+	 */
+	public long getDisagreements(int a, int b) {
+		if (a == b) {
+			return 0;
+		}
+		return a < b ? disagreements[a][b] : disagreements[b][a];
+	}
+
+	/**
+	 * Get the number of packets on which a policy disagreed with the
+	 * first policy, the baseline.
+	 * @param policy - position of the policy
+	 * @return number of packets
+	 */
+	public long getDisagreements(int policy) {
+		return getDisagreements(0, policy);
+	}
+
+	public long getPackets() {
+		return statistics.length == 0 ? 0 : statistics[0].getPackets();
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public long getInputWaitNanos() {
+		return inputWaitNanos;
+	}
+
+	/**
+	 * Return a text report: the verdict totals of each policy, its
+	 * disagreements with the baseline, and the disagreements of every
+	 * pair of policies as a matrix. Policies are numbered from 1.
+	 * @return text
+	 */
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("Packets: %d%n", getPackets()));
+		for (int p = 0; p < statistics.length; p++) {
+			s.append(String.format("Policy %d:", p + 1));
+			for (RuleActions a : RuleActions.values()) {
+				s.append(String.format(" %s %d", a.toString().toLowerCase(), statistics[p].getActionCount(a)));
+			}
+			s.append(String.format(" no match %d", statistics[p].getUnmatched()));
+			if (p > 0) {
+				s.append(String.format(" disagreements %d", getDisagreements(p)));
+			}
+			s.append(String.format("%n"));
+		}
+		s.append("Disagreements:");
+		for (int b = 0; b < statistics.length; b++) {
+			s.append(String.format(" %10d", b + 1));
+		}
+		s.append(String.format("%n"));
+		for (int a = 0; a < statistics.length; a++) {
+			s.append(String.format("%13d", a + 1));
+			for (int b = 0; b < statistics.length; b++) {
+				s.append(String.format(" %10d", getDisagreements(a, b)));
+			}
+			s.append(String.format("%n"));
+		}
+		double seconds = elapsedNanos / 1e9;
+		s.append(String.format("Elapsed: %.3f s (%.0f packets/s)%n", seconds,
+				seconds > 0 ? getPackets() / seconds : 0.0));
+		if (inputWaitNanos > 0) {
+			s.append(String.format("Waiting for input: %.3f s%n", inputWaitNanos / 1e9));
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,21 @@
+package org.redwater.fwsim.services;
+
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+
+/**
+ * Receives the verdicts of every policy for each packet of a
+ * MultiPolicyReplay, in capture order.
+ * @author ghelmer
+ */
+public interface PolicyVerdictListener {
+	/**
+	 * Report the verdicts for one packet. The arrays are reused for the
+	 * next packet.
+	 * @param packetNumber - number of the packet in the capture, starting at 1
+	 * @param timestampNanos - capture time of the packet
+	 * @param rules - first rule of each policy that matched the packet, or null if none
+	 * @param actions - action of each policy's rule, or null if none
+	 */
+	public void verdicts(long packetNumber, long timestampNanos, IRule[] rules, RuleActions[] actions);
+}
@@ -0,0 +1,115 @@
+package org.redwater.fwsim.services;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+
+/**
+ * Result of RuleReorderer: the reordered rules and the estimated effect
+ * on the number of rules a linear scan evaluates per packet.
+ * @author ghelmer
+ */
+public class ReorderReport {
+	private final RuleList rules;
+	private final List<IRule> original;
+	private final int[] newPositions;
+	private final long packets;
+	private final double averageBefore;
+	private final double averageAfter;
+
+	/**
+	 * Construct a ReorderReport.
+	 * @param rules - reordered rules
+	 * @param original - rules in their original order
+	 * @param newPositions - new position of each rule, by original position
+	 * @param packets - number of packets the hit counts came from
+	 * @param averageBefore - mean rules evaluated per packet in the original order
+	 * @param averageAfter - mean rules evaluated per packet in the new order
+	 */
+	ReorderReport(RuleList rules, List<IRule> original, int[] newPositions, long packets,
+			double averageBefore, double averageAfter) {
+		this.rules = rules;
+		this.original = new ArrayList<>(original);
+		this.newPositions = newPositions;
+		this.packets = packets;
+		this.averageBefore = averageBefore;
+		this.averageAfter = averageAfter;
+	}
+
+	/**
+	 * Get the reordered rules. They are the same IRule objects as in the
+	 * original list.
+	 * @return new RuleList
+	 */
+	public RuleList getRuleList() {
+		return rules;
+	}
+
+	/**
+	 * Get the new position of a rule.
+	 * @param originalPosition - position of the rule in the original list
+	 * @return position in the reordered list
+	 */
+	public int getNewPosition(int originalPosition) {
+		return newPositions[originalPosition];
+	}
+
+	/**
+	 * Get the rules that moved, in their original order.
+	 * @return rules whose position changed
+	 */
+	public List<IRule> getMovedRules() {
+		List<IRule> moved = new ArrayList<>();
+		for (int i = 0; i < newPositions.length; i++) {
+			if (newPositions[i] != i) {
+				moved.add(original.get(i));
+			}
+		}
+		return Collections.unmodifiableList(moved);
+	}
+
+	public long getPackets() {
+		return packets;
+	}
+
+	/**
+	 * Get the mean number of rules evaluated per packet in the original order.
+	 * @return rules per packet
+	 */
+	public double getAverageBefore() {
+		return averageBefore;
+	}
+
+	/**
+	 * Get the estimated mean number of rules evaluated per packet in the new order.
+	 * @return rules per packet
+	 */
+	public double getAverageAfter() {
+		return averageAfter;
+	}
+
+	/**
+	 * Return a text report of the moves and the estimated saving.
+	 * @return text
+	 */
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < newPositions.length; i++) {
+			if (newPositions[i] < i) {
+				String metadata = original.get(i).getRuleMetadata();
+				s.append(String.format("Moved %s from position %d to %d%n",
+						metadata == null || metadata.isEmpty() ? "rule" : metadata, i + 1, newPositions[i] + 1));
+			}
+		}
+		s.append(String.format("Packets: %d%n", packets));
+		s.append(String.format("Rules evaluated per packet: %.2f before, %.2f after", averageBefore, averageAfter));
+		if (averageBefore > 0) {
+			s.append(String.format(" (%.1f%% fewer)", 100 * (averageBefore - averageAfter) / averageBefore));
+		}
+		s.append(String.format("%n"));
+		return s.toString();
+	}
+}
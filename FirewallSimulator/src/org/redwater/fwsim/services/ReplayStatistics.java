@@ -0,0 +1,127 @@
+package org.redwater.fwsim.services;
+
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+
+/**
+ * Totals of the verdicts of a capture replay.
+ * @author ghelmer
+ */
+public class ReplayStatistics {
+	private long packets;
+	private long bytes;
+	private final long[] actionCounts;
+	private long unmatched;
+	private long elapsedNanos;
+	private long inputWaitNanos;
+
+	/**
+	 * Construct empty statistics.
+	 */
+	public ReplayStatistics() {
+		packets = 0;
+		bytes = 0;
+		actionCounts = new long[RuleActions.values().length];
+		unmatched = 0;
+		elapsedNanos = 0;
+		inputWaitNanos = 0;
+	}
+
+	/**
+	 * Count the verdict for one packet.
+	 * @param rule - rule that matched the packet, or null if none
+	 * @param action - action of the rule, or null if none
+	 * @param length - length of the packet on the wire
+	 */
+	public void record(IRule rule, RuleActions action, int length) {
+		packets++;
+		bytes += length;
+		if (rule == null || action == null) {
+			unmatched++;
+		} else {
+			actionCounts[action.ordinal()]++;
+		}
+	}
+
+	/**
+	 * Add the counts of other statistics to these.
+	 * @param other - statistics to add
+	 */
+	public void merge(ReplayStatistics other) {
+		packets += other.packets;
+		bytes += other.bytes;
+		for (int i = 0; i < actionCounts.length; i++) {
+			actionCounts[i] += other.actionCounts[i];
+		}
+		unmatched += other.unmatched;
+	}
+
+	public void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * Set the part of the elapsed time spent waiting for the capture
+	 * source, such as for decompression, rather than evaluating.
+	 * @param inputWaitNanos - nanoseconds
+	 */
+	public void setInputWaitNanos(long inputWaitNanos) {
+		this.inputWaitNanos = inputWaitNanos;
+	}
+
+	public long getInputWaitNanos() {
+		return inputWaitNanos;
+	}
+
+	public long getPackets() {
+		return packets;
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Get the number of packets that matched a rule with an action.
+	 * @param action - action to count
+	 * @return number of packets
+	 */
+	public long getActionCount(RuleActions action) {
+		return actionCounts[action.ordinal()];
+	}
+
+	/**
+	 * Get the number of packets that matched no rule.
+	 * @return number of packets
+	 */
+	public long getUnmatched() {
+		return unmatched;
+	}
+
+	/**
+	 * Return a text report of the statistics.
+	 * @return text
+	 */
+	public String toString() {
+		StringBuilder s = new StringBuilder();
+		s.append(String.format("Packets: %d%n", packets));
+		s.append(String.format("Bytes: %d%n", bytes));
+		for (RuleActions a : RuleActions.values()) {
+			s.append(String.format("%s: %d%n", a.toString().toLowerCase(), actionCounts[a.ordinal()]));
+		}
+		s.append(String.format("no match: %d%n", unmatched));
+		double seconds = elapsedNanos / 1e9;
+		s.append(String.format("Elapsed: %.3f s (%.0f packets/s)%n", seconds,
+				seconds > 0 ? packets / seconds : 0.0));
+		if (inputWaitNanos > 0) {
+			double evaluating = (elapsedNanos - inputWaitNanos) / 1e9;
+			s.append(String.format("Evaluation: %.3f s (%.0f packets/s), %.3f s waiting for input%n", evaluating,
+					evaluating > 0 ? packets / evaluating : 0.0, inputWaitNanos / 1e9));
+		}
+		return s.toString();
+	}
+}
@@ -0,0 +1,153 @@
+package org.redwater.fwsim.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+
+/**
+ * Reload a RuleList from its rules file whenever the file changes.
+ * The new rules are parsed and compiled off to the side and then
+ * swapped in as a whole, so packets being checked meanwhile see either
+ * the old policy or the new one, never a mix. If the file does not
+ * parse, the old policy stays in force.
+ * @author ghelmer
+ */
+public class RuleFileWatcher implements Closeable {
+	/** Time to wait for more changes before reloading, so an editor's several writes reload once. */
+	private static final long SETTLE_MILLIS = 200;
+
+	private final RuleList rules;
+	private final Path path;
+	private WatchService watcher;
+	private Thread thread;
+	private final AtomicInteger reloadCount;
+	private volatile Exception lastError;
+
+	/**
+	 * Construct a RuleFileWatcher.
+	 * @param rules - rules to replace when the file changes
+	 * @param path - rules file
+	 */
+	public RuleFileWatcher(RuleList rules, Path path) {
+		this.rules = rules;
+		this.path = path.toAbsolutePath();
+		watcher = null;
+		thread = null;
+		reloadCount = new AtomicInteger();
+		lastError = null;
+	}
+
+	/**
+	 * Start watching the rules file on a daemon thread.
+	 * @throws IOException if the directory cannot be watched
+	 */
+	public synchronized void start() throws IOException {
+		if (thread != null) {
+			throw new IllegalStateException("Already started");
+		}
+		watcher = FileSystems.getDefault().newWatchService();
+		path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+		thread = new Thread(this::watch, "rule-file-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Wait for changes to the rules file and reload it.
+	 */
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watcher.take();
+				boolean changed = false;
+				while (key != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() != StandardWatchEventKinds.OVERFLOW
+								&& path.getFileName().equals(event.context())) {
+							changed = true;
+						}
+					}
+					key.reset();
+					key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+				if (changed) {
+					try {
+						reload();
+					} catch (RuntimeException e) {
+						// Keep watching; the next edit may fix the file.
+						lastError = e;
+					}
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// Closed.
+		}
+	}
+
+	/**
+	 * Parse the rules file and swap the new rules in, using the same
+	 * classifier as the current rules.
+	 * @return true if the rules were replaced, false if the file could
+	 * not be read or parsed
+	 */
+	public boolean reload() {
+		RuleSet set;
+		try {
+			set = new RuleSet.Builder().classifierType(rules.getClassifierType()).load(path).build();
+		} catch (IOException | UnhandledFieldNameException | InvalidFieldValueException | RuntimeException e) {
+			lastError = e;
+			return false;
+		}
+		rules.setRuleSet(set);
+		lastError = null;
+		reloadCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Get the number of times the rules were replaced.
+	 * @return reload count
+	 */
+	public int getReloadCount() {
+		return reloadCount.get();
+	}
+
+	/**
+	 * Get the reason the last reload failed.
+	 * @return exception, or null if the last reload succeeded
+	 */
+	public Exception getLastError() {
+		return lastError;
+	}
+
+	/**
+	 * Stop watching the rules file.
+	 */
+	public synchronized void close() throws IOException {
+		if (watcher != null) {
+			watcher.close();
+		}
+		if (thread != null) {
+			thread.interrupt();
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package org.redwater.fwsim.services;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.redwater.fwsim.capture.ICaptureSource;
+import org.redwater.fwsim.classifiers.CompiledRule;
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleCounterSnapshot;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+
+/**
+ * Reorder a RuleList so that frequently matched rules come earlier,
+ * without changing which rule matches any packet. A rule only moves
+ * up past rules whose match space is disjoint from its own, judged by
+ * intersecting the address blocks, port ranges and protocols of the
+ * rules. Rules of other types never move and are never passed.
+ * <p>
+ * The hit counts come from the rules' counters, so enable statistics
+ * on the RuleList and replay representative traffic first.
+ * @author ghelmer
+ */
+public class RuleReorderer {
+	/**
+	 * Build a reordered copy of a RuleList from its hit counters. Each
+	 * rule is moved up past colder rules it is disjoint from, in the
+	 * manner of an insertion sort.
+	 * @param rules - rules with hit counts
+	 * @param unmatchedPackets - number of packets of the same traffic
+	 * that matched no rule, for the estimate
+	 * @return reordered rules and estimate
+	 */
+	public static ReorderReport reorder(RuleList rules, long unmatchedPackets) {
+		List<IRule> original = rules.getRules();
+		int n = original.size();
+		List<RuleCounterSnapshot> stats = rules.getStatistics();
+		CompiledRule[] compiled = new CompiledRule[n];
+		long[] hits = new long[n];
+		int[] order = new int[n];
+		long packets = unmatchedPackets;
+		for (int i = 0; i < n; i++) {
+			compiled[i] = CompiledRule.compile(original.get(i), i);
+			hits[i] = stats.get(i).getMatches();
+			order[i] = i;
+			packets += hits[i];
+		}
+
+		for (int i = 1; i < n; i++) {
+			int rule = order[i];
+			if (compiled[rule] == null) {
+				continue;
+			}
+			int j = i;
+			while (j > 0) {
+				int above = order[j - 1];
+				if (hits[above] >= hits[rule] || compiled[above] == null
+						|| compiled[above].intersects(compiled[rule])) {
+					break;
+				}
+				order[j] = above;
+				j--;
+			}
+			order[j] = rule;
+		}
+
+		RuleSet.Builder builder = new RuleSet.Builder().classifierType(rules.getClassifierType());
+		int[] newPositions = new int[n];
+		double before = 0;
+		double after = 0;
+		for (int p = 0; p < n; p++) {
+			builder.addRule(original.get(order[p]));
+			newPositions[order[p]] = p;
+			before += (double)hits[p] * (p + 1);
+			after += (double)hits[order[p]] * (p + 1);
+		}
+		before += (double)unmatchedPackets * n;
+		after += (double)unmatchedPackets * n;
+		if (packets > 0) {
+			before /= packets;
+			after /= packets;
+		}
+		RuleList result = new RuleList();
+		result.setRuleSet(builder.build());
+		return new ReorderReport(result, original, newPositions, packets, before, after);
+	}
+
+	/**
+	 * Replay a pcap or pcapng file through a rules file and write the rules file
+	 * reordered by how often each rule matched.
+	 * Usage: RuleReorderer rules-file capture-file [output-file]
+	 * @param args - command line arguments
+	 */
+	public static void main(String[] args) {
+		if (args.length < 2 || args.length > 3) {
+			System.err.println("Usage: RuleReorderer rules-file capture-file [output-file]");
+			System.exit(2);
+		}
+		try {
+			Path rulesPath = Paths.get(args[0]);
+			RuleList rules = CaptureReplay.loadRules(rulesPath);
+			rules.setStatisticsEnabled(true);
+			ReplayStatistics replay;
+			try (ICaptureSource source = CaptureReplay.openCapture(Paths.get(args[1]))) {
+				replay = new CaptureReplay(rules).replay(source, null);
+			}
+			ReorderReport report = reorder(rules, replay.getUnmatched());
+			System.out.print(report);
+			if (args.length == 3) {
+				// Write each rule's original text, so comments in rule lines are dropped but nothing else changes.
+				List<String> lines = Files.readAllLines(rulesPath, StandardCharsets.UTF_8);
+				try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(args[2]), StandardCharsets.UTF_8))) {
+					for (IRule r : report.getRuleList().getRules()) {
+						String s = lines.get(RuleCounterSnapshot.lineNumber(r.getRuleMetadata()) - 1);
+						int hashIndex = s.indexOf('#');
+						out.println((hashIndex == -1 ? s : s.substring(0, hashIndex)).trim());
+					}
+				}
+			}
+		} catch (IOException | UnhandledFieldNameException | InvalidFieldValueException | IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+	}
+}
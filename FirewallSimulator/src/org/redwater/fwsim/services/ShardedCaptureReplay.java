@@ -0,0 +1,157 @@
+package org.redwater.fwsim.services;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.redwater.fwsim.cache.CacheStatistics;
+import org.redwater.fwsim.cache.VerdictCache;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.rules.RuleList;
+
+/**
+ * Replay a run of packets from an indexed pcap file on several threads.
+ * The CaptureIndex gives the record offset of any packet, so the run is
+ * cut into shards of about the same number of bytes and each thread
+ * seeks straight to its own shard; a time window of a long capture is
+ * replayed without reading the records before it. Unlike
+ * ParallelCaptureReplay, a flow may be split across shards, and the
+ * verdicts reach the VerdictListener from several threads at once, not
+ * in capture order.
+ * @author ghelmer
+ */
+public class ShardedCaptureReplay {
+	private final RuleList rules;
+	private final int shardCount;
+	private boolean caching;
+	private final CacheStatistics cacheStatistics;
+
+	/**
+	 * Construct a ShardedCaptureReplay.
+	 * @param rules - rules to evaluate every packet against
+	 * @param shardCount - number of shards, each replayed on its own thread
+	 */
+	public ShardedCaptureReplay(RuleList rules, int shardCount) {
+		if (shardCount < 1) {
+			throw new IllegalArgumentException(String.format("Invalid shard count %d", shardCount));
+		}
+		this.rules = rules;
+		this.shardCount = shardCount;
+		caching = false;
+		cacheStatistics = new CacheStatistics();
+	}
+
+	/**
+	 * Give each shard its own VerdictCache over the rules.
+	 * @param caching - true to look verdicts up in a cache before checking the rules
+	 */
+	public void setVerdictCaching(boolean caching) {
+		this.caching = caching;
+	}
+
+	/**
+	 * Get the hit and miss counts of the shards' verdict caches, summed
+	 * over every replay so far.
+	 * @return cache statistics
+	 */
+	public CacheStatistics getCacheStatistics() {
+		synchronized (cacheStatistics) {
+			CacheStatistics copy = new CacheStatistics();
+			copy.merge(cacheStatistics);
+			return copy;
+		}
+	}
+
+	/**
+	 * Find the run of packets captured in a time window.
+	 * @param index - index of the capture
+	 * @param startNanos - start of the window, in nanoseconds since the epoch
+	 * @param endNanos - end of the window, exclusive
+	 * @return first packet number and the packet number after the last
+	 * @throws IOException on index read errors
+	 */
+	public static long[] findTimeRange(CaptureIndex index, long startNanos, long endNanos) throws IOException {
+		long first = index.findTime(startNanos);
+		return new long[] { first, Math.max(first, index.findTime(endNanos)) };
+	}
+
+	/**
+	 * Classify a run of packets of a capture, one shard per thread.
+	 * @param capture - classic pcap file
+	 * @param index - index of the capture
+	 * @param first - first packet number to replay, from 0
+	 * @param end - packet number after the last to replay
+	 * @param listener - receives the verdict of each packet, numbered
+	 * from 1 at the start of the capture, or null; called from every
+	 * shard's thread, but never by two at once
+	 * @return totals of the verdicts
+	 * @throws IOException on capture or index read errors
+	 */
+	public ReplayStatistics replay(Path capture, CaptureIndex index, long first, long end, VerdictListener listener)
+			throws IOException {
+		if (first < 0 || end < first || end > index.getPacketCount()) {
+			throw new IllegalArgumentException(String.format("Invalid packet range %d to %d of %d",
+					first, end, index.getPacketCount()));
+		}
+		rules.compile();
+		long[] bounds = index.split(first, end, shardCount);
+		long[] offsets = new long[bounds.length];
+		for (int i = 0; i < bounds.length; i++) {
+			offsets[i] = index.getRecordOffset(bounds[i]);
+		}
+		ReplayStatistics[] shardStats = new ReplayStatistics[shardCount];
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread[] threads = new Thread[shardCount];
+		long start = System.nanoTime();
+		for (int s = 0; s < shardCount; s++) {
+			int shard = s;
+			VerdictListener shardListener = null;
+			if (listener != null) {
+				shardListener = (n, t, r, a) -> {
+					synchronized (listener) {
+						listener.verdict(bounds[shard] + n, t, r, a);
+					}
+				};
+			}
+			VerdictListener l = shardListener;
+			threads[s] = new Thread(() -> {
+				try (PcapFileReader reader = new PcapFileReader(capture)) {
+					reader.seek(offsets[shard]);
+					reader.setEndOffset(offsets[shard + 1]);
+					CaptureReplay replay = new CaptureReplay(rules);
+					VerdictCache cache = caching ? new VerdictCache(rules) : null;
+					replay.setVerdictCache(cache);
+					shardStats[shard] = replay.replay(reader, l);
+					if (cache != null) {
+						synchronized (cacheStatistics) {
+							cacheStatistics.merge(cache.getStatistics());
+						}
+					}
+				} catch (IOException | RuntimeException | Error e) {
+					failure.compareAndSet(null, e);
+				}
+			}, "replay-shard-" + s);
+			threads[s].start();
+		}
+		try {
+			for (Thread t : threads) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted during replay", e);
+		}
+		Throwable t = failure.get();
+		if (t instanceof IOException) {
+			throw (IOException)t;
+		} else if (t != null) {
+			throw new IllegalStateException("Replay failed", t);
+		}
+		ReplayStatistics stats = new ReplayStatistics();
+		for (ReplayStatistics s : shardStats) {
+			stats.merge(s);
+		}
+		stats.setElapsedNanos(System.nanoTime() - start);
+		return stats;
+	}
+}
@@ -0,0 +1,19 @@
+package org.redwater.fwsim.services;
+
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleActions;
+
+/**
+ * Receives the verdict for each packet of a capture replay, in capture order.
+ * @author ghelmer
+ */
+public interface VerdictListener {
+	/**
+	 * Report the verdict for one packet.
+	 * @param packetNumber - number of the packet in the capture, starting at 1
+	 * @param timestampNanos - capture time of the packet
+	 * @param rule - first rule that matched the packet, or null if none
+	 * @param action - action of the rule, or null if none
+	 */
+	public void verdict(long packetNumber, long timestampNanos, IRule rule, RuleActions action);
+}
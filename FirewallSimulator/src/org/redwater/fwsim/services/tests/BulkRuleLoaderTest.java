@@ -0,0 +1,139 @@
+package org.redwater.fwsim.services.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+
+import org.junit.Test;
+import org.redwater.fwsim.exceptions.InvalidFieldValueException;
+import org.redwater.fwsim.exceptions.UnhandledFieldNameException;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.BulkRuleLoader;
+
+public class BulkRuleLoaderTest {
+	/**
+	 * Build a large rules file exercising comments, blank lines, all
+	 * three line terminators, tabs, and field values off the fast path.
+	 */
+	private static String ruleText(int lines) {
+		Random random = new Random(14);
+		String[] terminators = { "\n", "\r\n", "\r" };
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			switch (random.nextInt(8)) {
+			case 0:
+				s.append("# comment ").append(i);
+				break;
+			case 1:
+				s.append("  \t ");
+				break;
+			case 2:
+				s.append("ip srcAddress ").append(random.nextInt(256)).append(".1.2.3/").append(random.nextInt(33))
+						.append("\tdstAddress 010.0.0.0/008 action deny # trailing");
+				break;
+			case 3:
+				s.append("udp dstPort ").append(random.nextInt(65536)).append(" srcPort 1000-2000 dstPort 53")
+						.append(" action reject");
+				break;
+			case 4:
+				s.append("tcp dstPort +80 srcPort 00022 action accept");
+				break;
+			default:
+				int low = random.nextInt(60000);
+				s.append("  tcp srcAddress 10.").append(random.nextInt(256)).append(".0.0/16 dstPort ")
+						.append(low).append('-').append(low + random.nextInt(1000)).append(" action accept#x");
+				break;
+			}
+			s.append(terminators[random.nextInt(terminators.length)]);
+		}
+		return s.toString();
+	}
+
+	private static ByteBuffer bytes(String s) {
+		return ByteBuffer.wrap(s.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testSameAsScanner() throws Exception {
+		String text = ruleText(40000);
+		RuleList expected = new RuleList();
+		expected.parse(new Scanner(text));
+		for (int threads : new int[] { 1, 4 }) {
+			List<IRule> actual = new BulkRuleLoader(threads).parse(bytes(text));
+			assertEquals(expected.getRules().size(), actual.size());
+			for (int i = 0; i < actual.size(); i++) {
+				IRule e = expected.getRules().get(i);
+				IRule a = actual.get(i);
+				assertEquals(e.getClass(), a.getClass());
+				assertEquals(e.getRuleMetadata(), a.getRuleMetadata());
+				assertEquals(e.toString(), a.toString());
+			}
+		}
+
+		Path file = Files.createTempFile("rules", ".txt");
+		try {
+			Files.write(file, text.getBytes(StandardCharsets.UTF_8));
+			List<IRule> loaded = new BulkRuleLoader().load(file);
+			assertEquals(expected.getRules().size(), loaded.size());
+			assertEquals(expected.getRules().get(loaded.size() - 1).toString(), loaded.get(loaded.size() - 1).toString());
+		} finally {
+			Files.delete(file);
+		}
+		assertTrue(new BulkRuleLoader().parse(bytes("")).isEmpty());
+	}
+
+	@Test
+	public void testErrorLine() throws Exception {
+		String text = ruleText(40000);
+		String[] lines = text.split("\r\n|\r|\n", -1);
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < lines.length - 1; i++) {
+			if (i == 31000) {
+				s.append("tcp dstPort http action accept");
+			} else if (i == 35000) {
+				s.append("tcp color blue");
+			} else {
+				s.append(lines[i]);
+			}
+			s.append('\n');
+		}
+		BulkRuleLoader loader = new BulkRuleLoader(4);
+		try {
+			loader.parse(bytes(s.toString()));
+			fail("Loaded an invalid port");
+		} catch (InvalidFieldValueException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Line 31001: "));
+		}
+		try {
+			loader.parse(bytes("tcp action accept\n\nip srcAddress 1.2.3.4 action deny\n"));
+			fail("Loaded an address without a prefix length");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Line 3: "));
+		}
+		try {
+			loader.parse(bytes("ip srcPort 80 action deny\n"));
+			fail("Loaded a port in an ip rule");
+		} catch (UnhandledFieldNameException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Line 1: "));
+		}
+		try {
+			loader.parse(bytes("\r\nudp dstPort 53 action\n"));
+			fail("Loaded a field without a value");
+		} catch (InvalidFieldValueException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2: "));
+		}
+		try {
+			loader.parse(bytes("icmp action deny"));
+			fail("Loaded an unknown rule type");
+		} catch (IllegalArgumentException e) {
+			assertEquals("Line 1: Invalid rule type icmp", e.getMessage());
+		}
+	}
+}
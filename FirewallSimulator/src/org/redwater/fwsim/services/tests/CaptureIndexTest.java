@@ -0,0 +1,140 @@
+package org.redwater.fwsim.services.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.capture.tests.PcapFileReaderTest;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.CaptureIndex;
+import org.redwater.fwsim.services.CaptureReplay;
+import org.redwater.fwsim.services.ParallelCaptureReplay;
+import org.redwater.fwsim.services.ReplayStatistics;
+import org.redwater.fwsim.services.ShardedCaptureReplay;
+
+public class CaptureIndexTest {
+	private List<Packet> packets;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		packets = new ArrayList<>();
+		file = PcapFileReaderTest.writeMixedPcap(packets, 41, 3000, 7);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		PcapFileReaderTest.deletePcap(file, CaptureIndex.indexPath(file.toPath()));
+	}
+
+	/** Timestamp PcapFileReaderTest.writePcap gives packet n. */
+	private static long timestamp(long n) {
+		return (1500000000L + n) * 1000000000L + n * 1000L;
+	}
+
+	@Test
+	public void testIndex() throws Exception {
+		try (CaptureIndex index = CaptureIndex.build(file.toPath(), 100);
+				PcapFileReader reader = new PcapFileReader(file.toPath())) {
+			assertEquals(packets.size(), index.getPacketCount());
+			IP view = new IP();
+			for (int n = 0; reader.next(); n++) {
+				view.wrapFrame(reader.getLinkType(), reader.getBuffer(), reader.getFrameOffset(), reader.getCapturedLength());
+				assertEquals(reader.getRecordOffset(), index.getRecordOffset(n));
+				assertEquals(reader.getTimestampNanos(), index.getTimestampNanos(n));
+				assertEquals(ParallelCaptureReplay.flowHash(view), index.getFlowHash(n));
+			}
+			assertEquals(file.length(), index.getRecordOffset(packets.size()));
+
+			for (long n : new long[] { 0, 1, 99, 100, 101, 1234, 2999 }) {
+				assertEquals(n, index.findTime(timestamp(n)));
+				assertEquals(n + 1, index.findTime(timestamp(n) + 1));
+				assertEquals(n, index.findOffset(index.getRecordOffset(n)));
+				assertEquals(n + 1, index.findOffset(index.getRecordOffset(n) + 1));
+			}
+			assertEquals(0, index.findTime(0));
+			assertEquals(packets.size(), index.findTime(Long.MAX_VALUE));
+
+			long[] bounds = index.split(250, 2750, 4);
+			assertEquals(250, bounds[0]);
+			assertEquals(2750, bounds[4]);
+			long bytes = index.getRecordOffset(2750) - index.getRecordOffset(250);
+			for (int i = 0; i < 4; i++) {
+				assertTrue(bounds[i] < bounds[i + 1]);
+				long shard = index.getRecordOffset(bounds[i + 1]) - index.getRecordOffset(bounds[i]);
+				assertEquals(bytes / 4.0, shard, 200.0);
+			}
+		}
+
+		// The index is kept until the capture changes.
+		try (CaptureIndex index = CaptureIndex.load(file.toPath())) {
+			assertEquals(packets.size(), index.getPacketCount());
+		}
+		packets.add(packets.get(0));
+		PcapFileReaderTest.writePcap(file, packets);
+		try {
+			CaptureIndex.load(file.toPath()).close();
+			fail("Loaded a stale index");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Stale capture index"));
+		}
+		try (CaptureIndex index = CaptureIndex.open(file.toPath())) {
+			assertEquals(packets.size(), index.getPacketCount());
+		}
+	}
+
+	@Test
+	public void testShardedReplay() throws Exception {
+		RuleList rules = new RuleList();
+		rules.addRule("tcp dstPort 0-1023 action accept");
+		rules.addRule("udp action deny");
+		rules.addRule("ip srcAddress 2001:db8::/32 action reject");
+		Map<Long, RuleActions> expected = new HashMap<>();
+		try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+			new CaptureReplay(rules).replay(reader, (n, t, r, a) -> expected.put(n, a));
+		}
+		try (CaptureIndex index = CaptureIndex.build(file.toPath(), 64)) {
+			long[] range = ShardedCaptureReplay.findTimeRange(index, timestamp(500), timestamp(2100));
+			assertArrayEquals(new long[] { 500, 2100 }, range);
+			for (int shards : new int[] { 1, 3, 8 }) {
+				Map<Long, RuleActions> actual = new HashMap<>();
+				ShardedCaptureReplay replay = new ShardedCaptureReplay(rules, shards);
+				ReplayStatistics stats = replay.replay(file.toPath(), index, range[0], range[1],
+						(n, t, r, a) -> {
+							assertEquals(timestamp(n - 1), t);
+							assertNull(actual.put(n, a));
+						});
+				assertEquals(1600, stats.getPackets());
+				assertEquals(1600, actual.size());
+				long unmatched = 0;
+				for (long n = 501; n <= 2100; n++) {
+					assertTrue(actual.containsKey(n));
+					assertEquals(expected.get(n), actual.get(n));
+					if (actual.get(n) == null) {
+						unmatched++;
+					}
+				}
+				assertEquals(unmatched, stats.getUnmatched());
+			}
+			// An empty window reads nothing.
+			long[] empty = ShardedCaptureReplay.findTimeRange(index, timestamp(4000), timestamp(5000));
+			assertEquals(0, new ShardedCaptureReplay(rules, 2).replay(file.toPath(), index, empty[0], empty[1], null)
+					.getPackets());
+		}
+
+		long[] range = CaptureReplay.parseTimeRange("1500000000-1500000600.5");
+		assertArrayEquals(new long[] { 1500000000000000000L, 1500000600500000000L }, range);
+	}
+}
@@ -0,0 +1,161 @@
+package org.redwater.fwsim.services.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Scanner;
+
+import org.junit.Test;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.Rule;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.rules.RuleSet;
+import org.redwater.fwsim.services.CaptureReplay;
+import org.redwater.fwsim.services.CompiledRuleFile;
+
+public class CompiledRuleFileTest {
+	private static final String RULES = "# test policy\n"
+			+ "tcp srcAddress 10.1.2.3/8 dstPort 80 dstPort 443 action accept\n"
+			+ "udp srcPort 1000-2000 dstAddress 192.168.1.0/24 dstPort 53 action reject\n"
+			+ "\n"
+			+ "ip dstAddress 0.0.0.0/0 action deny\n"
+			+ "tcp srcAddress 172.16.0.1/32\n"
+			+ "udp action accept\n"
+			+ "tcp srcAddress 2001:db8::1/64 dstPort 22 action deny\n"
+			+ "ip dstAddress ::ffff:0:0/96 action accept\n";
+
+	private static RuleSet roundTrip(RuleSet rules) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompiledRuleFile.write(rules, out);
+		return CompiledRuleFile.read(ByteBuffer.wrap(out.toByteArray()));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		RuleSet rules = new RuleSet.Builder().classifierType(ClassifierType.DECISION_TREE)
+				.parse(new Scanner(RULES)).build();
+		RuleSet copy = roundTrip(rules);
+		assertEquals(ClassifierType.DECISION_TREE, copy.getClassifierType());
+		assertEquals(rules.size(), copy.size());
+		for (int i = 0; i < rules.size(); i++) {
+			IRule r = rules.getRules().get(i);
+			IRule c = copy.getRules().get(i);
+			assertEquals(r.getClass(), c.getClass());
+			assertEquals(((Rule)r).getRuleAction(), ((Rule)c).getRuleAction());
+			if (((Rule)r).getRuleAction() != null) {
+				assertEquals(r.toString(), c.toString());
+			}
+			assertEquals(r.getRuleMetadata(), c.getRuleMetadata());
+		}
+		assertEquals("Line 7", copy.getRules().get(4).getRuleMetadata());
+
+		int client = TestTraffic.ipV4("10.9.9.9");
+		int server = TestTraffic.ipV4("192.168.1.1");
+		int[][] flows = { { 80, 6 }, { 443, 6 }, { 53, 17 }, { 22, 6 } };
+		for (int[] f : flows) {
+			for (int srcPort : new int[] { 1500, 40000 }) {
+				IpNumber protocol = f[1] == 6 ? IpNumber.TCP : IpNumber.UDP;
+				int i = rules.getRules().indexOf(rules.checkRules(
+						TestTraffic.buildIpV4Packet(protocol, client, server, srcPort, f[0])));
+				int j = copy.getRules().indexOf(copy.checkRules(
+						TestTraffic.buildIpV4Packet(protocol, client, server, srcPort, f[0])));
+				assertEquals(i, j);
+			}
+		}
+		long[] client6 = TestTraffic.ipV6("2001:db8::99");
+		long[] server6 = TestTraffic.ipV6("::ffff:c0a8:101");
+		for (int dstPort : new int[] { 22, 80 }) {
+			int i = rules.getRules().indexOf(rules.checkRules(
+					TestTraffic.buildIpV6Packet(IpNumber.TCP, client6, server6, 40000, dstPort)));
+			int j = copy.getRules().indexOf(copy.checkRules(
+					TestTraffic.buildIpV6Packet(IpNumber.TCP, client6, server6, 40000, dstPort)));
+			assertEquals(dstPort == 22 ? 5 : 6, i);
+			assertEquals(i, j);
+		}
+
+		assertEquals(0, roundTrip(new RuleSet.Builder().build()).size());
+	}
+
+	@Test
+	public void testVersion1() throws Exception {
+		RuleSet rules = new RuleSet.Builder().parse(new Scanner(RULES.substring(0, RULES.indexOf("tcp srcAddress 2001"))))
+				.build();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CompiledRuleFile.write(rules, out);
+		byte[] b = out.toByteArray();
+		// A version 1 file is the same without the IPv6 rule count.
+		byte[] v1 = new byte[b.length - 4];
+		System.arraycopy(b, 0, v1, 0, 28);
+		System.arraycopy(b, 32, v1, 28, b.length - 32);
+		v1[7] = 1;
+		RuleSet copy = CompiledRuleFile.read(ByteBuffer.wrap(v1));
+		assertEquals(rules.size(), copy.size());
+		for (int i = 0; i < rules.size(); i++) {
+			assertEquals(rules.getRules().get(i).getRuleMetadata(), copy.getRules().get(i).getRuleMetadata());
+		}
+		assertEquals(rules.getRules().get(0).toString(), copy.getRules().get(0).toString());
+	}
+
+	@Test
+	public void testFile() throws Exception {
+		Path text = Files.createTempFile("rules", ".txt");
+		Path compiled = Files.createTempFile("rules", ".bin");
+		try {
+			Files.write(text, RULES.getBytes("US-ASCII"));
+			CompiledRuleFile.write(new RuleSet.Builder().classifierType(ClassifierType.PREFIX_TRIE)
+					.load(text).build(), compiled);
+			assertTrue(CompiledRuleFile.isCompiled(compiled));
+			assertFalse(CompiledRuleFile.isCompiled(text));
+			RuleList rules = CaptureReplay.loadRules(compiled);
+			assertEquals(ClassifierType.PREFIX_TRIE, rules.getClassifierType());
+			List<IRule> expected = CaptureReplay.loadRules(text).getRules();
+			assertEquals(expected.size(), rules.getRules().size());
+			assertEquals(expected.get(1).toString(), rules.getRules().get(1).toString());
+
+			// Another version of the format is refused, not misread.
+			byte[] b = Files.readAllBytes(compiled);
+			b[7] = 99;
+			try {
+				CompiledRuleFile.read(ByteBuffer.wrap(b));
+				fail("Read an unknown version");
+			} catch (IOException e) {
+				assertEquals("Unsupported compiled ruleset version 99", e.getMessage());
+			}
+			b[7] = (byte)CompiledRuleFile.VERSION;
+			try {
+				CompiledRuleFile.read(ByteBuffer.wrap(b, 0, b.length - 1).slice());
+				fail("Read a truncated file");
+			} catch (IOException e) {
+				// Expected.
+			}
+
+			// A port range index past the ranges is refused, not followed.
+			RuleSet.Builder builder = new RuleSet.Builder();
+			builder.addRule("tcp srcPort 1-2 srcPort 5-6 action accept");
+			RuleSet tcp = builder.build();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			CompiledRuleFile.write(tcp, out);
+			byte[] one = out.toByteArray();
+			// Header, type, action and prefix columns, then the two addresses.
+			int portIndexes = 8 * 4 + 4 * 4 + 2 * 4;
+			ByteBuffer.wrap(one).putInt(portIndexes + 4, 3);
+			try {
+				CompiledRuleFile.read(ByteBuffer.wrap(one));
+				fail("Read a port range index past the ranges");
+			} catch (IOException e) {
+				assertEquals("Corrupt compiled ruleset: invalid source port range index 1", e.getMessage());
+			}
+		} finally {
+			Files.delete(text);
+			Files.delete(compiled);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package org.redwater.fwsim.services.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.cache.VerdictCache;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.capture.tests.PcapFileReaderTest;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.layers.TCP;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.CaptureReplay;
+import org.redwater.fwsim.services.ColumnarReplay;
+import org.redwater.fwsim.services.HeaderColumnFile;
+import org.redwater.fwsim.services.ReplayStatistics;
+
+public class HeaderColumnFileTest {
+	private List<Packet> packets;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		packets = new ArrayList<>();
+		file = PcapFileReaderTest.writeMixedPcap(packets, 43, 1000, 5);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		PcapFileReaderTest.deletePcap(file, HeaderColumnFile.columnPath(file.toPath()));
+	}
+
+	@Test
+	public void testColumns() throws Exception {
+		try (HeaderColumnFile columns = HeaderColumnFile.build(file.toPath(), 300);
+				PcapFileReader reader = new PcapFileReader(file.toPath())) {
+			assertEquals(packets.size(), columns.getPacketCount());
+			TCP view = new TCP();
+			int stripes = 0;
+			HeaderColumnFile.Stripe stripe;
+			while ((stripe = columns.nextStripe()) != null) {
+				stripes++;
+				for (int i = 0; i < stripe.size(); i++) {
+					assertTrue(reader.next());
+					view.wrapFrame(reader.getLinkType(), reader.getBuffer(), reader.getFrameOffset(), reader.getCapturedLength());
+					stripe.select(i);
+					assertEquals(reader.getTimestampNanos(), stripe.getTimestampNanos());
+					assertEquals(reader.getOriginalLength(), stripe.getLength());
+					assertEquals(view.isIpV4(), stripe.isIpV4());
+					assertEquals(view.isIpV6(), stripe.isIpV6());
+					assertEquals(view.getProtocol(), stripe.getProtocol());
+					assertEquals(view.getSrcPort(), stripe.getSrcPort());
+					assertEquals(view.getDstPort(), stripe.getDstPort());
+					assertEquals(view.isTcp() ? view.getFlags() : 0, stripe.getTcpFlags());
+					if (view.isIpV4()) {
+						assertEquals(view.getSrcAddr(), stripe.getSrcAddr());
+						assertEquals(view.getDstAddr(), stripe.getDstAddr());
+					} else {
+						assertEquals(view.getSrcAddrHigh(), stripe.getSrcAddrHigh());
+						assertEquals(view.getSrcAddrLow(), stripe.getSrcAddrLow());
+						assertEquals(view.getDstAddrHigh(), stripe.getDstAddrHigh());
+						assertEquals(view.getDstAddrLow(), stripe.getDstAddrLow());
+					}
+				}
+			}
+			assertFalse(reader.next());
+			assertEquals(4, stripes);
+		}
+
+		// The columns are kept until the capture changes.
+		try (HeaderColumnFile columns = HeaderColumnFile.load(file.toPath())) {
+			assertEquals(packets.size(), columns.getPacketCount());
+		}
+		packets.add(packets.get(0));
+		PcapFileReaderTest.writePcap(file, packets);
+		try {
+			HeaderColumnFile.load(file.toPath()).close();
+			fail("Loaded stale columns");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Stale header column file"));
+		}
+		try (HeaderColumnFile columns = HeaderColumnFile.open(file.toPath())) {
+			assertEquals(packets.size(), columns.getPacketCount());
+		}
+
+		PcapFileReaderTest.writePcap(file, Collections.emptyList());
+		try (HeaderColumnFile columns = HeaderColumnFile.open(file.toPath())) {
+			assertEquals(0, columns.getPacketCount());
+			assertNull(columns.nextStripe());
+		}
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		RuleList rules = new RuleList();
+		rules.addRule("tcp dstPort 0-1023 action accept");
+		rules.addRule("udp srcPort 1024-65535 action deny");
+		rules.addRule("ip srcAddress 2001:db8::/32 action reject");
+		rules.addRule("ip dstAddress 10.0.0.0/8 action deny");
+		Map<Long, RuleActions> expected = new HashMap<>();
+		ReplayStatistics expectedStats;
+		try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+			expectedStats = new CaptureReplay(rules).replay(reader, (n, t, r, a) -> expected.put(n, a));
+		}
+		try (HeaderColumnFile columns = HeaderColumnFile.build(file.toPath(), 100)) {
+			for (ClassifierType type : ClassifierType.values()) {
+				rules.setClassifierType(type);
+				for (int mode = 0; mode < 3; mode++) {
+					ColumnarReplay replay = new ColumnarReplay(rules);
+					rules.setStatisticsEnabled(mode == 1);
+					replay.setVerdictCache(mode == 2 ? new VerdictCache(rules) : null);
+					Map<Long, RuleActions> actual = new HashMap<>();
+					ReplayStatistics stats = replay.replay(columns, (n, t, r, a) -> {
+						assertEquals(1500000000000000000L + (n - 1) * 1000001000L, t);
+						actual.put(n, a);
+					});
+					assertEquals(type + " mode " + mode, expected, actual);
+					assertEquals(expectedStats.getPackets(), stats.getPackets());
+					assertEquals(expectedStats.getBytes(), stats.getBytes());
+					assertEquals(expectedStats.getUnmatched(), stats.getUnmatched());
+					for (RuleActions a : RuleActions.values()) {
+						assertEquals(expectedStats.getActionCount(a), stats.getActionCount(a));
+					}
+				}
+				rules.setStatisticsEnabled(false);
+			}
+		}
+	}
+}
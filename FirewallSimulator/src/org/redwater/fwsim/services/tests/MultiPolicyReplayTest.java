@@ -0,0 +1,132 @@
+package org.redwater.fwsim.services.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.capture.tests.PcapFileReaderTest;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.rules.RuleActions;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.CaptureReplay;
+import org.redwater.fwsim.services.HeaderColumnFile;
+import org.redwater.fwsim.services.MultiPolicyReplay;
+import org.redwater.fwsim.services.PolicyComparison;
+import org.redwater.fwsim.services.ReplayStatistics;
+
+public class MultiPolicyReplayTest {
+	private List<Packet> packets;
+	private File file;
+	private List<RuleList> policies;
+
+	@Before
+	public void setUp() throws Exception {
+		packets = new ArrayList<>();
+		file = PcapFileReaderTest.writeMixedPcap(packets, 47, 2500, 6);
+
+		policies = new ArrayList<>();
+		RuleList baseline = new RuleList();
+		baseline.addRule("tcp dstPort 0-1023 action accept");
+		baseline.addRule("udp action deny");
+		policies.add(baseline);
+		RuleList tighter = new RuleList();
+		tighter.addRule("tcp dstPort 0-511 action accept");
+		tighter.addRule("udp srcPort 1024-65535 action deny");
+		tighter.addRule("ip action reject");
+		tighter.setClassifierType(ClassifierType.TUPLE_SPACE);
+		policies.add(tighter);
+		RuleList same = new RuleList();
+		same.addRule("tcp dstPort 0-1023 action accept");
+		same.addRule("udp action deny");
+		same.setClassifierType(ClassifierType.DECISION_TREE);
+		policies.add(same);
+		RuleList counted = new RuleList();
+		counted.addRule("ip dstAddress 10.0.0.0/8 action deny");
+		counted.addRule("tcp action accept");
+		counted.setStatisticsEnabled(true);
+		policies.add(counted);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		PcapFileReaderTest.deletePcap(file, HeaderColumnFile.columnPath(file.toPath()));
+	}
+
+	@Test
+	public void test() throws Exception {
+		RuleActions[][] expected = new RuleActions[policies.size()][packets.size()];
+		ReplayStatistics[] expectedStats = new ReplayStatistics[policies.size()];
+		for (int p = 0; p < policies.size(); p++) {
+			RuleActions[] actions = expected[p];
+			try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+				expectedStats[p] = new CaptureReplay(policies.get(p)).replay(reader,
+						(n, t, r, a) -> actions[(int)n - 1] = a);
+			}
+		}
+		long[][] expectedDisagreements = new long[policies.size()][policies.size()];
+		for (int a = 0; a < policies.size(); a++) {
+			for (int b = 0; b < policies.size(); b++) {
+				for (int i = 0; i < packets.size(); i++) {
+					if (expected[a][i] != expected[b][i]) {
+						expectedDisagreements[a][b]++;
+					}
+				}
+			}
+		}
+		assertEquals(0, expectedDisagreements[0][2]);
+		assertTrue(expectedDisagreements[0][1] > 0);
+
+		for (boolean decoded : new boolean[] { false, true }) {
+			for (int threads : new int[] { 1, 2, 8 }) {
+				MultiPolicyReplay replay = new MultiPolicyReplay(policies, threads);
+				long[] next = { 1 };
+				PolicyComparison c;
+				if (decoded) {
+					try (HeaderColumnFile columns = HeaderColumnFile.open(file.toPath())) {
+						c = replay.replay(columns, (n, t, r, a) -> check(expected, next, n, a));
+					}
+				} else {
+					try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+						c = replay.replay(reader, (n, t, r, a) -> check(expected, next, n, a));
+					}
+				}
+				assertEquals(packets.size() + 1, next[0]);
+				assertEquals(packets.size(), c.getPackets());
+				assertEquals(policies.size(), c.getPolicyCount());
+				for (int p = 0; p < policies.size(); p++) {
+					ReplayStatistics s = c.getStatistics(p);
+					assertEquals(expectedStats[p].getBytes(), s.getBytes());
+					assertEquals(expectedStats[p].getUnmatched(), s.getUnmatched());
+					for (RuleActions a : RuleActions.values()) {
+						assertEquals(expectedStats[p].getActionCount(a), s.getActionCount(a));
+					}
+					assertEquals(expectedDisagreements[0][p], c.getDisagreements(p));
+					for (int q = 0; q < policies.size(); q++) {
+						assertEquals(expectedDisagreements[p][q], c.getDisagreements(p, q));
+					}
+				}
+				assertTrue(c.toString().startsWith(String.format("Packets: %d%n", packets.size())));
+			}
+		}
+		// Every replay of the counted policy reached its rule counters.
+		assertEquals(7 * expectedStats[3].getActionCount(RuleActions.DENY),
+				policies.get(3).getStatistics().get(0).getMatches());
+	}
+
+	private static void check(RuleActions[][] expected, long[] next, long packetNumber, RuleActions[] actions) {
+		assertEquals(next[0]++, packetNumber);
+		RuleActions[] row = new RuleActions[expected.length];
+		for (int p = 0; p < expected.length; p++) {
+			row[p] = expected[p][(int)packetNumber - 1];
+		}
+		assertArrayEquals(Arrays.toString(row), row, actions);
+	}
+}
@@ -0,0 +1,190 @@
+package org.redwater.fwsim.services.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.UnknownPacket;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.capture.PcapFileReader;
+import org.redwater.fwsim.capture.tests.PcapFileReaderTest;
+import org.redwater.fwsim.classifiers.ClassifierType;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.conntrack.ConnectionTracker;
+import org.redwater.fwsim.layers.IP;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.CaptureReplay;
+import org.redwater.fwsim.services.ParallelCaptureReplay;
+import org.redwater.fwsim.services.ReplayStatistics;
+
+public class ParallelCaptureReplayTest {
+	private File file;
+	private RuleList rules;
+	private int packetCount;
+
+	@Before
+	public void setUp() throws Exception {
+		TestTraffic traffic = new TestTraffic(7);
+		rules = new RuleList();
+		rules.setClassifierType(ClassifierType.DECISION_TREE);
+		for (int i = 0; i < 200; i++) {
+			rules.addRule(traffic.randomRule());
+		}
+		List<Packet> packets = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			packets.add(traffic.randomPacket());
+		}
+		packetCount = packets.size();
+		file = File.createTempFile("fwsim", ".pcap");
+		PcapFileReaderTest.writePcap(file, packets);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		file.delete();
+	}
+
+	@Test
+	public void test() throws Exception {
+		List<String> expected = new ArrayList<>();
+		try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+			new CaptureReplay(rules).replay(reader,
+					(n, t, r, a) -> expected.add(CaptureReplay.formatVerdict(n, r, a)));
+		}
+		for (int workers = 1; workers <= 4; workers++) {
+			List<String> actual = new ArrayList<>();
+			ReplayStatistics stats;
+			try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+				stats = new ParallelCaptureReplay(rules, workers).replay(reader,
+						(n, t, r, a) -> actual.add(CaptureReplay.formatVerdict(n, r, a)));
+			}
+			assertEquals(packetCount, stats.getPackets());
+			assertEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testStateful() throws Exception {
+		List<String> expected = new ArrayList<>();
+		try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+			CaptureReplay replay = new CaptureReplay(rules);
+			replay.setConnectionTracker(new ConnectionTracker(rules));
+			replay.replay(reader, (n, t, r, a) -> expected.add(CaptureReplay.formatVerdict(n, r, a)));
+		}
+		List<String> actual = new ArrayList<>();
+		try (PcapFileReader reader = new PcapFileReader(file.toPath())) {
+			ParallelCaptureReplay replay = new ParallelCaptureReplay(rules, 3);
+			replay.setConnectionTracker(new ConnectionTracker(rules));
+			replay.replay(reader, (n, t, r, a) -> actual.add(CaptureReplay.formatVerdict(n, r, a)));
+		}
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * Build a TCP packet of a flow that ParallelCaptureReplay routes to a
+	 * given one of four workers.
+	 */
+	private static Packet packetForWorker(int worker) {
+		for (int port = 1024;; port++) {
+			Packet p = TestTraffic.buildIpV4Packet(IpNumber.TCP, TestTraffic.ipV4("10.0.0.1"),
+					TestTraffic.ipV4("10.0.0.2"), port, 80);
+			byte[] raw = p.getRawData();
+			IP view = new IP();
+			view.wrap(ByteBuffer.wrap(raw), 0, raw.length);
+			if ((ParallelCaptureReplay.flowHash(view) & Integer.MAX_VALUE) % 4 == worker) {
+				return p;
+			}
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void testSkewedFlow() throws Exception {
+		// One packet for worker 1, then a single flow for worker 0 long
+		// enough to leave worker 0 filling a batch when the capture ends.
+		Packet other = packetForWorker(1);
+		Packet flow = packetForWorker(0);
+		for (int count : new int[] { 4800, 4864, 5120, 6000 }) {
+			List<Packet> packets = new ArrayList<>();
+			packets.add(other);
+			for (int i = 0; i < count; i++) {
+				packets.add(flow);
+			}
+			File skewed = File.createTempFile("fwsim", ".pcap");
+			try {
+				PcapFileReaderTest.writePcap(skewed, packets);
+				List<String> expected = new ArrayList<>();
+				try (PcapFileReader reader = new PcapFileReader(skewed.toPath())) {
+					new CaptureReplay(rules).replay(reader,
+							(n, t, r, a) -> expected.add(CaptureReplay.formatVerdict(n, r, a)));
+				}
+				List<String> actual = new ArrayList<>();
+				try (PcapFileReader reader = new PcapFileReader(skewed.toPath())) {
+					new ParallelCaptureReplay(rules, 4).replay(reader,
+							(n, t, r, a) -> actual.add(CaptureReplay.formatVerdict(n, r, a)));
+				}
+				assertEquals(expected, actual);
+			} finally {
+				skewed.delete();
+			}
+		}
+	}
+
+	@Test
+	public void testLongHeaders() throws Exception {
+		// Destination options of 120 bytes push the TCP header past the
+		// bytes normally copied for the workers.
+		Packet p = TestTraffic.buildIpV6Packet(IpNumber.TCP,
+				TestTraffic.ipV6("2001:db8::1"), TestTraffic.ipV6("2001:db8::2"), 1234, 443);
+		byte[] raw = p.getRawData();
+		byte[] options = new byte[120];
+		options[1] = 14;
+		options[2] = 1;
+		options[3] = 116;
+		byte[] chained = new byte[raw.length + options.length];
+		System.arraycopy(raw, 0, chained, 0, 40);
+		System.arraycopy(options, 0, chained, 40, options.length);
+		System.arraycopy(raw, 40, chained, 40 + options.length, raw.length - 40);
+		chained[40] = raw[6];
+		chained[6] = 60;
+		int payloadLength = ((raw[4] & 0xFF) << 8 | (raw[5] & 0xFF)) + options.length;
+		chained[4] = (byte)(payloadLength >>> 8);
+		chained[5] = (byte)payloadLength;
+		IP view = new IP();
+		assertEquals(IP.PROTOCOL_TCP, view.wrap(ByteBuffer.wrap(chained), 0, chained.length).getProtocol());
+		assertTrue(view.getHeadersEnd() > ParallelCaptureReplay.HEADER_SNAP_LENGTH);
+
+		RuleList v6Rules = new RuleList();
+		v6Rules.addRule("tcp dstPort 443 action deny");
+		v6Rules.addRule("ip action accept");
+		TestTraffic traffic = new TestTraffic(17);
+		List<Packet> packets = new ArrayList<>();
+		for (int i = 0; i < 1000; i++) {
+			packets.add(i % 3 == 0 ? UnknownPacket.newPacket(chained, 0, chained.length) : traffic.randomIpV6Packet());
+		}
+		File longHeaders = File.createTempFile("fwsim", ".pcap");
+		try {
+			PcapFileReaderTest.writePcap(longHeaders, packets);
+			List<String> expected = new ArrayList<>();
+			try (PcapFileReader reader = new PcapFileReader(longHeaders.toPath())) {
+				new CaptureReplay(v6Rules).replay(reader,
+						(n, t, r, a) -> expected.add(CaptureReplay.formatVerdict(n, r, a)));
+			}
+			assertTrue(expected.get(0), expected.get(0).contains("deny"));
+			List<String> actual = new ArrayList<>();
+			try (PcapFileReader reader = new PcapFileReader(longHeaders.toPath())) {
+				new ParallelCaptureReplay(v6Rules, 3).replay(reader,
+						(n, t, r, a) -> actual.add(CaptureReplay.formatVerdict(n, r, a)));
+			}
+			assertEquals(expected, actual);
+		} finally {
+			longHeaders.delete();
+		}
+	}
+}
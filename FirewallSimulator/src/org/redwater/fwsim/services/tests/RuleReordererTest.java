@@ -0,0 +1,79 @@
+package org.redwater.fwsim.services.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pcap4j.packet.Packet;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.redwater.fwsim.classifiers.tests.TestTraffic;
+import org.redwater.fwsim.rules.IRule;
+import org.redwater.fwsim.rules.RuleList;
+import org.redwater.fwsim.services.ReorderReport;
+import org.redwater.fwsim.services.RuleReorderer;
+
+public class RuleReordererTest {
+	private TestTraffic traffic;
+	private RuleList rules;
+
+	@Before
+	public void setUp() throws Exception {
+		traffic = new TestTraffic(12);
+		rules = new RuleList();
+		for (int i = 0; i < 200; i++) {
+			rules.addRule(traffic.randomRule());
+		}
+	}
+
+	@Test
+	public void test() {
+		rules.setStatisticsEnabled(true);
+		long unmatched = 0;
+		for (int i = 0; i < 5000; i++) {
+			if (rules.checkRules(traffic.randomPacket()) == null) {
+				unmatched++;
+			}
+		}
+		ReorderReport report = RuleReorderer.reorder(rules, unmatched);
+		assertEquals(5000, report.getPackets());
+		assertTrue(report.getAverageAfter() <= report.getAverageBefore());
+		assertFalse(report.getMovedRules().isEmpty());
+		// Every packet must still match the same rule.
+		RuleList reordered = report.getRuleList();
+		reordered.setStatisticsEnabled(false);
+		rules.setStatisticsEnabled(false);
+		for (int i = 0; i < 20000; i++) {
+			Packet p = traffic.randomPacket();
+			assertSame(rules.checkRules(p), reordered.checkRules(p));
+		}
+	}
+
+	@Test
+	public void testHotRuleMoves() throws Exception {
+		RuleList rules = new RuleList();
+		rules.addRule("tcp srcAddress 10.0.0.0/8 action deny");
+		rules.addRule("tcp dstPort 22 action accept");
+		rules.addRule("udp dstPort 53 action accept");
+		IRule web = rules.addRule("tcp dstPort 80 action accept");
+		rules.setStatisticsEnabled(true);
+		List<Packet> packets = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			packets.add(TestTraffic.buildIpV4Packet(IpNumber.TCP, TestTraffic.ipV4("192.168.1.1"),
+					TestTraffic.ipV4("192.168.1.2"), 40000 + i, 80));
+		}
+		for (Packet p : packets) {
+			assertSame(web, rules.checkRules(p));
+		}
+		ReorderReport report = RuleReorderer.reorder(rules, 0);
+		// The web rule passes the disjoint SSH and DNS rules but not the overlapping deny rule.
+		assertEquals(0, report.getNewPosition(0));
+		assertEquals(1, report.getNewPosition(3));
+		assertEquals(2, report.getNewPosition(1));
+		assertEquals(3, report.getNewPosition(2));
+		assertEquals(4.0, report.getAverageBefore(), 1e-9);
+		assertEquals(2.0, report.getAverageAfter(), 1e-9);
+	}
+}
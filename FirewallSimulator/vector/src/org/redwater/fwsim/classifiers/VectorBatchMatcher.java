@@ -0,0 +1,113 @@
+package org.redwater.fwsim.classifiers;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Match a batch of packets against a CompactTableClassifier's table
+ * with the Vector API: each table row is compared against as many
+ * packets as fit in a vector register at once, and each packet drops
+ * out of the comparisons as soon as it matches. The last few packets
+ * left finish the scan alone.
+ * Needs JDK 17 or later run with --add-modules jdk.incubator.vector.
+ * @author ghelmer
+ */
+public final class VectorBatchMatcher implements BatchMatcher {
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	/**
+	 * Finish the scan one packet at a time once this few lanes are still
+	 * looking, rather than keep comparing a mostly idle vector.
+	 */
+	private static final int SCALAR_LANES = 2;
+
+	/**
+	 * Construct a VectorBatchMatcher. Loading the class fails with a
+	 * LinkageError when the Vector API is not available.
+	 * @throws UnsupportedOperationException if the preferred vector has
+	 * more lanes than PacketBatch.MAX_LANES
+	 */
+	public VectorBatchMatcher() {
+		if (SPECIES.length() > PacketBatch.MAX_LANES) {
+			throw new UnsupportedOperationException("Vector wider than a batch is padded for");
+		}
+	}
+
+	@Override
+	public void match(CompactTableClassifier t, PacketBatch batch, int[] out) {
+		int n = batch.size();
+		int lanes = SPECIES.length();
+		IntVector noMatch = IntVector.broadcast(SPECIES, CompiledClassifier.NO_MATCH);
+		for (int base = 0; base < n; base += lanes) {
+			// The batch arrays are padded, so a whole vector can always be loaded.
+			IntVector src = IntVector.fromArray(SPECIES, batch.srcAddr, base);
+			IntVector dst = IntVector.fromArray(SPECIES, batch.dstAddr, base);
+			IntVector srcPort = IntVector.fromArray(SPECIES, batch.srcPort, base);
+			IntVector dstPort = IntVector.fromArray(SPECIES, batch.dstPort, base);
+			IntVector protocol = IntVector.fromArray(SPECIES, batch.protocol, base);
+			VectorMask<Integer> active = protocol.compare(VectorOperators.GE, 0)
+					.and(SPECIES.indexInRange(base, n));
+			IntVector result = noMatch;
+			int i = 0;
+			for (; i < t.size && active.anyTrue(); i++) {
+				VectorMask<Integer> m = dst.and(t.dstMask[i]).compare(VectorOperators.EQ, t.dstNet[i]).and(active);
+				if (!m.anyTrue()) {
+					continue;
+				}
+				m = m.and(src.and(t.srcMask[i]).compare(VectorOperators.EQ, t.srcNet[i]))
+						.and(dstPort.compare(VectorOperators.GE, t.dstPortLow[i]))
+						.and(dstPort.compare(VectorOperators.LE, t.dstPortHigh[i]))
+						.and(srcPort.compare(VectorOperators.GE, t.srcPortLow[i]))
+						.and(srcPort.compare(VectorOperators.LE, t.srcPortHigh[i]))
+						.and(protocol.compare(VectorOperators.GE, t.protocolLow[i] & 0xFF))
+						.and(protocol.compare(VectorOperators.LE, t.protocolHigh[i] & 0xFF));
+				if (!m.anyTrue()) {
+					continue;
+				}
+				if (t.side[i] != 0) {
+					m = checkSide(t, i, batch, base, m);
+				}
+				result = result.blend(t.priority[i], m);
+				active = active.andNot(m);
+				if (active.trueCount() <= SCALAR_LANES) {
+					i++;
+					break;
+				}
+			}
+			result.intoArray(out, base, SPECIES.indexInRange(base, n));
+			if (i < t.size) {
+				for (long rest = active.toLong(); rest != 0; rest &= rest - 1) {
+					int p = base + Long.numberOfTrailingZeros(rest);
+					out[p] = t.lookup(batch, p, i);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check the exact port ranges of a flagged row for the lanes whose
+	 * bounds matched.
+	 * @param t - table
+	 * @param i - table row
+	 * @param batch - packets
+	 * @param base - index of the packet in the first lane
+	 * @param m - lanes whose bounds matched
+	 * @return lanes that match the row
+	 */
+	private static VectorMask<Integer> checkSide(CompactTableClassifier t, int i, PacketBatch batch, int base,
+			VectorMask<Integer> m) {
+		long bits = m.toLong();
+		for (long rest = bits; rest != 0; rest &= rest - 1) {
+			int lane = Long.numberOfTrailingZeros(rest);
+			int p = base + lane;
+			if (((t.side[i] & CompactTableClassifier.SIDE_SRC_PORT) != 0
+						&& !CompactTableClassifier.inRanges(t.sideSrcPorts[i], batch.srcPort[p]))
+					|| ((t.side[i] & CompactTableClassifier.SIDE_DST_PORT) != 0
+						&& !CompactTableClassifier.inRanges(t.sideDstPorts[i], batch.dstPort[p]))) {
+				bits &= ~(1L << lane);
+			}
+		}
+		return VectorMask.fromLong(SPECIES, bits);
+	}
+}